@@ -1,6 +1,7 @@
 package es.ava.aruco;
 
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Vector;
 
@@ -17,6 +18,51 @@ import org.opencv.core.Point3;
  *
  */
 public class BoardDetector {
+	// the pose of each board configuration of the last frames, when they are tracked
+	private final IdentityHashMap<BoardConfiguration, PnpTracker> trackers = new IdentityHashMap<BoardConfiguration, PnpTracker>();
+	private boolean poseTracking = false;
+	private int poseMaxGap = MarkerDetector.DEFAULT_POSE_MAX_GAP;
+	private double poseMaxError = MarkerDetector.DEFAULT_POSE_MAX_ERROR;
+
+	/**
+	 * Sets if the pose of each board is started from the one it had in the last frames,
+	 * see {@link PnpTracker}. Each call to detect is taken as a new frame for its board
+	 * configuration.
+	 * @param track true to start from the last poses, false by default.
+	 */
+	public void setPoseTracking(boolean track){
+		poseTracking = track;
+		if(!track)
+			resetPoses();
+	}
+
+	/**
+	 * Sets when the pose of a board is solved from scratch instead of started from its last one.
+	 * @param maxGap the most frames the board can have been missing.
+	 * @param maxError the most error in pixels of the pose started from the last one.
+	 */
+	public void setPoseTrackingLimits(int maxGap, double maxError){
+		for(PnpTracker tracker : trackers.values())
+			tracker.setLimits(maxGap, maxError);
+		poseMaxGap = maxGap;
+		poseMaxError = maxError;
+	}
+
+	/**
+	 * returns the tracker of the pose of a board configuration, with its solve counts.
+	 * @param conf the configuration of the board.
+	 * @return the tracker, null if the board was not detected while tracking.
+	 */
+	public PnpTracker getPoseTracker(BoardConfiguration conf){
+		return trackers.get(conf);
+	}
+
+	/** forgets the last poses of the boards, for frames not following the last ones */
+	public void resetPoses(){
+		for(PnpTracker tracker : trackers.values())
+			tracker.release();
+		trackers.clear();
+	}
 	
 	/**
 	 * Determines whether a set of markers constitutes a board or not. 
@@ -33,6 +79,16 @@ public class BoardDetector {
 	public float detect(Vector<Marker> detectedMarkers, BoardConfiguration conf, Board bDetected,
 			CameraParameters cp, float markerSizeMeters) throws CvException{
 		bDetected.clear();
+		PnpTracker tracker = null;
+		if(poseTracking){
+			tracker = trackers.get(conf);
+			if(tracker == null){
+				tracker = new PnpTracker();
+				tracker.setLimits(poseMaxGap, poseMaxError);
+				trackers.put(conf, tracker);
+			}
+			tracker.nextFrame();
+		}
 		// find among the detected markers those who belong to the board configuration
 		int height = conf.height;
 		int width = conf.width;
@@ -89,7 +145,10 @@ public class BoardDetector {
 	        objPointsMat.fromList(objPoints);
 	        MatOfPoint2f imgPointsMat = new MatOfPoint2f();
 	        imgPointsMat.fromList(imgPoints);
-	        Calib3d.solvePnP(objPointsMat, imgPointsMat, cp.getCameraMatrix(), cp.getDistCoeff(), bDetected.Rvec, bDetected.Tvec);
+	        if(tracker != null)
+	        	tracker.solve(objPointsMat, imgPointsMat, cp, bDetected.Rvec, bDetected.Tvec);
+	        else
+	        	Calib3d.solvePnP(objPointsMat, imgPointsMat, cp.getCameraMatrix(), cp.getDistCoeff(), bDetected.Rvec, bDetected.Tvec);
 //	        Utils.rotateXAxis(bDetected.Rvec); rotated later, in getModelViewMatrix
 		}
 		return ((float)nMarkInBoard/(float)(conf.width*conf.height));
@@ -36,6 +36,11 @@ public class CameraParameters {
 	private MatOfDouble distorsionMatrix;
 	private Size camSize;
 
+	// positions of the calibration image size in the calibration file, after the
+	// 9 values of the camera matrix and the 5 distorsion coefficients
+	public static final int CALIB_WIDTH_INDEX = 14;
+	public static final int CALIB_HEIGHT_INDEX = 15;
+
 	public CameraParameters(){
 		cameraMatrix = new Mat(3,3,CvType.CV_32FC1);
 		distorsionMatrix = new MatOfDouble();
@@ -59,21 +64,55 @@ public class CameraParameters {
 		return distorsionMatrix;
 	}
 
+	/**
+	 * Sets the size of the images the parameters are valid for, that is the size of
+	 * the calibration images until they are resized.
+	 * @param size the image size in pixels.
+	 */
+	public void setCamSize(Size size){
+		camSize = size;
+	}
+
+	/**
+	 * @return the size of the images the parameters are valid for, null if unknown.
+	 */
+	public Size getCamSize(){
+		return camSize;
+	}
+
+	/**
+	 * Copies these parameters into another object, which can then be resized on its own.
+	 * @param cp the destination parameters.
+	 */
+	public void copyTo(CameraParameters cp){
+		cameraMatrix.copyTo(cp.cameraMatrix);
+		distorsionMatrix.copyTo(cp.distorsionMatrix);
+		cp.camSize = camSize == null ? null : camSize.clone();
+	}
+
+	/**
+	 * Scales the camera matrix to images of another size. The parameters must know the
+	 * size they are currently valid for, see {@link #setCamSize}.
+	 * @param size the new image size.
+	 * @throws CPException if the parameters are not valid or their size is unknown.
+	 */
 	public void resize(Size size) throws CPException{
 		if (!isValid())
 			throw new CPException("invalid object CameraParameters::resize");
-		if (size == camSize)
+		if (camSize == null)
+			throw new CPException("unknown camera size CameraParameters::resize");
+		if (size.equals(camSize))
 			return;
-		//now, read the camera size
 		//resize the camera parameters to fit this image size
 		float AxFactor= (float)(size.width)/ (float)(camSize.width);
 		float AyFactor= (float)(size.height)/ (float)(camSize.height);
 		float[] current = new float[9];
 		cameraMatrix.get(0, 0, current);
 		float[] buff = {current[0]*AxFactor, current[1],          current[2]*AxFactor,
-				current[3],          current[4]*AyFactor, current[5],
+				current[3],          current[4]*AyFactor, current[5]*AyFactor,
 				current[6],          current[7],          current[8]};
 		cameraMatrix.put(0, 0, buff);
+		camSize = size.clone();
 	}
 
 //	public void readFromXML(String filepath){
@@ -139,6 +178,10 @@ public class CameraParameters {
 
 			distorsionMatrix.fromArray(distArr);
 
+			// files written before the calibration size was saved don't have it
+			if(matricies.containsKey(CALIB_WIDTH_INDEX) && matricies.containsKey(CALIB_HEIGHT_INDEX))
+				camSize = new Size(matricies.get(CALIB_WIDTH_INDEX), matricies.get(CALIB_HEIGHT_INDEX));
+
 //			distorsionMatrix.put(0,0, matricies.get(9),
 //					matricies.get(10),
 //					matricies.get(11),
@@ -0,0 +1,93 @@
+package es.ava.aruco;
+
+import java.util.Vector;
+
+import org.opencv.core.Point;
+
+/**
+ * Quad found in a frame that could be a marker. It is a plain java object, so the many
+ * quads rejected while filtering and identifying cost no native memory; a {@link Marker}
+ * is only created for the candidates whose code is valid. Candidates are reused frame
+ * after frame through a {@link CandidateList}.
+ */
+public class Candidate {
+	/** the corners of the quad [x1 y1 x2 y2 x3 y3 x4 y4], in anti-clockwise order */
+	public final float[] corners;
+	protected final Code code;
+	protected int id;
+	protected int rotations;
+
+	protected Candidate(){
+		corners = new float[8];
+		code = new Code();
+		id = -1;
+		rotations = 0;
+	}
+
+	/**
+	 * returns the perimeter of the candidate, the addition of the distances between
+	 * consecutive corners.
+	 * @return the perimeter.
+	 */
+	public double perimeter(){
+		double sum=0;
+		for(int i=0;i<4;i++){
+			double dx = (double)corners[i*2]-corners[((i+1)%4)*2];
+			double dy = (double)corners[i*2+1]-corners[((i+1)%4)*2+1];
+			sum+=Math.sqrt(dx*dx+dy*dy);
+		}
+		return sum;
+	}
+
+	/**
+	 * looks up the id of the code read in the original aruco dictionary. The code must
+	 * have been read before.
+	 * @param correctErrors true to accept a code with one of its inner cells wrong.
+	 * @return the id or -1 if the border is not black or the code is not valid in any rotation.
+	 */
+	protected int identify(boolean correctErrors){
+		return identify(Dictionary.ARUCO, correctErrors);
+	}
+
+	/**
+	 * looks up the id of the code read. The code must have been read before, with the
+	 * cells of the dictionary.
+	 * @param dictionary the dictionary of the markers.
+	 * @param correctErrors true to accept a code with as many wrong cells as the
+	 * dictionary corrects.
+	 * @return the id or -1 if the border is not black or the code is not valid in any rotation.
+	 */
+	protected int identify(Dictionary dictionary, boolean correctErrors){
+		id = -1;
+		rotations = 0;
+		if(!code.isBorderBlack() || code.getMarkerBits() != dictionary.getMarkerBits())
+			return -1;
+		int match = correctErrors? dictionary.lookupCorrected(code.payload) : dictionary.lookup(code.payload);
+		if(match == Dictionary.NO_MATCH)
+			return -1;
+		rotations = match & 0x3;
+		id = match>>2;
+		return id;
+	}
+
+	/**
+	 * the corners as points.
+	 * @param oriented true to start from the one the rotations of the code put first so
+	 * they are always in the same order no matter the camera orientation, false to keep
+	 * the order of the quad.
+	 */
+	protected Vector<Point> toPoints(boolean oriented){
+		Vector<Point> p = new Vector<Point>(4);
+		for(int i=0;i<4;i++){
+			int j = oriented ? (i+rotations)%4 : i;
+			p.add(new Point(corners[j*2], corners[j*2+1]));
+		}
+		return p;
+	}
+
+	/** gets the candidate ready to be filled with another quad */
+	void reset(){
+		id = -1;
+		rotations = 0;
+	}
+}
@@ -0,0 +1,79 @@
+package es.ava.aruco;
+
+/**
+ * List of the marker candidates of a frame that keeps its {@link Candidate} objects to
+ * be filled again, so once it has grown to the number of quads in a frame no more
+ * candidates are created.
+ */
+public class CandidateList {
+	private Candidate[] items;
+	private int size;
+
+	public CandidateList(){
+		items = new Candidate[16];
+		size = 0;
+	}
+
+	public int size(){
+		return size;
+	}
+
+	public boolean isEmpty(){
+		return size == 0;
+	}
+
+	public Candidate get(int index){
+		if(index < 0 || index >= size)
+			throw new IndexOutOfBoundsException("candidate "+index+" of "+size);
+		return items[index];
+	}
+
+	/**
+	 * appends a candidate taken from the pool, its corners must be filled.
+	 * @return the candidate appended.
+	 */
+	public Candidate add(){
+		if(size == items.length){
+			Candidate[] grown = new Candidate[items.length*2];
+			System.arraycopy(items, 0, grown, 0, size);
+			items = grown;
+		}
+		if(items[size] == null)
+			items[size] = new Candidate();
+		Candidate candidate = items[size++];
+		candidate.reset();
+		return candidate;
+	}
+
+	/**
+	 * removes a candidate keeping the order of the rest, the candidate goes back to the pool.
+	 * @param index the index of the candidate.
+	 */
+	public void remove(int index){
+		Candidate removed = get(index);
+		System.arraycopy(items, index+1, items, index, size-index-1);
+		items[--size] = removed;
+	}
+
+	/**
+	 * removes the marked candidates in a single pass keeping the order of the rest, the
+	 * candidates removed go back to the pool.
+	 * @param marked by index, true for the candidates to remove.
+	 */
+	public void removeMarked(boolean[] marked){
+		int kept = 0;
+		for(int i=0;i<size;i++){
+			if(marked[i])
+				continue;
+			Candidate candidate = items[i];
+			items[i] = items[kept];
+			items[kept++] = candidate;
+		}
+		size = kept;
+	}
+
+	/** empties the list, all the candidates go back to the pool */
+	public void clear(){
+		size = 0;
+	}
+}
@@ -1,33 +1,138 @@
 package es.ava.aruco;
 
 /**
- * The code stored as matrix of int represents the inside content of a marker.
- * It will have 7x7 dimensions.
+ * The code represents the inside content of a marker, a grid of cells: the inner
+ * markerBits x markerBits cells, which hold the id, inside a border one cell wide.
  * 0->black
  * 1->white
+ * It is stored packed: the inner cells are the bits of a long row by row, the first
+ * cell being the highest bit, and the cells of the border, which must all be black,
+ * are the bits of an int.
+ *
+ * The id of a code is read through the {@link Dictionary} of the markers. The static
+ * methods read the 5x5 codes of the original aruco dictionary.
  *
  */
 public class Code {// TODO check if the parameters are in range
-	protected int[][] code;
-	
+	public static final int NUM_IDS = 1024;
+
+	/** lookup result when the code is not valid */
+	public static final int NO_MATCH = Dictionary.NO_MATCH;
+
+	protected long payload;
+	protected int border;
+	private int markerBits;
+
 	protected Code(){
-		code = new int[7][7];
+		this(5);
+	}
+
+	protected Code(int markerBits){
+		this.markerBits = markerBits;
+		payload = 0;
+		border = 0;
+	}
+
+	/**
+	 * @return the inner cells on each side of the code.
+	 */
+	protected int getMarkerBits(){
+		return markerBits;
+	}
+
+	/**
+	 * changes the inner cells on each side of the code, clearing it if they change.
+	 * @param markerBits the inner cells on each side.
+	 */
+	protected void setMarkerBits(int markerBits){
+		if(markerBits == this.markerBits)
+			return;
+		this.markerBits = markerBits;
+		payload = 0;
+		border = 0;
 	}
-	
+
+	/**
+	 * @return the cells on each side of the code, border included.
+	 */
+	protected int getCells(){
+		return markerBits+2;
+	}
+
 	protected void set(int x, int y, int value){
-		code[x][y] = value;
+		if(x>0 && x<=markerBits && y>0 && y<=markerBits){
+			long mask = 1L<<innerBit(x-1, y-1);
+			payload = value != 0 ? payload | mask : payload & ~mask;
+		}
+		else{
+			int mask = 1<<borderBit(x, y);
+			border = value != 0 ? border | mask : border & ~mask;
+		}
 	}
 
 	protected int get(int x, int y){
-		return code[x][y];
-	}
-	
-	static protected Code rotate(Code in){
-		Code out = new Code();
-		for(int i=0;i<7;i++)
-			for(int j=0;j<7;j++){
-				out.code[i][j] = in.code[6-j][i];
-			}
-		return out;
+		if(x>0 && x<=markerBits && y>0 && y<=markerBits)
+			return (int)(payload>>innerBit(x-1, y-1)) & 1;
+		return (border>>borderBit(x, y)) & 1;
+	}
+
+	/**
+	 * @return true if every cell of the border is black.
+	 */
+	protected boolean isBorderBlack(){
+		return border == 0;
+	}
+
+	/**
+	 * rotates the inner cells of an original aruco code a quarter of turn, the cell at
+	 * (x, y) going to (y, 4-x).
+	 * @param payload the inner cells.
+	 * @return the inner cells rotated.
+	 */
+	static protected int rotate(int payload){
+		return (int)Dictionary.ARUCO.rotate(payload);
+	}
+
+	/**
+	 * looks up the id of the inner cells of an original aruco code.
+	 * @param payload the inner cells.
+	 * @return id<<2 | rotations, the rotations being the quarter turns that make the
+	 * code read as the id, or NO_MATCH if the code is not valid in any rotation.
+	 */
+	static protected int lookup(long payload){
+		return Dictionary.ARUCO.lookup(payload);
+	}
+
+	/**
+	 * looks up the id of the inner cells of an original aruco code allowing one of the
+	 * cells to be wrong. A code one cell away from codes of different ids is not corrected.
+	 * @param payload the inner cells.
+	 * @return as {@link #lookup(long)}.
+	 */
+	static protected int lookupCorrected(long payload){
+		return Dictionary.ARUCO.lookupCorrected(payload);
+	}
+
+	/**
+	 * @param id an original aruco marker id.
+	 * @return the inner cells of the marker as it is printed.
+	 */
+	static protected int canonicalCode(int id){
+		return (int)Dictionary.ARUCO.getCode(id);
+	}
+
+	/** bit of the inner cells holding the inner cell at (x, y) */
+	private int innerBit(int x, int y){
+		return markerBits*markerBits-1 - (x*markerBits+y);
+	}
+
+	/** bit of the border holding the border cell at (x, y) */
+	private int borderBit(int x, int y){
+		int cells = markerBits+2;
+		if(x == 0)
+			return y;
+		if(x == cells-1)
+			return cells+y;
+		return 2*cells + (x-1)*2 + (y == 0 ? 0 : 1);
 	}
 }
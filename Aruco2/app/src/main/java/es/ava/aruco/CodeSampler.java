@@ -0,0 +1,192 @@
+package es.ava.aruco;
+
+import org.opencv.core.Mat;
+
+/**
+ * Reads the code of marker candidates by sampling the grey frame directly instead of
+ * warping each candidate into a canonical image. The rows of the frame covered by the
+ * candidates are read into java once, then for each candidate the homography from the
+ * canonical marker to its corners is computed in java and a few points of each of the
+ * cells of the code are sampled through it. The samples are thresholded with Otsu, as the
+ * warped image was, and a cell is white if most of its samples are.
+ */
+public class CodeSampler {
+	/**
+	 * width of a cell in the canonical marker the candidates used to be warped to, 50
+	 * pixels wide for the 7x7 cells of a 5x5 code
+	 */
+	static final int CELL_SIZE = 7;
+	/** where the samples are taken in a cell of the canonical marker, in both directions */
+	private static final double[] SAMPLE_OFFSETS = {1, 3, 5};
+	private static final int SAMPLES_PER_CELL = SAMPLE_OFFSETS.length*SAMPLE_OFFSETS.length;
+	private static final double FLT_EPSILON = 1.1920929e-7;
+
+	// the rows of the frame read, from firstRow on
+	private byte[] pixels;
+	private int width;
+	private int height;
+	private int firstRow;
+	private int rowCount;
+	// samples of the current candidate, cell by cell
+	private final int[] samples;
+	private final int[] histogram;
+
+	public CodeSampler(){
+		pixels = new byte[0];
+		int cells = Dictionary.MAX_MARKER_BITS+2;
+		samples = new int[cells*cells*SAMPLES_PER_CELL];
+		histogram = new int[256];
+	}
+
+	/**
+	 * reads the rows of the frame the candidates are in, in a single copy.
+	 * @param grey the grey frame.
+	 * @param candidates the candidates whose code will be read.
+	 */
+	public void load(Mat grey, CandidateList candidates){
+		width = grey.cols();
+		height = grey.rows();
+		double minY = Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+		for(int i=0;i<candidates.size();i++){
+			float[] corners = candidates.get(i).corners;
+			for(int j=1;j<8;j+=2){
+				minY = Math.min(minY, corners[j]);
+				maxY = Math.max(maxY, corners[j]);
+			}
+		}
+		if(minY > maxY){
+			rowCount = 0;
+			return;
+		}
+		// one more row on each side for the interpolation
+		firstRow = Math.max(0, (int)Math.floor(minY)-1);
+		int lastRow = Math.min(height-1, (int)Math.ceil(maxY)+1);
+		if(lastRow < firstRow){
+			rowCount = 0;
+			return;
+		}
+		// the buffer only grows, the rows past the last one needed are read as well
+		if(pixels.length < (lastRow-firstRow+1)*width)
+			pixels = new byte[(lastRow-firstRow+1)*width];
+		rowCount = Math.min(pixels.length/width, height-firstRow);
+		grey.get(firstRow, 0, pixels);
+	}
+
+	/**
+	 * uses the rows loaded by another sampler, to read codes on several threads with a
+	 * sampler each. The rows must not be loaded again while they are being read.
+	 * @param loaded the sampler that loaded the rows.
+	 */
+	void share(CodeSampler loaded){
+		pixels = loaded.pixels;
+		width = loaded.width;
+		height = loaded.height;
+		firstRow = loaded.firstRow;
+		rowCount = loaded.rowCount;
+	}
+
+	/**
+	 * reads the code of a candidate from the rows loaded.
+	 * @param corners the corners of the candidate [x1 y1 ... x4 y4], inside the rows loaded.
+	 * @param code the code to fill, with the cells to read.
+	 */
+	public void read(float[] corners, Code code){
+		int cells = code.getCells();
+		int canonicalSize = cells*CELL_SIZE+1;
+		// homography from the canonical marker, whose corners are (0,0), (49,0), (49,49)
+		// and (0,49) for 7x7 cells, to the candidate corners
+		double x0 = corners[0], y0 = corners[1];
+		double x1 = corners[2], y1 = corners[3];
+		double x2 = corners[4], y2 = corners[5];
+		double x3 = corners[6], y3 = corners[7];
+		double dx1 = x1-x2, dx2 = x3-x2, dx3 = x0-x1+x2-x3;
+		double dy1 = y1-y2, dy2 = y3-y2, dy3 = y0-y1+y2-y3;
+		double g = 0, h = 0;
+		double det = dx1*dy2-dx2*dy1;
+		if((dx3 != 0 || dy3 != 0) && det != 0){
+			g = (dx3*dy2-dx2*dy3)/det;
+			h = (dx1*dy3-dx3*dy1)/det;
+		}
+		double scale = 1.0/(canonicalSize-1);
+		double a = (x1-x0+g*x1)*scale, b = (x3-x0+h*x3)*scale;
+		double d = (y1-y0+g*y1)*scale, e = (y3-y0+h*y3)*scale;
+		g *= scale;
+		h *= scale;
+
+		java.util.Arrays.fill(histogram, 0);
+		int n = 0;
+		for(int x=0;x<cells;x++){
+			for(int y=0;y<cells;y++){
+				// the code is indexed by row x and column y of the canonical marker
+				for(double dv : SAMPLE_OFFSETS){
+					double v = x*CELL_SIZE+dv;
+					for(double du : SAMPLE_OFFSETS){
+						double u = y*CELL_SIZE+du;
+						double w = g*u+h*v+1;
+						int value = sample((a*u+b*v+x0)/w, (d*u+e*v+y0)/w);
+						samples[n++] = value;
+						histogram[value]++;
+					}
+				}
+			}
+		}
+
+		int threshold = otsu(histogram, n);
+		n = 0;
+		for(int x=0;x<cells;x++){
+			for(int y=0;y<cells;y++){
+				int white = 0;
+				for(int s=0;s<SAMPLES_PER_CELL;s++)
+					if(samples[n++] > threshold)
+						white++;
+				code.set(x, y, white > SAMPLES_PER_CELL/2 ? 1 : 0);
+			}
+		}
+	}
+
+	/** bilinear interpolation of the frame at a point, clamped to the rows loaded */
+	private int sample(double px, double py){
+		px = Math.min(Math.max(px, 0), width-1);
+		py = Math.min(Math.max(py-firstRow, 0), rowCount-1);
+		int ix = Math.min((int)px, width-2);
+		int iy = Math.min((int)py, rowCount-2);
+		if(ix < 0 || iy < 0)
+			// a single column or row, nothing to interpolate
+			return pixels[Math.max(iy, 0)*width+Math.max(ix, 0)] & 0xff;
+		double fx = px-ix, fy = py-iy;
+		int p = iy*width+ix;
+		double top = (pixels[p] & 0xff)*(1-fx)+(pixels[p+1] & 0xff)*fx;
+		double bottom = (pixels[p+width] & 0xff)*(1-fx)+(pixels[p+width+1] & 0xff)*fx;
+		return (int)Math.round(top*(1-fy)+bottom*fy);
+	}
+
+	/**
+	 * threshold maximizing the variance between the two classes, as OpenCV computes it.
+	 * @return the highest value of the dark class.
+	 */
+	static int otsu(int[] histogram, int count){
+		double mu = 0;
+		for(int i=0;i<256;i++)
+			mu += i*(double)histogram[i];
+		mu /= count;
+		double q1 = 0, mu1 = 0, maxSigma = 0;
+		int maxVal = 0;
+		for(int i=0;i<256;i++){
+			double pi = histogram[i]/(double)count;
+			double q2;
+			mu1 *= q1;
+			q1 += pi;
+			q2 = 1.-q1;
+			if(Math.min(q1, q2) < FLT_EPSILON || Math.max(q1, q2) > 1.-FLT_EPSILON)
+				continue;
+			mu1 = (mu1+i*pi)/q1;
+			double mu2 = (mu-q1*mu1)/q2;
+			double sigma = q1*q2*(mu1-mu2)*(mu1-mu2);
+			if(sigma > maxSigma){
+				maxSigma = sigma;
+				maxVal = i;
+			}
+		}
+		return maxVal;
+	}
+}
@@ -0,0 +1,302 @@
+package es.ava.aruco;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Settings of a {@link MarkerDetector}. A configuration can't be changed, each with
+ * method returns a copy with one setting changed, so a detector can be used by several
+ * threads at once without locks, each with its own {@link DetectorWorkspace}, and its
+ * configuration replaced while they run: a detection uses the configuration the
+ * detector had when it started.
+ */
+public final class DetectorConfig {
+	/** the settings of a new detector */
+	public static final DetectorConfig DEFAULT = new DetectorConfig();
+
+	private MarkerDetector.thresSuppMethod thresMethod;
+	private double thresParam1, thresParam2;
+	private int meanScale;
+	private int pyramidLevels;
+	private boolean contourShapeFilter;
+	private boolean cornerRefinement;
+	private boolean errorCorrection;
+	private boolean codeSampling;
+	private boolean orientedCorners;
+	private Dictionary dictionary;
+	private ExecutorService workerPool;
+	private int workerThreads;
+	private int parallelMinCandidates, parallelMinMarkers;
+	private boolean poseTracking;
+	private int poseMaxGap;
+	private double poseMaxError;
+
+	private DetectorConfig(){
+		thresMethod = MarkerDetector.thresSuppMethod.ADPT_THRES;
+		thresParam1 = thresParam2 = 7;
+		meanScale = 1;
+		pyramidLevels = 0;
+		contourShapeFilter = false;
+		cornerRefinement = false;
+		errorCorrection = false;
+		codeSampling = false;
+		orientedCorners = false;
+		dictionary = Dictionary.ARUCO;
+		workerPool = null;
+		workerThreads = 0;
+		parallelMinCandidates = MarkerDetector.DEFAULT_PARALLEL_MIN_CANDIDATES;
+		parallelMinMarkers = MarkerDetector.DEFAULT_PARALLEL_MIN_MARKERS;
+		poseTracking = false;
+		poseMaxGap = MarkerDetector.DEFAULT_POSE_MAX_GAP;
+		poseMaxError = MarkerDetector.DEFAULT_POSE_MAX_ERROR;
+	}
+
+	private DetectorConfig copy(){
+		DetectorConfig c = new DetectorConfig();
+		c.thresMethod = thresMethod;
+		c.thresParam1 = thresParam1;
+		c.thresParam2 = thresParam2;
+		c.meanScale = meanScale;
+		c.pyramidLevels = pyramidLevels;
+		c.contourShapeFilter = contourShapeFilter;
+		c.cornerRefinement = cornerRefinement;
+		c.errorCorrection = errorCorrection;
+		c.codeSampling = codeSampling;
+		c.orientedCorners = orientedCorners;
+		c.dictionary = dictionary;
+		c.workerPool = workerPool;
+		c.workerThreads = workerThreads;
+		c.parallelMinCandidates = parallelMinCandidates;
+		c.parallelMinMarkers = parallelMinMarkers;
+		c.poseTracking = poseTracking;
+		c.poseMaxGap = poseMaxGap;
+		c.poseMaxError = poseMaxError;
+		return c;
+	}
+
+	/**
+	 * @param method the method used to threshold the frame, see {@link MarkerDetector#setThresholdMethod}.
+	 */
+	public DetectorConfig withThresholdMethod(MarkerDetector.thresSuppMethod method){
+		DetectorConfig c = copy();
+		c.thresMethod = method;
+		return c;
+	}
+
+	/**
+	 * @param p1 the block size of the threshold, see {@link MarkerDetector#setThresholdParams}.
+	 * @param p2 the constant subtracted from the mean.
+	 */
+	public DetectorConfig withThresholdParams(double p1, double p2){
+		DetectorConfig c = copy();
+		c.thresParam1 = p1;
+		c.thresParam2 = p2;
+		return c;
+	}
+
+	/**
+	 * @param scale the factor the frame is reduced by to take the block means of
+	 * MEAN_THRES, see {@link MarkerDetector#setThresholdMeanScale}.
+	 */
+	public DetectorConfig withThresholdMeanScale(int scale){
+		if(scale < 1)
+			throw new IllegalArgumentException("the mean scale must be 1 or more");
+		DetectorConfig c = copy();
+		c.meanScale = scale;
+		return c;
+	}
+
+	/**
+	 * @param levels number of times the frame is halved to look for the candidates, see
+	 * {@link MarkerDetector#setPyramidLevels}.
+	 */
+	public DetectorConfig withPyramidLevels(int levels){
+		if(levels < 0 || levels > MarkerDetector.MAX_PYRAMID_LEVELS)
+			throw new IllegalArgumentException("pyramid levels must be between 0 and "+MarkerDetector.MAX_PYRAMID_LEVELS);
+		DetectorConfig c = copy();
+		c.pyramidLevels = levels;
+		return c;
+	}
+
+	/**
+	 * @param filter true to check the bounding box of the contours, see
+	 * {@link MarkerDetector#setContourShapeFilter}.
+	 */
+	public DetectorConfig withContourShapeFilter(boolean filter){
+		DetectorConfig c = copy();
+		c.contourShapeFilter = filter;
+		return c;
+	}
+
+	/**
+	 * @param refine true to refine the corners of the markers found, see
+	 * {@link MarkerDetector#setCornerRefinement}.
+	 */
+	public DetectorConfig withCornerRefinement(boolean refine){
+		DetectorConfig c = copy();
+		c.cornerRefinement = refine;
+		return c;
+	}
+
+	/**
+	 * @param correct true to correct wrong cells of the codes, see
+	 * {@link MarkerDetector#setErrorCorrection}.
+	 */
+	public DetectorConfig withErrorCorrection(boolean correct){
+		DetectorConfig c = copy();
+		c.errorCorrection = correct;
+		return c;
+	}
+
+	/**
+	 * @param sampling true to sample the codes, see {@link MarkerDetector#setCodeSampling}.
+	 */
+	public DetectorConfig withCodeSampling(boolean sampling){
+		DetectorConfig c = copy();
+		c.codeSampling = sampling;
+		return c;
+	}
+
+	/**
+	 * @param oriented true to start the corners of the markers from the one the code puts
+	 * first, see {@link MarkerDetector#setOrientedCorners}.
+	 */
+	public DetectorConfig withOrientedCorners(boolean oriented){
+		DetectorConfig c = copy();
+		c.orientedCorners = oriented;
+		return c;
+	}
+
+	/**
+	 * @param dictionary the dictionary the codes are read with, see
+	 * {@link MarkerDetector#setDictionary}.
+	 */
+	public DetectorConfig withDictionary(Dictionary dictionary){
+		DetectorConfig c = copy();
+		c.dictionary = dictionary;
+		return c;
+	}
+
+	/**
+	 * @param pool the pool the codes are read and the extrinsics calculated on, or null,
+	 * see {@link MarkerDetector#setWorkerPool}.
+	 * @param threads the number of threads of the pool to use at once.
+	 */
+	public DetectorConfig withWorkerPool(ExecutorService pool, int threads){
+		if(pool != null && threads < 1)
+			throw new IllegalArgumentException("at least one thread of the pool must be used");
+		DetectorConfig c = copy();
+		c.workerPool = pool;
+		c.workerThreads = pool == null ? 0 : threads;
+		return c;
+	}
+
+	/**
+	 * @param minCandidates the fewest candidates whose codes are read in parallel.
+	 * @param minMarkers the fewest markers whose extrinsics are calculated in parallel.
+	 */
+	public DetectorConfig withParallelThresholds(int minCandidates, int minMarkers){
+		DetectorConfig c = copy();
+		c.parallelMinCandidates = minCandidates;
+		c.parallelMinMarkers = minMarkers;
+		return c;
+	}
+
+	/**
+	 * @param track true to start the pose of the markers from the one they had in the
+	 * last frames, see {@link MarkerDetector#setPoseTracking}.
+	 */
+	public DetectorConfig withPoseTracking(boolean track){
+		DetectorConfig c = copy();
+		c.poseTracking = track;
+		return c;
+	}
+
+	/**
+	 * @param maxGap the most frames a marker can have been missing to start from its last pose.
+	 * @param maxError the most error in pixels of a pose started from the last one, above
+	 * it the pose is solved again.
+	 */
+	public DetectorConfig withPoseTrackingLimits(int maxGap, double maxError){
+		if(maxGap < 0 || !(maxError > 0))
+			throw new IllegalArgumentException("the gap can't be negative and the error must be positive");
+		DetectorConfig c = copy();
+		c.poseMaxGap = maxGap;
+		c.poseMaxError = maxError;
+		return c;
+	}
+
+	public MarkerDetector.thresSuppMethod getThresholdMethod(){
+		return thresMethod;
+	}
+
+	public double getThresholdParam1(){
+		return thresParam1;
+	}
+
+	public double getThresholdParam2(){
+		return thresParam2;
+	}
+
+	public int getThresholdMeanScale(){
+		return meanScale;
+	}
+
+	public int getPyramidLevels(){
+		return pyramidLevels;
+	}
+
+	public boolean getContourShapeFilter(){
+		return contourShapeFilter;
+	}
+
+	public boolean getCornerRefinement(){
+		return cornerRefinement;
+	}
+
+	public boolean getErrorCorrection(){
+		return errorCorrection;
+	}
+
+	public boolean getCodeSampling(){
+		return codeSampling;
+	}
+
+	public boolean getOrientedCorners(){
+		return orientedCorners;
+	}
+
+	public Dictionary getDictionary(){
+		return dictionary;
+	}
+
+	public ExecutorService getWorkerPool(){
+		return workerPool;
+	}
+
+	/**
+	 * @return the threads of the pool used at once, 0 without a pool.
+	 */
+	public int getWorkerThreads(){
+		return workerThreads;
+	}
+
+	public int getParallelMinCandidates(){
+		return parallelMinCandidates;
+	}
+
+	public int getParallelMinMarkers(){
+		return parallelMinMarkers;
+	}
+
+	public boolean getPoseTracking(){
+		return poseTracking;
+	}
+
+	public int getPoseMaxGap(){
+		return poseMaxGap;
+	}
+
+	public double getPoseMaxError(){
+		return poseMaxError;
+	}
+}
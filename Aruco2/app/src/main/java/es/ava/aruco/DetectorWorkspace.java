@@ -0,0 +1,155 @@
+package es.ava.aruco;
+
+import java.util.Vector;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.MatOfPoint2f;
+
+/**
+ * Scratch objects of a detection: the grey, thresholded and reduced frames, the contours
+ * and the buffers used to filter and identify the candidates. A {@link MarkerDetector}
+ * holds no state of a detection, so several threads can detect with the same detector
+ * at once as long as each has its own workspace. A workspace is reused frame after
+ * frame, its buffers only grow, and must not be used by two detections at once.
+ */
+public final class DetectorWorkspace {
+	final Mat grey, thres, thres2, hierarchy2;
+	final Vector<MatOfPoint> contours2;
+	// reduced copies of the frame used in pyramid mode, one per level
+	private Mat[] pyramid;
+	final MeanThreshold meanThreshold;
+	final MatOfPoint2f refinedCorners;
+	private float[] cornerBuffer;
+	int[] refineWindows;
+	// the candidates of the detect call
+	final CandidateList candidates;
+	final MatOfPoint2f contourFloat, approxCurve;
+	int[] contourPoints;
+	final int[] contourCounts;
+	final float[] quad;
+	boolean[] toRemove;
+	final NearCandidateFilter nearFilter;
+	Candidate[] identified;
+	// poses of the markers of the last frames detected with this workspace
+	final PoseHistory poses;
+	// one per thread reading codes and calculating extrinsics, the first one for the
+	// calling thread which loads the rows of the frame for the others
+	private CodeReader[] readers;
+
+	public DetectorWorkspace(){
+		grey = new Mat();
+		thres = new Mat();
+		thres2 = new Mat();
+		hierarchy2 = new Mat();
+		contours2 = new Vector<MatOfPoint>();
+		pyramid = new Mat[0];
+		meanThreshold = new MeanThreshold();
+		refinedCorners = new MatOfPoint2f();
+		cornerBuffer = new float[64];
+		refineWindows = new int[16];
+		candidates = new CandidateList();
+		contourFloat = new MatOfPoint2f();
+		approxCurve = new MatOfPoint2f();
+		contourPoints = new int[512];
+		contourCounts = new int[4];
+		quad = new float[8];
+		toRemove = new boolean[16];
+		nearFilter = new NearCandidateFilter(MarkerDetector.MIN_DISTANCE);
+		identified = new Candidate[16];
+		poses = new PoseHistory();
+		readers = new CodeReader[]{new CodeReader()};
+	}
+
+	/**
+	 * returns how many contours of the last frame searched with this workspace reached
+	 * a stage of the candidate search, see {@link MarkerDetector#getContourCount}.
+	 * @param stage one of the CONTOURS_ stages of MarkerDetector.
+	 * @return the number of contours.
+	 */
+	public int getContourCount(int stage){
+		return contourCounts[stage];
+	}
+
+	/**
+	 * forgets the poses of the markers of the last frames, when the next frames do not
+	 * follow them, see {@link MarkerDetector#setPoseTracking}.
+	 */
+	public void resetPoses(){
+		poses.clear();
+	}
+
+	/**
+	 * frees the native memory of the scratch frames and contours. The workspace can
+	 * still be used, they are allocated again.
+	 */
+	public void release(){
+		grey.release();
+		thres.release();
+		thres2.release();
+		hierarchy2.release();
+		for(int i=0;i<contours2.size();i++)
+			contours2.get(i).release();
+		contours2.clear();
+		for(int l=0;l<pyramid.length;l++)
+			pyramid[l].release();
+		meanThreshold.release();
+		refinedCorners.release();
+		contourFloat.release();
+		approxCurve.release();
+		for(int r=0;r<readers.length;r++)
+			readers[r].canonical.release();
+	}
+
+	/** the reduced frames, at least as many as the levels */
+	Mat[] pyramid(int levels){
+		if(levels > pyramid.length){
+			Mat[] grown = new Mat[levels];
+			System.arraycopy(pyramid, 0, grown, 0, pyramid.length);
+			for(int l=pyramid.length;l<levels;l++)
+				grown[l] = new Mat();
+			pyramid = grown;
+		}
+		return pyramid;
+	}
+
+	/** grow only buffer for the corners of the quads refined at once */
+	float[] cornerBuffer(int nQuads){
+		if(cornerBuffer.length < nQuads*8)
+			cornerBuffer = new float[Math.max(nQuads*8, cornerBuffer.length*2)];
+		return cornerBuffer;
+	}
+
+	/** the code readers, at least as many as the threads */
+	CodeReader[] readers(int threads){
+		if(threads > readers.length){
+			CodeReader[] grown = new CodeReader[threads];
+			System.arraycopy(readers, 0, grown, 0, readers.length);
+			for(int r=readers.length;r<threads;r++)
+				grown[r] = new CodeReader();
+			readers = grown;
+		}
+		return readers;
+	}
+
+	/** scratch objects of one of the threads reading codes and calculating extrinsics */
+	static class CodeReader{
+		final CodeSampler sampler;
+		final Mat canonical;
+		final Mat pointsIn;
+		final Mat pointsRes;
+		final SquarePoseSolver poseSolver;
+		final double[] rvec, tvec;
+
+		CodeReader(){
+			sampler = new CodeSampler();
+			poseSolver = new SquarePoseSolver();
+			rvec = new double[3];
+			tvec = new double[3];
+			canonical = new Mat();
+			pointsIn = new Mat(4,1,CvType.CV_32FC2);
+			pointsRes = new Mat(4,1,CvType.CV_32FC2);
+		}
+	}
+}
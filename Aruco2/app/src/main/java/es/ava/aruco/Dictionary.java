@@ -0,0 +1,392 @@
+package es.ava.aruco;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Set of marker codes, each of markerBits x markerBits inner cells inside a black
+ * border, the id of a marker being the index of its code. The inner cells are packed
+ * in a long row by row, the first cell being the highest bit, as in {@link Code}.
+ *
+ * Every code in each of its 4 rotations is put in a hash table when the dictionary is
+ * created, so reading the id of a code is a single lookup. Codes read with some cells
+ * wrong can be corrected up to a number of cells: one wrong cell is looked up in a
+ * second table of all the codes one cell away, built the first time, and more by
+ * comparing the code read to every code.
+ *
+ * Besides the original aruco dictionary there are generated 4x4, 5x5 and 6x6 ones of
+ * any size. They are generated with a fixed seed, so they are always the same, and the
+ * first codes of a dictionary are the codes of a smaller one of the same cells, so the
+ * markers printed for it are still valid with a bigger one.
+ */
+public class Dictionary {
+	/** lookup result when the code is not valid */
+	public static final int NO_MATCH = -1;
+	/** neighbour table value of a code one cell away from codes with different ids */
+	private static final int AMBIGUOUS = -2;
+	private static final long EMPTY = -1L;
+
+	public static final int MIN_MARKER_BITS = 4;
+	public static final int MAX_MARKER_BITS = 6;
+	/** the inner cells of the original dictionary, each row is one of these words */
+	private static final int[] ARUCO_WORDS = {0x10,0x17,0x09,0x0e};
+	/**
+	 * The original aruco dictionary, 1024 ids of 5x5 cells. Some of its codes are only
+	 * one cell away from another code turned, and some read the same turned, so a
+	 * single wrong cell is corrected only when no other id is as near.
+	 */
+	public static final Dictionary ARUCO = createAruco();
+
+	// generation of the other dictionaries: random codes are taken if they are at
+	// least a distance from the codes already taken, and the distance is lowered when
+	// too many in a row are not
+	private static final long SEED = 0x41525543L;
+	private static final int MAX_REJECTED = 5000;
+	private static final Map<Long, Dictionary> GENERATED = new HashMap<Long, Dictionary>();
+
+	private final int markerBits;
+	private final long[] codes;
+	private final int minDistance;
+	private final int correctionBits;
+	// for each row and word of the row, its bits once the code is rotated
+	private final long[][] rotateRow;
+	// every code in every rotation, rotation by rotation, and its id<<2 | rotation
+	private final long[] rotated;
+	private final int[] rotatedValues;
+	// open addressing table from valid code to id<<2 | rotation
+	private final long[] keys;
+	private final int[] values;
+	private final int shift;
+	private final Neighbours neighbours;
+
+	private Dictionary(int markerBits, long[] codes, int minDistance, int correctionBits){
+		this.markerBits = markerBits;
+		this.codes = codes;
+		this.minDistance = minDistance;
+		this.correctionBits = correctionBits;
+		int n = markerBits;
+		rotateRow = new long[n][1<<n];
+		for(int row=0;row<n;row++)
+			for(int word=0;word<1<<n;word++){
+				long out = 0;
+				for(int col=0;col<n;col++)
+					if(((word>>(n-1-col)) & 1) != 0)
+						// the cell at (row, col) goes to (col, n-1-row)
+						out |= 1L<<cellBit(col, n-1-row);
+				rotateRow[row][word] = out;
+			}
+
+		int size = codes.length;
+		rotated = new long[4*size];
+		rotatedValues = new int[4*size];
+		int tableBits = 1;
+		while(1<<tableBits < 8*size)
+			tableBits++;
+		shift = 64-tableBits;
+		keys = new long[1<<tableBits];
+		values = new int[1<<tableBits];
+		java.util.Arrays.fill(keys, EMPTY);
+		// the first rotation that makes a code valid is kept, as when the rotations
+		// were tried one after another
+		for(int rotation=0;rotation<4;rotation++)
+			for(int id=0;id<size;id++){
+				long key = codes[id];
+				for(int i=0;i<(4-rotation)%4;i++)
+					key = rotate(key);
+				rotated[rotation*size+id] = key;
+				rotatedValues[rotation*size+id] = (id<<2) | rotation;
+				put(keys, values, shift, key, (id<<2) | rotation, false);
+			}
+		neighbours = new Neighbours();
+	}
+
+	/** the same codes and tables correcting another number of cells */
+	private Dictionary(Dictionary other, int correctionBits){
+		markerBits = other.markerBits;
+		codes = other.codes;
+		minDistance = other.minDistance;
+		this.correctionBits = correctionBits;
+		rotateRow = other.rotateRow;
+		rotated = other.rotated;
+		rotatedValues = other.rotatedValues;
+		keys = other.keys;
+		values = other.values;
+		shift = other.shift;
+		neighbours = other.neighbours;
+	}
+
+	private static Dictionary createAruco(){
+		long[] codes = new long[1024];
+		for(int id=0;id<codes.length;id++){
+			long code = 0;
+			for(int row=0;row<5;row++)
+				code = (code<<5) | ARUCO_WORDS[(id>>2*(4-row)) & 0x3];
+			codes[id] = code;
+		}
+		return new Dictionary(5, codes, 0, 1);
+	}
+
+	/**
+	 * returns a generated dictionary, the same for the same cells and size.
+	 * @param markerBits the inner cells on each side of the markers, 4 to 6.
+	 * @param size the number of ids.
+	 * @return the dictionary, correcting as many cells as keep every wrong code nearer
+	 * to its own code than to any other.
+	 * @throws IllegalArgumentException if the cells are out of range or there can't be
+	 * that many codes of those cells.
+	 */
+	public static synchronized Dictionary generate(int markerBits, int size){
+		if(markerBits < MIN_MARKER_BITS || markerBits > MAX_MARKER_BITS)
+			throw new IllegalArgumentException("markers of "+markerBits+"x"+markerBits+" cells not supported");
+		if(size < 1)
+			throw new IllegalArgumentException("a dictionary of "+size+" ids");
+		Long key = ((long)markerBits<<32) | size;
+		Dictionary dictionary = GENERATED.get(key);
+		if(dictionary == null){
+			dictionary = createGenerated(markerBits, size);
+			GENERATED.put(key, dictionary);
+		}
+		return dictionary;
+	}
+
+	private static Dictionary createGenerated(int markerBits, int size){
+		int cells = markerBits*markerBits;
+		long mask = (1L<<cells)-1;
+		// only the rotations are used while generating
+		Dictionary rotations = new Dictionary(markerBits, new long[0], 0, 0);
+		Random random = new Random(SEED+markerBits);
+		long[] codes = new long[size];
+		int count = 0;
+		int distance = 2*cells/5;
+		int rejected = 0;
+		while(count < size){
+			long code = random.nextLong() & mask;
+			int white = Long.bitCount(code);
+			// enough of both colours for the code not to look like a plain square
+			if(white >= markerBits && white <= cells-markerBits
+					&& rotations.isFar(code, codes, count, distance)){
+				codes[count++] = code;
+				rejected = 0;
+			}
+			else if(++rejected == MAX_REJECTED){
+				rejected = 0;
+				if(--distance == 0)
+					throw new IllegalArgumentException("there can't be "+size+" codes of "+markerBits+"x"+markerBits+" cells");
+			}
+		}
+		return new Dictionary(markerBits, codes, distance, (distance-1)/2);
+	}
+
+	/** checks a code is at least a distance from its own rotations and from every code in any rotation */
+	private boolean isFar(long code, long[] codes, int count, int distance){
+		long turned = code;
+		for(int rotation=1;rotation<4;rotation++){
+			turned = rotate(turned);
+			if(Long.bitCount(turned ^ code) < distance)
+				return false;
+		}
+		for(int rotation=0;rotation<4;rotation++){
+			for(int i=0;i<count;i++)
+				if(Long.bitCount(turned ^ codes[i]) < distance)
+					return false;
+			turned = rotate(turned);
+		}
+		return true;
+	}
+
+	/**
+	 * returns the same dictionary correcting another number of wrong cells. A code is
+	 * only corrected to the nearest id if no other id is as near.
+	 * @param bits the most cells corrected, 0 to accept only valid codes.
+	 * @return the dictionary, sharing the tables of this one.
+	 */
+	public Dictionary withCorrection(int bits){
+		if(bits < 0)
+			throw new IllegalArgumentException("correction of "+bits+" cells");
+		return bits == correctionBits ? this : new Dictionary(this, bits);
+	}
+
+	/**
+	 * @return the inner cells on each side of the markers.
+	 */
+	public int getMarkerBits(){
+		return markerBits;
+	}
+
+	/**
+	 * @return the number of ids.
+	 */
+	public int size(){
+		return codes.length;
+	}
+
+	/**
+	 * @return the fewest cells any two codes differ in, turned in any way, and any code
+	 * from itself turned.
+	 */
+	public int getMinDistance(){
+		return minDistance;
+	}
+
+	/**
+	 * @return the most wrong cells corrected.
+	 */
+	public int getCorrectionBits(){
+		return correctionBits;
+	}
+
+	/**
+	 * @param id a marker id.
+	 * @return the inner cells of the marker as it is printed.
+	 */
+	public long getCode(int id){
+		return codes[id];
+	}
+
+	/**
+	 * rotates the inner cells of a code a quarter of turn, the cell at (x, y) going
+	 * to (y, markerBits-1-x).
+	 * @param code the inner cells.
+	 * @return the inner cells rotated.
+	 */
+	public long rotate(long code){
+		int n = markerBits;
+		long wordMask = (1L<<n)-1;
+		long out = 0;
+		for(int row=0;row<n;row++)
+			out |= rotateRow[row][(int)((code>>(n*(n-1-row))) & wordMask)];
+		return out;
+	}
+
+	/**
+	 * looks up the id of the inner cells of a code.
+	 * @param code the inner cells.
+	 * @return id<<2 | rotations, the rotations being the quarter turns that make the
+	 * code read as the id, or NO_MATCH if the code is not valid in any rotation.
+	 */
+	public int lookup(long code){
+		return get(keys, values, shift, code);
+	}
+
+	/**
+	 * looks up the id of the inner cells of a code allowing up to
+	 * {@link #getCorrectionBits()} of the cells to be wrong. A code as near to codes of
+	 * different ids is not corrected.
+	 * @param code the inner cells.
+	 * @return as {@link #lookup(long)}.
+	 */
+	public int lookupCorrected(long code){
+		int match = lookup(code);
+		if(match != NO_MATCH || correctionBits == 0)
+			return match;
+		match = neighbours.lookup(code);
+		if(match == AMBIGUOUS)
+			return NO_MATCH;
+		if(match != NO_MATCH || correctionBits == 1)
+			return match;
+		return nearest(code);
+	}
+
+	/**
+	 * the id of the code nearest to a code, comparing it to every code in every rotation.
+	 * Used when the code is more than one cell away from any other.
+	 */
+	private int nearest(long code){
+		int best = NO_MATCH;
+		int bestDistance = correctionBits+1;
+		for(int i=0;i<rotated.length;i++){
+			int distance = Long.bitCount(code ^ rotated[i]);
+			if(distance < bestDistance){
+				bestDistance = distance;
+				best = rotatedValues[i];
+			}
+			else if(distance == bestDistance && best != AMBIGUOUS && best != NO_MATCH){
+				if(best>>2 != rotatedValues[i]>>2)
+					best = AMBIGUOUS;
+				else if((rotatedValues[i] & 3) < (best & 3))
+					best = rotatedValues[i];
+			}
+		}
+		return best == AMBIGUOUS ? NO_MATCH : best;
+	}
+
+	/** bit of a code holding the inner cell at (x, y) */
+	private int cellBit(int x, int y){
+		return markerBits*markerBits-1 - (x*markerBits+y);
+	}
+
+	/**
+	 * table of the codes one cell away from a valid code, built the first time errors
+	 * are corrected.
+	 */
+	private class Neighbours{
+		private long[] neighbourKeys;
+		private int[] neighbourValues;
+		private int neighbourShift;
+
+		synchronized int lookup(long code){
+			if(neighbourKeys == null)
+				build();
+			return get(neighbourKeys, neighbourValues, neighbourShift, code);
+		}
+
+		private void build(){
+			int cells = markerBits*markerBits;
+			int tableBits = 1;
+			while(1<<tableBits < 2*rotated.length*cells)
+				tableBits++;
+			neighbourShift = 64-tableBits;
+			neighbourKeys = new long[1<<tableBits];
+			neighbourValues = new int[1<<tableBits];
+			java.util.Arrays.fill(neighbourKeys, EMPTY);
+			for(int slot=0;slot<keys.length;slot++){
+				long key = keys[slot];
+				if(key == EMPTY)
+					continue;
+				for(int bit=0;bit<cells;bit++){
+					long neighbour = key ^ (1L<<bit);
+					if(Dictionary.this.lookup(neighbour) == NO_MATCH)
+						put(neighbourKeys, neighbourValues, neighbourShift, neighbour, values[slot], true);
+				}
+			}
+		}
+	}
+
+	private static int slotOf(long key, int shift){
+		return (int)((key*0x9E3779B97F4A7C15L)>>>shift);
+	}
+
+	/**
+	 * inserts a value in a table, keeping the one already there for the same key.
+	 * @param merge if true, a value for the same key with another id makes it AMBIGUOUS,
+	 * and the lower rotation is kept for the same id.
+	 */
+	private static void put(long[] keys, int[] values, int shift, long key, int value, boolean merge){
+		int mask = keys.length-1;
+		int slot = slotOf(key, shift);
+		while(keys[slot] != EMPTY && keys[slot] != key)
+			slot = (slot+1) & mask;
+		if(keys[slot] == EMPTY){
+			keys[slot] = key;
+			values[slot] = value;
+		}
+		else if(merge && values[slot] != AMBIGUOUS){
+			if(values[slot]>>2 != value>>2)
+				values[slot] = AMBIGUOUS;
+			else if((value & 3) < (values[slot] & 3))
+				values[slot] = value;
+		}
+	}
+
+	private static int get(long[] keys, int[] values, int shift, long key){
+		int mask = keys.length-1;
+		int slot = slotOf(key, shift);
+		while(keys[slot] != EMPTY){
+			if(keys[slot] == key)
+				return values[slot];
+			slot = (slot+1) & mask;
+		}
+		return NO_MATCH;
+	}
+}
@@ -1,6 +1,5 @@
 package es.ava.aruco;
 
-import java.util.ArrayList;
 import java.util.List;
 import java.util.Vector;
 
@@ -58,6 +57,20 @@ public class Marker extends MatOfPoint2f implements Comparable<Marker>{
 		this.fromList(points);
 	}
 
+	/**
+	 * creates the marker of a candidate whose id has been identified.
+	 * @param oriented true to start the corners from the one the rotations of the code
+	 * put first, false to keep them in the order of the candidate.
+	 */
+	protected Marker(float size, Candidate candidate, boolean oriented){
+		this(size, candidate.toPoints(oriented));
+		id = candidate.id;
+		rotations = candidate.rotations;
+		code.setMarkerBits(candidate.code.getMarkerBits());
+		code.payload = candidate.code.payload;
+		code.border = candidate.code.border;
+	}
+
 	public void draw(Mat in, Scalar color, int lineWidth, boolean writeId){
 		if (total()!=4)
 			return;
@@ -104,22 +117,39 @@ public class Marker extends MatOfPoint2f implements Comparable<Marker>{
 		return id;
 	}
 
+	/**
+	 * creates the image of a marker of the original aruco dictionary.
+	 * @param id the marker id.
+	 * @param size the side of the image in pixels.
+	 * @return the grey image of the marker.
+	 */
 	public static Mat createMarkerImage(int id,int size) throws CvException	{
-		if (id>=1024)
+		return createMarkerImage(Dictionary.ARUCO, id, size);
+	}
+
+	/**
+	 * creates the image of a marker, the cells of its code inside a black border.
+	 * @param dictionary the dictionary of the marker.
+	 * @param id the marker id.
+	 * @param size the side of the image in pixels, the cells are size/(markerBits+2)
+	 * pixels wide and the pixels left over stay black.
+	 * @return the grey image of the marker.
+	 */
+	public static Mat createMarkerImage(Dictionary dictionary, int id, int size) throws CvException	{
+		if (id<0 || id>=dictionary.size())
 			throw new CvException("id out of range");
+		int bits = dictionary.getMarkerBits();
+		long code = dictionary.getCode(id);
 		Mat marker = new Mat(size,size, CvType.CV_8UC1, new Scalar(0));
-		//for each line, create
-		int swidth=size/7;
-		int ids[]={0x10,0x17,0x09,0x0e};
-		for (int y=0;y<5;y++) {
-			int index=(id>>2*(4-y)) & 0x0003;
-			int val=ids[index];
-			for (int x=0;x<5;x++) {
-				Mat roi=marker.submat((x+1)*swidth, (x+2)*swidth,(y+1)*swidth,(y+2)*swidth);// TODO check
-				if ( (( val>>(4-x) ) & 0x0001) != 0 )
-					roi.setTo(new Scalar(255));
-				else
-					roi.setTo(new Scalar(0));
+		int swidth=size/(bits+2);
+		// the rows of the code are the rows of the image, as the code is read
+		for (int row=0;row<bits;row++) {
+			for (int col=0;col<bits;col++) {
+				if (((code>>(bits*bits-1-(row*bits+col))) & 1) == 0)
+					continue;
+				Mat roi=marker.submat((row+1)*swidth, (row+2)*swidth,(col+1)*swidth,(col+2)*swidth);
+				roi.setTo(new Scalar(255));
+				roi.release();
 			}
 		}
 		return marker;
@@ -155,10 +185,32 @@ public class Marker extends MatOfPoint2f implements Comparable<Marker>{
 		in.copyTo(mat);
 	}
 
+	/**
+	 * the corners of the marker, the same as toList() without going through the Mat.
+	 * @return the corners, must not be modified.
+	 */
+	protected List<Point> getPoints(){
+		return points;
+	}
+
+	protected Code getCode(){
+		return code;
+	}
+
 	/**
 	 * construct the matrix of integers from the mat stored.
 	 */
 	protected void extractCode(){
+		extractCode(mat, code);
+	}
+
+	/**
+	 * reads a code from the image of a canonical marker.
+	 * @param mat the canonical marker, grey or RGBA.
+	 * @param code the code to fill.
+	 */
+	static void extractCode(Mat mat, Code code){
+		int cells = code.getCells();
 		int rows = mat.rows();
 		int cols = mat.cols();
 		assert(rows == cols);
@@ -171,10 +223,10 @@ public class Marker extends MatOfPoint2f implements Comparable<Marker>{
 		// apply a threshold
 		Imgproc.threshold(grey, grey, 125, 255, Imgproc.THRESH_BINARY|Imgproc.THRESH_OTSU);
 		// the swidth is the width of each row
-		int swidth = rows/7;
+		int swidth = rows/cells;
 		// we go through all the rows
-		for(int y=0;y<7;y++){
-			for(int x=0;x<7;x++){
+		for(int y=0;y<cells;y++){
+			for(int x=0;x<cells;x++){
 				int Xstart = x*swidth;
 				int Ystart = y*swidth;
 				Mat square = grey.submat(Xstart, Xstart+swidth, Ystart, Ystart+swidth);
@@ -191,32 +243,38 @@ public class Marker extends MatOfPoint2f implements Comparable<Marker>{
 	 * Return the id read in the code inside a marker. Each marker is divided into 7x7 regions
 	 * of which the inner 5x5 contain info, the border should always be black. This function
 	 * assumes that the code has been extracted previously.
-	 * @param in a marker
-	 * @return the id of the marker
+	 * @return the id of the marker or -1 if the code is not valid in any rotation
 	 */
 	protected int calculateMarkerId(){
-		// check all the rotations of code
-		Code[] rotations = new Code[4];
-		rotations[0] = code;
-		int[] dists = new int[4];
-		dists[0] = hammDist(rotations[0]);
-		int[] minDist = {dists[0],0};
-		for(int i=1;i<4;i++){
-			// rotate
-			rotations[i] = Code.rotate(rotations[i-1]);
-			dists[i] = hammDist(rotations[i]);
-			if(dists[i] < minDist[0]){
-				minDist[0] = dists[i];
-				minDist[1] = i;
-			}
-		}
-		this.rotations = minDist[1];
-		if(minDist[0] != 0){
+		return calculateMarkerId(false);
+	}
+
+	/**
+	 * Same as {@link #calculateMarkerId()}, optionally accepting a code with one of its
+	 * inner cells wrong when that is only one cell away from a single id.
+	 * @param correctErrors true to correct a wrong cell
+	 * @return the id of the marker or -1 if the code is not valid in any rotation
+	 */
+	protected int calculateMarkerId(boolean correctErrors){
+		return calculateMarkerId(Dictionary.ARUCO, correctErrors);
+	}
+
+	/**
+	 * Same as {@link #calculateMarkerId(boolean)} with the ids of a dictionary, the code
+	 * having been extracted with its cells.
+	 * @param dictionary the dictionary of the marker
+	 * @param correctErrors true to correct as many wrong cells as the dictionary does
+	 * @return the id of the marker or -1 if the code is not valid in any rotation
+	 */
+	protected int calculateMarkerId(Dictionary dictionary, boolean correctErrors){
+		// every rotation of every id is in a table, a single lookup gives both
+		int match = correctErrors? dictionary.lookupCorrected(code.payload) : dictionary.lookup(code.payload);
+		if(match == Dictionary.NO_MATCH){
+			this.rotations = 0;
 			return -1; // matching id not found
 		}
-		else{
-			this.id = mat2id(rotations[minDist[1]]);
-		}
+		this.rotations = match & 0x3;
+		this.id = match>>2;
 		return id;
 	}
 
@@ -225,16 +283,7 @@ public class Marker extends MatOfPoint2f implements Comparable<Marker>{
 	 * @return true if the border is black, false otherwise
 	 */
 	protected boolean checkBorder(){
-		for(int i=0;i<7;i++){
-			// normally we'll only check first and last square
-			int inc = 6;
-			if(i==0 || i==6)// in first and last row the whole row must be checked
-				inc = 1;
-			for(int j=0;j<7;j+=inc)
-				if(code.get(i, j)==1)
-					return false;
-		}
-		return true;
+		return code.isBorderBlack();
 	}
 
 	/**
@@ -244,73 +293,55 @@ public class Marker extends MatOfPoint2f implements Comparable<Marker>{
 	 * @param distCoeff
 	 */
 	protected void calculateExtrinsics(Mat camMatrix, MatOfDouble distCoeffs, float sizeMeters){
-		// TODO check params
-
-		// set the obj 3D points
-		double halfSize = sizeMeters/2.0;
-		List<Point3> objPoints = new ArrayList<Point3>();
-		// old
-//		objPoints.add(new Point3(-halfSize, halfSize,0));
-//		objPoints.add(new Point3(-halfSize, -halfSize,0));
-//		objPoints.add(new Point3( halfSize,  -halfSize,0));
-//		objPoints.add(new Point3( halfSize, halfSize,0));
-
-		// new
-		objPoints.add(new Point3(-halfSize, -halfSize,0));
-		objPoints.add(new Point3(-halfSize,  halfSize,0));
-		objPoints.add(new Point3( halfSize,  halfSize,0));
-		objPoints.add(new Point3( halfSize, -halfSize,0));
-
-		MatOfPoint3f objPointsMat = new MatOfPoint3f();
-		objPointsMat.fromList(objPoints);
-		Calib3d.solvePnP(objPointsMat, this, camMatrix, distCoeffs, Rvec, Tvec);
-
-		double [] t0 = Tvec.get(0, 0);
-		double [] t1 = Tvec.get(1, 0);
-		double [] t2 = Tvec.get(2, 0);
-		double [] r0 = Rvec.get(0, 0);
-		double [] r1 = Rvec.get(1, 0);
-		double [] r2 = Rvec.get(2, 0);
-//		Utils.rotateXAxis(Rvec);
+		SquarePoseSolver solver = new SquarePoseSolver();
+		solver.setCamera(camMatrix, distCoeffs);
+		calculateExtrinsics(solver, sizeMeters);
 	}
 
-	protected void setPoints(List<Point> p){
-		this.fromList(p);
+	/**
+	 * Same as {@link #calculateExtrinsics(Mat, MatOfDouble, float)} with a solver already
+	 * given the camera, the pose of lowest reprojection error is taken. If the corners
+	 * are degenerate the rotation and translation are left at 0.
+	 * @param solver the solver of the calling thread.
+	 * @param sizeMeters the size of the marker.
+	 */
+	protected void calculateExtrinsics(SquarePoseSolver solver, float sizeMeters){
+		double[] rvec = new double[3];
+		double[] tvec = new double[3];
+		// the object points are (-s,-s) (-s,s) (s,s) (s,-s), as the corners are ordered
+		if(solver.solve(points, sizeMeters)){
+			solver.getRvec(0, rvec);
+			solver.getTvec(0, tvec);
+		}
+		setExtrinsics(rvec, tvec);
 	}
 
-	private int hammDist(Code code){
-		int ids[][] = {
-				{1,0,0,0,0},
-				{1,0,1,1,1},
-				{0,1,0,0,1},
-				{0,1,1,1,0}
-		};
-		int dist = 0;
-		for(int y=0;y<5;y++){
-			int minSum = Integer.MAX_VALUE;
-			// hamming distance to each possible word
-			for(int p=0;p<4;p++){
-				int sum=0;
-				for(int x=0;x<5;x++)
-					sum+= code.get(y+1,x+1) == ids[p][x]? 0:1;
-				minSum = sum<minSum? sum:minSum;
-			}
-			dist+=minSum;
-		}
-		return dist;
+	/**
+	 * Same as {@link #calculateExtrinsics(SquarePoseSolver, float)} starting from the
+	 * pose the marker had in the last frames, if it was seen recently.
+	 * @param solver the solver of the calling thread.
+	 * @param sizeMeters the size of the marker.
+	 * @param poses the poses of the last frames, its id reserved.
+	 * @param maxGap the most frames the marker can have been missing to start from its last pose.
+	 * @param maxError the most error in pixels of a pose started from the last one.
+	 * @param rvec scratch for the rotation vector.
+	 * @param tvec scratch for the translation.
+	 */
+	void calculateExtrinsics(SquarePoseSolver solver, float sizeMeters, PoseHistory poses, int maxGap,
+			double maxError, double[] rvec, double[] tvec){
+		poses.solve(solver, id, points, sizeMeters, maxGap, maxError, rvec, tvec);
+		setExtrinsics(rvec, tvec);
 	}
 
-	private int mat2id(Code code){
-		int val=0;
-		for(int y=1;y<6;y++){
-			val<<=1;
-			if(code.get(y,2) == 1)
-				val |= 1;
-			val<<=1;
-			if(code.get(y,4) == 1)
-				val |= 1;
-		}
-		return val;
+	private void setExtrinsics(double[] rvec, double[] tvec){
+		Rvec.put(0, 0, rvec);
+		Tvec.put(0, 0, tvec);
+	}
+
+	protected void setPoints(List<Point> p){
+		points.clear();
+		points.addAll(p);
+		this.fromList(p);
 	}
 
 	public int getRotations(){
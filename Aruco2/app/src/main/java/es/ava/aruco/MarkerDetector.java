@@ -1,50 +1,83 @@
 package es.ava.aruco;
 
 import java.util.Collections;
-import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 import org.opencv.core.MatOfPoint;
 import org.opencv.core.MatOfPoint2f;
-import org.opencv.core.Point;
+import org.opencv.core.Rect;
 import org.opencv.core.Size;
+import org.opencv.core.TermCriteria;
 import org.opencv.imgproc.Imgproc;
 
 /**
  * Class to detect markers. It will be done by a threshold technique and
  * analysing the contours detected in the frame given looking for valid
  * marker's code inside them.
+ *
+ * The settings are kept in an immutable {@link DetectorConfig} and the scratch objects
+ * of a detection in a {@link DetectorWorkspace}, so a detector can be shared by several
+ * threads, each detecting with its own workspace. The methods without a workspace use
+ * the one of the detector and must only be called from one thread at a time.
  * @author Rafael Ortega
  *
  */
 // TODO eliminate innecessary native calls, for example store the frame info 
 // such as type in member fields and call it only once
 public class MarkerDetector {
-	private enum thresSuppMethod {FIXED_THRES,ADPT_THRES,CANNY};
+	/**
+	 * ADPT_THRES compares each pixel to the gaussian weighted mean of its block, MEAN_THRES
+	 * to the plain mean of its block taken from the integral image, which costs the same
+	 * for any block size.
+	 */
+	public enum thresSuppMethod {FIXED_THRES,ADPT_THRES,MEAN_THRES,CANNY};
 	
-	private double thresParam1, thresParam2;
-	private thresSuppMethod thresMethod;
-	private Mat grey, thres, thres2, hierarchy2;
-	private Vector<MatOfPoint> contours2;
+	private volatile DetectorConfig config;
+	// used by the methods not given a workspace
+	private final DetectorWorkspace workspace;
 		
-	private final static double MIN_DISTANCE = 10;
+	final static double MIN_DISTANCE = 10;
+	public final static int DEFAULT_PARALLEL_MIN_CANDIDATES = 16;
+	public final static int DEFAULT_PARALLEL_MIN_MARKERS = 3;
+	public final static int MAX_PYRAMID_LEVELS = 2;
+	public final static int DEFAULT_POSE_MAX_GAP = 5;
+	public final static double DEFAULT_POSE_MAX_ERROR = 2.0;
+	private final static TermCriteria REFINE_CRITERIA =
+			new TermCriteria(TermCriteria.EPS+TermCriteria.MAX_ITER, 10, 0.01);
+	// limits of half the side of the window the corners of the markers found are refined in
+	private final static int MIN_REFINE_WINDOW = 2;
+	private final static int MAX_REFINE_WINDOW = 10;
+	// limits of the bounding box of a contour for it to be approximated by a polygon,
+	// the ratio of its long side to its short one and of the contour area to its area
+	private final static double MAX_CONTOUR_ASPECT = 8;
+	private final static double MIN_CONTOUR_FILL = 0.2;
+	// stages of the contour filtering, see getContourCount
+	public final static int CONTOURS_FOUND = 0;
+	public final static int CONTOURS_SIZED = 1;
+	public final static int CONTOURS_SHAPED = 2;
+	public final static int CONTOURS_QUADS = 3;
 	
 	public MarkerDetector(){
-		thresParam1 = thresParam2 = 7;
-		thresMethod = thresSuppMethod.ADPT_THRES;
-		// TODO
-		grey = new Mat();
-		thres = new Mat();
-		thres2 = new Mat();
-		hierarchy2 = new Mat();
-		contours2 = new Vector<MatOfPoint>();
+		this(DetectorConfig.DEFAULT);
+	}
+
+	/**
+	 * @param config the settings of the detector.
+	 */
+	public MarkerDetector(DetectorConfig config){
+		this.config = config;
+		workspace = new DetectorWorkspace();
 	}
     
 	/**
 	 * Method to find markers in a Mat given.
-	 * @param in input color Mat to find the markers in.
+	 * @param in input Mat to find the markers in. It can be a RGBA color Mat or a single
+	 * channel grey Mat, in which case the color conversion is skipped.
 	 * @param detectedMarkers output vector with the markers that have been detected.
 	 * @param camMatrix --
 	 * @param distCoeff --
@@ -53,188 +86,491 @@ public class MarkerDetector {
 	 */
 	public void detect(Mat in, Vector<Marker> detectedMarkers, CameraParameters cp,//Mat camMatrix, Mat distCoeff,
 			float markerSizeMeters/*, Mat frameDebug*/){
-		Vector<Marker> candidateMarkers = new Vector<Marker>();
-		// the detection in the incoming frame will be done in a different vector
-		// because this will allow the ontouchlistener in View
-		// to have a valid detectedMarkers vector longer
-		Vector<Marker> newMarkers = new Vector<Marker>();
-		
+		detect(in, detectedMarkers, cp, markerSizeMeters, workspace);
+	}
+
+	/**
+	 * Same as {@link #detect(Mat, Vector, CameraParameters, float)} with the scratch
+	 * objects of a workspace, so it can be called by several threads at once with a
+	 * workspace each.
+	 * @param workspace the workspace of the calling thread.
+	 */
+	public void detect(Mat in, Vector<Marker> detectedMarkers, CameraParameters cp, float markerSizeMeters,
+			DetectorWorkspace workspace){
+		DetectorConfig config = this.config;
+		Mat src = toGrey(in, workspace);
+		findCandidatesGrey(config, workspace, src, workspace.candidates, src.cols()/5);
+		identifyCandidatesGrey(config, workspace, src, workspace.candidates, detectedMarkers, cp, markerSizeMeters);
+	}
+
+	/**
+	 * First phase of the detection, finds the quads in the frame that could be markers.
+	 * This thresholds the frame, looks for convex four sided contours, sorts their corners
+	 * in anti-clockwise order and discards those too near to a bigger one. Together with
+	 * {@link #identifyCandidates} it does the same as {@link #detect}, but both phases
+	 * can be run apart, for instance on different threads with a workspace each.
+	 * @param in input Mat, RGBA color or single channel grey.
+	 * @param candidates output list with the candidates found, their id is not known yet.
+	 */
+	public void findCandidates(Mat in, CandidateList candidates){
+		findCandidates(in, null, candidates, workspace);
+	}
+
+	/**
+	 * Same as {@link #findCandidates(Mat, CandidateList)} with the scratch objects of a workspace.
+	 * @param workspace the workspace of the calling thread.
+	 */
+	public void findCandidates(Mat in, CandidateList candidates, DetectorWorkspace workspace){
+		findCandidates(in, null, candidates, workspace);
+	}
+
+	/**
+	 * Same as {@link #findCandidates(Mat, CandidateList)} but only looks inside a region of
+	 * the frame. The corners of the candidates found are given in frame coordinates, and
+	 * contours are filtered by size as if the whole frame had been searched.
+	 * @param in input Mat, RGBA color or single channel grey.
+	 * @param roi the region of the frame to search, or null to search the whole frame.
+	 * @param candidates output list with the candidates found, their id is not known yet.
+	 */
+	public void findCandidates(Mat in, Rect roi, CandidateList candidates){
+		findCandidates(in, roi, candidates, workspace);
+	}
+
+	/**
+	 * Same as {@link #findCandidates(Mat, Rect, CandidateList)} with the scratch objects
+	 * of a workspace.
+	 * @param workspace the workspace of the calling thread.
+	 */
+	public void findCandidates(Mat in, Rect roi, CandidateList candidates, DetectorWorkspace workspace){
+		DetectorConfig config = this.config;
+		Mat src = toGrey(in, workspace);
+		if(roi == null){
+			findCandidatesGrey(config, workspace, src, candidates, src.cols()/5);
+			return;
+		}
+		Mat region = src.submat(roi);
+		findCandidatesGrey(config, workspace, region, candidates, src.cols()/5);
+		region.release();
+		// take the corners back to frame coordinates
+		for(int i=0;i<candidates.size();i++){
+			float[] corners = candidates.get(i).corners;
+			for(int j=0;j<8;j+=2){
+				corners[j] += roi.x;
+				corners[j+1] += roi.y;
+			}
+		}
+	}
+
+	/**
+	 * Second phase of the detection, reads the code inside each candidate found by
+	 * {@link #findCandidates}, keeps those with a valid id and calculates their extrinsics.
+	 * @param in the same frame given to findCandidates.
+	 * @param candidates the candidates found in the frame.
+	 * @param detectedMarkers output vector with the markers that have been detected.
+	 * @param cp the camera parameters, the extrinsics are only calculated if they are valid.
+	 * @param markerSizeMeters the size of the markers.
+	 */
+	public void identifyCandidates(Mat in, CandidateList candidates, Vector<Marker> detectedMarkers,
+			CameraParameters cp, float markerSizeMeters){
+		identifyCandidates(in, candidates, detectedMarkers, cp, markerSizeMeters, workspace);
+	}
+
+	/**
+	 * Same as {@link #identifyCandidates(Mat, CandidateList, Vector, CameraParameters, float)}
+	 * with the scratch objects of a workspace.
+	 * @param workspace the workspace of the calling thread.
+	 */
+	public void identifyCandidates(Mat in, CandidateList candidates, Vector<Marker> detectedMarkers,
+			CameraParameters cp, float markerSizeMeters, DetectorWorkspace workspace){
+		identifyCandidatesGrey(config, workspace, toGrey(in, workspace), candidates, detectedMarkers, cp,
+				markerSizeMeters);
+	}
+
+	/**
+	 * a grey frame is used as it is, there is no need to copy it. A color frame is
+	 * converted into the grey frame of the workspace.
+	 */
+	private static Mat toGrey(Mat in, DetectorWorkspace workspace){
+		if(in.channels() == 1)
+			return in;
+		Imgproc.cvtColor(in, workspace.grey, Imgproc.COLOR_RGBA2GRAY);
+		return workspace.grey;
+	}
+
+	/**
+	 * @param minContourSize contours with this number of points or less are discarded
+	 */
+	private static void findCandidatesGrey(DetectorConfig config, DetectorWorkspace workspace, Mat src,
+			CandidateList candidates, int minContourSize){
+		candidates.clear();
+		// in pyramid mode the quads are looked for in a reduced copy of the frame,
+		// the sizes are scaled down and the corners scaled back up
+		Mat search = src;
+		int scale = 1;
+		Mat[] pyramid = workspace.pyramid(config.getPyramidLevels());
+		for(int l=0;l<config.getPyramidLevels();l++){
+			Imgproc.pyrDown(search, pyramid[l]);
+			search = pyramid[l];
+			scale *= 2;
+		}
 		// do the threshold of image and detect contours
-		Imgproc.cvtColor(in, grey, Imgproc.COLOR_RGBA2GRAY);
-		thresHold(thresMethod, grey, thres);
+		Mat thres2 = workspace.thres2;
+		Vector<MatOfPoint> contours2 = workspace.contours2;
+		thresHold(config, workspace, search, workspace.thres);
 
 		// pass a copy because it modifies the src image
-		thres.copyTo(thres2);
-		Imgproc.findContours(thres2, contours2, hierarchy2, Imgproc.RETR_TREE, Imgproc.CHAIN_APPROX_NONE);
+		workspace.thres.copyTo(thres2);
+		// findContours appends to the list, the contours of the last frame are freed first
+		for(int i=0;i<contours2.size();i++)
+			contours2.get(i).release();
+		contours2.clear();
+		// the nesting of the contours is not used, so no tree is built
+		Imgproc.findContours(thres2, contours2, workspace.hierarchy2, Imgproc.RETR_LIST, Imgproc.CHAIN_APPROX_NONE);
 		
 		// uncomment the following line if you want the contours drawn
 //		Imgproc.drawContours(frameDebug, contours2, -1, new Scalar(255,0,0),2);
+		boolean contourShapeFilter = config.getContourShapeFilter();
+		MatOfPoint2f contourFloat = workspace.contourFloat, approxCurve = workspace.approxCurve;
+		float[] quad = workspace.quad;
+		int nSized = 0, nShaped = 0;
 		// to each contour analyze if it is a paralelepiped likely to be a marker
-		MatOfPoint2f approxCurve = new MatOfPoint2f();
-//		List<Point> approxPoints = new ArrayList<Point>();
 		for(int i=0;i<contours2.size();i++){
-			MatOfPoint2f contour = new MatOfPoint2f();
-			contours2.get(i).convertTo(contour, CvType.CV_32FC2);
-			// first check if it has enough points
+			MatOfPoint contour = contours2.get(i);
+			// first check if it has enough points, most contours are discarded here
+			// before being converted
 			int contourSize = (int)contour.total();
-			if(contourSize > in.cols()/5){
-				Imgproc.approxPolyDP(contour, approxCurve, contourSize*0.05, true);
-//				Converters.Mat_to_vector_Point(approxCurve, approxPoints);
-				// check the polygon has 4 points
-				if(approxCurve.total()== 4){
-					// and if it is convex
-					MatOfPoint mat = new MatOfPoint();
-					approxCurve.convertTo(mat, CvType.CV_32SC2);
-					if(Imgproc.isContourConvex(mat)){
-						// ensure the distance between consecutive points is large enough
-						double minDistFound = Double.MAX_VALUE;
-						float[] points = new float[8];// [x1 y1 x2 y2 x3 y3 x4 y4]
-						approxCurve.get(0,0,points);
-						// look for the min distance
-						for(int j=0;j<=4;j+=2){
-							double d = Math.sqrt( (points[j]-points[(j+2)%4])*(points[j]-points[(j+2)%4]) +
-												(points[j+1]-points[(j+3)%4])*(points[j+1]-points[(j+3)%4]));
-							if(d<minDistFound)
-								minDistFound = d;
-						}
-						if(minDistFound > MIN_DISTANCE){
-							// create a candidate marker
-							Vector<Point> p = new Vector<Point>();
-							p.add(new Point(points[0],points[1]));
-							p.add(new Point(points[2],points[3]));
-							p.add(new Point(points[4],points[5]));
-							p.add(new Point(points[6],points[7]));
-							candidateMarkers.add(new Marker(markerSizeMeters, p));
-//							candidateMarkers.add(new Marker(markerSizeMeters));
-//							candidateMarkers.lastElement().add(new Point(points[0],points[1]));
-//							candidateMarkers.lastElement().add(new Point(points[2],points[3]));
-//							candidateMarkers.lastElement().add(new Point(points[4],points[5]));
-//							candidateMarkers.lastElement().add(new Point(points[6],points[7]));
-						}
+			if(contourSize <= minContourSize/scale)
+				continue;
+			nSized++;
+			// then if its bounding box could hold a marker, from its points read in one call
+			if(contourShapeFilter && !hasQuadShape(workspace, contour, contourSize))
+				continue;
+			nShaped++;
+			contour.convertTo(contourFloat, CvType.CV_32FC2);
+			Imgproc.approxPolyDP(contourFloat, approxCurve, contourSize*0.05, true);
+			// check the polygon has 4 points
+			if(approxCurve.total()== 4){
+				approxCurve.get(0,0,quad);// [x1 y1 x2 y2 x3 y3 x4 y4]
+				// and if it is convex
+				if(isConvex(quad)){
+					// ensure the distance between consecutive points is large enough
+					double minDistFound = Double.MAX_VALUE;
+					// look for the min distance
+					for(int j=0;j<=4;j+=2){
+						double d = Math.sqrt( (quad[j]-quad[(j+2)%4])*(quad[j]-quad[(j+2)%4]) +
+											(quad[j+1]-quad[(j+3)%4])*(quad[j+1]-quad[(j+3)%4]));
+						if(d<minDistFound)
+							minDistFound = d;
+					}
+					if(minDistFound*scale > MIN_DISTANCE){
+						// create a candidate marker
+						float[] corners = candidates.add().corners;
+						for(int j=0;j<8;j++)
+							corners[j] = quad[j]*scale;
 					}
 				}
 			}
-		}// all contours processed, now we have the candidateMarkers
-		int nCandidates = candidateMarkers.size();
+		}// all contours processed, now we have the candidates
+		int nCandidates = candidates.size();
+		int[] contourCounts = workspace.contourCounts;
+		contourCounts[CONTOURS_FOUND] = contours2.size();
+		contourCounts[CONTOURS_SIZED] = nSized;
+		contourCounts[CONTOURS_SHAPED] = nShaped;
+		contourCounts[CONTOURS_QUADS] = nCandidates;
 		// sort the points in anti-clockwise order
 		for(int i=0;i<nCandidates;i++){
-			Marker marker = candidateMarkers.get(i);
-			List<Point> p = new Vector<Point>();
-			p = marker.toList();
+			float[] p = candidates.get(i).corners;
 	        // trace a line between the first and second point.
 	        // if the third point is at the right side, then the points are anti-clockwise
-			double dx1 = p.get(1).x - p.get(0).x;
-			double dy1 = p.get(1).y - p.get(0).y;
-			double dx2 = p.get(2).x - p.get(0).x;
-			double dy2 = p.get(2).y - p.get(0).y;
+			double dx1 = (double)p[2] - p[0];
+			double dy1 = (double)p[3] - p[1];
+			double dx2 = (double)p[4] - p[0];
+			double dy2 = (double)p[5] - p[1];
 			double o = dx1*dy2 - dy1*dx2;
 			if(o < 0.0){ // the third point is in the left side, we have to swap
-				Collections.swap(p, 1, 3);
-				marker.setPoints(p);
+				float x = p[2], y = p[3];
+				p[2] = p[6];
+				p[3] = p[7];
+				p[6] = x;
+				p[7] = y;
 			}
 		}// points sorted in anti-clockwise order
 
 		// remove the elements whose corners are to close to each other // TODO necessary?
-		Vector<Integer> tooNearCandidates = new Vector<Integer>(); // stores the indexes in the candidateMarkers
-										   // i.e [2,3,4,5] the marker 2 is too close to 3 and 4 to 5
-		for(int i=0;i<nCandidates;i++){
-			Marker toMarker = candidateMarkers.get(i);
-			List<Point> toPoints = new Vector<Point>();
-			toPoints = toMarker.toList();
-			// calculate the average distance of each corner to the nearest corner in the other marker
-			for(int j=i+1;j<nCandidates;j++){
-				float dist=0;
-				Marker fromMarker = candidateMarkers.get(j);
-				List<Point> fromPoints = new Vector<Point>();
-				fromPoints = fromMarker.toList();
-				// unrolling loop
-				dist+=Math.sqrt((fromPoints.get(0).x-toPoints.get(0).x)*(fromPoints.get(0).x-toPoints.get(0).x)+
-						(fromPoints.get(0).y-toPoints.get(0).y)*(fromPoints.get(0).y-toPoints.get(0).y));
-
-				dist+=Math.sqrt((fromPoints.get(1).x-toPoints.get(1).x)*(fromPoints.get(1).x-toPoints.get(1).x)+
-						(fromPoints.get(1).y-toPoints.get(1).y)*(fromPoints.get(1).y-toPoints.get(1).y));
-				
-				dist+=Math.sqrt((fromPoints.get(2).x-toPoints.get(2).x)*(fromPoints.get(2).x-toPoints.get(2).x)+
-						(fromPoints.get(2).y-toPoints.get(2).y)*(fromPoints.get(2).y-toPoints.get(2).y));
-				
-				dist+=Math.sqrt((fromPoints.get(3).x-toPoints.get(3).x)*(fromPoints.get(3).x-toPoints.get(3).x)+
-						(fromPoints.get(3).y-toPoints.get(3).y)*(fromPoints.get(3).y-toPoints.get(3).y));
-				dist = dist/4;
-				if(dist < MIN_DISTANCE){
-					tooNearCandidates.add(i);
-					tooNearCandidates.add(j);
-				}
-			}
+		workspace.nearFilter.filter(candidates);
+		// the corners found in the reduced frame are only accurate to scale pixels
+		if(scale > 1)
+			refineCorners(workspace, src, candidates, scale+1);
+	}
+
+	/**
+	 * checks the bounding box of a contour could hold a marker, see {@link #hasQuadShape(int[], int)}.
+	 * The points of the contour are read in a single call and the test is done without
+	 * native calls. The points can't be read once for the whole frame: the java binding
+	 * of findContours already hands every contour back as a Mat of its own, so there is
+	 * no buffer holding them all, and only the contours past the point count are read.
+	 */
+	private static boolean hasQuadShape(DetectorWorkspace workspace, MatOfPoint contour, int nPoints){
+		if(workspace.contourPoints.length < nPoints*2)
+			workspace.contourPoints = new int[Math.max(nPoints*2, workspace.contourPoints.length*2)];
+		contour.get(0, 0, workspace.contourPoints);
+		return hasQuadShape(workspace.contourPoints, nPoints);
+	}
+
+	/**
+	 * checks the bounding box of a contour is not too elongated and the contour fills
+	 * enough of it, as a marker seen at any angle it can be read from does.
+	 * @param p the points of the contour [x1 y1 x2 y2 ...].
+	 * @param nPoints the number of points.
+	 */
+	static boolean hasQuadShape(int[] p, int nPoints){
+		int minX = p[0], maxX = p[0], minY = p[1], maxY = p[1];
+		// twice the area enclosed, by the shoelace formula
+		long area2 = (long)p[nPoints*2-2]*p[1]-(long)p[0]*p[nPoints*2-1];
+		for(int j=2;j<nPoints*2;j+=2){
+			int x = p[j], y = p[j+1];
+			if(x < minX) minX = x;
+			else if(x > maxX) maxX = x;
+			if(y < minY) minY = y;
+			else if(y > maxY) maxY = y;
+			area2 += (long)p[j-2]*y-(long)x*p[j-1];
 		}
-		Vector<Integer> toRemove = new Vector<Integer>();// 1 means to remove
+		int width = maxX-minX, height = maxY-minY;
+		if(width == 0 || height == 0)
+			return false;
+		if(Math.max(width, height) > MAX_CONTOUR_ASPECT*Math.min(width, height))
+			return false;
+		return Math.abs(area2) >= 2*MIN_CONTOUR_FILL*width*height;
+	}
+
+	/**
+	 * the same test as Imgproc.isContourConvex on the quad rounded to integer
+	 * coordinates, without the native calls.
+	 */
+	private static boolean isConvex(float[] quad){
+		int prevX = Math.round(quad[6]), prevY = Math.round(quad[7]);
+		int dx0 = prevX-Math.round(quad[4]);
+		int dy0 = prevY-Math.round(quad[5]);
+		int orientation = 0;
+		for(int i=0;i<4;i++){
+			int x = Math.round(quad[i*2]), y = Math.round(quad[i*2+1]);
+			int dx = x-prevX;
+			int dy = y-prevY;
+			long dxdy0 = (long)dx*dy0;
+			long dydx0 = (long)dy*dx0;
+			orientation |= dydx0 > dxdy0 ? 1 : (dydx0 < dxdy0 ? 2 : 3);
+			if(orientation == 3)
+				return false;
+			prevX = x;
+			prevY = y;
+			dx0 = dx;
+			dy0 = dy;
+		}
+		return true;
+	}
+
+	/**
+	 * Moves each corner of the candidates to the subpixel position of the corner found
+	 * around it in the full resolution frame. The corners of all the candidates are
+	 * refined in a single call.
+	 * @param src full resolution grey frame.
+	 * @param candidates the candidates to refine, their corners are updated.
+	 * @param winHalfSize half the side of the search window in pixels.
+	 */
+	private static void refineCorners(DetectorWorkspace workspace, Mat src, CandidateList candidates,
+			int winHalfSize){
+		int nCandidates = candidates.size();
+		if(nCandidates == 0)
+			return;
+		float[] corners = workspace.cornerBuffer(nCandidates);
+		for(int i=0;i<nCandidates;i++)
+			System.arraycopy(candidates.get(i).corners, 0, corners, i*8, 8);
+		refineCorners(workspace, src, corners, nCandidates, winHalfSize);
 		for(int i=0;i<nCandidates;i++)
-			toRemove.add(0);
-		// set to remove the marker with the smaller perimeter
-		for(int i=0;i<tooNearCandidates.size();i+=2){
-			Marker first = candidateMarkers.get(tooNearCandidates.get(i));
-			Marker second = candidateMarkers.get(tooNearCandidates.get(i+1));
-			if(first.perimeter()<second.perimeter())
-				toRemove.set(tooNearCandidates.get(i), 1);
-			else
-				toRemove.set(tooNearCandidates.get(i+1), 1);
+			System.arraycopy(corners, i*8, candidates.get(i).corners, 0, 8);
+	}
+
+	/**
+	 * Moves the corners of the markers found to the subpixel position of the corner
+	 * around them. The search window grows with the marker, about half a cell, so it
+	 * covers the corner without reaching into the next cell of the code. The markers
+	 * with the same window are refined in a single call.
+	 * @param src grey frame.
+	 * @param markers the markers found, their corners are updated.
+	 * @param skip by index, true for the markers not to refine.
+	 * @param nMarkers the number of markers.
+	 */
+	private static void refineMarkerCorners(DetectorWorkspace workspace, Mat src, Candidate[] markers,
+			boolean[] skip, int nMarkers){
+		if(workspace.refineWindows.length < nMarkers)
+			workspace.refineWindows = new int[Math.max(nMarkers, workspace.refineWindows.length*2)];
+		int[] refineWindows = workspace.refineWindows;
+		for(int i=0;i<nMarkers;i++){
+			// a marker is 7 cells across
+			int halfCell = (int)Math.round(markers[i].perimeter()/4/14);
+			refineWindows[i] = skip[i] ? -1 : Math.max(MIN_REFINE_WINDOW, Math.min(MAX_REFINE_WINDOW, halfCell));
+		}
+		float[] corners = workspace.cornerBuffer(nMarkers);
+		for(int i=0;i<nMarkers;i++){
+			int window = refineWindows[i];
+			if(window == -1)
+				continue;
+			// take every marker left with this window
+			int n = 0;
+			for(int j=i;j<nMarkers;j++)
+				if(refineWindows[j] == window)
+					System.arraycopy(markers[j].corners, 0, corners, 8*n++, 8);
+			refineCorners(workspace, src, corners, n, window);
+			n = 0;
+			for(int j=i;j<nMarkers;j++)
+				if(refineWindows[j] == window){
+					System.arraycopy(corners, 8*n++, markers[j].corners, 0, 8);
+					refineWindows[j] = -1;
+				}
 		}
+	}
 
-		// identify the markers
-		for(int i=0;i<nCandidates;i++){
-			if(toRemove.get(i) == 0){
-				Marker marker = candidateMarkers.get(i);
-				Mat canonicalMarker = new Mat();
-				warp(in, canonicalMarker, new Size(50,50), marker.toList());
-				marker.setMat(canonicalMarker);
-				marker.extractCode();
-				if(marker.checkBorder()){
-					int id = marker.calculateMarkerId();
-					if(id != -1){
-						newMarkers.add(marker);
-						// rotate the points of the marker so they are always in the same order no matter the camera orientation
-						Collections.rotate(marker.toList(), 4-marker.getRotations());
-					}
+	/**
+	 * refines the corners of several quads in a single call.
+	 * @param corners the corners of the quads [x1 y1 ... x4 y4] one after another, updated.
+	 * It can be longer, only the corners of the quads given are read and written.
+	 */
+	private static void refineCorners(DetectorWorkspace workspace, Mat src, float[] corners, int nQuads,
+			int winHalfSize){
+		MatOfPoint2f refinedCorners = workspace.refinedCorners;
+		refinedCorners.create(nQuads*4, 1, CvType.CV_32FC2);
+		refinedCorners.put(0, 0, corners);
+		Imgproc.cornerSubPix(src, refinedCorners, new Size(winHalfSize,winHalfSize), new Size(-1,-1),
+				REFINE_CRITERIA);
+		refinedCorners.get(0, 0, corners);
+	}
+
+	private static void identifyCandidatesGrey(final DetectorConfig config, DetectorWorkspace workspace,
+			final Mat src, final CandidateList candidates, Vector<Marker> detectedMarkers,
+			final CameraParameters cp, final float markerSizeMeters){
+		// the detection in the incoming frame will be done in a different vector
+		// because this will allow the ontouchlistener in View
+		// to have a valid detectedMarkers vector longer
+		final Vector<Marker> newMarkers = new Vector<Marker>();
+
+		// read the codes, each candidate only writes its own code and id so they can
+		// be read on several threads
+		final DetectorWorkspace.CodeReader[] readers = workspace.readers(config.getWorkerThreads()+1);
+		final Dictionary dictionary = config.getDictionary();
+		final boolean codeSampling = config.getCodeSampling();
+		final boolean errorCorrection = config.getErrorCorrection();
+		if(codeSampling){
+			readers[0].sampler.load(src, candidates);
+			for(int r=1;r<readers.length;r++)
+				readers[r].sampler.share(readers[0].sampler);
+		}
+		runSplit(config, readers, candidates.size(), config.getParallelMinCandidates(), new RangeTask(){
+			public void run(int from, int to, DetectorWorkspace.CodeReader reader){
+				for(int i=from;i<to;i++){
+					Candidate candidate = candidates.get(i);
+					candidate.code.setMarkerBits(dictionary.getMarkerBits());
+					if(codeSampling)
+						reader.sampler.read(candidate.corners, candidate.code);
+					else
+						warpCode(src, candidate, reader);
+					candidate.identify(dictionary, errorCorrection);
+				}
+			}
+		});
+
+		// identify the markers in the order of the candidates, only those with a valid id are kept
+		if(workspace.identified.length < candidates.size())
+			workspace.identified = new Candidate[Math.max(candidates.size(), workspace.identified.length*2)];
+		Candidate[] identified = workspace.identified;
+		int nIdentified = 0;
+		for(int i=0;i<candidates.size();i++){
+			Candidate candidate = candidates.get(i);
+			if(candidate.id != -1){
+				// now sort by id, keeping the order of the candidates with the same id
+				int j = nIdentified++;
+				while(j > 0 && identified[j-1].id > candidate.id){
+					identified[j] = identified[j-1];
+					j--;
 				}
+				identified[j] = candidate;
 			}
 		}
-		// TODO refine using pixel accuracy
-		
-		// now sort by id and check that each marker is only detected once
-		Collections.sort(newMarkers);
-		toRemove.clear();
-		for(int i=0;i<newMarkers.size();i++)
-			toRemove.add(0);
-		
-		for(int i=0;i<newMarkers.size()-1;i++){
-			if(newMarkers.get(i).id == newMarkers.get(i+1).id)
-				if(newMarkers.get(i).perimeter()<newMarkers.get(i+1).perimeter())
-					toRemove.set(i, 1);
+		// check that each marker is only detected once
+		if(workspace.toRemove.length < nIdentified)
+			workspace.toRemove = new boolean[Math.max(nIdentified, workspace.toRemove.length*2)];
+		boolean[] toRemove = workspace.toRemove;
+		java.util.Arrays.fill(toRemove, 0, nIdentified, false);
+		for(int i=0;i<nIdentified-1;i++){
+			if(identified[i].id == identified[i+1].id)
+				if(identified[i].perimeter()<identified[i+1].perimeter())
+					toRemove[i] = true;
 				else
-					toRemove.set(i+1, 1);
+					toRemove[i+1] = true;
+		}
+
+		// refine the corners of the markers left, not of every candidate
+		if(config.getCornerRefinement())
+			refineMarkerCorners(workspace, src, identified, toRemove, nIdentified);
+
+		// the native markers are only created for the candidates left
+		boolean orientedCorners = config.getOrientedCorners();
+		for(int i=0;i<nIdentified;i++){
+			if(!toRemove[i])
+				newMarkers.add(new Marker(markerSizeMeters, identified[i], orientedCorners));
+			identified[i] = null;
 		}
 		
-		for(int i=toRemove.size()-1;i>=0;i--)// done in inverse order in case we need to remove more than one element
-			if(toRemove.get(i) == 1)
-				newMarkers.remove(i);
-		
-		// detect the position of markers if desired
-		for(int i=0;i<newMarkers.size();i++){
-			if(cp.isValid())
-				newMarkers.get(i).calculateExtrinsics(cp.getCameraMatrix(), cp.getDistCoeff(), markerSizeMeters);
+		// detect the position of markers if desired, each marker has its own vectors
+		// and its own pose of the last frames, but for an id left twice
+		if(cp.isValid()){
+			final PoseHistory poses = config.getPoseTracking() ? workspace.poses : null;
+			if(poses != null){
+				poses.nextFrame();
+				if(newMarkers.size() > 0)
+					poses.reserve(newMarkers.lastElement().getMarkerId());
+			}
+			runSplit(config, readers, newMarkers.size(), config.getParallelMinMarkers(), new RangeTask(){
+				public void run(int from, int to, DetectorWorkspace.CodeReader reader){
+					reader.poseSolver.setCamera(cp.getCameraMatrix(), cp.getDistCoeff());
+					for(int i=from;i<to;i++)
+						if(poses != null && (i == 0 || newMarkers.get(i-1).id != newMarkers.get(i).id))
+							newMarkers.get(i).calculateExtrinsics(reader.poseSolver, markerSizeMeters, poses,
+									config.getPoseMaxGap(), config.getPoseMaxError(), reader.rvec, reader.tvec);
+						else
+							newMarkers.get(i).calculateExtrinsics(reader.poseSolver, markerSizeMeters);
+				}
+			});
 		}
 		detectedMarkers.setSize(newMarkers.size());
 		Collections.copy(detectedMarkers, newMarkers);
 	}
 	
+	/**
+	 * Replaces all the settings at once. The detections already running finish with the
+	 * settings they started with.
+	 * @param config the new settings.
+	 */
+	public synchronized void setConfig(DetectorConfig config){
+		this.config = config;
+	}
+
+	/**
+	 * returns the settings of the detector. Each setter replaces them with a copy, so the
+	 * ones returned are not changed by later calls.
+	 * @return the settings.
+	 */
+	public DetectorConfig getConfig(){
+		return config;
+	}
+
     /**
      * Set the parameters of the threshold method
      * We are currently using the Adptive threshold ee opencv doc of adaptiveThreshold for more info
      * @param param1: blockSize of the pixel neighborhood that is used to calculate a threshold value for the pixel
      * @param param2: The constant subtracted from the mean or weighted mean
      */
-	public void setThresholdParams(double p1, double p2){
-		thresParam1=p1;
-		thresParam2=p2;
+	public synchronized void setThresholdParams(double p1, double p2){
+		config = config.withThresholdParams(p1, p2);
 	}
 	
     /**
@@ -242,16 +578,231 @@ public class MarkerDetector {
      * they will be returned as a 2 items double array.
      */
 	public double[] getThresholdParams(){
-		double[] ret = {thresParam1,thresParam2};
+		DetectorConfig config = this.config;
+		double[] ret = {config.getThresholdParam1(),config.getThresholdParam2()};
 		return ret;
 	}
 	
+	/**
+	 * Sets the number of pyramid levels the candidates are looked for in. With 0 the
+	 * whole frame is thresholded as it is, with 1 or 2 a frame of half or a quarter of
+	 * the resolution is used instead and only the corners of the candidates found are
+	 * refined at full resolution, which is much faster on big frames.
+	 * @param levels number of times the frame is halved, from 0 to MAX_PYRAMID_LEVELS.
+	 */
+	public synchronized void setPyramidLevels(int levels){
+		config = config.withPyramidLevels(levels);
+	}
+
+	/**
+	 * returns the number of pyramid levels being used to look for candidates.
+	 * @return 0 if the candidates are looked for at full resolution.
+	 */
+	public int getPyramidLevels(){
+		return config.getPyramidLevels();
+	}
+
+	/**
+	 * Sets if a marker code with some inner cells read wrong is still identified, up to
+	 * the cells the dictionary corrects, one for the original aruco dictionary. It is
+	 * only corrected when no other id is as near, but this still accepts some quads
+	 * that are not markers.
+	 * @param correct true to correct wrong cells, false by default.
+	 */
+	public synchronized void setErrorCorrection(boolean correct){
+		config = config.withErrorCorrection(correct);
+	}
+
+	/**
+	 * returns if a marker code with some inner cells read wrong is still identified.
+	 * @return true if wrong cells are corrected.
+	 */
+	public boolean getErrorCorrection(){
+		return config.getErrorCorrection();
+	}
+
+	/**
+	 * Sets the dictionary the codes of the markers are read with. Markers of fewer
+	 * cells can be read when they are smaller in the frame, or farther away.
+	 * @param dictionary the dictionary, the original aruco one by default.
+	 */
+	public synchronized void setDictionary(Dictionary dictionary){
+		config = config.withDictionary(dictionary);
+	}
+
+	/**
+	 * returns the dictionary the codes of the markers are read with.
+	 * @return the dictionary.
+	 */
+	public Dictionary getDictionary(){
+		return config.getDictionary();
+	}
+
+	/**
+	 * Sets how the code of the candidates is read. By default each candidate is warped
+	 * into a canonical image which is thresholded. With sampling, the frame rows holding
+	 * the candidates are read once, and a few points of each cell are sampled through
+	 * the homography of the candidate, computed in java, which avoids several native
+	 * calls per candidate. Both ways read the same codes but for cells on the edge of
+	 * the threshold.
+	 * @param sampling true to sample the codes.
+	 */
+	public synchronized void setCodeSampling(boolean sampling){
+		config = config.withCodeSampling(sampling);
+	}
+
+	/**
+	 * returns if the code of the candidates is read by sampling the frame.
+	 * @return true if the codes are sampled, false if the candidates are warped.
+	 */
+	public boolean getCodeSampling(){
+		return config.getCodeSampling();
+	}
+
+	/**
+	 * Sets if the corners of the markers found start from the one their code puts first,
+	 * so they are in the same order whatever the orientation of the marker in the frame,
+	 * as the corners of an object made of several markers must be. By default they start
+	 * from whichever corner the contour gave first, as they always have. The pose of the
+	 * markers is solved from the corners in either order, but it only keeps the same
+	 * orientation from frame to frame with oriented corners, which pose tracking needs
+	 * to start from the last pose.
+	 * @param oriented true to start from the corner the code puts first, false by default.
+	 */
+	public synchronized void setOrientedCorners(boolean oriented){
+		config = config.withOrientedCorners(oriented);
+	}
+
+	/**
+	 * returns if the corners of the markers start from the one their code puts first.
+	 * @return true if the corners are oriented by the code.
+	 */
+	public boolean getOrientedCorners(){
+		return config.getOrientedCorners();
+	}
+
+	/**
+	 * Sets if the contours long enough to be a marker are also checked to have the
+	 * bounding box of one, before being approximated by a polygon. Contours with a very
+	 * elongated bounding box or filling little of it, such as lines and the outlines of
+	 * thin shapes, are discarded without the conversion and polygon approximation.
+	 * @param filter true to check the bounding box, false by default.
+	 */
+	public synchronized void setContourShapeFilter(boolean filter){
+		config = config.withContourShapeFilter(filter);
+	}
+
+	/**
+	 * returns if the bounding box of the contours is checked before the polygon approximation.
+	 * @return true if it is checked.
+	 */
+	public boolean getContourShapeFilter(){
+		return config.getContourShapeFilter();
+	}
+
+	/**
+	 * returns how many contours of the last frame searched without a workspace reached a
+	 * stage of the candidate search, see {@link DetectorWorkspace#getContourCount} for the others.
+	 * @param stage CONTOURS_FOUND for all the contours, CONTOURS_SIZED for those with
+	 * enough points, CONTOURS_SHAPED for those also passing the bounding box check, and
+	 * CONTOURS_QUADS for the convex quads taken as candidates.
+	 * @return the number of contours.
+	 */
+	public int getContourCount(int stage){
+		return workspace.getContourCount(stage);
+	}
+
+	/**
+	 * Sets if the corners of the markers found are refined to subpixel accuracy in the
+	 * grey frame. Only the markers with a valid id are refined, in a window that grows
+	 * with the size of the marker. This steadies the corners, and the pose calculated
+	 * from them, which are otherwise those of the contour, at whole pixels.
+	 * @param refine true to refine the corners, false by default.
+	 */
+	public synchronized void setCornerRefinement(boolean refine){
+		config = config.withCornerRefinement(refine);
+	}
+
+	/**
+	 * returns if the corners of the markers found are refined to subpixel accuracy.
+	 * @return true if they are refined.
+	 */
+	public boolean getCornerRefinement(){
+		return config.getCornerRefinement();
+	}
+
+	/**
+	 * Sets a pool of threads to read the codes of the candidates and calculate the
+	 * extrinsics of the markers on, together with the thread calling the detector. The
+	 * results are the same and in the same order as when everything runs on the calling
+	 * thread. The pool can be shared by several detectors. Frames with few candidates
+	 * or markers are still done on the calling thread alone, see
+	 * {@link #setParallelThresholds}.
+	 * @param pool the pool, or null to do everything on the calling thread, the default.
+	 * @param threads the number of threads of the pool to use at once.
+	 */
+	public synchronized void setWorkerPool(ExecutorService pool, int threads){
+		config = config.withWorkerPool(pool, threads);
+	}
+
+	/**
+	 * returns the pool of threads the codes are read and the extrinsics calculated on.
+	 * @return the pool, or null if everything is done on the calling thread.
+	 */
+	public ExecutorService getWorkerPool(){
+		return config.getWorkerPool();
+	}
+
+	/**
+	 * Sets how much work a frame must have to be split among the worker pool, below
+	 * that the cost of handing it to the pool is higher than what is saved.
+	 * @param minCandidates the fewest candidates whose codes are read in parallel.
+	 * @param minMarkers the fewest markers whose extrinsics are calculated in parallel.
+	 */
+	public synchronized void setParallelThresholds(int minCandidates, int minMarkers){
+		config = config.withParallelThresholds(minCandidates, minMarkers);
+	}
+
+	/**
+	 * Sets if the pose of the markers is started from the one they had in the last
+	 * frames. Each workspace keeps the pose of the markers it found by id, and a marker
+	 * seen in the last frames has its pose refined from the last one, which keeps it
+	 * from jumping frame to frame to the mirrored pose a square seen from the front also
+	 * fits, for about the time of a solve from scratch. A marker missing for more
+	 * frames, or whose refined pose no longer fits its corners, is solved again. The
+	 * frames detected with a workspace must then follow one another, see
+	 * {@link DetectorWorkspace#resetPoses}, and the corners be oriented, see
+	 * {@link #setOrientedCorners}.
+	 * @param track true to start from the last poses, false by default.
+	 */
+	public synchronized void setPoseTracking(boolean track){
+		config = config.withPoseTracking(track);
+	}
+
+	/**
+	 * returns if the pose of the markers is started from the one they had in the last frames.
+	 * @return true if it is.
+	 */
+	public boolean getPoseTracking(){
+		return config.getPoseTracking();
+	}
+
+	/**
+	 * Sets when the pose of a marker is solved again instead of started from its last one.
+	 * @param maxGap the most frames a marker can have been missing, DEFAULT_POSE_MAX_GAP by default.
+	 * @param maxError the most error in pixels of the pose started from the last one,
+	 * DEFAULT_POSE_MAX_ERROR by default.
+	 */
+	public synchronized void setPoseTrackingLimits(int maxGap, double maxError){
+		config = config.withPoseTrackingLimits(maxGap, maxError);
+	}
+
 	/**
 	 * sets the method to be used in the threshold necessary to the marker detection.
 	 * @param method must be a supported method.
 	 */
-	public void setThresholdMethod(thresSuppMethod method){
-		thresMethod = method;
+	public synchronized void setThresholdMethod(thresSuppMethod method){
+		config = config.withThresholdMethod(method);
 	}
 	
 	/**
@@ -259,12 +810,31 @@ public class MarkerDetector {
 	 * @return the method used.
 	 */
 	public thresSuppMethod getThresholdMethod(){
-		return thresMethod;
+		return config.getThresholdMethod();
+	}
+
+	/**
+	 * Sets the factor the frame is reduced by to take the block means of MEAN_THRES. The
+	 * means are then scaled back up and each pixel of the frame compared to them, so the
+	 * threshold is done at the resolution of the frame but the means cost a fraction.
+	 * @param scale 1 to take the means on the frame, the default, 2 or more to reduce it.
+	 */
+	public synchronized void setThresholdMeanScale(int scale){
+		config = config.withThresholdMeanScale(scale);
+	}
+
+	/**
+	 * returns the factor the frame is reduced by to take the block means of MEAN_THRES.
+	 * @return 1 if the means are taken on the frame.
+	 */
+	public int getThresholdMeanScale(){
+		return config.getThresholdMeanScale();
 	}
 	
 	// TODO test different options
-	private void thresHold(thresSuppMethod method, Mat src, Mat dst){
-		switch(method){
+	private static void thresHold(DetectorConfig config, DetectorWorkspace workspace, Mat src, Mat dst){
+		double thresParam1 = config.getThresholdParam1(), thresParam2 = config.getThresholdParam2();
+		switch(config.getThresholdMethod()){
 		case FIXED_THRES:
 			Imgproc.threshold(src, dst, thresParam1,255, Imgproc.THRESH_BINARY_INV);
 			break;
@@ -272,33 +842,113 @@ public class MarkerDetector {
 			Imgproc.adaptiveThreshold(src,dst,255.0,Imgproc.ADAPTIVE_THRESH_GAUSSIAN_C,
 					Imgproc.THRESH_BINARY_INV,(int)thresParam1,thresParam2);
 			break;
+		case MEAN_THRES:
+			workspace.meanThreshold.apply(src, dst, (int)thresParam1, thresParam2, config.getThresholdMeanScale());
+			break;
 		case CANNY:
 			Imgproc.Canny(src, dst, 10, 220);// TODO this parameters??
 			break;
 		}
 	}
 	
+	/**
+	 * reads the code of a candidate by warping it into a canonical image, then
+	 * thresholding that image.
+	 */
+	void warpCode(Mat src, Candidate candidate){
+		warpCode(src, candidate, workspace.readers(1)[0]);
+	}
+
+	private static void warpCode(Mat src, Candidate candidate, DetectorWorkspace.CodeReader reader){
+		// warp the grey image, the code is read in grey anyway
+		int side = candidate.code.getCells()*CodeSampler.CELL_SIZE+1;
+		warp(src, reader, new Size(side,side), candidate.corners);
+		Marker.extractCode(reader.canonical, candidate.code);
+	}
+
 	/**
 	 * This fits a mat containing 4 vertices captured through the camera
 	 * into a canonical mat.
 	 * @param in the frame captured
-	 * @param out the canonical mat
+	 * @param reader the buffers of the warp, the canonical mat is left in its canonical
 	 * @param size the size of the canonical mat we want to create
-	 * @param points the coordinates of the points in the "in" mat 
-	 */
-	private void warp(Mat in, Mat out, Size size, List<Point> points){
-		Mat pointsIn = new Mat(4,1,CvType.CV_32FC2);
-		Mat pointsRes = new Mat(4,1,CvType.CV_32FC2);
-		pointsIn.put(0,0, points.get(0).x,points.get(0).y,
-						  points.get(1).x,points.get(1).y,
-						  points.get(2).x,points.get(2).y,
-						  points.get(3).x,points.get(3).y);
-		pointsRes.put(0,0, 0,0,
+	 * @param points the coordinates of the points in the "in" mat [x1 y1 x2 y2 x3 y3 x4 y4]
+	 */
+	private static void warp(Mat in, DetectorWorkspace.CodeReader reader, Size size, float[] points){
+		reader.pointsIn.put(0,0, points);
+		reader.pointsRes.put(0,0, 0,0,
 						   size.width-1,0,
 						   size.width-1,size.height-1,
 						   0,size.height-1);
-		Mat m = new Mat();
-		m = Imgproc.getPerspectiveTransform(pointsIn, pointsRes);
-		Imgproc.warpPerspective(in, out, m, size);
+		Mat m = Imgproc.getPerspectiveTransform(reader.pointsIn, reader.pointsRes);
+		Imgproc.warpPerspective(in, reader.canonical, m, size);
+		m.release();
+	}
+
+	/**
+	 * runs a task over the items from 0 to count. With a worker pool and at least
+	 * minItems items, they are split in consecutive ranges, one run on this thread and
+	 * the rest on the pool, each with its own reader, and this returns once all the
+	 * ranges are done. If some fail, the first failure is thrown once all are done.
+	 */
+	static void runSplit(DetectorConfig config, DetectorWorkspace.CodeReader[] readers, int count,
+			int minItems, final RangeTask task){
+		ExecutorService workerPool = config.getWorkerPool();
+		int chunks = workerPool == null || count < minItems ? 1 : Math.min(config.getWorkerThreads()+1, count);
+		if(chunks <= 1){
+			task.run(0, count, readers[0]);
+			return;
+		}
+		int chunkSize = (count+chunks-1)/chunks;
+		Future<?>[] futures = new Future<?>[chunks];
+		for(int c=1;c<chunks;c++){
+			final int from = Math.min(count, c*chunkSize);
+			final int to = Math.min(count, from+chunkSize);
+			final DetectorWorkspace.CodeReader reader = readers[c];
+			futures[c] = workerPool.submit(new Runnable(){
+				public void run(){
+					task.run(from, to, reader);
+				}
+			});
+		}
+		// the other chunks use readers of the workspace, so every one of them is waited
+		// for before a failure is passed on
+		Throwable failure = null;
+		try{
+			task.run(0, Math.min(count, chunkSize), readers[0]);
+		}catch(RuntimeException e){
+			failure = e;
+		}catch(Error e){
+			failure = e;
+		}
+		// the results are needed, so an interruption is only passed on once they are all in
+		boolean interrupted = false;
+		for(int c=1;c<chunks;c++){
+			while(true){
+				try{
+					futures[c].get();
+					break;
+				}catch(InterruptedException e){
+					interrupted = true;
+				}catch(ExecutionException e){
+					if(failure == null)
+						failure = e.getCause();
+					break;
+				}
+			}
+		}
+		if(interrupted)
+			Thread.currentThread().interrupt();
+		if(failure instanceof RuntimeException)
+			throw (RuntimeException)failure;
+		if(failure instanceof Error)
+			throw (Error)failure;
+		if(failure != null)
+			throw new RuntimeException(failure);
+	}
+
+	/** work on a range of items with the scratch objects of one thread */
+	interface RangeTask{
+		void run(int from, int to, DetectorWorkspace.CodeReader reader);
 	}
 }
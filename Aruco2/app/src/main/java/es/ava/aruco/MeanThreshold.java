@@ -0,0 +1,87 @@
+package es.ava.aruco;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Adaptive threshold against the mean of a square block around each pixel, the mean
+ * being taken from the integral image of the frame so the cost is the same whatever
+ * the size of the block. A pixel is set if it is darker than the mean of its block
+ * minus a constant, as adaptiveThreshold with THRESH_BINARY_INV does.
+ *
+ * The means can also be taken on a copy of the frame reduced by a factor, with the
+ * block reduced by the same factor, and scaled back up before comparing each pixel of
+ * the full frame to them. The means vary slowly, so little is lost and the integral
+ * image is a fraction of the size.
+ */
+class MeanThreshold {
+	private final Mat reduced, padded, sum, diff, localThres, scaledThres;
+
+	MeanThreshold(){
+		reduced = new Mat();
+		padded = new Mat();
+		sum = new Mat();
+		diff = new Mat();
+		localThres = new Mat();
+		scaledThres = new Mat();
+	}
+
+	/**
+	 * @param src grey frame.
+	 * @param dst output, 255 where src is below the local mean minus constant, 0 elsewhere.
+	 * @param blockSize side of the block the mean is taken in, in pixels of src.
+	 * @param constant subtracted from the mean.
+	 * @param scale factor the frame is reduced by to take the means, 1 to take them on the frame.
+	 */
+	void apply(Mat src, Mat dst, int blockSize, double constant, int scale){
+		if(scale <= 1){
+			thresholds(src, blockSize, constant, localThres);
+			Core.compare(src, localThres, dst, Core.CMP_LT);
+			return;
+		}
+		Imgproc.resize(src, reduced, new Size(Math.max(1, src.cols()/scale), Math.max(1, src.rows()/scale)),
+				0, 0, Imgproc.INTER_AREA);
+		thresholds(reduced, blockSize/scale, constant, localThres);
+		Imgproc.resize(localThres, scaledThres, src.size(), 0, 0, Imgproc.INTER_LINEAR);
+		Core.compare(src, scaledThres, dst, Core.CMP_LT);
+	}
+
+	/**
+	 * computes for each pixel the mean of its block minus the constant, plus one so a
+	 * pixel is set when it is strictly below it.
+	 */
+	private void thresholds(Mat src, int blockSize, double constant, Mat thres){
+		int radius = Math.max(1, blockSize/2);
+		int side = 2*radius+1;
+		int rows = src.rows(), cols = src.cols();
+		// the frame is extended by the radius replicating its edges, as adaptiveThreshold
+		Imgproc.copyMakeBorder(src, padded, radius, radius, radius, radius, Imgproc.BORDER_REPLICATE);
+		Imgproc.integral(padded, sum, CvType.CV_32S);
+		// the sum of the block of each pixel from the four corners of the block
+		Mat bottomRight = sum.submat(side, side+rows, side, side+cols);
+		Mat topRight = sum.submat(0, rows, side, side+cols);
+		Mat bottomLeft = sum.submat(side, side+rows, 0, cols);
+		Mat topLeft = sum.submat(0, rows, 0, cols);
+		Core.subtract(bottomRight, topRight, diff);
+		Core.subtract(diff, bottomLeft, diff);
+		Core.add(diff, topLeft, diff);
+		diff.convertTo(thres, CvType.CV_8U, 1.0/(side*side), 1-constant);
+		bottomRight.release();
+		topRight.release();
+		bottomLeft.release();
+		topLeft.release();
+	}
+
+	/** frees the native memory of the buffers, they are allocated again if used */
+	void release(){
+		reduced.release();
+		padded.release();
+		sum.release();
+		diff.release();
+		localThres.release();
+		scaledThres.release();
+	}
+}
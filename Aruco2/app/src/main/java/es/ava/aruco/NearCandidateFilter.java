@@ -0,0 +1,151 @@
+package es.ava.aruco;
+
+import java.util.Arrays;
+
+/**
+ * Removes the candidates that are too near to another one, keeping the one with the
+ * bigger perimeter. Two candidates are too near when the average distance between
+ * their corners is below the minimum distance. The centroids of two such candidates
+ * are closer than that distance too, so the candidates are put in a grid of cells
+ * about that size by their centroid and each is only compared to the ones in its cell
+ * and the 8 around it, instead of to every other candidate.
+ */
+class NearCandidateFilter {
+	/** below this many candidates comparing every pair is cheaper than the grid */
+	static final int MIN_GRID_CANDIDATES = 32;
+	// the cell coordinates and the candidate index are packed in a long, the index
+	// in the lowest bits
+	private static final int INDEX_BITS = 21;
+	private static final int CELL_BITS = 21;
+	private static final long CELL_OFFSET = 1L<<(CELL_BITS-1);
+	private static final long CELL_MASK = (1L<<CELL_BITS)-1;
+
+	private final double minDistance;
+	private final double cellSize;
+	private boolean[] toRemove;
+	private double[] perimeters;
+	private long[] keys;
+
+	NearCandidateFilter(double minDistance){
+		this.minDistance = minDistance;
+		// a little bigger so the rounding of the distances can't put two candidates too
+		// near each other two cells apart
+		cellSize = minDistance+1;
+		toRemove = new boolean[0];
+		perimeters = new double[0];
+		keys = new long[0];
+	}
+
+	/**
+	 * removes the candidates too near to a bigger one.
+	 * @param candidates the candidates, the order of those left is kept.
+	 */
+	void filter(CandidateList candidates){
+		int n = candidates.size();
+		if(n < MIN_GRID_CANDIDATES)
+			markPairwise(candidates);
+		else
+			markGrid(candidates);
+		candidates.removeMarked(toRemove);
+	}
+
+	/**
+	 * marks the candidates to remove comparing every pair of candidates.
+	 * @return the marks, by candidate index.
+	 */
+	boolean[] markPairwise(CandidateList candidates){
+		int n = prepare(candidates);
+		for(int i=0;i<n;i++)
+			for(int j=i+1;j<n;j++)
+				compare(candidates, i, j);
+		return toRemove;
+	}
+
+	/**
+	 * marks the candidates to remove comparing only the candidates in neighbouring
+	 * cells of the grid. The marks are the same as {@link #markPairwise}.
+	 * @return the marks, by candidate index.
+	 */
+	boolean[] markGrid(CandidateList candidates){
+		int n = prepare(candidates);
+		if(n >= 1<<INDEX_BITS)
+			return markPairwise(candidates);
+		if(keys.length < n)
+			keys = new long[Math.max(n, keys.length*2)];
+		for(int i=0;i<n;i++){
+			float[] c = candidates.get(i).corners;
+			double cx = ((double)c[0]+c[2]+c[4]+c[6])/4;
+			double cy = ((double)c[1]+c[3]+c[5]+c[7])/4;
+			keys[i] = (cellOf(cy)<<(CELL_BITS+INDEX_BITS)) | (cellOf(cx)<<INDEX_BITS) | i;
+		}
+		// sorted the candidates of a cell are together, and the cells row by row
+		Arrays.sort(keys, 0, n);
+		for(int k=0;k<n;k++){
+			long cell = keys[k]>>>INDEX_BITS;
+			int i = (int)(keys[k] & ((1<<INDEX_BITS)-1));
+			long cellX = cell & CELL_MASK;
+			long cellY = cell>>>CELL_BITS;
+			for(long y=Math.max(0, cellY-1);y<=Math.min(CELL_MASK, cellY+1);y++){
+				long firstCell = (y<<CELL_BITS) | Math.max(0, cellX-1);
+				long lastCell = (y<<CELL_BITS) | Math.min(CELL_MASK, cellX+1);
+				// the cells of a row next to each other are consecutive keys
+				for(int m=lowerBound(n, firstCell<<INDEX_BITS);m<n && keys[m]>>>INDEX_BITS <= lastCell;m++){
+					int j = (int)(keys[m] & ((1<<INDEX_BITS)-1));
+					// each pair once, in the order the pairwise comparison takes it
+					if(j > i)
+						compare(candidates, i, j);
+				}
+			}
+		}
+		return toRemove;
+	}
+
+	private int prepare(CandidateList candidates){
+		int n = candidates.size();
+		if(toRemove.length < n){
+			toRemove = new boolean[Math.max(n, toRemove.length*2)];
+			perimeters = new double[toRemove.length];
+		}
+		Arrays.fill(toRemove, 0, n, false);
+		for(int i=0;i<n;i++)
+			perimeters[i] = candidates.get(i).perimeter();
+		return n;
+	}
+
+	/** marks the smaller of two candidates if they are too near, i before j */
+	private void compare(CandidateList candidates, int i, int j){
+		float[] to = candidates.get(i).corners;
+		float[] from = candidates.get(j).corners;
+		// calculate the average distance of each corner to the nearest corner in the other marker
+		float dist=0;
+		for(int c=0;c<8;c+=2)
+			dist+=Math.sqrt(((double)from[c]-to[c])*((double)from[c]-to[c])+
+					((double)from[c+1]-to[c+1])*((double)from[c+1]-to[c+1]));
+		dist = dist/4;
+		// set to remove the marker with the smaller perimeter
+		if(dist < minDistance){
+			if(perimeters[i]<perimeters[j])
+				toRemove[i] = true;
+			else
+				toRemove[j] = true;
+		}
+	}
+
+	private long cellOf(double coordinate){
+		long cell = (long)Math.floor(coordinate/cellSize)+CELL_OFFSET;
+		return Math.min(Math.max(cell, 0), CELL_MASK);
+	}
+
+	/** first of the sorted keys not below a key */
+	private int lowerBound(int n, long key){
+		int low = 0, high = n;
+		while(low < high){
+			int mid = (low+high)>>>1;
+			if(keys[mid] < key)
+				low = mid+1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+}
@@ -0,0 +1,154 @@
+package es.ava.aruco;
+
+import org.opencv.calib3d.Calib3d;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.MatOfPoint3f;
+
+/**
+ * Pose of a board, or any object solved with solvePnP, kept from frame to frame. When the
+ * object was seen in the last frames solvePnP starts from its last pose, which takes
+ * fewer iterations and keeps the pose from jumping between the solutions a flat object
+ * seen from the front allows. After a gap, or when the pose it reaches is off the image
+ * points, the pose is solved from scratch.
+ *
+ * A tracker follows a single object and must be told when a new frame starts, whether the
+ * object is solved in it or not, so it knows how long ago it was last seen. It also counts
+ * the solves and their time, started from the last pose or not.
+ */
+public class PnpTracker {
+	private static final int NEVER = Integer.MIN_VALUE;
+
+	private int maxGap;
+	private double maxError;
+	private int frame, lastSeen;
+	private final double[] lastRvec, lastTvec;
+	private final MatOfPoint2f projected;
+	private float[] imgBuffer, projBuffer;
+	private int warmSolves, coldSolves, fallbacks;
+	private long warmNanos, coldNanos;
+
+	public PnpTracker(){
+		maxGap = MarkerDetector.DEFAULT_POSE_MAX_GAP;
+		maxError = MarkerDetector.DEFAULT_POSE_MAX_ERROR;
+		frame = 0;
+		lastSeen = NEVER;
+		lastRvec = new double[3];
+		lastTvec = new double[3];
+		projected = new MatOfPoint2f();
+		imgBuffer = new float[0];
+		projBuffer = new float[0];
+	}
+
+	/**
+	 * Sets when the pose is solved from scratch instead of started from the last one.
+	 * @param maxGap the most frames the object can have been missing.
+	 * @param maxError the most error in pixels of the pose started from the last one.
+	 */
+	public void setLimits(int maxGap, double maxError){
+		if(maxGap < 0 || !(maxError > 0))
+			throw new IllegalArgumentException("the gap can't be negative and the error must be positive");
+		this.maxGap = maxGap;
+		this.maxError = maxError;
+	}
+
+	/** starts a new frame, the object gets one frame older if it is not solved in it */
+	public void nextFrame(){
+		frame++;
+	}
+
+	/** forgets the last pose, for frames not following the last ones */
+	public void reset(){
+		lastSeen = NEVER;
+	}
+
+	/**
+	 * Calculates the pose of the object in this frame, starting from the last one if
+	 * the object was seen recently.
+	 * @param objPoints the points in the object.
+	 * @param imgPoints the points found in the frame.
+	 * @param cp the camera parameters.
+	 * @param rvec output, the rotation vector.
+	 * @param tvec output, the translation.
+	 * @return true if the pose was started from the last one, false if it was solved from scratch.
+	 */
+	public boolean solve(MatOfPoint3f objPoints, MatOfPoint2f imgPoints, CameraParameters cp, Mat rvec, Mat tvec){
+		long start = System.nanoTime();
+		boolean warm = false;
+		if(lastSeen != NEVER && frame-lastSeen <= maxGap){
+			rvec.create(3, 1, CvType.CV_64FC1);
+			tvec.create(3, 1, CvType.CV_64FC1);
+			rvec.put(0, 0, lastRvec);
+			tvec.put(0, 0, lastTvec);
+			Calib3d.solvePnP(objPoints, imgPoints, cp.getCameraMatrix(), cp.getDistCoeff(), rvec, tvec,
+					true, Calib3d.ITERATIVE);
+			warm = reprojectionError(objPoints, imgPoints, cp, rvec, tvec) <= maxError;
+			if(!warm)
+				fallbacks++;
+		}
+		if(!warm)
+			Calib3d.solvePnP(objPoints, imgPoints, cp.getCameraMatrix(), cp.getDistCoeff(), rvec, tvec);
+		rvec.get(0, 0, lastRvec);
+		tvec.get(0, 0, lastTvec);
+		lastSeen = frame;
+		// a fallback counts as a solve from scratch, with the time of both
+		long elapsed = System.nanoTime()-start;
+		if(warm){
+			warmSolves++;
+			warmNanos += elapsed;
+		}
+		else{
+			coldSolves++;
+			coldNanos += elapsed;
+		}
+		return warm;
+	}
+
+	/** the root mean square distance in pixels from the image points to the object projected */
+	private double reprojectionError(MatOfPoint3f objPoints, MatOfPoint2f imgPoints, CameraParameters cp,
+			Mat rvec, Mat tvec){
+		Calib3d.projectPoints(objPoints, rvec, tvec, cp.getCameraMatrix(), cp.getDistCoeff(), projected);
+		int n = (int)imgPoints.total()*2;
+		if(imgBuffer.length < n){
+			imgBuffer = new float[n];
+			projBuffer = new float[n];
+		}
+		imgPoints.get(0, 0, imgBuffer);
+		projected.get(0, 0, projBuffer);
+		double sum = 0;
+		for(int i=0;i<n;i++)
+			sum += (imgBuffer[i]-projBuffer[i])*(imgBuffer[i]-projBuffer[i]);
+		return Math.sqrt(sum/(n/2));
+	}
+
+	/** @return the solves started from the last pose */
+	public int getWarmSolves(){
+		return warmSolves;
+	}
+
+	/** @return the solves from scratch, fallbacks included */
+	public int getColdSolves(){
+		return coldSolves;
+	}
+
+	/** @return the solves started from the last pose that ended off the image points */
+	public int getFallbacks(){
+		return fallbacks;
+	}
+
+	/** @return the time in nanoseconds of the solves started from the last pose */
+	public long getWarmNanos(){
+		return warmNanos;
+	}
+
+	/** @return the time in nanoseconds of the solves from scratch */
+	public long getColdNanos(){
+		return coldNanos;
+	}
+
+	/** frees the native memory of the projected points */
+	public void release(){
+		projected.release();
+	}
+}
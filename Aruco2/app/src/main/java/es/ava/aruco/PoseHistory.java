@@ -0,0 +1,113 @@
+package es.ava.aruco;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.opencv.core.Point;
+
+/**
+ * Poses of the markers of the last frames, by id, so the pose of a marker seen recently
+ * is refined from the one it had instead of solved from scratch. That takes about as
+ * long as a solve refined from scratch, but the pose stays on the same side of the
+ * ambiguity of a square seen from the front instead of flipping from frame to frame.
+ * A marker not seen for too many frames, or whose refined pose no longer fits its
+ * corners, is solved again with the {@link SquarePoseSolver}, taking the solution
+ * nearer to its last pose if it has one, and refining it.
+ *
+ * Each marker only reads and writes its own pose, so markers of different ids can be
+ * solved on several threads once their ids are reserved.
+ */
+class PoseHistory {
+	/** the most steps of a refinement */
+	static final int REFINE_ITERATIONS = 10;
+	private static final int NEVER = Integer.MIN_VALUE;
+
+	private int frame;
+	// by id, the frame the marker was last solved in and its rvec and tvec
+	private int[] lastSeen;
+	private double[] poses;
+
+	PoseHistory(){
+		frame = 0;
+		lastSeen = new int[0];
+		poses = new double[0];
+	}
+
+	/** starts a new frame, the markers not solved in it get one frame older */
+	void nextFrame(){
+		frame++;
+	}
+
+	/** makes room for the ids up to the one given, before solving on several threads */
+	void reserve(int maxId){
+		if(maxId < lastSeen.length)
+			return;
+		int length = Math.max(maxId+1, lastSeen.length*2);
+		int old = lastSeen.length;
+		lastSeen = Arrays.copyOf(lastSeen, length);
+		Arrays.fill(lastSeen, old, length, NEVER);
+		poses = Arrays.copyOf(poses, length*6);
+	}
+
+	/** forgets every pose, for frames not following the last ones */
+	void clear(){
+		Arrays.fill(lastSeen, NEVER);
+	}
+
+	/**
+	 * @param id the id of a marker, reserved.
+	 * @param maxGap the most frames the marker can have been missing.
+	 * @return true if the marker was solved in the last frames.
+	 */
+	boolean isRecent(int id, int maxGap){
+		return lastSeen[id] != NEVER && frame-lastSeen[id] <= maxGap;
+	}
+
+	/**
+	 * calculates the pose of a marker in this frame and keeps it for the next.
+	 * @param solver the solver of the calling thread, given the camera.
+	 * @param id the id of the marker, reserved.
+	 * @param corners the corners of the marker.
+	 * @param sizeMeters the side of the marker.
+	 * @param maxGap the most frames the marker can have been missing to start from its last pose.
+	 * @param maxError the most error in pixels of the pose refined from the last one.
+	 * @param rvec output, the rotation vector.
+	 * @param tvec output, the translation.
+	 * @return true if the pose was refined from the last one, false if it was solved again.
+	 */
+	boolean solve(SquarePoseSolver solver, int id, List<Point> corners, double sizeMeters, int maxGap,
+			double maxError, double[] rvec, double[] tvec){
+		boolean recent = isRecent(id, maxGap);
+		if(recent){
+			System.arraycopy(poses, id*6, rvec, 0, 3);
+			System.arraycopy(poses, id*6+3, tvec, 0, 3);
+			if(solver.refine(corners, sizeMeters, rvec, tvec, REFINE_ITERATIONS) >= 0
+					&& solver.getRefinedError() <= maxError){
+				store(id, rvec, tvec);
+				return true;
+			}
+		}
+		if(!solver.solve(corners, sizeMeters)){
+			lastSeen[id] = NEVER;
+			Arrays.fill(rvec, 0);
+			Arrays.fill(tvec, 0);
+			return false;
+		}
+		int solution = 0;
+		if(recent){
+			System.arraycopy(poses, id*6, rvec, 0, 3);
+			solution = solver.nearestSolution(rvec);
+		}
+		solver.getRvec(solution, rvec);
+		solver.getTvec(solution, tvec);
+		solver.refine(rvec, tvec, REFINE_ITERATIONS);
+		store(id, rvec, tvec);
+		return false;
+	}
+
+	private void store(int id, double[] rvec, double[] tvec){
+		System.arraycopy(rvec, 0, poses, id*6, 3);
+		System.arraycopy(tvec, 0, poses, id*6+3, 3);
+		lastSeen[id] = frame;
+	}
+}
@@ -0,0 +1,708 @@
+package es.ava.aruco;
+
+import java.util.List;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDouble;
+import org.opencv.core.Point;
+
+/**
+ * Calculates the pose of a square marker from its four corners without native calls or
+ * allocations, by infinitesimal plane-based pose estimation (IPPE, Collins and Bartoli
+ * 2014). The corners are undistorted and the homography from the square to them is
+ * solved, its jacobian at the center of the square gives the rotation up to a flip
+ * about the line of sight, so there are always two solutions, and for each the
+ * translation is the least squares one over the four corners. The solutions are sorted
+ * by their reprojection error. When a marker is small or seen from the front both can
+ * have about the same error, and the one consistent with the previous frame is the
+ * right one.
+ *
+ * A pose, for instance the one of the previous frame, can also be refined on the corners
+ * by Levenberg-Marquardt, which takes few iterations when it is already near.
+ *
+ * A solver is reused marker after marker, and must only be used by one thread at a time.
+ */
+public class SquarePoseSolver {
+	/** the number of solutions of a solve */
+	public static final int SOLUTIONS = 2;
+	// iterations of the undistortion of the corners, as cv::undistortPoints
+	private static final int UNDISTORT_ITERATIONS = 5;
+	// the corners of the square of side 2, in the order of the corners of a marker
+	private static final double[] UNIT_SQUARE = {-1,-1, -1,1, 1,1, 1,-1};
+	// the refinement stops when the error drops by less than this fraction, or the step
+	// moves the corners less than this many pixels
+	private static final double REFINE_MIN_DECREASE = 1e-10;
+	private static final double REFINE_MIN_STEP = 0.01;
+	private static final double REFINE_MAX_DAMPING = 1e6;
+
+	// intrinsics
+	private double fx, fy, cx, cy;
+	private final double[] dist;
+	private final double[] cameraBuffer;
+	private double[] distBuffer;
+	// the corners in the frame and undistorted, at distance 1 from the camera
+	private final double[] pixels;
+	private final double[] normalized;
+	private final double[] projected;
+	// linear system of the homography, 8 rows of 8 coefficients and the constant
+	private final double[] system;
+	private final double[] homography;
+	// the solutions, sorted by error
+	private final double[][] rotations;
+	private final double[][] translations;
+	private final double[] errors;
+	private double halfSize;
+	private boolean solved;
+	// refinement, the pose being refined and a step from it
+	private final double[] refineR, refineT, stepR, candidateR, candidateT;
+	private final double[] residuals, jacobian, normal, delta;
+	private int iterations;
+	private double refinedError;
+
+	public SquarePoseSolver(){
+		dist = new double[8];
+		cameraBuffer = new double[9];
+		distBuffer = new double[0];
+		pixels = new double[8];
+		normalized = new double[8];
+		projected = new double[2];
+		system = new double[8*9];
+		homography = new double[9];
+		rotations = new double[SOLUTIONS][9];
+		translations = new double[SOLUTIONS][3];
+		errors = new double[SOLUTIONS];
+		solved = false;
+		refineR = new double[9];
+		refineT = new double[3];
+		stepR = new double[9];
+		candidateR = new double[9];
+		candidateT = new double[3];
+		residuals = new double[8];
+		jacobian = new double[8*6];
+		normal = new double[6*7];
+		delta = new double[6];
+		iterations = 0;
+		refinedError = Double.MAX_VALUE;
+	}
+
+	/**
+	 * reads the intrinsics of the camera, two reads in total. It only needs to be done
+	 * again when they change.
+	 * @param camMatrix the 3x3 camera matrix.
+	 * @param distCoeffs 4, 5 or 8 distortion coefficients, or empty for none.
+	 */
+	public void setCamera(Mat camMatrix, MatOfDouble distCoeffs){
+		camMatrix.get(0, 0, cameraBuffer);
+		double[] k = cameraBuffer;
+		int n = (int)distCoeffs.total();
+		if(distBuffer.length != n)
+			distBuffer = new double[n];
+		if(n > 0)
+			distCoeffs.get(0, 0, distBuffer);
+		setCamera(k[0], k[4], k[2], k[5], distBuffer);
+	}
+
+	/**
+	 * @param fx focal length in pixels along x.
+	 * @param fy focal length in pixels along y.
+	 * @param cx x of the principal point.
+	 * @param cy y of the principal point.
+	 * @param distCoeffs k1 k2 p1 p2 [k3 [k4 k5 k6]], or null for none.
+	 */
+	public void setCamera(double fx, double fy, double cx, double cy, double[] distCoeffs){
+		if(distCoeffs != null && distCoeffs.length > dist.length)
+			throw new IllegalArgumentException("at most "+dist.length+" distortion coefficients");
+		this.fx = fx;
+		this.fy = fy;
+		this.cx = cx;
+		this.cy = cy;
+		java.util.Arrays.fill(dist, 0);
+		if(distCoeffs != null)
+			System.arraycopy(distCoeffs, 0, dist, 0, distCoeffs.length);
+		solved = false;
+	}
+
+	/**
+	 * calculates the two poses of a square marker.
+	 * @param corners the corners in the frame [x1 y1 ... x4 y4], in the order of the
+	 * corners of a marker: (-s,-s) (-s,s) (s,s) (s,-s) in marker coordinates, s being
+	 * half the side.
+	 * @param sizeMeters the side of the marker.
+	 * @return false if the corners are degenerate, there is no pose then.
+	 */
+	public boolean solve(float[] corners, double sizeMeters){
+		for(int i=0;i<8;i+=2)
+			undistort(corners[i], corners[i+1], i);
+		return solveNormalized(sizeMeters);
+	}
+
+	/**
+	 * same as {@link #solve(float[], double)} with the corners as doubles.
+	 */
+	public boolean solve(double[] corners, double sizeMeters){
+		for(int i=0;i<8;i+=2)
+			undistort(corners[i], corners[i+1], i);
+		return solveNormalized(sizeMeters);
+	}
+
+	/**
+	 * same as {@link #solve(float[], double)} with the corners as points.
+	 */
+	public boolean solve(List<Point> corners, double sizeMeters){
+		for(int i=0;i<4;i++){
+			Point corner = corners.get(i);
+			undistort(corner.x, corner.y, i*2);
+		}
+		return solveNormalized(sizeMeters);
+	}
+
+	/**
+	 * @return false if the last solve failed, the solutions are not valid then.
+	 */
+	public boolean isSolved(){
+		return solved;
+	}
+
+	/**
+	 * @param solution 0 for the one of lowest error, 1 for the other.
+	 * @return the root mean square distance in pixels between the corners and the
+	 * corners of the square projected with the pose.
+	 */
+	public double getReprojectionError(int solution){
+		return errors[solution];
+	}
+
+	/**
+	 * @param solution 0 for the one of lowest error, 1 for the other.
+	 * @param r output, the rotation matrix of the pose in row major order.
+	 */
+	public void getRotation(int solution, double[] r){
+		System.arraycopy(rotations[solution], 0, r, 0, 9);
+	}
+
+	/**
+	 * @param solution 0 for the one of lowest error, 1 for the other.
+	 * @param rvec output, the rotation of the pose as a rotation vector, as solvePnP gives it.
+	 */
+	public void getRvec(int solution, double[] rvec){
+		toRvec(rotations[solution], rvec);
+	}
+
+	/**
+	 * @param solution 0 for the one of lowest error, 1 for the other.
+	 * @param tvec output, the translation of the pose.
+	 */
+	public void getTvec(int solution, double[] tvec){
+		System.arraycopy(translations[solution], 0, tvec, 0, 3);
+	}
+
+	/**
+	 * @param rvec a rotation vector, for instance of the pose of the previous frame.
+	 * @return the solution whose rotation is nearer the one given.
+	 */
+	public int nearestSolution(double[] rvec){
+		toRotation(rvec, stepR);
+		// the trace of the rotation between them, the larger the nearer
+		double near0 = 0, near1 = 0;
+		for(int i=0;i<9;i++){
+			near0 += stepR[i]*rotations[0][i];
+			near1 += stepR[i]*rotations[1][i];
+		}
+		return near1 > near0 ? 1 : 0;
+	}
+
+	/**
+	 * refines a pose on the corners of a square marker by Levenberg-Marquardt, minimizing
+	 * the distance of the corners to the projected square.
+	 * @param corners the corners in the frame [x1 y1 ... x4 y4], in the order of {@link #solve(float[], double)}.
+	 * @param sizeMeters the side of the marker.
+	 * @param rvec the rotation vector to start from, updated.
+	 * @param tvec the translation to start from, updated.
+	 * @param maxIterations the most steps taken.
+	 * @return the number of steps taken, or -1 if the pose puts the marker behind the
+	 * camera and is left as it was.
+	 */
+	public int refine(float[] corners, double sizeMeters, double[] rvec, double[] tvec, int maxIterations){
+		for(int i=0;i<8;i+=2)
+			undistort(corners[i], corners[i+1], i);
+		halfSize = sizeMeters/2;
+		return refine(rvec, tvec, maxIterations);
+	}
+
+	/**
+	 * same as {@link #refine(float[], double, double[], double[], int)} with the corners as points.
+	 */
+	public int refine(List<Point> corners, double sizeMeters, double[] rvec, double[] tvec, int maxIterations){
+		for(int i=0;i<4;i++){
+			Point corner = corners.get(i);
+			undistort(corner.x, corner.y, i*2);
+		}
+		halfSize = sizeMeters/2;
+		return refine(rvec, tvec, maxIterations);
+	}
+
+	/**
+	 * same as {@link #refine(float[], double, double[], double[], int)} on the corners of
+	 * the last solve or refinement, for instance from one of the solutions.
+	 */
+	public int refine(double[] rvec, double[] tvec, int maxIterations){
+		toRotation(rvec, refineR);
+		System.arraycopy(tvec, 0, refineT, 0, 3);
+		double error = residuals(refineR, refineT, true);
+		iterations = 0;
+		if(Double.isInfinite(error)){
+			refinedError = Double.MAX_VALUE;
+			return -1;
+		}
+		double damping = 1e-3;
+		while(iterations < maxIterations && error > 0){
+			iterations++;
+			// the normal equations, damped on the diagonal
+			double[] a = normal;
+			for(int r=0;r<6;r++){
+				for(int c=r;c<6;c++){
+					double sum = 0;
+					for(int k=0;k<8;k++)
+						sum += jacobian[k*6+r]*jacobian[k*6+c];
+					a[r*7+c] = sum;
+					a[c*7+r] = sum;
+				}
+				double g = 0;
+				for(int k=0;k<8;k++)
+					g += jacobian[k*6+r]*residuals[k];
+				a[r*7+6] = -g;
+			}
+			for(int r=0;r<6;r++)
+				a[r*7+r] *= 1+damping;
+			if(!solveNormal()){
+				damping *= 10;
+				if(damping > REFINE_MAX_DAMPING)
+					break;
+				continue;
+			}
+			// the rotation is stepped on the left, R' = exp(w) R
+			toRotation(delta, stepR);
+			multiply(stepR, refineR, candidateR);
+			for(int i=0;i<3;i++)
+				candidateT[i] = refineT[i]+delta[3+i];
+			double candidateError = residuals(candidateR, candidateT, false);
+			if(candidateError < error){
+				System.arraycopy(candidateR, 0, refineR, 0, 9);
+				System.arraycopy(candidateT, 0, refineT, 0, 3);
+				boolean converged = error-candidateError <= REFINE_MIN_DECREASE*error || stepPixels(delta, refineT[2]) < REFINE_MIN_STEP;
+				error = residuals(refineR, refineT, true);
+				damping = Math.max(damping/10, 1e-9);
+				if(converged)
+					break;
+			}
+			else{
+				damping *= 10;
+				if(damping > REFINE_MAX_DAMPING)
+					break;
+			}
+		}
+		toRvec(refineR, rvec);
+		System.arraycopy(refineT, 0, tvec, 0, 3);
+		refinedError = reprojectionError(refineR, refineT);
+		return iterations;
+	}
+
+	/**
+	 * @return the steps taken by the last refinement.
+	 */
+	public int getIterations(){
+		return iterations;
+	}
+
+	/**
+	 * @return the root mean square distance in pixels between the corners and the square
+	 * projected with the pose of the last refinement.
+	 */
+	public double getRefinedError(){
+		return refinedError;
+	}
+
+	/**
+	 * the sum of the squared distances of the normalized corners to the square projected
+	 * with a pose, and optionally the residuals and their jacobian with respect to a
+	 * rotation on the left and the translation.
+	 * @return infinity if a corner is behind the camera.
+	 */
+	private double residuals(double[] r, double[] t, boolean withJacobian){
+		double sum = 0;
+		for(int i=0;i<4;i++){
+			double x = UNIT_SQUARE[i*2]*halfSize, y = UNIT_SQUARE[i*2+1]*halfSize;
+			double ax = r[0]*x+r[1]*y, ay = r[3]*x+r[4]*y, az = r[6]*x+r[7]*y;
+			double px = ax+t[0], py = ay+t[1], pz = az+t[2];
+			if(pz <= 0)
+				return Double.POSITIVE_INFINITY;
+			double iz = 1/pz;
+			double u = px*iz, v = py*iz;
+			double ru = u-normalized[i*2], rv = v-normalized[i*2+1];
+			sum += ru*ru+rv*rv;
+			if(!withJacobian)
+				continue;
+			residuals[i*2] = ru;
+			residuals[i*2+1] = rv;
+			// dP/dw = -[a]x, the point moves by w x a
+			int j = i*2*6;
+			jacobian[j] = -u*iz*ay;
+			jacobian[j+1] = iz*az+u*iz*ax;
+			jacobian[j+2] = -iz*ay;
+			jacobian[j+3] = iz;
+			jacobian[j+4] = 0;
+			jacobian[j+5] = -u*iz;
+			j += 6;
+			jacobian[j] = -iz*az-v*iz*ay;
+			jacobian[j+1] = v*iz*ax;
+			jacobian[j+2] = iz*ax;
+			jacobian[j+3] = 0;
+			jacobian[j+4] = iz;
+			jacobian[j+5] = -v*iz;
+		}
+		return sum;
+	}
+
+	/** solves the 6x6 normal equations into delta by gaussian elimination */
+	private boolean solveNormal(){
+		double[] a = normal;
+		for(int c=0;c<6;c++){
+			int pivot = c;
+			for(int r=c+1;r<6;r++)
+				if(Math.abs(a[r*7+c]) > Math.abs(a[pivot*7+c]))
+					pivot = r;
+			if(Math.abs(a[pivot*7+c]) < 1e-30)
+				return false;
+			if(pivot != c)
+				for(int k=c;k<7;k++){
+					double tmp = a[c*7+k];
+					a[c*7+k] = a[pivot*7+k];
+					a[pivot*7+k] = tmp;
+				}
+			for(int r=c+1;r<6;r++){
+				double f = a[r*7+c]/a[c*7+c];
+				for(int k=c;k<7;k++)
+					a[r*7+k] -= f*a[c*7+k];
+			}
+		}
+		for(int r=5;r>=0;r--){
+			double s = a[r*7+6];
+			for(int k=r+1;k<6;k++)
+				s -= a[r*7+k]*delta[k];
+			delta[r] = s/a[r*7+r];
+		}
+		return true;
+	}
+
+	private static void multiply(double[] a, double[] b, double[] dst){
+		for(int i=0;i<3;i++)
+			for(int j=0;j<3;j++)
+				dst[i*3+j] = a[i*3]*b[j]+a[i*3+1]*b[3+j]+a[i*3+2]*b[6+j];
+	}
+
+	/** about the most a step of the refinement moves the corners, in pixels */
+	private double stepPixels(double[] step, double depth){
+		double rotation = Math.sqrt(step[0]*step[0]+step[1]*step[1]+step[2]*step[2]);
+		double translation = Math.sqrt(step[3]*step[3]+step[4]*step[4]+step[5]*step[5]);
+		return Math.max(fx, fy)*(rotation*halfSize*Math.sqrt(2)+translation)/depth;
+	}
+
+	/**
+	 * takes a corner to the plane at distance 1, iterating on the distortion model as
+	 * cv::undistortPoints does.
+	 */
+	private void undistort(double u, double v, int index){
+		pixels[index] = u;
+		pixels[index+1] = v;
+		double x0 = (u-cx)/fx, y0 = (v-cy)/fy;
+		double x = x0, y = y0;
+		double k1 = dist[0], k2 = dist[1], p1 = dist[2], p2 = dist[3];
+		double k3 = dist[4], k4 = dist[5], k5 = dist[6], k6 = dist[7];
+		if(k1 != 0 || k2 != 0 || p1 != 0 || p2 != 0 || k3 != 0 || k4 != 0 || k5 != 0 || k6 != 0)
+			for(int it=0;it<UNDISTORT_ITERATIONS;it++){
+				double r2 = x*x+y*y;
+				double icdist = (1+((k6*r2+k5)*r2+k4)*r2)/(1+((k3*r2+k2)*r2+k1)*r2);
+				double deltaX = 2*p1*x*y+p2*(r2+2*x*x);
+				double deltaY = p1*(r2+2*y*y)+2*p2*x*y;
+				x = (x0-deltaX)*icdist;
+				y = (y0-deltaY)*icdist;
+			}
+		normalized[index] = x;
+		normalized[index+1] = y;
+	}
+
+	private boolean solveNormalized(double sizeMeters){
+		solved = false;
+		halfSize = sizeMeters/2;
+		// the homography from the square of side 2 to the undistorted corners, its
+		// center being the origin of the marker
+		if(!solveHomography())
+			return false;
+		double[] h = homography;
+		double p = h[2], q = h[5];
+		// jacobian of the homography at the center of the square
+		double j00 = h[0]-h[6]*p, j01 = h[1]-h[7]*p;
+		double j10 = h[3]-h[6]*q, j11 = h[4]-h[7]*q;
+		if(!computeRotations(j00, j01, j10, j11, p, q))
+			return false;
+		for(int s=0;s<SOLUTIONS;s++){
+			if(!computeTranslation(rotations[s], translations[s]))
+				return false;
+			errors[s] = reprojectionError(rotations[s], translations[s]);
+		}
+		if(errors[1] < errors[0]){
+			double[] r = rotations[0];
+			rotations[0] = rotations[1];
+			rotations[1] = r;
+			double[] t = translations[0];
+			translations[0] = translations[1];
+			translations[1] = t;
+			double e = errors[0];
+			errors[0] = errors[1];
+			errors[1] = e;
+		}
+		solved = true;
+		return true;
+	}
+
+	/**
+	 * solves the homography from the square of side 2 to the normalized corners, with
+	 * its last element 1, by gaussian elimination with partial pivoting.
+	 */
+	private boolean solveHomography(){
+		double[] a = system;
+		java.util.Arrays.fill(a, 0);
+		for(int i=0;i<4;i++){
+			double x = UNIT_SQUARE[i*2], y = UNIT_SQUARE[i*2+1];
+			double u = normalized[i*2], v = normalized[i*2+1];
+			int r = i*2*9;
+			// h0 x + h1 y + h2 - u h6 x - u h7 y = u
+			a[r] = x; a[r+1] = y; a[r+2] = 1; a[r+6] = -u*x; a[r+7] = -u*y; a[r+8] = u;
+			r += 9;
+			// h3 x + h4 y + h5 - v h6 x - v h7 y = v
+			a[r+3] = x; a[r+4] = y; a[r+5] = 1; a[r+6] = -v*x; a[r+7] = -v*y; a[r+8] = v;
+		}
+		for(int c=0;c<8;c++){
+			int pivot = c;
+			for(int r=c+1;r<8;r++)
+				if(Math.abs(a[r*9+c]) > Math.abs(a[pivot*9+c]))
+					pivot = r;
+			if(Math.abs(a[pivot*9+c]) < 1e-12)
+				return false;
+			if(pivot != c)
+				for(int k=c;k<9;k++){
+					double tmp = a[c*9+k];
+					a[c*9+k] = a[pivot*9+k];
+					a[pivot*9+k] = tmp;
+				}
+			for(int r=c+1;r<8;r++){
+				double f = a[r*9+c]/a[c*9+c];
+				if(f == 0)
+					continue;
+				for(int k=c;k<9;k++)
+					a[r*9+k] -= f*a[c*9+k];
+			}
+		}
+		for(int r=7;r>=0;r--){
+			double s = a[r*9+8];
+			for(int k=r+1;k<8;k++)
+				s -= a[r*9+k]*homography[k];
+			homography[r] = s/a[r*9+r];
+		}
+		homography[8] = 1;
+		return true;
+	}
+
+	/**
+	 * the two rotations whose projection has the jacobian given at the center of the
+	 * square, which is seen at (p, q). The jacobian is taken to the frame of a camera
+	 * looking at the center, where it is a scaled 2x2 block of the rotation; the third
+	 * row of that block is known up to its sign, which gives the two solutions.
+	 */
+	private boolean computeRotations(double j00, double j01, double j10, double j11, double p, double q){
+		// rotation taking the optical axis to the line of sight of the center
+		double rv00, rv01, rv02, rv10, rv11, rv12, rv20, rv21, rv22;
+		double t = Math.sqrt(p*p+q*q);
+		if(t < 1e-12){
+			rv00 = 1; rv01 = 0; rv02 = 0;
+			rv10 = 0; rv11 = 1; rv12 = 0;
+			rv20 = 0; rv21 = 0; rv22 = 1;
+		}
+		else{
+			double s = Math.sqrt(p*p+q*q+1);
+			double cos = 1/s, sin = t/s;
+			double k0 = p/t, k1 = q/t;
+			rv00 = (cos-1)*k0*k0+1; rv01 = (cos-1)*k0*k1; rv02 = k0*sin;
+			rv10 = (cos-1)*k0*k1; rv11 = (cos-1)*k1*k1+1; rv12 = k1*sin;
+			rv20 = -k0*sin; rv21 = -k1*sin; rv22 = cos;
+		}
+		// the jacobian in that frame
+		double b00 = rv00-p*rv20, b01 = rv01-p*rv21;
+		double b10 = rv10-q*rv20, b11 = rv11-q*rv21;
+		double det = b00*b11-b01*b10;
+		if(Math.abs(det) < 1e-12)
+			return false;
+		double a00 = (b11*j00-b01*j10)/det, a01 = (b11*j01-b01*j11)/det;
+		double a10 = (b00*j10-b10*j00)/det, a11 = (b00*j11-b10*j01)/det;
+		// its largest singular value is the scale, the inverse of the distance
+		double ata00 = a00*a00+a10*a10, ata01 = a00*a01+a10*a11, ata11 = a01*a01+a11*a11;
+		double gamma2 = 0.5*(ata00+ata11+Math.sqrt((ata00-ata11)*(ata00-ata11)+4*ata01*ata01));
+		if(!(gamma2 > 1e-24))
+			return false;
+		double gamma = Math.sqrt(gamma2);
+		double r00 = a00/gamma, r01 = a01/gamma, r10 = a10/gamma, r11 = a11/gamma;
+		// the third row, the columns of unit length and orthogonal
+		double c0 = Math.sqrt(Math.max(0, 1-r00*r00-r10*r10));
+		double c1 = Math.sqrt(Math.max(0, 1-r01*r01-r11*r11));
+		if(-r00*r01-r10*r11 < 0)
+			c1 = -c1;
+		for(int s=0;s<SOLUTIONS;s++){
+			double b0 = s == 0 ? c0 : -c0, b1 = s == 0 ? c1 : -c1;
+			// the third column is the cross product of the first two
+			double r02 = r10*b1-b0*r11, r12 = b0*r01-r00*b1, r22 = r00*r11-r01*r10;
+			double[] r = rotations[s];
+			r[0] = rv00*r00+rv01*r10+rv02*b0;
+			r[1] = rv00*r01+rv01*r11+rv02*b1;
+			r[2] = rv00*r02+rv01*r12+rv02*r22;
+			r[3] = rv10*r00+rv11*r10+rv12*b0;
+			r[4] = rv10*r01+rv11*r11+rv12*b1;
+			r[5] = rv10*r02+rv11*r12+rv12*r22;
+			r[6] = rv20*r00+rv21*r10+rv22*b0;
+			r[7] = rv20*r01+rv21*r11+rv22*b1;
+			r[8] = rv20*r02+rv21*r12+rv22*r22;
+		}
+		return true;
+	}
+
+	/**
+	 * the translation that, with the rotation given, best projects the corners of the
+	 * square on the normalized corners, in the least squares sense.
+	 */
+	private boolean computeTranslation(double[] r, double[] t){
+		// each corner gives two equations linear in t:
+		// tx - u tz = u (r6 X + r7 Y) - (r0 X + r1 Y), ty - v tz = v (r6 X + r7 Y) - (r3 X + r4 Y)
+		double s00 = 0, s02 = 0, s11 = 0, s12 = 0, s22 = 0;
+		double b0 = 0, b1 = 0, b2 = 0;
+		for(int i=0;i<4;i++){
+			double x = UNIT_SQUARE[i*2]*halfSize, y = UNIT_SQUARE[i*2+1]*halfSize;
+			double u = normalized[i*2], v = normalized[i*2+1];
+			double z = r[6]*x+r[7]*y;
+			double bu = u*z-(r[0]*x+r[1]*y);
+			double bv = v*z-(r[3]*x+r[4]*y);
+			s00 += 1;
+			s02 -= u;
+			s11 += 1;
+			s12 -= v;
+			s22 += u*u+v*v;
+			b0 += bu;
+			b1 += bv;
+			b2 -= u*bu+v*bv;
+		}
+		// solve the symmetric 3x3 normal equations, s01 being 0, by cramer's rule
+		double det = s00*(s11*s22-s12*s12)-s02*s02*s11;
+		if(Math.abs(det) < 1e-18)
+			return false;
+		t[0] = (b0*(s11*s22-s12*s12)+s02*(b1*s12-s11*b2))/det;
+		t[1] = (s00*(b1*s22-s12*b2)+s02*(s12*b0-s02*b1))/det;
+		t[2] = (s00*(s11*b2-b1*s12)-s02*s11*b0)/det;
+		return true;
+	}
+
+	/** root mean square distance in pixels of the corners to the projected square */
+	private double reprojectionError(double[] r, double[] t){
+		double sum = 0;
+		for(int i=0;i<4;i++){
+			double x = UNIT_SQUARE[i*2]*halfSize, y = UNIT_SQUARE[i*2+1]*halfSize;
+			double px = r[0]*x+r[1]*y+t[0];
+			double py = r[3]*x+r[4]*y+t[1];
+			double pz = r[6]*x+r[7]*y+t[2];
+			if(pz <= 0)
+				return Double.MAX_VALUE;
+			project(px/pz, py/pz);
+			double du = projected[0]-pixels[i*2];
+			double dv = projected[1]-pixels[i*2+1];
+			sum += du*du+dv*dv;
+		}
+		return Math.sqrt(sum/4);
+	}
+
+	/** distorts a normalized point and takes it to pixels, into projected */
+	private void project(double x, double y){
+		double r2 = x*x+y*y;
+		double radial = (1+((dist[4]*r2+dist[1])*r2+dist[0])*r2)/(1+((dist[7]*r2+dist[6])*r2+dist[5])*r2);
+		projected[0] = fx*(x*radial+2*dist[2]*x*y+dist[3]*(r2+2*x*x))+cx;
+		projected[1] = fy*(y*radial+dist[2]*(r2+2*y*y)+2*dist[3]*x*y)+cy;
+	}
+
+	/**
+	 * converts a rotation matrix into a rotation vector, the axis scaled by the angle.
+	 * @param r the rotation matrix in row major order.
+	 * @param rvec output.
+	 */
+	public static void toRvec(double[] r, double[] rvec){
+		double cos = Math.max(-1, Math.min(1, (r[0]+r[4]+r[8]-1)/2));
+		double rx = r[7]-r[5], ry = r[2]-r[6], rz = r[3]-r[1];
+		double sin2 = Math.sqrt(rx*rx+ry*ry+rz*rz);// twice the sine
+		double theta = Math.atan2(sin2/2, cos);
+		if(sin2 > 1e-6){
+			double f = theta/sin2;
+			rvec[0] = rx*f;
+			rvec[1] = ry*f;
+			rvec[2] = rz*f;
+			// near a half turn the axis is better taken from the diagonal
+			if(cos > -0.9)
+				return;
+		}
+		else if(cos > 0){
+			rvec[0] = rx/2;
+			rvec[1] = ry/2;
+			rvec[2] = rz/2;
+			return;
+		}
+		// the axis from the symmetric part, its signs from the largest component
+		double ax = Math.sqrt(Math.max(0, (r[0]-cos)/(1-cos)));
+		double ay = Math.sqrt(Math.max(0, (r[4]-cos)/(1-cos)));
+		double az = Math.sqrt(Math.max(0, (r[8]-cos)/(1-cos)));
+		if(ax >= ay && ax >= az){
+			if(r[1]+r[3] < 0) ay = -ay;
+			if(r[2]+r[6] < 0) az = -az;
+		}
+		else if(ay >= az){
+			if(r[1]+r[3] < 0) ax = -ax;
+			if(r[5]+r[7] < 0) az = -az;
+		}
+		else{
+			if(r[2]+r[6] < 0) ax = -ax;
+			if(r[5]+r[7] < 0) ay = -ay;
+		}
+		// the direction of the antisymmetric part, where it is known
+		if(ax*rx+ay*ry+az*rz < 0){
+			ax = -ax;
+			ay = -ay;
+			az = -az;
+		}
+		rvec[0] = ax*theta;
+		rvec[1] = ay*theta;
+		rvec[2] = az*theta;
+	}
+
+	/**
+	 * converts a rotation vector into a rotation matrix.
+	 * @param rvec the axis scaled by the angle.
+	 * @param r output, the rotation matrix in row major order.
+	 */
+	public static void toRotation(double[] rvec, double[] r){
+		double theta = Math.sqrt(rvec[0]*rvec[0]+rvec[1]*rvec[1]+rvec[2]*rvec[2]);
+		if(theta < 1e-12){
+			r[0] = 1; r[1] = -rvec[2]; r[2] = rvec[1];
+			r[3] = rvec[2]; r[4] = 1; r[5] = -rvec[0];
+			r[6] = -rvec[1]; r[7] = rvec[0]; r[8] = 1;
+			return;
+		}
+		double x = rvec[0]/theta, y = rvec[1]/theta, z = rvec[2]/theta;
+		double c = Math.cos(theta), s = Math.sin(theta), c1 = 1-c;
+		r[0] = c+x*x*c1;   r[1] = x*y*c1-z*s; r[2] = x*z*c1+y*s;
+		r[3] = y*x*c1+z*s; r[4] = c+y*y*c1;   r[5] = y*z*c1-x*s;
+		r[6] = z*x*c1-y*s; r[7] = z*y*c1+x*s; r[8] = c+z*z*c1;
+	}
+}
@@ -89,7 +89,7 @@ public class ArucoView extends ViewBase implements OnTouchListener{
     protected Bitmap processFrame(VideoCapture capture, SurfaceHolder holder, int width, int height) {
         capture.retrieve(mFrame, Highgui.CV_CAP_ANDROID_COLOR_FRAME_RGBA);
 
-		mDetector.detect(mFrame, mDetectedMarkers, mCamParam, markerSizeMeters,mFrame);
+		mDetector.detect(mFrame, mDetectedMarkers, mCamParam, markerSizeMeters);
 
 		mRenderer.onDetection(mFrame, mDetectedMarkers, mIdSelected);
 
@@ -0,0 +1,109 @@
+package es.ava.aruco;
+
+import java.lang.management.ManagementFactory;
+import java.util.Vector;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.highgui.Highgui;
+
+/**
+ * Compares the detection with plain java candidates against the one creating a native
+ * backed Marker for every candidate, on recorded frames. For each way it prints per
+ * frame the time, the java memory allocated, the native calls made and the native Mats
+ * created, leaving out the threshold and contour tracing both do alike. The calls of the
+ * old way are counted as it runs; those of the new way follow from the contours counted
+ * at each step, which are the same: one call per contour, three per contour large enough
+ * to be approximated, two per quad and seven per marker found, with four native Mats.
+ * Needs the OpenCV desktop native library in java.library.path.
+ * Usage: CandidateBenchmark iterations frame1.png [frame2.png ...]
+ */
+public class CandidateBenchmark {
+
+	private static final float MARKER_SIZE = 0.03f;
+
+	public static void main(String[] args){
+		if(args.length < 2){
+			System.err.println("usage: CandidateBenchmark iterations frame1.png [frame2.png ...]");
+			return;
+		}
+		System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+		int iterations = Integer.parseInt(args[0]);
+		com.sun.management.ThreadMXBean threads =
+				(com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+		LegacyCandidateDetector legacy = new LegacyCandidateDetector();
+		MarkerDetector detector = new MarkerDetector();
+		detector.setCodeSampling(true);
+		CameraParameters cp = new CameraParameters();// not valid, no extrinsics are calculated
+		Vector<Marker> legacyMarkers = new Vector<Marker>();
+		Vector<Marker> markers = new Vector<Marker>();
+
+		long legacyNs = 0, newNs = 0, legacyBytes = 0, newBytes = 0;
+		long legacyCalls = 0, legacyMats = 0, newCalls = 0, newMats = 0;
+		long contours = 0, candidates = 0, found = 0;
+		int frames = 0, sameMarkers = 0;
+		for(int f=1;f<args.length;f++){
+			Mat frame = Highgui.imread(args[f], Highgui.CV_LOAD_IMAGE_GRAYSCALE);
+			if(frame.empty()){
+				System.err.println("could not read "+args[f]);
+				return;
+			}
+			// the first run of each is not measured
+			for(int it=0;it<=iterations;it++){
+				long bytes = threads.getThreadAllocatedBytes(thread);
+				long start = System.nanoTime();
+				legacy.detect(frame, legacyMarkers, MARKER_SIZE);
+				long ns = System.nanoTime()-start;
+				bytes = threads.getThreadAllocatedBytes(thread)-bytes;
+				if(it == 0)
+					continue;
+				legacyNs += ns;
+				legacyBytes += bytes;
+				legacyCalls += legacy.jniCalls;
+				legacyMats += legacy.nativeMats;
+				contours += legacy.contours;
+				candidates += legacy.candidates;
+				found += legacy.markers;
+				newCalls += legacy.contours+3*legacy.largeContours+2*legacy.quads+7*legacy.markers;
+				newMats += 4*legacy.markers;
+			}
+			for(int it=0;it<=iterations;it++){
+				long bytes = threads.getThreadAllocatedBytes(thread);
+				long start = System.nanoTime();
+				detector.detect(frame, markers, cp, MARKER_SIZE);
+				long ns = System.nanoTime()-start;
+				bytes = threads.getThreadAllocatedBytes(thread)-bytes;
+				if(it == 0)
+					continue;
+				newNs += ns;
+				newBytes += bytes;
+			}
+			frames += iterations;
+			if(sameIds(legacyMarkers, markers))
+				sameMarkers++;
+			frame.release();
+		}
+		if(frames == 0){
+			System.err.println("no frames measured");
+			return;
+		}
+		System.out.printf("per frame: %.1f contours, %.1f candidates, %.1f markers; same markers in %d of %d frames%n",
+				(double)contours/frames, (double)candidates/frames, (double)found/frames,
+				sameMarkers, args.length-1);
+		System.out.printf("native markers: %.2f ms, %.1f KB allocated, %.1f native calls, %.1f native Mats%n",
+				legacyNs/1e6/frames, legacyBytes/1024.0/frames, (double)legacyCalls/frames,
+				(double)legacyMats/frames);
+		System.out.printf("java candidates: %.2f ms, %.1f KB allocated, %.1f native calls, %.1f native Mats%n",
+				newNs/1e6/frames, newBytes/1024.0/frames, (double)newCalls/frames, (double)newMats/frames);
+	}
+
+	private static boolean sameIds(Vector<Marker> a, Vector<Marker> b){
+		if(a.size() != b.size())
+			return false;
+		for(int i=0;i<a.size();i++)
+			if(a.get(i).getMarkerId() != b.get(i).getMarkerId())
+				return false;
+		return true;
+	}
+}
@@ -0,0 +1,71 @@
+package es.ava.aruco;
+
+import java.util.Vector;
+
+import org.junit.Test;
+import org.opencv.core.Point;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the candidates are reused by the list and identified as the markers were.
+ */
+public class CandidateTest {
+
+	@Test
+	public void listReusesCandidatesAndKeepsOrder(){
+		CandidateList list = new CandidateList();
+		Candidate[] added = new Candidate[40];
+		for(int i=0;i<added.length;i++){
+			added[i] = list.add();
+			added[i].corners[0] = i;
+		}
+		list.remove(3);
+		list.remove(0);
+		assertEquals(38, list.size());
+		assertEquals(1, list.get(0).corners[0], 0);
+		assertEquals(2, list.get(1).corners[0], 0);
+		assertEquals(4, list.get(2).corners[0], 0);
+		assertEquals(39, list.get(37).corners[0], 0);
+
+		list.clear();
+		assertTrue(list.isEmpty());
+		for(int i=0;i<added.length;i++){
+			Candidate candidate = list.add();
+			boolean pooled = false;
+			for(Candidate a : added)
+				pooled |= a == candidate;
+			assertTrue(pooled);
+			assertEquals(-1, candidate.id);
+		}
+	}
+
+	@Test
+	public void identifiesRotatedCodeAndOrdersCorners(){
+		Candidate candidate = new CandidateList().add();
+		float[] corners = {0,0, 10,0, 10,10, 0,10};
+		System.arraycopy(corners, 0, candidate.corners, 0, 8);
+		// the code of the id as seen turned a quarter
+		candidate.code.payload = Code.rotate(Code.canonicalCode(300));
+		assertEquals(300, candidate.identify(false));
+		assertEquals(40, candidate.perimeter(), 1e-9);
+
+		int rotations = candidate.rotations;
+		Vector<Point> points = candidate.toPoints(true);
+		for(int i=0;i<4;i++){
+			int j = (i+rotations)%4;
+			assertEquals(corners[j*2], points.get(i).x, 0);
+			assertEquals(corners[j*2+1], points.get(i).y, 0);
+		}
+		// not oriented, the corners are left in the order of the quad
+		points = candidate.toPoints(false);
+		for(int i=0;i<4;i++){
+			assertEquals(corners[i*2], points.get(i).x, 0);
+			assertEquals(corners[i*2+1], points.get(i).y, 0);
+		}
+
+		candidate.code.border = 1;
+		assertEquals(-1, candidate.identify(false));
+		assertEquals(-1, candidate.id);
+	}
+}
@@ -0,0 +1,68 @@
+package es.ava.aruco;
+
+import java.util.Random;
+
+/**
+ * Times the decoding of marker codes with the lookup table against the decoding on a
+ * 7x7 int matrix it replaced. Half of the codes decoded are valid markers in any
+ * rotation, the others random.
+ * Usage: CodeDecodingBenchmark [iterations]
+ */
+public class CodeDecodingBenchmark {
+
+	private static final int CODES = 4096;
+
+	public static void main(String[] args){
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		Random random = new Random(1);
+		int[] payloads = new int[CODES];
+		int[][][] matrices = new int[CODES][7][7];
+		for(int i=0;i<CODES;i++){
+			int payload;
+			if(i%2 == 0){
+				payload = Code.canonicalCode(random.nextInt(Code.NUM_IDS));
+				for(int r=random.nextInt(4);r>0;r--)
+					payload = Code.rotate(payload);
+			}
+			else
+				payload = random.nextInt(1<<25);
+			payloads[i] = payload;
+			LegacyCodeDecoder.unpack(payload, matrices[i]);
+		}
+
+		LegacyCodeDecoder legacy = new LegacyCodeDecoder();
+		long check = 0;
+		// warm up both
+		for(int it=0;it<iterations;it++){
+			for(int i=0;i<CODES;i++){
+				check += legacy.calculateMarkerId(matrices[i]);
+				check += Code.lookup(payloads[i]);
+				check += Code.lookupCorrected(payloads[i]);
+			}
+		}
+
+		long start = System.nanoTime();
+		for(int it=0;it<iterations;it++)
+			for(int i=0;i<CODES;i++)
+				check += legacy.calculateMarkerId(matrices[i]);
+		long legacyNs = System.nanoTime()-start;
+
+		start = System.nanoTime();
+		for(int it=0;it<iterations;it++)
+			for(int i=0;i<CODES;i++)
+				check += Code.lookup(payloads[i]);
+		long lookupNs = System.nanoTime()-start;
+
+		start = System.nanoTime();
+		for(int it=0;it<iterations;it++)
+			for(int i=0;i<CODES;i++)
+				check += Code.lookupCorrected(payloads[i]);
+		long correctedNs = System.nanoTime()-start;
+
+		double n = (double)iterations*CODES;
+		System.out.printf("matrix decoding: %.1f ns per code%n", legacyNs/n);
+		System.out.printf("table lookup: %.1f ns per code%n", lookupNs/n);
+		System.out.printf("table lookup with correction: %.1f ns per code%n", correctedNs/n);
+		System.out.println("(checksum "+check+")");
+	}
+}
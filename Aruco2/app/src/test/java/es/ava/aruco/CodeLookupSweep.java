@@ -0,0 +1,25 @@
+package es.ava.aruco;
+
+/**
+ * Checks the table driven id decoding against the matrix one it replaced for every
+ * possible inner code, see {@link CodeTest}. Going through the 2^25 codes with the
+ * matrix decoding takes a couple of minutes.
+ * Usage: CodeLookupSweep
+ */
+public class CodeLookupSweep {
+
+	public static void main(String[] args){
+		LegacyCodeDecoder legacy = new LegacyCodeDecoder();
+		int[][] matrix = new int[7][7];
+		int valid = 0;
+		long start = System.nanoTime();
+		for(int payload=0;payload<(1<<25);payload++)
+			if(CodeTest.checkLookup(legacy, matrix, payload))
+				valid++;
+		// 1024 ids in 4 rotations, less the codes that are the same in two rotations
+		if(valid <= 4000 || valid > 4*Code.NUM_IDS)
+			throw new AssertionError(valid+" valid codes");
+		System.out.printf("all %d codes match, %d valid, in %.1f s%n", 1<<25, valid,
+				(System.nanoTime()-start)/1e9);
+	}
+}
@@ -0,0 +1,86 @@
+package es.ava.aruco;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.highgui.Highgui;
+
+/**
+ * Compares reading the code of the marker candidates by sampling the frame against
+ * warping each candidate, on recorded frames. It prints the time taken per candidate
+ * by each way, and how often both read the same code and the same id.
+ * Needs the OpenCV desktop native library in java.library.path.
+ * Usage: CodeSamplingBenchmark iterations frame1.png [frame2.png ...]
+ */
+public class CodeSamplingBenchmark {
+
+	public static void main(String[] args){
+		if(args.length < 2){
+			System.err.println("usage: CodeSamplingBenchmark iterations frame1.png [frame2.png ...]");
+			return;
+		}
+		System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+		int iterations = Integer.parseInt(args[0]);
+		MarkerDetector detector = new MarkerDetector();
+		CodeSampler sampler = new CodeSampler();
+		long warpNs = 0, sampleNs = 0;
+		int candidates = 0, sameCode = 0, sameId = 0, markers = 0;
+		for(int f=1;f<args.length;f++){
+			Mat frame = Highgui.imread(args[f], Highgui.CV_LOAD_IMAGE_GRAYSCALE);
+			if(frame.empty()){
+				System.err.println("could not read "+args[f]);
+				return;
+			}
+			CandidateList cands = new CandidateList();
+			detector.findCandidates(frame, cands);
+			if(cands.isEmpty())
+				continue;
+			long[] warpedPayload = new long[cands.size()];
+			int[] warpedBorder = new int[cands.size()];
+
+			// the first run of each is not timed
+			for(int it=0;it<=iterations;it++){
+				long start = System.nanoTime();
+				for(int i=0;i<cands.size();i++)
+					detector.warpCode(frame, cands.get(i));
+				if(it > 0)
+					warpNs += System.nanoTime()-start;
+			}
+			for(int i=0;i<cands.size();i++){
+				warpedPayload[i] = cands.get(i).code.payload;
+				warpedBorder[i] = cands.get(i).code.border;
+			}
+			for(int it=0;it<=iterations;it++){
+				long start = System.nanoTime();
+				sampler.load(frame, cands);
+				for(int i=0;i<cands.size();i++)
+					sampler.read(cands.get(i).corners, cands.get(i).code);
+				if(it > 0)
+					sampleNs += System.nanoTime()-start;
+			}
+
+			for(int i=0;i<cands.size();i++){
+				Code code = cands.get(i).code;
+				candidates++;
+				if(code.payload == warpedPayload[i] && code.border == warpedBorder[i])
+					sameCode++;
+				int warpedId = warpedBorder[i] == 0 ? Code.lookup(warpedPayload[i]) : Code.NO_MATCH;
+				int sampledId = code.isBorderBlack() ? Code.lookup(code.payload) : Code.NO_MATCH;
+				if(warpedId != Code.NO_MATCH)
+					markers++;
+				if(warpedId == sampledId)
+					sameId++;
+			}
+			frame.release();
+		}
+		if(candidates == 0){
+			System.err.println("no candidates found");
+			return;
+		}
+		double runs = (double)iterations*candidates;
+		System.out.printf("%d candidates, %d markers%n", candidates, markers);
+		System.out.printf("warp: %.1f us per candidate%n", warpNs/1e3/runs);
+		System.out.printf("sampling: %.1f us per candidate%n", sampleNs/1e3/runs);
+		System.out.printf("same code for %.2f%% of the candidates, same id for %.2f%%%n",
+				100.0*sameCode/candidates, 100.0*sameId/candidates);
+	}
+}
@@ -0,0 +1,122 @@
+package es.ava.aruco;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the table driven id decoding against the matrix one it replaced, for every
+ * valid code in each rotation, the codes at the edges and a fixed random sample of the
+ * others. CodeLookupSweep goes through all the 2^25 inner codes, which takes a couple
+ * of minutes.
+ */
+public class CodeTest {
+
+	private static final int SAMPLED_CODES = 100000;
+
+	@Test
+	public void lookupMatchesMatrixDecodingForSampledCodes(){
+		LegacyCodeDecoder legacy = new LegacyCodeDecoder();
+		int[][] matrix = new int[7][7];
+		// every marker in its four rotations
+		for(int id=0;id<Code.NUM_IDS;id++){
+			int payload = Code.canonicalCode(id);
+			for(int r=0;r<4;r++){
+				assertTrue(checkLookup(legacy, matrix, payload));
+				payload = Code.rotate(payload);
+			}
+		}
+		// all white, all black, and a single cell of each
+		int all = (1<<25)-1;
+		checkLookup(legacy, matrix, 0);
+		checkLookup(legacy, matrix, all);
+		for(int bit=0;bit<25;bit++){
+			checkLookup(legacy, matrix, 1<<bit);
+			checkLookup(legacy, matrix, all^(1<<bit));
+		}
+		Random random = new Random(1);
+		for(int i=0;i<SAMPLED_CODES;i++)
+			checkLookup(legacy, matrix, random.nextInt(1<<25));
+	}
+
+	/**
+	 * fails if the lookup of a code does not give the id and rotation the matrix
+	 * decoding does.
+	 * @param matrix a 7x7 matrix the code is unpacked into.
+	 * @return true if the code is a valid marker.
+	 */
+	static boolean checkLookup(LegacyCodeDecoder legacy, int[][] matrix, int payload){
+		LegacyCodeDecoder.unpack(payload, matrix);
+		int id = legacy.calculateMarkerId(matrix);
+		int match = Code.lookup(payload);
+		if(id == -1){
+			if(match != Code.NO_MATCH)
+				fail("code "+Integer.toHexString(payload)+" should not be valid");
+			return false;
+		}
+		if(match>>2 != id || (match & 3) != legacy.rotations)
+			fail("code "+Integer.toHexString(payload)+" is id "+id+" rotated "+legacy.rotations
+					+", not id "+(match>>2)+" rotated "+(match & 3));
+		return true;
+	}
+
+	@Test
+	public void cellsAreStoredWhereTheyAreRead(){
+		Code code = new Code();
+		for(int x=0;x<7;x++)
+			for(int y=0;y<7;y++){
+				code.set(x, y, 1);
+				for(int i=0;i<7;i++)
+					for(int j=0;j<7;j++)
+						assertEquals(i == x && j == y ? 1 : 0, code.get(i, j));
+				assertEquals(x>0 && x<6 && y>0 && y<6, code.isBorderBlack());
+				code.set(x, y, 0);
+			}
+		assertEquals(0, code.payload);
+		assertEquals(0, code.border);
+	}
+
+	@Test
+	public void packedRotationMatchesMatrixRotation(){
+		int[][] matrix = new int[7][7];
+		for(int id=0;id<Code.NUM_IDS;id++){
+			int payload = Code.canonicalCode(id)^(id*7919 & 0x1ffffff);
+			LegacyCodeDecoder.unpack(payload, matrix);
+			int[][] rotated = LegacyCodeDecoder.rotate(matrix);
+			int[][] expected = new int[7][7];
+			LegacyCodeDecoder.unpack(Code.rotate(payload), expected);
+			for(int x=1;x<6;x++)
+				for(int y=1;y<6;y++)
+					assertEquals(expected[x][y], rotated[x][y]);
+		}
+	}
+
+	@Test
+	public void oneWrongCellIsCorrectedWhenUnambiguous(){
+		int corrected = 0;
+		for(int id=0;id<Code.NUM_IDS;id++){
+			int canonical = Code.canonicalCode(id);
+			assertEquals(id<<2, Code.lookup(canonical));
+			for(int bit=0;bit<25;bit++){
+				int wrong = canonical^(1<<bit);
+				int match = Code.lookupCorrected(wrong);
+				if(Code.lookup(wrong) != Code.NO_MATCH){
+					// another valid code, it is read as it is
+					assertEquals(Code.lookup(wrong), match);
+				}
+				else if(match != Code.NO_MATCH){
+					assertEquals(id, match>>2);
+					corrected++;
+				}
+			}
+			// two wrong cells are never corrected to a code two cells away
+			int twoWrong = canonical^0x3;
+			int match = Code.lookupCorrected(twoWrong);
+			if(match != Code.NO_MATCH && Code.lookup(twoWrong) == Code.NO_MATCH)
+				assertTrue(match>>2 != id);
+		}
+		assertTrue(corrected > 0);
+	}
+}
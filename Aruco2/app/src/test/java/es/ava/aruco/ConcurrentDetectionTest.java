@@ -0,0 +1,212 @@
+package es.ava.aruco;
+
+import java.util.Arrays;
+import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Checks a detector shared by several threads, each with its own workspace, finds the
+ * same markers with the same corners in the same frames as a single thread does.
+ * Needs the OpenCV desktop native library in java.library.path, it is skipped otherwise.
+ */
+public class ConcurrentDetectionTest {
+
+	private static final int THREADS = 4;
+	private static final int ROUNDS = 20;
+	private static final int FRAMES = 6;
+	private static final int MARKERS_PER_FRAME = 4;
+	private static final float MARKER_SIZE = 0.03f;
+
+	@Test
+	public void sharedDetectorFindsTheSameMarkersOnEveryThread() throws Exception{
+		assumeTrue(loadNative());
+		MarkerDetector detector = new MarkerDetector(DetectorConfig.DEFAULT.withCornerRefinement(true));
+		checkConcurrent(detector);
+	}
+
+	@Test
+	public void sharedDetectorWithPyramidAndSamplingFindsTheSameMarkers() throws Exception{
+		assumeTrue(loadNative());
+		MarkerDetector detector = new MarkerDetector(DetectorConfig.DEFAULT.withPyramidLevels(1)
+				.withCodeSampling(true).withThresholdMethod(MarkerDetector.thresSuppMethod.MEAN_THRES)
+				.withThresholdParams(15, 7));
+		checkConcurrent(detector);
+	}
+
+	@Test
+	public void sharedDetectorWithWorkerPoolFindsTheSameMarkers() throws Exception{
+		assumeTrue(loadNative());
+		ExecutorService pool = Executors.newFixedThreadPool(2);
+		try{
+			// every frame is split among the pool, which all the threads share
+			MarkerDetector detector = new MarkerDetector(DetectorConfig.DEFAULT.withWorkerPool(pool, 2)
+					.withParallelThresholds(1, 1));
+			checkConcurrent(detector);
+		}finally{
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void configurationCopiesLeaveTheOriginalUnchanged(){
+		DetectorConfig config = DetectorConfig.DEFAULT.withErrorCorrection(true);
+		DetectorConfig reduced = config.withPyramidLevels(2);
+		assertTrue(reduced.getErrorCorrection());
+		assertEquals(2, reduced.getPyramidLevels());
+		assertEquals(0, config.getPyramidLevels());
+		assertEquals(0, DetectorConfig.DEFAULT.getPyramidLevels());
+		assertFalse(DetectorConfig.DEFAULT.getErrorCorrection());
+		assertSame(Dictionary.ARUCO, reduced.getDictionary());
+	}
+
+	private static boolean loadNative(){
+		try{
+			System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+			return true;
+		}catch(UnsatisfiedLinkError e){
+			return false;
+		}
+	}
+
+	/**
+	 * a chunk failing on this thread must not return before the chunks on the pool are
+	 * done with their readers. Runs without the OpenCV native library.
+	 */
+	@Test
+	public void failedSplitWaitsForEveryChunk() throws Exception{
+		ExecutorService pool = Executors.newFixedThreadPool(THREADS-1);
+		try{
+			DetectorConfig config = DetectorConfig.DEFAULT.withWorkerPool(pool, THREADS-1);
+			final AtomicInteger running = new AtomicInteger();
+			final AtomicInteger done = new AtomicInteger();
+			try{
+				MarkerDetector.runSplit(config, new DetectorWorkspace.CodeReader[THREADS], THREADS, 1,
+						new MarkerDetector.RangeTask(){
+					public void run(int from, int to, DetectorWorkspace.CodeReader reader){
+						running.incrementAndGet();
+						if(from == 0)
+							throw new IllegalStateException("first chunk");
+						try{
+							Thread.sleep(100);
+						}catch(InterruptedException e){
+							Thread.currentThread().interrupt();
+						}
+						done.incrementAndGet();
+					}
+				});
+				fail("the failure of the first chunk was not passed on");
+			}catch(IllegalStateException e){
+				assertEquals("first chunk", e.getMessage());
+			}
+			assertEquals(THREADS, running.get());
+			assertEquals(THREADS-1, done.get());
+		}finally{
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * detects the frames on one thread with the own workspace of the detector, then on
+	 * several threads at once, each over all the frames from a different one, and
+	 * compares the ids and corners.
+	 */
+	private static void checkConcurrent(final MarkerDetector detector) throws Exception{
+		final Mat[] frames = new Mat[FRAMES];
+		final float[][] expected = new float[FRAMES][];
+		final CameraParameters cp = new CameraParameters();// not valid, no extrinsics are calculated
+		Vector<Marker> detected = new Vector<Marker>();
+		for(int f=0;f<FRAMES;f++){
+			frames[f] = createFrame(f);
+			detector.detect(frames[f], detected, cp, MARKER_SIZE);
+			expected[f] = results(detected);
+			assertEquals(MARKERS_PER_FRAME*9, expected[f].length);
+		}
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		Thread[] threads = new Thread[THREADS];
+		for(int t=0;t<THREADS;t++){
+			final int first = t;
+			threads[t] = new Thread(){
+				public void run(){
+					DetectorWorkspace workspace = new DetectorWorkspace();
+					Vector<Marker> markers = new Vector<Marker>();
+					try{
+						for(int r=0;r<ROUNDS;r++)
+							for(int i=0;i<FRAMES;i++){
+								int f = (first+i)%FRAMES;
+								detector.detect(frames[f], markers, cp, MARKER_SIZE, workspace);
+								if(!Arrays.equals(expected[f], results(markers)))
+									throw new AssertionError("frame "+f+" read differently on thread "+first);
+							}
+					}catch(Throwable e){
+						failure.compareAndSet(null, e);
+					}finally{
+						workspace.release();
+					}
+				}
+			};
+		}
+		for(Thread thread : threads)
+			thread.start();
+		for(Thread thread : threads)
+			thread.join();
+		for(Mat frame : frames)
+			frame.release();
+		if(failure.get() != null)
+			throw new AssertionError(failure.get());
+	}
+
+	/** grey frames, but one in color, with markers of different ids and sizes */
+	private static Mat createFrame(int index){
+		Mat frame = new Mat(480, 640, CvType.CV_8UC1, new Scalar(200));
+		for(int m=0;m<MARKERS_PER_FRAME;m++){
+			int id = (index*MARKERS_PER_FRAME+m)*37%1024;
+			int side = 70+10*((index+m)%4);
+			Mat marker = Marker.createMarkerImage(id, side);
+			int x = 40+(m%2)*300+index*5, y = 40+(m/2)*220+index*3;
+			Mat roi = frame.submat(y, y+side, x, x+side);
+			marker.copyTo(roi);
+			roi.release();
+			marker.release();
+		}
+		// blurred so the corners are refined to fractions of a pixel
+		Imgproc.GaussianBlur(frame, frame, new Size(3, 3), 0);
+		if(index == FRAMES-1){
+			Mat color = new Mat();
+			Imgproc.cvtColor(frame, color, Imgproc.COLOR_GRAY2RGBA);
+			frame.release();
+			return color;
+		}
+		return frame;
+	}
+
+	/** the id and corners of each marker found, one after another */
+	private static float[] results(Vector<Marker> markers){
+		float[] r = new float[markers.size()*9];
+		for(int i=0;i<markers.size();i++){
+			Marker marker = markers.get(i);
+			r[i*9] = marker.getMarkerId();
+			Point[] corners = marker.toArray();
+			for(int j=0;j<4;j++){
+				r[i*9+1+j*2] = (float)corners[j].x;
+				r[i*9+2+j*2] = (float)corners[j].y;
+			}
+			marker.release();
+		}
+		return r;
+	}
+}
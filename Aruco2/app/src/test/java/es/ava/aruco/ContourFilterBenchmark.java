@@ -0,0 +1,70 @@
+package es.ava.aruco;
+
+import java.util.Locale;
+import java.util.Vector;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.highgui.Highgui;
+
+/**
+ * Times the candidate search of the MarkerDetector on recorded frames with and without
+ * the bounding box check of the contours. For each it prints the average time to find
+ * the candidates, the average number of contours reaching each stage of the search and
+ * the candidates found, which should be the same.
+ * Needs the OpenCV desktop native library in java.library.path.
+ * Usage: ContourFilterBenchmark iterations frame1.png [frame2.png ...]
+ */
+public class ContourFilterBenchmark {
+
+	private static final String[] STAGES = {"found", "long enough", "box checked", "quads"};
+
+	public static void main(String[] args){
+		if(args.length < 2){
+			System.err.println("usage: ContourFilterBenchmark iterations frame1.png [frame2.png ...]");
+			return;
+		}
+		System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+		int iterations = Integer.parseInt(args[0]);
+		Vector<Mat> frames = new Vector<Mat>();
+		for(int i=1;i<args.length;i++){
+			Mat frame = Highgui.imread(args[i], Highgui.CV_LOAD_IMAGE_GRAYSCALE);
+			if(frame.empty()){
+				System.err.println("could not read "+args[i]);
+				return;
+			}
+			frames.add(frame);
+		}
+
+		double[] candidateMs = new double[2];
+		for(int filter=0;filter<=1;filter++){
+			MarkerDetector detector = new MarkerDetector();
+			detector.setContourShapeFilter(filter == 1);
+			CandidateList candidates = new CandidateList();
+			long[] counts = new long[STAGES.length];
+			long found = 0;
+			long totalNs = 0;
+			for(int f=0;f<frames.size();f++){
+				Mat frame = frames.get(f);
+				// the first run is not timed
+				for(int it=0;it<=iterations;it++){
+					long start = System.nanoTime();
+					detector.findCandidates(frame, candidates);
+					if(it > 0)
+						totalNs += System.nanoTime()-start;
+				}
+				for(int s=0;s<STAGES.length;s++)
+					counts[s] += detector.getContourCount(s);
+				found += candidates.size();
+			}
+			candidateMs[filter] = totalNs/1e6/(frames.size()*(long)iterations);
+			StringBuilder stages = new StringBuilder();
+			for(int s=0;s<STAGES.length;s++)
+				stages.append(String.format(Locale.US, ", %.1f %s", (double)counts[s]/frames.size(), STAGES[s]));
+			System.out.printf(Locale.US, "box check %s: %.3f ms/frame%s, %.1f candidates%n",
+					filter == 1 ? "on" : "off", candidateMs[filter], stages,
+					(double)found/frames.size());
+		}
+		System.out.printf(Locale.US, "saved %.3f ms/frame%n", candidateMs[0]-candidateMs[1]);
+	}
+}
@@ -0,0 +1,51 @@
+package es.ava.aruco;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the bounding box test keeps the contours of markers seen from any angle and
+ * discards lines and thin shapes.
+ */
+public class ContourShapeTest {
+
+	@Test
+	public void keepsMarkerOutlines(){
+		// upright, turned 45 degrees and seen at a steep angle
+		assertTrue(MarkerDetector.hasQuadShape(outline(new int[]{0,0, 100,0, 100,100, 0,100}), 400));
+		assertTrue(MarkerDetector.hasQuadShape(outline(new int[]{50,0, 100,50, 50,100, 0,50}), 400));
+		assertTrue(MarkerDetector.hasQuadShape(outline(new int[]{0,0, 100,10, 100,30, 0,40}), 400));
+	}
+
+	@Test
+	public void discardsLinesAndThinShapes(){
+		// a straight line traced along both sides
+		assertFalse(MarkerDetector.hasQuadShape(outline(new int[]{0,5, 100,5, 100,5, 0,5}), 400));
+		// a bar ten times longer than wide
+		assertFalse(MarkerDetector.hasQuadShape(outline(new int[]{0,0, 100,0, 100,10, 0,10}), 400));
+		// a thin sliver along the diagonal of its bounding box
+		assertFalse(MarkerDetector.hasQuadShape(outline(new int[]{0,0, 100,95, 100,100, 95,100}), 400));
+	}
+
+	/** points along the sides of a polygon, as findContours gives them */
+	private static int[] outline(int[] vertices, int nPoints){
+		int nVertices = vertices.length/2;
+		int[] points = new int[nPoints*2];
+		int perSide = nPoints/nVertices;
+		for(int v=0;v<nVertices;v++){
+			int x0 = vertices[v*2], y0 = vertices[v*2+1];
+			int x1 = vertices[(v+1)%nVertices*2], y1 = vertices[(v+1)%nVertices*2+1];
+			for(int k=0;k<perSide;k++){
+				int i = v*perSide+k;
+				points[i*2] = x0+(x1-x0)*k/perSide;
+				points[i*2+1] = y0+(y1-y0)*k/perSide;
+			}
+		}
+		return points;
+	}
+
+	private static int[] outline(int[] vertices){
+		return outline(vertices, 400);
+	}
+}
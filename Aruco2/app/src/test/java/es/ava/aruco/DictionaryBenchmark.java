@@ -0,0 +1,121 @@
+package es.ava.aruco;
+
+import java.util.Locale;
+import java.util.Random;
+import java.util.Vector;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Compares the dictionaries: for each it prints the time to look up a code, exactly and
+ * correcting wrong cells, over codes half of which are markers in any rotation and half
+ * random, and the smallest side, in pixels, at which its markers are still found.
+ * The markers are drawn in a 160x160 frame, small enough for the contour size limit of
+ * the detector, a fifth of the frame width, to let through markers down to 8 pixels.
+ * Needs the OpenCV desktop native library in java.library.path.
+ * Usage: DictionaryBenchmark iterations
+ */
+public class DictionaryBenchmark {
+
+	private static final int CODES = 1<<16;
+	private static final int FRAME_SIZE = 160;
+	private static final int MAX_SIDE = 48;
+	private static final int MIN_SIDE = 6;
+	private static final int IDS_DRAWN = 10;
+	private static final float MARKER_SIZE = 0.03f;
+
+	public static void main(String[] args){
+		if(args.length != 1){
+			System.err.println("usage: DictionaryBenchmark iterations");
+			return;
+		}
+		System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+		int iterations = Integer.parseInt(args[0]);
+		Dictionary[] dictionaries = {Dictionary.ARUCO, Dictionary.generate(4, 50), Dictionary.generate(4, 250),
+				Dictionary.generate(5, 100), Dictionary.generate(5, 250), Dictionary.generate(6, 250),
+				Dictionary.generate(6, 1000)};
+		String[] names = {"aruco 5x5 1024", "4x4 50", "4x4 250", "5x5 100", "5x5 250", "6x6 250", "6x6 1000"};
+		for(int d=0;d<dictionaries.length;d++){
+			Dictionary dictionary = dictionaries[d];
+			double[] ns = lookupCost(dictionary, iterations);
+			System.out.printf(Locale.US, "%s: min distance %d, corrects %d, lookup %.1f ns, corrected %.1f ns,"
+							+ " smallest side %s%n",
+					names[d], dictionary.getMinDistance(), dictionary.getCorrectionBits(), ns[0], ns[1],
+					smallestSide(dictionary));
+		}
+	}
+
+	/** nanoseconds per exact and per corrected lookup */
+	private static double[] lookupCost(Dictionary dictionary, int iterations){
+		Random random = new Random(1);
+		int bits = dictionary.getMarkerBits();
+		long mask = (1L<<(bits*bits))-1;
+		long[] codes = new long[CODES];
+		for(int i=0;i<CODES;i++){
+			if(i%2 == 0){
+				codes[i] = dictionary.getCode(random.nextInt(dictionary.size()));
+				for(int r=random.nextInt(4);r>0;r--)
+					codes[i] = dictionary.rotate(codes[i]);
+			}
+			else
+				codes[i] = random.nextLong() & mask;
+		}
+		long check = 0;
+		long exactNs = 0, correctedNs = 0;
+		// the first run is not timed
+		for(int it=0;it<=iterations;it++){
+			long start = System.nanoTime();
+			for(int i=0;i<CODES;i++)
+				check += dictionary.lookup(codes[i]);
+			long middle = System.nanoTime();
+			for(int i=0;i<CODES;i++)
+				check += dictionary.lookupCorrected(codes[i]);
+			if(it > 0){
+				exactNs += middle-start;
+				correctedNs += System.nanoTime()-middle;
+			}
+		}
+		if(check == 42)
+			System.out.println();
+		double lookups = (double)CODES*iterations;
+		return new double[]{exactNs/lookups, correctedNs/lookups};
+	}
+
+	/** the smallest side the first markers of the dictionary are all found at */
+	private static String smallestSide(Dictionary dictionary){
+		MarkerDetector detector = new MarkerDetector();
+		detector.setDictionary(dictionary);
+		CameraParameters cp = new CameraParameters();// not valid, no extrinsics are calculated
+		Vector<Marker> detected = new Vector<Marker>();
+		Mat frame = new Mat(FRAME_SIZE, FRAME_SIZE, CvType.CV_8UC1);
+		Mat scaled = new Mat();
+		int smallest = -1;
+		for(int side=MAX_SIDE;side>=MIN_SIDE;side--){
+			boolean all = true;
+			for(int id=0;id<Math.min(IDS_DRAWN, dictionary.size()) && all;id++){
+				// drawn big and reduced, so the cells blend at the edges as a camera sees them
+				Mat marker = Marker.createMarkerImage(dictionary, id, 10*(dictionary.getMarkerBits()+2));
+				Imgproc.resize(marker, scaled, new Size(side, side), 0, 0, Imgproc.INTER_AREA);
+				frame.setTo(new Scalar(255));
+				int offset = (FRAME_SIZE-side)/2;
+				Mat roi = frame.submat(offset, offset+side, offset, offset+side);
+				scaled.copyTo(roi);
+				roi.release();
+				marker.release();
+				detector.detect(frame, detected, cp, MARKER_SIZE);
+				all = detected.size() == 1 && detected.get(0).getMarkerId() == id;
+			}
+			if(!all)
+				break;
+			smallest = side;
+		}
+		frame.release();
+		scaled.release();
+		return smallest < 0 ? "none" : smallest+" px";
+	}
+}
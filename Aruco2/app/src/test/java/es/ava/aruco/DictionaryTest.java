@@ -0,0 +1,117 @@
+package es.ava.aruco;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the generated dictionaries are stable and their codes as far apart as they
+ * say, and that codes are looked up and corrected in any rotation.
+ */
+public class DictionaryTest {
+
+	@Test
+	public void generatedDictionariesAreStable(){
+		for(int bits=Dictionary.MIN_MARKER_BITS;bits<=Dictionary.MAX_MARKER_BITS;bits++){
+			Dictionary small = Dictionary.generate(bits, 50);
+			Dictionary big = Dictionary.generate(bits, 100);
+			assertSame(small, Dictionary.generate(bits, 50));
+			assertEquals(bits, big.getMarkerBits());
+			assertEquals(100, big.size());
+			assertTrue(big.getMinDistance() <= small.getMinDistance());
+			// the markers of a smaller dictionary are still valid in a bigger one
+			for(int id=0;id<small.size();id++)
+				assertEquals(small.getCode(id), big.getCode(id));
+		}
+	}
+
+	@Test
+	public void codesAreAsFarApartAsTheDictionarySays(){
+		for(int bits=Dictionary.MIN_MARKER_BITS;bits<=Dictionary.MAX_MARKER_BITS;bits++){
+			Dictionary dictionary = Dictionary.generate(bits, 100);
+			int minDistance = dictionary.getMinDistance();
+			assertTrue(minDistance >= 1);
+			for(int i=0;i<dictionary.size();i++){
+				long turned = dictionary.getCode(i);
+				for(int rotation=0;rotation<4;rotation++){
+					if(rotation > 0)
+						assertTrue(Long.bitCount(turned ^ dictionary.getCode(i)) >= minDistance);
+					for(int j=0;j<i;j++)
+						assertTrue(Long.bitCount(turned ^ dictionary.getCode(j)) >= minDistance);
+					turned = dictionary.rotate(turned);
+				}
+				assertEquals(dictionary.getCode(i), turned);
+			}
+		}
+	}
+
+	@Test
+	public void lookupFindsEveryRotation(){
+		Dictionary[] dictionaries = {Dictionary.ARUCO, Dictionary.generate(4, 100),
+				Dictionary.generate(6, 250)};
+		for(Dictionary dictionary : dictionaries){
+			for(int id=0;id<dictionary.size();id++){
+				long code = dictionary.getCode(id);
+				assertEquals(id<<2, dictionary.lookup(code));
+				for(int rotation=1;rotation<4;rotation++){
+					code = dictionary.rotate(code);
+					int match = dictionary.lookup(code);
+					// some original codes read the same turned, they read as turned less
+					if(dictionary != Dictionary.ARUCO)
+						assertEquals((id<<2) | (4-rotation), match);
+					else
+						assertEquals(id, match>>2);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void wrongCellsAreCorrectedUpToTheRadius(){
+		Random random = new Random(7);
+		for(int bits=Dictionary.MIN_MARKER_BITS;bits<=Dictionary.MAX_MARKER_BITS;bits++){
+			Dictionary dictionary = Dictionary.generate(bits, 50);
+			int radius = dictionary.getCorrectionBits();
+			assertEquals((dictionary.getMinDistance()-1)/2, radius);
+			for(int id=0;id<dictionary.size();id++){
+				long code = dictionary.getCode(id);
+				int rotations = random.nextInt(4);
+				for(int r=0;r<rotations;r++)
+					code = dictionary.rotate(code);
+				// flip as many different cells as the dictionary corrects
+				long wrong = code;
+				while(Long.bitCount(wrong ^ code) < radius)
+					wrong ^= 1L<<random.nextInt(bits*bits);
+				int match = dictionary.lookupCorrected(wrong);
+				assertEquals(id, match>>2);
+				assertEquals((4-rotations)%4, match & 3);
+				if(radius > 0)
+					assertEquals(Dictionary.NO_MATCH, dictionary.withCorrection(0).lookupCorrected(wrong));
+			}
+		}
+	}
+
+	@Test
+	public void cellsOfBiggerCodesAreStoredWhereTheyAreRead(){
+		Dictionary dictionary = Dictionary.generate(6, 50);
+		Code code = new Code(6);
+		long expected = dictionary.getCode(17);
+		for(int x=0;x<8;x++)
+			for(int y=0;y<8;y++){
+				boolean inner = x>0 && x<7 && y>0 && y<7;
+				int bit = inner ? (int)(expected>>(35-((x-1)*6+y-1))) & 1 : 0;
+				code.set(x, y, bit);
+				assertEquals(bit, code.get(x, y));
+			}
+		assertTrue(code.isBorderBlack());
+		assertEquals(expected, code.payload);
+		Candidate candidate = new CandidateList().add();
+		candidate.code.setMarkerBits(6);
+		candidate.code.payload = code.payload;
+		assertEquals(17, candidate.identify(dictionary, false));
+		// read with the cells of another dictionary the code is not valid
+		assertEquals(-1, candidate.identify(Dictionary.ARUCO, false));
+	}
+}
@@ -0,0 +1,196 @@
+package es.ava.aruco;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Vector;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Point;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * The detection as it was done when every candidate was a native backed Marker, at
+ * full resolution and reading the codes by sampling, kept to count its native calls
+ * against the plain java candidates. Next to each call into OpenCV the native calls
+ * its java wrapper makes are added up, and the native Mats created, each of which
+ * costs one more call when it is finalized. The calls both ways make alike, the
+ * threshold and contour tracing, are not counted.
+ */
+public class LegacyCandidateDetector {
+
+	private static final double MIN_DISTANCE = 10;
+
+	// native calls and native Mats of the last frame
+	public int jniCalls;
+	public int nativeMats;
+	// contours of the last frame at each step of the filtering
+	public int contours;
+	public int largeContours;
+	public int quads;
+	public int candidates;
+	public int markers;
+
+	private final Mat thres = new Mat();
+	private final Mat thres2 = new Mat();
+	private final Mat hierarchy = new Mat();
+	private final Vector<MatOfPoint> contourList = new Vector<MatOfPoint>();
+	private final CodeSampler sampler = new CodeSampler();
+	private final CandidateList sampled = new CandidateList();
+
+	public void detect(Mat grey, Vector<Marker> detectedMarkers, float markerSizeMeters){
+		jniCalls = nativeMats = 0;
+		contours = largeContours = quads = candidates = markers = 0;
+		Imgproc.adaptiveThreshold(grey, thres, 255.0, Imgproc.ADAPTIVE_THRESH_GAUSSIAN_C,
+				Imgproc.THRESH_BINARY_INV, 7, 7);
+		thres.copyTo(thres2);
+		Imgproc.findContours(thres2, contourList, hierarchy, Imgproc.RETR_TREE, Imgproc.CHAIN_APPROX_NONE);
+		int minContourSize = grey.cols()/5;
+
+		Vector<Marker> candidateMarkers = new Vector<Marker>();
+		MatOfPoint2f approxCurve = new MatOfPoint2f();
+		jniCalls++;
+		nativeMats++;
+		for(int i=0;i<contourList.size();i++){
+			contours++;
+			MatOfPoint2f contour = new MatOfPoint2f();
+			contourList.get(i).convertTo(contour, CvType.CV_32FC2);
+			int contourSize = (int)contour.total();
+			jniCalls += 3;
+			nativeMats++;
+			if(contourSize > minContourSize){
+				largeContours++;
+				Imgproc.approxPolyDP(contour, approxCurve, contourSize*0.05, true);
+				jniCalls += 2;// and total
+				if(approxCurve.total()== 4){
+					quads++;
+					MatOfPoint mat = new MatOfPoint();
+					approxCurve.convertTo(mat, CvType.CV_32SC2);
+					jniCalls += 3;// and isContourConvex
+					nativeMats++;
+					if(Imgproc.isContourConvex(mat)){
+						double minDistFound = Double.MAX_VALUE;
+						float[] points = new float[8];
+						approxCurve.get(0,0,points);
+						jniCalls += 2;// type and get
+						for(int j=0;j<=4;j+=2){
+							double d = Math.sqrt( (points[j]-points[(j+2)%4])*(points[j]-points[(j+2)%4]) +
+												(points[j+1]-points[(j+3)%4])*(points[j+1]-points[(j+3)%4]));
+							if(d<minDistFound)
+								minDistFound = d;
+						}
+						if(minDistFound > MIN_DISTANCE){
+							Vector<Point> p = new Vector<Point>();
+							p.add(new Point(points[0],points[1]));
+							p.add(new Point(points[2],points[3]));
+							p.add(new Point(points[4],points[5]));
+							p.add(new Point(points[6],points[7]));
+							candidateMarkers.add(new Marker(markerSizeMeters, p));
+							jniCalls += 7;// 4 Mats, create, type and put
+							nativeMats += 4;
+						}
+					}
+				}
+			}
+		}
+		int nCandidates = candidateMarkers.size();
+		candidates = nCandidates;
+		for(int i=0;i<nCandidates;i++){
+			Marker marker = candidateMarkers.get(i);
+			List<Point> p = marker.toList();
+			jniCalls += 3;// total, type and get
+			double dx1 = p.get(1).x - p.get(0).x;
+			double dy1 = p.get(1).y - p.get(0).y;
+			double dx2 = p.get(2).x - p.get(0).x;
+			double dy2 = p.get(2).y - p.get(0).y;
+			double o = dx1*dy2 - dy1*dx2;
+			if(o < 0.0){
+				Collections.swap(p, 1, 3);
+				marker.setPoints(p);
+				jniCalls += 3;// create, type and put
+			}
+		}
+
+		Vector<Integer> tooNearCandidates = new Vector<Integer>();
+		for(int i=0;i<nCandidates;i++){
+			List<Point> toPoints = candidateMarkers.get(i).toList();
+			jniCalls += 3;
+			for(int j=i+1;j<nCandidates;j++){
+				float dist=0;
+				List<Point> fromPoints = candidateMarkers.get(j).toList();
+				jniCalls += 3;
+				for(int c=0;c<4;c++)
+					dist+=Math.sqrt((fromPoints.get(c).x-toPoints.get(c).x)*(fromPoints.get(c).x-toPoints.get(c).x)+
+							(fromPoints.get(c).y-toPoints.get(c).y)*(fromPoints.get(c).y-toPoints.get(c).y));
+				dist = dist/4;
+				if(dist < MIN_DISTANCE){
+					tooNearCandidates.add(i);
+					tooNearCandidates.add(j);
+				}
+			}
+		}
+		Vector<Integer> toRemove = new Vector<Integer>();
+		for(int i=0;i<nCandidates;i++)
+			toRemove.add(0);
+		for(int i=0;i<tooNearCandidates.size();i+=2){
+			Marker first = candidateMarkers.get(tooNearCandidates.get(i));
+			Marker second = candidateMarkers.get(tooNearCandidates.get(i+1));
+			jniCalls += 10;// total in each step of both perimeters
+			if(first.perimeter()<second.perimeter())
+				toRemove.set(tooNearCandidates.get(i), 1);
+			else
+				toRemove.set(tooNearCandidates.get(i+1), 1);
+		}
+		for(int i=nCandidates-1;i>=0;i--)
+			if(toRemove.get(i) == 1)
+				candidateMarkers.remove(i);
+
+		// identify, the sampler now reads plain java corners
+		Vector<Marker> newMarkers = new Vector<Marker>();
+		sampled.clear();
+		for(int i=0;i<candidateMarkers.size();i++){
+			List<Point> p = candidateMarkers.get(i).getPoints();
+			float[] corners = sampled.add().corners;
+			for(int j=0;j<4;j++){
+				corners[j*2] = (float)p.get(j).x;
+				corners[j*2+1] = (float)p.get(j).y;
+			}
+		}
+		sampler.load(grey, sampled);
+		for(int i=0;i<candidateMarkers.size();i++){
+			Marker marker = candidateMarkers.get(i);
+			sampler.read(sampled.get(i).corners, marker.getCode());
+			if(marker.checkBorder()){
+				int id = marker.calculateMarkerId();
+				if(id != -1){
+					newMarkers.add(marker);
+					List<Point> p = marker.toList();
+					Collections.rotate(p, 4-marker.getRotations());
+					marker.setPoints(p);
+					jniCalls += 6;// toList and setPoints
+				}
+			}
+		}
+		Collections.sort(newMarkers);
+		Vector<Integer> duplicated = new Vector<Integer>();
+		for(int i=0;i<newMarkers.size();i++)
+			duplicated.add(0);
+		for(int i=0;i<newMarkers.size()-1;i++){
+			if(newMarkers.get(i).id == newMarkers.get(i+1).id){
+				jniCalls += 10;
+				if(newMarkers.get(i).perimeter()<newMarkers.get(i+1).perimeter())
+					duplicated.set(i, 1);
+				else
+					duplicated.set(i+1, 1);
+			}
+		}
+		for(int i=duplicated.size()-1;i>=0;i--)
+			if(duplicated.get(i) == 1)
+				newMarkers.remove(i);
+		markers = newMarkers.size();
+		detectedMarkers.setSize(newMarkers.size());
+		Collections.copy(detectedMarkers, newMarkers);
+	}
+}
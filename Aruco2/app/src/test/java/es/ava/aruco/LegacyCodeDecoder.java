@@ -0,0 +1,102 @@
+package es.ava.aruco;
+
+/**
+ * The marker id decoding as it was done on a 7x7 int matrix before the code was
+ * packed, kept to check and time the table driven decoding against it.
+ */
+public class LegacyCodeDecoder {
+
+	/** the rotations of the last code decoded */
+	public int rotations;
+
+	static int[][] rotate(int[][] in){
+		int[][] out = new int[7][7];
+		for(int i=0;i<7;i++)
+			for(int j=0;j<7;j++){
+				out[i][j] = in[6-j][i];
+			}
+		return out;
+	}
+
+	public boolean checkBorder(int[][] code){
+		for(int i=0;i<7;i++){
+			// normally we'll only check first and last square
+			int inc = 6;
+			if(i==0 || i==6)// in first and last row the whole row must be checked
+				inc = 1;
+			for(int j=0;j<7;j+=inc)
+				if(code[i][j]==1)
+					return false;
+		}
+		return true;
+	}
+
+	public int calculateMarkerId(int[][] code){
+		// check all the rotations of code
+		int[][][] rotations = new int[4][][];
+		rotations[0] = code;
+		int[] dists = new int[4];
+		dists[0] = hammDist(rotations[0]);
+		int[] minDist = {dists[0],0};
+		for(int i=1;i<4;i++){
+			// rotate
+			rotations[i] = rotate(rotations[i-1]);
+			dists[i] = hammDist(rotations[i]);
+			if(dists[i] < minDist[0]){
+				minDist[0] = dists[i];
+				minDist[1] = i;
+			}
+		}
+		this.rotations = minDist[1];
+		if(minDist[0] != 0){
+			return -1; // matching id not found
+		}
+		return mat2id(rotations[minDist[1]]);
+	}
+
+	private int hammDist(int[][] code){
+		int ids[][] = {
+				{1,0,0,0,0},
+				{1,0,1,1,1},
+				{0,1,0,0,1},
+				{0,1,1,1,0}
+		};
+		int dist = 0;
+		for(int y=0;y<5;y++){
+			int minSum = Integer.MAX_VALUE;
+			// hamming distance to each possible word
+			for(int p=0;p<4;p++){
+				int sum=0;
+				for(int x=0;x<5;x++)
+					sum+= code[y+1][x+1] == ids[p][x]? 0:1;
+				minSum = sum<minSum? sum:minSum;
+			}
+			dist+=minSum;
+		}
+		return dist;
+	}
+
+	private int mat2id(int[][] code){
+		int val=0;
+		for(int y=1;y<6;y++){
+			val<<=1;
+			if(code[y][2] == 1)
+				val |= 1;
+			val<<=1;
+			if(code[y][4] == 1)
+				val |= 1;
+		}
+		return val;
+	}
+
+	/**
+	 * unpacks the inner cells of a code into a 7x7 matrix with a black border.
+	 * @param payload the inner cells, the first cell being bit 24.
+	 * @param code the matrix to fill.
+	 */
+	public static void unpack(int payload, int[][] code){
+		for(int x=0;x<5;x++)
+			for(int y=0;y<5;y++)
+				code[x+1][y+1] = (payload>>(24-(x*5+y))) & 1;
+	}
+}
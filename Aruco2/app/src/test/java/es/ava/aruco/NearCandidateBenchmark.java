@@ -0,0 +1,75 @@
+package es.ava.aruco;
+
+import java.util.Random;
+
+/**
+ * Times the removal of the candidates too near to a bigger one on synthetic sets of
+ * 10 to 2000 quads in a 1920x1080 frame: the loop over every pair as it was in the
+ * detector, the same with the perimeters computed once, and the grid. It checks the
+ * three keep the same candidates.
+ * Usage: NearCandidateBenchmark [iterations]
+ */
+public class NearCandidateBenchmark {
+
+	private static final int[] COUNTS = {10, 25, 50, 100, 250, 500, 1000, 2000};
+	private static final double MIN_DISTANCE = 10;
+
+	public static void main(String[] args){
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		Random random = new Random(1);
+		NearCandidateFilter filter = new NearCandidateFilter(MIN_DISTANCE);
+		for(int count : COUNTS){
+			CandidateList candidates = NearCandidateFilterTest.randomCandidates(random, count);
+			boolean[] legacy = new boolean[count];
+			long legacyNs = 0, pairwiseNs = 0, gridNs = 0;
+			int removed = 0;
+			boolean same = true;
+			// the first run of each is not timed
+			for(int it=0;it<=iterations;it++){
+				long start = System.nanoTime();
+				markLegacy(candidates, legacy);
+				long legacyEnd = System.nanoTime();
+				boolean[] pairwise = filter.markPairwise(candidates).clone();
+				long pairwiseEnd = System.nanoTime();
+				boolean[] grid = filter.markGrid(candidates);
+				long gridEnd = System.nanoTime();
+				if(it == 0){
+					for(int i=0;i<count;i++){
+						same &= legacy[i] == pairwise[i] && legacy[i] == grid[i];
+						removed += legacy[i] ? 1 : 0;
+					}
+					continue;
+				}
+				legacyNs += legacyEnd-start;
+				pairwiseNs += pairwiseEnd-legacyEnd;
+				gridNs += gridEnd-pairwiseEnd;
+			}
+			System.out.printf("%4d quads, %4d removed: every pair %8.1f us, perimeters once %8.1f us,"
+					+ " grid %6.1f us%s%n", count, removed, legacyNs/1e3/iterations,
+					pairwiseNs/1e3/iterations, gridNs/1e3/iterations, same ? "" : " DIFFERENT");
+		}
+	}
+
+	/** the pairwise loop as the detector did it, with the perimeters computed for each near pair */
+	private static void markLegacy(CandidateList candidates, boolean[] toRemove){
+		int nCandidates = candidates.size();
+		java.util.Arrays.fill(toRemove, 0, nCandidates, false);
+		for(int i=0;i<nCandidates;i++){
+			float[] to = candidates.get(i).corners;
+			for(int j=i+1;j<nCandidates;j++){
+				float[] from = candidates.get(j).corners;
+				float dist=0;
+				for(int c=0;c<8;c+=2)
+					dist+=Math.sqrt(((double)from[c]-to[c])*((double)from[c]-to[c])+
+							((double)from[c+1]-to[c+1])*((double)from[c+1]-to[c+1]));
+				dist = dist/4;
+				if(dist < MIN_DISTANCE){
+					if(candidates.get(i).perimeter()<candidates.get(j).perimeter())
+						toRemove[i] = true;
+					else
+						toRemove[j] = true;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,72 @@
+package es.ava.aruco;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the grid keeps the same candidates as comparing every pair, on synthetic
+ * frames with clusters of nearly equal quads.
+ */
+public class NearCandidateFilterTest {
+
+	@Test
+	public void gridMarksTheSameAsPairwise(){
+		Random random = new Random(42);
+		NearCandidateFilter filter = new NearCandidateFilter(10);
+		for(int trial=0;trial<200;trial++){
+			CandidateList candidates = randomCandidates(random, 1+random.nextInt(600));
+			boolean[] pairwise = filter.markPairwise(candidates).clone();
+			boolean[] grid = filter.markGrid(candidates);
+			for(int i=0;i<candidates.size();i++)
+				if(pairwise[i] != grid[i])
+					fail("trial "+trial+": candidate "+i+" of "+candidates.size()+" marked differently");
+		}
+	}
+
+	@Test
+	public void filterKeepsOrderOfSurvivors(){
+		CandidateList candidates = new CandidateList();
+		addSquare(candidates, 0, 0, 50);
+		addSquare(candidates, 200, 0, 50);
+		addSquare(candidates, 1, 1, 52);// too near the first one, and bigger
+		addSquare(candidates, 400, 0, 50);
+		new NearCandidateFilter(10).filter(candidates);
+		assertEquals(3, candidates.size());
+		assertEquals(200, candidates.get(0).corners[0], 0);
+		assertEquals(1, candidates.get(1).corners[0], 0);
+		assertEquals(400, candidates.get(2).corners[0], 0);
+	}
+
+	/**
+	 * quads of random size around a few centres, each jittered by a few pixels so many
+	 * of them are around the minimum distance from each other.
+	 */
+	static CandidateList randomCandidates(Random random, int count){
+		CandidateList candidates = new CandidateList();
+		int clusters = 1+count/4;
+		float[][] centres = new float[clusters][3];
+		for(int c=0;c<clusters;c++){
+			centres[c][0] = random.nextFloat()*1920-20;
+			centres[c][1] = random.nextFloat()*1080-20;
+			centres[c][2] = 10+random.nextFloat()*150;
+		}
+		for(int i=0;i<count;i++){
+			float[] centre = centres[random.nextInt(clusters)];
+			float[] corners = candidates.add().corners;
+			float half = centre[2]/2*(0.9f+0.2f*random.nextFloat());
+			float[] square = {-half,-half, half,-half, half,half, -half,half};
+			for(int j=0;j<8;j++)
+				corners[j] = centre[j%2]+square[j]+(float)random.nextGaussian()*4;
+		}
+		return candidates;
+	}
+
+	private static void addSquare(CandidateList candidates, float x, float y, float side){
+		float[] corners = candidates.add().corners;
+		float[] square = {x,y, x+side,y, x+side,y+side, x,y+side};
+		System.arraycopy(square, 0, corners, 0, 8);
+	}
+}
@@ -0,0 +1,118 @@
+package es.ava.aruco;
+
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Size;
+import org.opencv.highgui.Highgui;
+
+/**
+ * Compares reading the codes and calculating the extrinsics on a worker pool against
+ * doing it on the calling thread, on recorded frames. It prints the identification
+ * time per frame with each number of threads, for the codes sampled and warped, and
+ * checks the markers found are the same and in the same order. The frames are treated
+ * as taken by a camera with a focal length of their width and no distortion.
+ * Needs the OpenCV desktop native library in java.library.path.
+ * Usage: ParallelDecodeBenchmark iterations threads frame1.png [frame2.png ...]
+ */
+public class ParallelDecodeBenchmark {
+
+	private static final float MARKER_SIZE = 0.03f;
+
+	public static void main(String[] args){
+		if(args.length < 3){
+			System.err.println("usage: ParallelDecodeBenchmark iterations threads frame1.png [frame2.png ...]");
+			return;
+		}
+		System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+		int iterations = Integer.parseInt(args[0]);
+		int maxThreads = Integer.parseInt(args[1]);
+		Vector<Mat> frames = new Vector<Mat>();
+		for(int i=2;i<args.length;i++){
+			Mat frame = Highgui.imread(args[i], Highgui.CV_LOAD_IMAGE_GRAYSCALE);
+			if(frame.empty()){
+				System.err.println("could not read "+args[i]);
+				return;
+			}
+			frames.add(frame);
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(maxThreads);
+		for(int sampling=1;sampling>=0;sampling--){
+			Vector<Vector<Marker>> reference = new Vector<Vector<Marker>>();
+			for(int threads=0;threads<=maxThreads;threads++){
+				MarkerDetector detector = new MarkerDetector();
+				detector.setCodeSampling(sampling == 1);
+				if(threads > 0){
+					detector.setWorkerPool(pool, threads);
+					// every frame is split, to time the pool alone
+					detector.setParallelThresholds(0, 0);
+				}
+				long totalNs = 0;
+				int candidates = 0, found = 0, same = 0;
+				for(int f=0;f<frames.size();f++){
+					Mat frame = frames.get(f);
+					CameraParameters cp = cameraFor(frame);
+					CandidateList cands = new CandidateList();
+					Vector<Marker> detected = new Vector<Marker>();
+					detector.findCandidates(frame, cands);
+					// the first run is not timed
+					for(int it=0;it<=iterations;it++){
+						long start = System.nanoTime();
+						detector.identifyCandidates(frame, cands, detected, cp, MARKER_SIZE);
+						if(it > 0)
+							totalNs += System.nanoTime()-start;
+					}
+					candidates += cands.size();
+					found += detected.size();
+					if(threads == 0)
+						reference.add(detected);
+					else if(sameMarkers(reference.get(f), detected))
+						same++;
+				}
+				double avgMs = totalNs/1e6/(iterations*frames.size());
+				String mode = sampling == 1 ? "sampled" : "warped";
+				if(threads == 0)
+					System.out.printf("%s, calling thread: %.2f ms/frame, %d candidates, %d markers%n",
+							mode, avgMs, candidates, found);
+				else
+					System.out.printf("%s, %d workers: %.2f ms/frame, same markers in %d of %d frames%n",
+							mode, threads, avgMs, same, frames.size());
+			}
+		}
+		pool.shutdown();
+	}
+
+	private static CameraParameters cameraFor(Mat frame){
+		CameraParameters cp = new CameraParameters();
+		cp.getCameraMatrix().put(0, 0, frame.cols(), 0, frame.cols()/2.0,
+				0, frame.cols(), frame.rows()/2.0,
+				0, 0, 1);
+		cp.getDistCoeff().fromArray(0, 0, 0, 0, 0);
+		cp.setCamSize(new Size(frame.cols(), frame.rows()));
+		return cp;
+	}
+
+	private static boolean sameMarkers(Vector<Marker> a, Vector<Marker> b){
+		if(a.size() != b.size())
+			return false;
+		for(int i=0;i<a.size();i++){
+			if(a.get(i).getMarkerId() != b.get(i).getMarkerId())
+				return false;
+			List<Point> p = a.get(i).toList();
+			List<Point> q = b.get(i).toList();
+			for(int j=0;j<4;j++)
+				if(!p.get(j).equals(q.get(j)))
+					return false;
+			for(int j=0;j<3;j++)
+				if(a.get(i).getTvec().get(j, 0)[0] != b.get(i).getTvec().get(j, 0)[0]
+						|| a.get(i).getRvec().get(j, 0)[0] != b.get(i).getRvec().get(j, 0)[0])
+					return false;
+		}
+		return true;
+	}
+}
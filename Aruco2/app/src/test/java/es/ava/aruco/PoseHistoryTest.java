@@ -0,0 +1,89 @@
+package es.ava.aruco;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+import org.opencv.core.Point;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the poses of the last frames are used while a marker is seen recently, and
+ * that the pose is solved again after a gap or when the marker is no longer where its
+ * last pose puts it.
+ */
+public class PoseHistoryTest {
+
+	private static final double FX = 800, FY = 790, CX = 320, CY = 240;
+	private static final double SIZE = 0.04;
+	private static final int ID = 3;
+	private static final int MAX_GAP = 2;
+	private static final double MAX_ERROR = 2;
+
+	@Test
+	public void recentMarkersStartFromTheirLastPose(){
+		SquarePoseSolver solver = new SquarePoseSolver();
+		solver.setCamera(FX, FY, CX, CY, null);
+		PoseHistory history = new PoseHistory();
+		history.reserve(ID);
+		Random random = new Random(13);
+		double[] rvec = new double[3], tvec = new double[3];
+		SquarePoseSolverTest.randomPose(random, rvec, tvec);
+		double[] solvedR = new double[3], solvedT = new double[3];
+
+		history.nextFrame();
+		assertFalse(history.solve(solver, ID, corners(rvec, tvec), SIZE, MAX_GAP, MAX_ERROR, solvedR, solvedT));
+		for(int f=0;f<10;f++){
+			history.nextFrame();
+			rvec[0] += 0.01;
+			tvec[0] += 0.002;
+			assertTrue(history.solve(solver, ID, corners(rvec, tvec), SIZE, MAX_GAP, MAX_ERROR, solvedR, solvedT));
+			assertClose(rvec, tvec, solvedR, solvedT);
+		}
+
+		// missing for more frames than the gap
+		for(int f=0;f<=MAX_GAP;f++)
+			history.nextFrame();
+		assertTrue(history.isRecent(ID, MAX_GAP+1));
+		assertFalse(history.isRecent(ID, MAX_GAP));
+		assertFalse(history.solve(solver, ID, corners(rvec, tvec), SIZE, MAX_GAP, MAX_ERROR, solvedR, solvedT));
+		assertClose(rvec, tvec, solvedR, solvedT);
+
+		// turned half around, where the refinement from the last pose can't get
+		history.nextFrame();
+		double[] r = new double[9], half = new double[9], turned = new double[9];
+		SquarePoseSolver.toRotation(rvec, r);
+		SquarePoseSolver.toRotation(new double[]{0, 0, Math.PI}, half);
+		for(int i=0;i<3;i++)
+			for(int j=0;j<3;j++)
+				for(int k=0;k<3;k++)
+					turned[i*3+j] += r[i*3+k]*half[k*3+j];
+		SquarePoseSolver.toRvec(turned, rvec);
+		assertFalse(history.solve(solver, ID, corners(rvec, tvec), SIZE, MAX_GAP, MAX_ERROR, solvedR, solvedT));
+		assertClose(rvec, tvec, solvedR, solvedT);
+
+		history.clear();
+		history.nextFrame();
+		assertFalse(history.isRecent(ID, MAX_GAP));
+	}
+
+	private static List<Point> corners(double[] rvec, double[] tvec){
+		double[] r = new double[9];
+		float[] projected = new float[8];
+		SquarePoseSolver.toRotation(rvec, r);
+		SquarePoseSolverTest.project(r, tvec, null, projected);
+		List<Point> corners = new ArrayList<Point>();
+		for(int i=0;i<4;i++)
+			corners.add(new Point(projected[i*2], projected[i*2+1]));
+		return corners;
+	}
+
+	private static void assertClose(double[] rvec, double[] tvec, double[] solvedR, double[] solvedT){
+		for(int i=0;i<3;i++){
+			assertEquals(rvec[i], solvedR[i], 1e-3);
+			assertEquals(tvec[i], solvedT[i], 1e-3*tvec[2]);
+		}
+	}
+}
@@ -0,0 +1,198 @@
+package es.ava.aruco;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+import org.opencv.calib3d.Calib3d;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDouble;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.MatOfPoint3f;
+import org.opencv.core.Point;
+import org.opencv.core.Point3;
+
+/**
+ * Compares the square pose solver with solvePnP on synthetic markers: random poses
+ * facing the camera, tilted up to 60 degrees, projected with distortion and with
+ * gaussian noise added to the corners. For each noise level it prints the time per
+ * solve and, for each method, the mean and 95th percentile of the rotation error in
+ * degrees and of the translation error relative to the distance, the mean reprojection
+ * error, and how many poses are flipped, more than 10 degrees off. For the square
+ * solver it also prints how many times the right pose is the second solution, the one
+ * the previous frame would pick.
+ * Needs the OpenCV desktop native library in java.library.path.
+ * Usage: PoseSolverBenchmark iterations poses
+ */
+public class PoseSolverBenchmark {
+
+	private static final double FX = 600, FY = 600, CX = 320, CY = 240;
+	private static final double[] DISTORTION = {0.1, -0.2, 0.001, -0.001, 0.05};
+	private static final double SIZE = 0.03;
+	private static final double[] NOISE = {0, 0.25, 0.5, 1, 2};
+	private static final double FLIP_DEGREES = 10;
+
+	public static void main(String[] args){
+		if(args.length != 2){
+			System.err.println("usage: PoseSolverBenchmark iterations poses");
+			return;
+		}
+		System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+		int iterations = Integer.parseInt(args[0]);
+		int poses = Integer.parseInt(args[1]);
+
+		Mat camMatrix = new Mat(3, 3, CvType.CV_64FC1);
+		camMatrix.put(0, 0, FX, 0, CX, 0, FY, CY, 0, 0, 1);
+		MatOfDouble distCoeffs = new MatOfDouble(DISTORTION);
+		double h = SIZE/2;
+		MatOfPoint3f objPoints = new MatOfPoint3f(new Point3(-h,-h,0), new Point3(-h,h,0), new Point3(h,h,0),
+				new Point3(h,-h,0));
+		MatOfPoint2f imgPoints = new MatOfPoint2f();
+		Mat rvecMat = new Mat(3, 1, CvType.CV_64FC1), tvecMat = new Mat(3, 1, CvType.CV_64FC1);
+		SquarePoseSolver solver = new SquarePoseSolver();
+		solver.setCamera(camMatrix, distCoeffs);
+
+		Random random = new Random(1);
+		double[][] trueR = new double[poses][9], trueT = new double[poses][3];
+		for(int n=0;n<poses;n++)
+			randomPose(random, trueR[n], trueT[n]);
+		float[][] corners = new float[poses][8];
+		Point[] points = new Point[4];
+		double[] rvec = new double[3], tvec = new double[3], r = new double[9];
+		double[][] rotErrors = new double[2][poses], transErrors = new double[2][poses];
+		for(double noise : NOISE){
+			for(int n=0;n<poses;n++){
+				project(trueR[n], trueT[n], corners[n]);
+				for(int i=0;i<8;i++)
+					corners[n][i] += (float)(random.nextGaussian()*noise);
+			}
+			long pnpNs = 0, squareNs = 0;
+			double[] reprojection = new double[2];
+			int secondRight = 0;
+			for(int n=0;n<poses;n++){
+				for(int i=0;i<4;i++)
+					points[i] = new Point(corners[n][i*2], corners[n][i*2+1]);
+				imgPoints.fromArray(points);
+				// the first run is not timed
+				for(int it=0;it<=iterations;it++){
+					long start = System.nanoTime();
+					Calib3d.solvePnP(objPoints, imgPoints, camMatrix, distCoeffs, rvecMat, tvecMat);
+					long middle = System.nanoTime();
+					solver.solve(corners[n], SIZE);
+					if(it > 0){
+						pnpNs += middle-start;
+						squareNs += System.nanoTime()-middle;
+					}
+				}
+				rvecMat.get(0, 0, rvec);
+				tvecMat.get(0, 0, tvec);
+				SquarePoseSolver.toRotation(rvec, r);
+				rotErrors[0][n] = rotationError(trueR[n], r);
+				transErrors[0][n] = translationError(trueT[n], tvec);
+				reprojection[0] += reprojectionError(r, tvec, corners[n]);
+				solver.getRotation(0, r);
+				solver.getTvec(0, tvec);
+				rotErrors[1][n] = rotationError(trueR[n], r);
+				transErrors[1][n] = translationError(trueT[n], tvec);
+				reprojection[1] += solver.getReprojectionError(0);
+				solver.getRotation(1, r);
+				if(rotErrors[1][n] > FLIP_DEGREES && rotationError(trueR[n], r) <= FLIP_DEGREES)
+					secondRight++;
+			}
+			double solves = (double)poses*iterations;
+			System.out.printf(Locale.US, "noise %.2f px: solvePnP %.1f us, square %.1f us per solve%n", noise,
+					pnpNs/solves/1000, squareNs/solves/1000);
+			String[] names = {"solvePnP", "square"};
+			for(int m=0;m<2;m++)
+				System.out.printf(Locale.US, "  %-8s rotation %.3f/%.3f deg, translation %.3f/%.3f %%,"
+								+ " reprojection %.3f px, flipped %d of %d%s%n",
+						names[m], mean(rotErrors[m]), percentile95(rotErrors[m]), 100*mean(transErrors[m]),
+						100*percentile95(transErrors[m]), reprojection[m]/poses, flipped(rotErrors[m]), poses,
+						m == 1 ? ", second solution right "+secondRight : "");
+		}
+		camMatrix.release();
+		distCoeffs.release();
+		objPoints.release();
+		imgPoints.release();
+		rvecMat.release();
+		tvecMat.release();
+	}
+
+	/** a pose with the marker facing the camera, tilted up to 60 degrees, in view */
+	private static void randomPose(Random random, double[] r, double[] t){
+		double tilt = Math.toRadians(60*random.nextDouble());
+		double direction = random.nextDouble()*2*Math.PI;
+		double spin = random.nextDouble()*2*Math.PI;
+		double[] tiltR = new double[9], spinR = new double[9];
+		SquarePoseSolver.toRotation(new double[]{Math.cos(direction)*tilt, Math.sin(direction)*tilt, 0}, tiltR);
+		SquarePoseSolver.toRotation(new double[]{0, 0, spin}, spinR);
+		Arrays.fill(r, 0);
+		for(int i=0;i<3;i++)
+			for(int j=0;j<3;j++)
+				for(int k=0;k<3;k++)
+					r[i*3+j] += tiltR[i*3+k]*spinR[k*3+j];
+		t[2] = 0.15+0.85*random.nextDouble();
+		t[0] = (random.nextDouble()-0.5)*0.6*t[2];
+		t[1] = (random.nextDouble()-0.5)*0.5*t[2];
+	}
+
+	/** the corners of the marker projected, as cv::projectPoints does */
+	private static void project(double[] r, double[] t, float[] corners){
+		double[] square = {-1,-1, -1,1, 1,1, 1,-1};
+		for(int i=0;i<4;i++){
+			double x = square[i*2]*SIZE/2, y = square[i*2+1]*SIZE/2;
+			double px = r[0]*x+r[1]*y+t[0], py = r[3]*x+r[4]*y+t[1], pz = r[6]*x+r[7]*y+t[2];
+			double u = px/pz, v = py/pz;
+			double[] d = DISTORTION;
+			double r2 = u*u+v*v;
+			double radial = 1+((d[4]*r2+d[1])*r2+d[0])*r2;
+			corners[i*2] = (float)(FX*(u*radial+2*d[2]*u*v+d[3]*(r2+2*u*u))+CX);
+			corners[i*2+1] = (float)(FY*(v*radial+d[2]*(r2+2*v*v)+2*d[3]*u*v)+CY);
+		}
+	}
+
+	private static double reprojectionError(double[] r, double[] t, float[] corners){
+		float[] projected = new float[8];
+		project(r, t, projected);
+		double sum = 0;
+		for(int i=0;i<8;i++)
+			sum += (projected[i]-corners[i])*(projected[i]-corners[i]);
+		return Math.sqrt(sum/4);
+	}
+
+	/** the angle in degrees of the rotation from one to the other */
+	private static double rotationError(double[] a, double[] b){
+		double trace = 0;
+		for(int i=0;i<9;i++)
+			trace += a[i]*b[i];
+		return Math.toDegrees(Math.acos(Math.max(-1, Math.min(1, (trace-1)/2))));
+	}
+
+	private static double translationError(double[] a, double[] b){
+		double dx = a[0]-b[0], dy = a[1]-b[1], dz = a[2]-b[2];
+		return Math.sqrt(dx*dx+dy*dy+dz*dz)/Math.sqrt(a[0]*a[0]+a[1]*a[1]+a[2]*a[2]);
+	}
+
+	private static double mean(double[] values){
+		double sum = 0;
+		for(double v : values)
+			sum += v;
+		return sum/values.length;
+	}
+
+	private static double percentile95(double[] values){
+		double[] sorted = values.clone();
+		Arrays.sort(sorted);
+		return sorted[Math.min(sorted.length-1, (int)(sorted.length*0.95))];
+	}
+
+	private static int flipped(double[] rotationErrors){
+		int n = 0;
+		for(double e : rotationErrors)
+			if(e > FLIP_DEGREES)
+				n++;
+		return n;
+	}
+}
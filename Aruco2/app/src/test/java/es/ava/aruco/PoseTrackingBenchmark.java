@@ -0,0 +1,228 @@
+package es.ava.aruco;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import org.opencv.core.Point;
+
+/**
+ * Compares solving the pose of the markers of every frame from scratch with starting it
+ * from their pose of the last frames. A sequence of frames is made of markers moving
+ * smoothly in front of the camera, each missing from some frames and now and then for
+ * longer than the gap allowed, their corners projected with distortion and gaussian
+ * noise. The sequence is then replayed through three methods: the square solver alone,
+ * the square solver refined by Levenberg-Marquardt, and the poses of the last frames.
+ * For each noise level and method it prints the time per solve, the mean refinement
+ * steps, the mean reprojection error, how many poses are flipped, more than 10 degrees
+ * off, and how many jump by more than 10 degrees from the pose of the marker in the
+ * frame before, which the markers never do. For the last frames method it splits the
+ * solves started from the last pose from those solved again, and counts the
+ * fallbacks, solves started from the last pose that ended off the corners.
+ * Runs without the OpenCV native library.
+ * Usage: PoseTrackingBenchmark passes frames markers
+ */
+public class PoseTrackingBenchmark {
+
+	private static final double FX = 600, FY = 600, CX = 320, CY = 240;
+	private static final double[] DISTORTION = {0.1, -0.2, 0.001, -0.001, 0.05};
+	private static final double SIZE = 0.03;
+	private static final double[] NOISE = {0.25, 0.5, 1, 2};
+	private static final double FLIP_DEGREES = 10;
+	// chance of a marker missing from a frame, and of it missing for longer than the gap
+	private static final double MISS_RATE = 0.05, LONG_MISS_RATE = 0.005;
+	private static final int LONG_MISS_FRAMES = 2*MarkerDetector.DEFAULT_POSE_MAX_GAP;
+
+	public static void main(String[] args){
+		if(args.length != 3){
+			System.err.println("usage: PoseTrackingBenchmark passes frames markers");
+			return;
+		}
+		int passes = Integer.parseInt(args[0]);
+		int frames = Integer.parseInt(args[1]);
+		int markers = Integer.parseInt(args[2]);
+
+		SquarePoseSolver solver = new SquarePoseSolver();
+		solver.setCamera(FX, FY, CX, CY, DISTORTION);
+		Random random = new Random(1);
+		double[][][] trueR = new double[frames][markers][9], trueT = new double[frames][markers][3];
+		boolean[][] visible = new boolean[frames][markers];
+		makeSequence(random, trueR, trueT, visible);
+		float[][][] corners = new float[frames][markers][8];
+		List<List<Point>> points = new ArrayList<List<Point>>();
+		double[] rvec = new double[3], tvec = new double[3], r = new double[9];
+		// the rotation of each marker in the frame it was last solved in
+		double[][] lastR = new double[markers][9];
+		int[] lastFrame = new int[markers];
+		String[] names = {"square", "refined", "tracked"};
+		for(double noise : NOISE){
+			// the corners as the detector gives them, frame after frame
+			points.clear();
+			for(int f=0;f<frames;f++)
+				for(int m=0;m<markers;m++){
+					project(trueR[f][m], trueT[f][m], corners[f][m]);
+					List<Point> marker = new ArrayList<Point>();
+					for(int i=0;i<8;i++)
+						corners[f][m][i] += (float)(random.nextGaussian()*noise);
+					for(int i=0;i<4;i++)
+						marker.add(new Point(corners[f][m][i*2], corners[f][m][i*2+1]));
+					points.add(marker);
+				}
+			System.out.printf(Locale.US, "noise %.2f px%n", noise);
+			for(int method=0;method<3;method++){
+				// warm and cold solves of the tracked method, all of them cold for the others
+				long[] ns = new long[2];
+				int[] solves = new int[2];
+				long[] steps = new long[2];
+				double[] reprojection = new double[2];
+				int flipped = 0, jumps = 0, fallbacks = 0;
+				// the first pass is not timed
+				for(int pass=0;pass<=passes;pass++){
+					PoseHistory history = new PoseHistory();
+					history.reserve(markers-1);
+					boolean timed = pass > 0;
+					Arrays.fill(lastFrame, -1);
+					for(int f=0;f<frames;f++){
+						history.nextFrame();
+						for(int m=0;m<markers;m++){
+							if(!visible[f][m])
+								continue;
+							float[] c = corners[f][m];
+							List<Point> p = points.get(f*markers+m);
+							long start = System.nanoTime();
+							boolean warm = false;
+							int fallback = 0;
+							if(method == 0){
+								solver.solve(p, SIZE);
+								solver.getRvec(0, rvec);
+								solver.getTvec(0, tvec);
+							}
+							else if(method == 1){
+								solver.solve(p, SIZE);
+								solver.getRvec(0, rvec);
+								solver.getTvec(0, tvec);
+								solver.refine(rvec, tvec, PoseHistory.REFINE_ITERATIONS);
+							}
+							else{
+								boolean recent = history.isRecent(m, MarkerDetector.DEFAULT_POSE_MAX_GAP);
+								warm = history.solve(solver, m, p, SIZE, MarkerDetector.DEFAULT_POSE_MAX_GAP,
+										MarkerDetector.DEFAULT_POSE_MAX_ERROR, rvec, tvec);
+								fallback = recent && !warm ? 1 : 0;
+							}
+							long elapsed = System.nanoTime()-start;
+							SquarePoseSolver.toRotation(rvec, r);
+							boolean jump = f > 0 && lastFrame[m] == f-1 && rotationError(lastR[m], r) > FLIP_DEGREES;
+							System.arraycopy(r, 0, lastR[m], 0, 9);
+							lastFrame[m] = f;
+							if(!timed)
+								continue;
+							int k = warm ? 0 : 1;
+							ns[k] += elapsed;
+							solves[k]++;
+							steps[k] += method == 0 ? 0 : solver.getIterations();
+							reprojection[k] += reprojectionError(r, tvec, c);
+							if(rotationError(trueR[f][m], r) > FLIP_DEGREES)
+								flipped++;
+							if(jump)
+								jumps++;
+							fallbacks += fallback;
+						}
+					}
+				}
+				int total = solves[0]+solves[1];
+				System.out.printf(Locale.US, "  %-8s %.2f us per solve, %.2f steps, reprojection %.3f px,"
+								+ " flipped %d, jumps %d of %d%n", names[method], (ns[0]+ns[1])/1000.0/total,
+						(double)(steps[0]+steps[1])/total, (reprojection[0]+reprojection[1])/total, flipped, jumps, total);
+				if(method == 2)
+					System.out.printf(Locale.US, "           warm %d: %.2f us, %.2f steps; cold %d: %.2f us, %.2f steps;"
+									+ " fallbacks %d%n", solves[0], ns[0]/1000.0/Math.max(1, solves[0]),
+							(double)steps[0]/Math.max(1, solves[0]), solves[1], ns[1]/1000.0/Math.max(1, solves[1]),
+							(double)steps[1]/Math.max(1, solves[1]), fallbacks);
+			}
+		}
+	}
+
+	/**
+	 * markers swaying around random poses facing the camera, tilted up to 50 degrees,
+	 * each with its own periods
+	 */
+	private static void makeSequence(Random random, double[][][] trueR, double[][][] trueT, boolean[][] visible){
+		int frames = trueR.length, markers = trueR[0].length;
+		double[] base = new double[9], sway = new double[9], swayVec = new double[3], center = new double[3];
+		double[] amplitude = new double[6], period = new double[6], phase = new double[6];
+		for(int m=0;m<markers;m++){
+			double tilt = Math.toRadians(50*random.nextDouble());
+			double direction = random.nextDouble()*2*Math.PI;
+			double spin = random.nextDouble()*2*Math.PI;
+			double[] tiltR = new double[9], spinR = new double[9];
+			SquarePoseSolver.toRotation(new double[]{Math.cos(direction)*tilt, Math.sin(direction)*tilt, 0}, tiltR);
+			SquarePoseSolver.toRotation(new double[]{0, 0, spin}, spinR);
+			multiply(tiltR, spinR, base);
+			center[2] = 0.2+0.5*random.nextDouble();
+			center[0] = (random.nextDouble()-0.5)*0.4*center[2];
+			center[1] = (random.nextDouble()-0.5)*0.3*center[2];
+			for(int i=0;i<6;i++){
+				// up to 0.3 rad of sway, and a tenth of the distance
+				amplitude[i] = i < 3 ? 0.3*random.nextDouble() : 0.1*center[2]*random.nextDouble();
+				period[i] = 60+120*random.nextDouble();
+				phase[i] = random.nextDouble()*2*Math.PI;
+			}
+			int missing = 0;
+			for(int f=0;f<frames;f++){
+				for(int i=0;i<3;i++){
+					swayVec[i] = amplitude[i]*Math.sin(2*Math.PI*f/period[i]+phase[i]);
+					trueT[f][m][i] = center[i]+amplitude[3+i]*Math.sin(2*Math.PI*f/period[3+i]+phase[3+i]);
+				}
+				SquarePoseSolver.toRotation(swayVec, sway);
+				multiply(sway, base, trueR[f][m]);
+				if(missing == 0 && random.nextDouble() < LONG_MISS_RATE)
+					missing = LONG_MISS_FRAMES;
+				if(missing > 0)
+					missing--;
+				visible[f][m] = missing == 0 && random.nextDouble() >= MISS_RATE;
+			}
+		}
+	}
+
+	private static void multiply(double[] a, double[] b, double[] c){
+		Arrays.fill(c, 0);
+		for(int i=0;i<3;i++)
+			for(int j=0;j<3;j++)
+				for(int k=0;k<3;k++)
+					c[i*3+j] += a[i*3+k]*b[k*3+j];
+	}
+
+	/** the corners of the marker projected, as cv::projectPoints does */
+	private static void project(double[] r, double[] t, float[] corners){
+		double[] square = {-1,-1, -1,1, 1,1, 1,-1};
+		for(int i=0;i<4;i++){
+			double x = square[i*2]*SIZE/2, y = square[i*2+1]*SIZE/2;
+			double px = r[0]*x+r[1]*y+t[0], py = r[3]*x+r[4]*y+t[1], pz = r[6]*x+r[7]*y+t[2];
+			double u = px/pz, v = py/pz;
+			double[] d = DISTORTION;
+			double r2 = u*u+v*v;
+			double radial = 1+((d[4]*r2+d[1])*r2+d[0])*r2;
+			corners[i*2] = (float)(FX*(u*radial+2*d[2]*u*v+d[3]*(r2+2*u*u))+CX);
+			corners[i*2+1] = (float)(FY*(v*radial+d[2]*(r2+2*v*v)+2*d[3]*u*v)+CY);
+		}
+	}
+
+	private static double reprojectionError(double[] r, double[] t, float[] corners){
+		float[] projected = new float[8];
+		project(r, t, projected);
+		double sum = 0;
+		for(int i=0;i<8;i++)
+			sum += (projected[i]-corners[i])*(projected[i]-corners[i]);
+		return Math.sqrt(sum/4);
+	}
+
+	/** the angle in degrees of the rotation from one to the other */
+	private static double rotationError(double[] a, double[] b){
+		double trace = 0;
+		for(int i=0;i<9;i++)
+			trace += a[i]*b[i];
+		return Math.toDegrees(Math.acos(Math.max(-1, Math.min(1, (trace-1)/2))));
+	}
+}
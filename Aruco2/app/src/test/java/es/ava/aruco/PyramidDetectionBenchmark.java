@@ -0,0 +1,91 @@
+package es.ava.aruco;
+
+import java.util.List;
+import java.util.Vector;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.highgui.Highgui;
+
+/**
+ * Compares the pyramid mode of the MarkerDetector against single scale detection on
+ * recorded frames. For each number of pyramid levels it prints the average detection
+ * time, the markers found, and the distance of their corners to the ones found by
+ * single scale detection.
+ * Needs the OpenCV desktop native library in java.library.path.
+ * Usage: PyramidDetectionBenchmark iterations frame1.png [frame2.png ...]
+ */
+public class PyramidDetectionBenchmark {
+
+	private static final float MARKER_SIZE = 0.03f;
+
+	public static void main(String[] args){
+		if(args.length < 2){
+			System.err.println("usage: PyramidDetectionBenchmark iterations frame1.png [frame2.png ...]");
+			return;
+		}
+		System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+		int iterations = Integer.parseInt(args[0]);
+		Vector<Mat> frames = new Vector<Mat>();
+		for(int i=1;i<args.length;i++){
+			Mat frame = Highgui.imread(args[i], Highgui.CV_LOAD_IMAGE_GRAYSCALE);
+			if(frame.empty()){
+				System.err.println("could not read "+args[i]);
+				return;
+			}
+			frames.add(frame);
+		}
+		CameraParameters cp = new CameraParameters();// not valid, no extrinsics are calculated
+
+		// single scale results are the reference
+		Vector<Vector<Marker>> reference = new Vector<Vector<Marker>>();
+		for(int levels=0;levels<=MarkerDetector.MAX_PYRAMID_LEVELS;levels++){
+			MarkerDetector detector = new MarkerDetector();
+			detector.setPyramidLevels(levels);
+			long totalNs = 0;
+			int found = 0, matched = 0;
+			double errorSum = 0, errorMax = 0;
+			for(int f=0;f<frames.size();f++){
+				Vector<Marker> detected = new Vector<Marker>();
+				// the first run warms up the detector buffers and is not timed
+				detector.detect(frames.get(f), detected, cp, MARKER_SIZE);
+				long start = System.nanoTime();
+				for(int i=0;i<iterations;i++)
+					detector.detect(frames.get(f), detected, cp, MARKER_SIZE);
+				totalNs += System.nanoTime()-start;
+				found += detected.size();
+				if(levels == 0){
+					reference.add(detected);
+					continue;
+				}
+				for(Marker marker : detected){
+					Marker ref = findById(reference.get(f), marker.getMarkerId());
+					if(ref == null)
+						continue;
+					matched++;
+					List<Point> p = marker.toList();
+					List<Point> q = ref.toList();
+					for(int j=0;j<4;j++){
+						double d = Math.hypot(p.get(j).x-q.get(j).x, p.get(j).y-q.get(j).y);
+						errorSum += d;
+						errorMax = Math.max(errorMax, d);
+					}
+				}
+			}
+			double avgMs = totalNs/1e6/(iterations*frames.size());
+			if(levels == 0)
+				System.out.printf("levels 0: %.2f ms/frame, %d markers%n", avgMs, found);
+			else
+				System.out.printf("levels %d: %.2f ms/frame, %d markers, %d matched, corner error avg %.2f px max %.2f px%n",
+						levels, avgMs, found, matched, matched == 0 ? 0 : errorSum/(matched*4), errorMax);
+		}
+	}
+
+	private static Marker findById(Vector<Marker> markers, int id){
+		for(Marker marker : markers)
+			if(marker.getMarkerId() == id)
+				return marker;
+		return null;
+	}
+}
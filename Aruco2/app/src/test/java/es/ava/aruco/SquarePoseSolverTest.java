@@ -0,0 +1,168 @@
+package es.ava.aruco;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the square pose solver recovers the poses the corners were projected with,
+ * refines nearby poses onto them, and converts between rotation matrices and vectors
+ * both ways.
+ */
+public class SquarePoseSolverTest {
+
+	private static final double FX = 800, FY = 790, CX = 320, CY = 240;
+	private static final double[] DISTORTION = {0.12, -0.25, 0.001, -0.0015, 0.08};
+	private static final double SIZE = 0.04;
+
+	@Test
+	public void exactCornersGiveThePoseBack(){
+		checkPoses(null, 1e-7);
+	}
+
+	@Test
+	public void distortedCornersGiveThePoseBack(){
+		// the corners are only undistorted as far as the iterations of undistortPoints go
+		checkPoses(DISTORTION, 1e-4);
+	}
+
+	@Test
+	public void bothSolutionsProjectNearTheNoisyCorners(){
+		Random random = new Random(5);
+		SquarePoseSolver solver = new SquarePoseSolver();
+		solver.setCamera(FX, FY, CX, CY, DISTORTION);
+		double[] rvec = new double[3], tvec = new double[3], r = new double[9];
+		float[] corners = new float[8];
+		for(int n=0;n<200;n++){
+			randomPose(random, rvec, tvec);
+			SquarePoseSolver.toRotation(rvec, r);
+			project(r, tvec, DISTORTION, corners);
+			for(int i=0;i<8;i++)
+				corners[i] += (float)(random.nextGaussian()*0.5);
+			assertTrue(solver.solve(corners, SIZE));
+			assertTrue(solver.getReprojectionError(0) <= solver.getReprojectionError(1));
+			assertTrue(solver.getReprojectionError(0) < 2);
+		}
+	}
+
+	@Test
+	public void refinementFromANearbyPoseReachesTheCorners(){
+		Random random = new Random(7);
+		SquarePoseSolver solver = new SquarePoseSolver();
+		solver.setCamera(FX, FY, CX, CY, DISTORTION);
+		double[] rvec = new double[3], tvec = new double[3], r = new double[9];
+		double[] startR = new double[3], startT = new double[3];
+		float[] corners = new float[8];
+		for(int n=0;n<200;n++){
+			randomPose(random, rvec, tvec);
+			SquarePoseSolver.toRotation(rvec, r);
+			project(r, tvec, DISTORTION, corners);
+			// about the motion of a frame
+			for(int i=0;i<3;i++){
+				startR[i] = rvec[i]+random.nextGaussian()*0.02;
+				startT[i] = tvec[i]+random.nextGaussian()*0.01*tvec[2];
+			}
+			int steps = solver.refine(corners, SIZE, startR, startT, 10);
+			assertTrue(steps > 0 && steps < 10);
+			assertEquals(steps, solver.getIterations());
+			assertTrue(solver.getRefinedError() < 0.01);
+			for(int i=0;i<3;i++){
+				assertEquals(rvec[i], startR[i], 1e-3);
+				assertEquals(tvec[i], startT[i], 1e-3*tvec[2]);
+			}
+		}
+	}
+
+	@Test
+	public void rotationVectorsRoundTrip(){
+		Random random = new Random(11);
+		double[] rvec = new double[3], back = new double[3], r = new double[9], r2 = new double[9];
+		double[] angles = {0, 1e-9, 1e-4, 0.5, 2, Math.PI-1e-3, Math.PI-1e-7, Math.PI};
+		for(double angle : angles)
+			for(int n=0;n<50;n++){
+				double x = random.nextGaussian(), y = random.nextGaussian(), z = random.nextGaussian();
+				double norm = Math.sqrt(x*x+y*y+z*z);
+				rvec[0] = x/norm*angle;
+				rvec[1] = y/norm*angle;
+				rvec[2] = z/norm*angle;
+				SquarePoseSolver.toRotation(rvec, r);
+				SquarePoseSolver.toRvec(r, back);
+				SquarePoseSolver.toRotation(back, r2);
+				for(int i=0;i<9;i++)
+					assertEquals(r[i], r2[i], 1e-6);
+				if(angle < Math.PI-1e-3)
+					for(int i=0;i<3;i++)
+						assertEquals(rvec[i], back[i], 1e-6);
+			}
+	}
+
+	private static void checkPoses(double[] distortion, double tolerance){
+		Random random = new Random(3);
+		SquarePoseSolver solver = new SquarePoseSolver();
+		solver.setCamera(FX, FY, CX, CY, distortion);
+		double[] rvec = new double[3], tvec = new double[3], r = new double[9];
+		double[] solvedR = new double[9], solvedT = new double[3], solvedRvec = new double[3];
+		float[] corners = new float[8];
+		double[] exact = new double[8];
+		for(int n=0;n<500;n++){
+			randomPose(random, rvec, tvec);
+			SquarePoseSolver.toRotation(rvec, r);
+			project(r, tvec, distortion, corners);
+			for(int i=0;i<8;i++)
+				exact[i] = projectExact(r, tvec, distortion, i);
+			assertTrue(solver.solve(exact, SIZE));
+			solver.getRotation(0, solvedR);
+			solver.getTvec(0, solvedT);
+			for(int i=0;i<9;i++)
+				assertEquals(r[i], solvedR[i], tolerance);
+			for(int i=0;i<3;i++)
+				assertEquals(tvec[i], solvedT[i], tolerance*tvec[2]);
+			solver.getRvec(0, solvedRvec);
+			for(int i=0;i<3;i++)
+				assertEquals(rvec[i], solvedRvec[i], tolerance*10);
+			assertTrue(solver.getReprojectionError(0) < 1e-3);
+			// rounded to floats the corners still give about the same pose
+			assertTrue(solver.solve(corners, SIZE));
+			assertTrue(solver.getReprojectionError(0) < 1e-3);
+		}
+	}
+
+	/** a pose with the marker facing the camera, tilted up to 60 degrees, in view */
+	static void randomPose(Random random, double[] rvec, double[] tvec){
+		double tilt = Math.toRadians(10+50*random.nextDouble());
+		double direction = random.nextDouble()*2*Math.PI;
+		double spin = random.nextDouble()*2*Math.PI;
+		double[] tiltR = new double[9], spinR = new double[9], r = new double[9];
+		SquarePoseSolver.toRotation(new double[]{Math.cos(direction)*tilt, Math.sin(direction)*tilt, 0}, tiltR);
+		SquarePoseSolver.toRotation(new double[]{0, 0, spin}, spinR);
+		for(int i=0;i<3;i++)
+			for(int j=0;j<3;j++)
+				for(int k=0;k<3;k++)
+					r[i*3+j] += tiltR[i*3+k]*spinR[k*3+j];
+		SquarePoseSolver.toRvec(r, rvec);
+		tvec[2] = 0.2+0.6*random.nextDouble();
+		tvec[0] = (random.nextDouble()-0.5)*0.5*tvec[2];
+		tvec[1] = (random.nextDouble()-0.5)*0.4*tvec[2];
+	}
+
+	static void project(double[] r, double[] t, double[] distortion, float[] corners){
+		for(int i=0;i<8;i++)
+			corners[i] = (float)projectExact(r, t, distortion, i);
+	}
+
+	/** a coordinate of a corner of the marker projected, as cv::projectPoints does */
+	private static double projectExact(double[] r, double[] t, double[] distortion, int index){
+		double[] square = {-1,-1, -1,1, 1,1, 1,-1};
+		double x = square[index/2*2]*SIZE/2, y = square[index/2*2+1]*SIZE/2;
+		double px = r[0]*x+r[1]*y+t[0], py = r[3]*x+r[4]*y+t[1], pz = r[6]*x+r[7]*y+t[2];
+		double u = px/pz, v = py/pz;
+		double[] d = distortion == null ? new double[5] : distortion;
+		double r2 = u*u+v*v;
+		double radial = 1+((d[4]*r2+d[1])*r2+d[0])*r2;
+		double du = u*radial+2*d[2]*u*v+d[3]*(r2+2*u*u);
+		double dv = v*radial+d[2]*(r2+2*v*v)+2*d[3]*u*v;
+		return index%2 == 0 ? FX*du+CX : FY*dv+CY;
+	}
+}
@@ -0,0 +1,98 @@
+package es.ava.aruco;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.Vector;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.highgui.Highgui;
+
+/**
+ * Compares the threshold modes of the MarkerDetector on recorded frames: the gaussian
+ * adaptive threshold the detector uses by default, and the integral image mean with
+ * several block sizes, taken on the frame or on a reduced copy. For each mode it prints
+ * the average time to find the candidates, and the recall, the markers found out of
+ * all the markers any of the modes found in the same frame.
+ * Needs the OpenCV desktop native library in java.library.path.
+ * Usage: ThresholdBenchmark iterations frame1.png [frame2.png ...]
+ */
+public class ThresholdBenchmark {
+
+	private static final float MARKER_SIZE = 0.03f;
+	private static final double CONSTANT = 7;
+
+	// method, block size and mean scale of each mode
+	private static final MarkerDetector.thresSuppMethod[] METHODS = {
+			MarkerDetector.thresSuppMethod.ADPT_THRES,
+			MarkerDetector.thresSuppMethod.MEAN_THRES, MarkerDetector.thresSuppMethod.MEAN_THRES,
+			MarkerDetector.thresSuppMethod.MEAN_THRES, MarkerDetector.thresSuppMethod.MEAN_THRES,
+			MarkerDetector.thresSuppMethod.MEAN_THRES, MarkerDetector.thresSuppMethod.MEAN_THRES};
+	private static final int[] BLOCK_SIZES = {7, 7, 15, 31, 61, 31, 61};
+	private static final int[] MEAN_SCALES = {1, 1, 1, 1, 1, 2, 4};
+
+	public static void main(String[] args){
+		if(args.length < 2){
+			System.err.println("usage: ThresholdBenchmark iterations frame1.png [frame2.png ...]");
+			return;
+		}
+		System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+		int iterations = Integer.parseInt(args[0]);
+		Vector<Mat> frames = new Vector<Mat>();
+		for(int i=1;i<args.length;i++){
+			Mat frame = Highgui.imread(args[i], Highgui.CV_LOAD_IMAGE_GRAYSCALE);
+			if(frame.empty()){
+				System.err.println("could not read "+args[i]);
+				return;
+			}
+			frames.add(frame);
+		}
+		CameraParameters cp = new CameraParameters();// not valid, no extrinsics are calculated
+
+		int modes = METHODS.length;
+		long[] candidateNs = new long[modes];
+		// ids found by each mode in each frame, and by any mode
+		Vector<Vector<Set<Integer>>> found = new Vector<Vector<Set<Integer>>>();
+		Vector<Set<Integer>> all = new Vector<Set<Integer>>();
+		for(int f=0;f<frames.size();f++)
+			all.add(new HashSet<Integer>());
+		for(int m=0;m<modes;m++){
+			MarkerDetector detector = new MarkerDetector();
+			detector.setThresholdMethod(METHODS[m]);
+			detector.setThresholdParams(BLOCK_SIZES[m], CONSTANT);
+			detector.setThresholdMeanScale(MEAN_SCALES[m]);
+			CandidateList candidates = new CandidateList();
+			Vector<Marker> detected = new Vector<Marker>();
+			Vector<Set<Integer>> ids = new Vector<Set<Integer>>();
+			for(int f=0;f<frames.size();f++){
+				Mat frame = frames.get(f);
+				// the first run is not timed
+				for(int it=0;it<=iterations;it++){
+					long start = System.nanoTime();
+					detector.findCandidates(frame, candidates);
+					if(it > 0)
+						candidateNs[m] += System.nanoTime()-start;
+				}
+				detector.identifyCandidates(frame, candidates, detected, cp, MARKER_SIZE);
+				Set<Integer> frameIds = new HashSet<Integer>();
+				for(Marker marker : detected)
+					frameIds.add(marker.getMarkerId());
+				ids.add(frameIds);
+				all.get(f).addAll(frameIds);
+			}
+			found.add(ids);
+		}
+
+		int total = 0;
+		for(Set<Integer> frameIds : all)
+			total += frameIds.size();
+		for(int m=0;m<modes;m++){
+			int recalled = 0;
+			for(Set<Integer> frameIds : found.get(m))
+				recalled += frameIds.size();
+			System.out.printf("%s block %d scale %d: %.2f ms/frame to find candidates, recall %d of %d (%.1f%%)%n",
+					METHODS[m], BLOCK_SIZES[m], MEAN_SCALES[m], candidateNs[m]/1e6/(iterations*frames.size()),
+					recalled, total, total == 0 ? 0 : 100.0*recalled/total);
+		}
+	}
+}
@@ -238,7 +238,8 @@ public class CameraCalibrationActivity extends AppCompatActivity implements Came
 
                         if (mCalibrator.isCalibrated()) {
                             CalibrationResult.save(CameraCalibrationActivity.this,
-                                    mCalibrator.getCameraMatrix(), mCalibrator.getDistortionCoefficients());
+                                    mCalibrator.getCameraMatrix(), mCalibrator.getDistortionCoefficients(),
+                                    mCalibrator.getImageSize());
                         }
                     }
                 }.execute();
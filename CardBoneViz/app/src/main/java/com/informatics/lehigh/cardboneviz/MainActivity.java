@@ -1,5 +1,10 @@
 package com.informatics.lehigh.cardboneviz;
 
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraManager;
 import android.os.Bundle;
 import android.util.Log;
 import android.util.Size;
@@ -13,6 +18,12 @@ import javax.microedition.khronos.egl.EGLConfig;
 import com.informatics.lehigh.cardboardarlibrary.GarUtil;
 import com.informatics.lehigh.cardboardarlibrary.GarActivity;
 
+import com.informatics.lehigh.cardboneviz.tracking.KalmanPoseFilter;
+import com.informatics.lehigh.cardboneviz.tracking.LatencyTrace;
+import com.informatics.lehigh.cardboneviz.tracking.OneEuroPoseFilter;
+import com.informatics.lehigh.cardboneviz.tracking.PoseSnapshot;
+
+import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 
 import java.util.ArrayList;
@@ -28,6 +39,9 @@ public class MainActivity extends GarActivity {
     private static final float MARKER_SIZE = 0.035f;
     /**The filepath to the Camera Calibration Data file*/
     public static final String DATA_FILEPATH = "/CardBoneViz/camCalibData.csv";
+    /** Preferences holding the processing resolution chosen by the tracker */
+    private static final String PREF_PROCESSING_WIDTH = "processingWidth";
+    private static final String PREF_PROCESSING_HEIGHT = "processingHeight";
 
     private static final boolean ACCURACY_TESTING = false;
     ArrayList<float[]> tvecList;
@@ -42,6 +56,11 @@ public class MainActivity extends GarActivity {
     private static final boolean DRAW_AXES = true;
     /** Only render models if the marker is currently detected */
     private static final boolean ONLY_DRAW_WHEN_DETECTED = false;
+    private static final int POSE_FILTER_NONE = 0;
+    private static final int POSE_FILTER_ONE_EURO = 1;
+    private static final int POSE_FILTER_KALMAN = 2;
+    /** Smoothing of the tracked pose, one of the POSE_FILTER_ values above */
+    private static final int POSE_FILTER = POSE_FILTER_NONE;
 
     //
     // Renderers
@@ -58,6 +77,15 @@ public class MainActivity extends GarActivity {
     private UltrasoundTracker mUltraTracker;
     /** The thread being used to run ultrasound tracking */
     private Thread mTrackingThread;
+    /** Latest cube pose read from the tracker, reused every frame */
+    private final PoseSnapshot mPose = new PoseSnapshot();
+    /** The pose vectors in the form the tracking utilities take them */
+    private Mat mTvecMat;
+    private Mat mRvecMat;
+    /** Trace of the tracked frames from capture to draw, null if the tracker does not trace */
+    private LatencyTrace mLatencyTrace;
+    /** Sequence of the frame whose pose was first read for the frame being drawn, or -1 */
+    private long mTracedSequence = -1;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -73,19 +101,55 @@ public class MainActivity extends GarActivity {
 
         // initialize ultrasound wand tracker
         mUltraTracker = new UltrasoundTracker(getProcessingReader(), MARKER_SIZE, PADDING_SIZE);
+        if (POSE_FILTER == POSE_FILTER_ONE_EURO) {
+            mUltraTracker.setPoseFilter(new OneEuroPoseFilter());
+        } else if (POSE_FILTER == POSE_FILTER_KALMAN) {
+            mUltraTracker.setPoseFilter(new KalmanPoseFilter());
+        }
+        mUltraTracker.setTimestampSource(getTimestampSource());
+        mLatencyTrace = mUltraTracker.getLatencyTrace();
         mTrackingThread = new Thread(mUltraTracker);
         mTrackingThread.start();
     }
 
+    /**
+     * @return the SENSOR_INFO_TIMESTAMP_SOURCE of the back camera the images are captured
+     * with, UNKNOWN if it can't be read
+     */
+    private int getTimestampSource() {
+        CameraManager manager = (CameraManager) getSystemService(Context.CAMERA_SERVICE);
+        try {
+            for (String id : manager.getCameraIdList()) {
+                CameraCharacteristics characteristics = manager.getCameraCharacteristics(id);
+                Integer facing = characteristics.get(CameraCharacteristics.LENS_FACING);
+                if (facing != null && facing == CameraCharacteristics.LENS_FACING_BACK) {
+                    Integer source = characteristics.get(CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE);
+                    return source == null ? CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE_UNKNOWN : source;
+                }
+            }
+        } catch (CameraAccessException e) {
+            Log.e(TAG, "UNABLE TO READ THE CAMERA TIMESTAMP SOURCE");
+        }
+        return CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE_UNKNOWN;
+    }
+
     @Override
     protected List<Surface> setupCaptureSurfaces() {
-        //this.setProcessingSurfaceResolution(new Size(1280, 720));
+        // use the processing resolution the tracker chose last time, if any
+        SharedPreferences prefs = getPreferences(Context.MODE_PRIVATE);
+        int width = prefs.getInt(PREF_PROCESSING_WIDTH, -1);
+        int height = prefs.getInt(PREF_PROCESSING_HEIGHT, -1);
+        if (width > 0 && height > 0) {
+            Log.i(TAG, "PROCESSING SURFACE RESOLUTION " + width + "x" + height);
+            this.setProcessingSurfaceResolution(new Size(width, height));
+        }
         return super.setupCaptureSurfaces();
     }
 
     @Override
     public void onResume() {
         super.onResume();
+        mUltraTracker.resume();
     }
 
     @Override
@@ -109,6 +173,16 @@ public class MainActivity extends GarActivity {
     @Override
     protected void onPause() {
         super.onPause();
+        // no need to track while the activity is not visible
+        mUltraTracker.pause();
+        // remember the processing resolution for the next time the surfaces are set up
+        org.opencv.core.Size chosen = mUltraTracker.getChosenResolution();
+        if (chosen != null) {
+            getPreferences(Context.MODE_PRIVATE).edit()
+                    .putInt(PREF_PROCESSING_WIDTH, (int) chosen.width)
+                    .putInt(PREF_PROCESSING_HEIGHT, (int) chosen.height)
+                    .apply();
+        }
         if (ACCURACY_TESTING) {
             calcTvecDeviation();
             calcRvecDeviation();
@@ -116,6 +190,7 @@ public class MainActivity extends GarActivity {
         if (mUltraTracker.BENCHMARK_TESTING) {
             mUltraTracker.calcAvgFps();
         }
+        mUltraTracker.reportLatency();
     }
 
     @Override
@@ -142,14 +217,21 @@ public class MainActivity extends GarActivity {
         headTransform.getUpVector(upVec, 0);
         headTransform.getRightVector(rightVec, 0);
 
-        if (mUltraTracker.isNewMarkerAvailable()) {
+        boolean newPose = mUltraTracker.readPose(mPose);
+        if (newPose && mLatencyTrace != null) {
+            mLatencyTrace.mark(mPose.frameSequence, LatencyTrace.CONSUMED, System.nanoTime());
+            mTracedSequence = mPose.frameSequence;
+        }
+        if (newPose && mPose.detected) {
             // calculate bone model matrix based on marker location
-            Mat tvecMat;
-            Mat rvecMat;
-
-            Mat [] params = mUltraTracker.getMarkerParams();
-            tvecMat = params[0];
-            rvecMat = params[1];
+            if (mTvecMat == null) {
+                mTvecMat = new Mat(3, 1, CvType.CV_64FC1);
+                mRvecMat = new Mat(3, 1, CvType.CV_64FC1);
+            }
+            Mat tvecMat = mTvecMat;
+            Mat rvecMat = mRvecMat;
+            tvecMat.put(0, 0, mPose.tvec);
+            rvecMat.put(0, 0, mPose.rvec);
 
             if (ACCURACY_TESTING) {
                 if (tvecList.size() < 120) {
@@ -157,7 +239,7 @@ public class MainActivity extends GarActivity {
                     float[] cardTvec = new float[4];
                     GarUtil.tvecToCardboardCoords(cardTvec, tvecMat);
                     tvecList.add(cardTvec);
-                    rvecList.add(rvecMat);
+                    rvecList.add(rvecMat.clone());
                     Log.i(TAG, "COLLECTED T/Rvec FRAME " + tvecList.size());
                 } else {
                     Log.i(TAG, "FINISHED T/Rvec DATA COLLECTION");
@@ -202,7 +284,7 @@ public class MainActivity extends GarActivity {
 
      if (ONLY_DRAW_WHEN_DETECTED) {
             // only draw if last frame processed produced a detected marker
-            if (mUltraTracker.isMarkerDetected()) {
+            if (mPose.detected) {
                 // draw the axes
                 if (DRAW_AXES) {
                     axisRenderer.draw(view, perspective);
@@ -225,7 +307,13 @@ public class MainActivity extends GarActivity {
     }
 
     @Override
-    public void onFinishFrame(Viewport viewport) {}
+    public void onFinishFrame(Viewport viewport) {
+        // both eyes have been drawn with the pose read for this frame
+        if (mTracedSequence >= 0) {
+            mLatencyTrace.mark(mTracedSequence, LatencyTrace.DRAWN, System.nanoTime());
+            mTracedSequence = -1;
+        }
+    }
 
     /**
      * Called when the Cardboard trigger is pulled.
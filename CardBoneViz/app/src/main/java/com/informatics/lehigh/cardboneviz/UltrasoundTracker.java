@@ -6,15 +6,38 @@ import android.content.SharedPreferences;
 import android.graphics.Camera;
 import android.graphics.ImageFormat;
 import android.graphics.Matrix;
+import android.hardware.camera2.CameraCharacteristics;
 import android.media.Image;
 import android.media.ImageReader;
+import android.os.Debug;
 import android.os.Environment;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.util.Log;
 
 import com.informatics.lehigh.cardboardarlibrary.Cube;
 import com.informatics.lehigh.cardboardarlibrary.CubeConfiguration;
 import com.informatics.lehigh.cardboardarlibrary.CubeDetector;
+import com.informatics.lehigh.cardboneviz.tracking.CubeModel;
+import com.informatics.lehigh.cardboneviz.tracking.FlowTracker;
+import com.informatics.lehigh.cardboneviz.tracking.FramePool;
+import com.informatics.lehigh.cardboneviz.tracking.FrameRecorder;
+import com.informatics.lehigh.cardboneviz.tracking.FrameQueue;
+import com.informatics.lehigh.cardboneviz.tracking.LatencyTrace;
+import com.informatics.lehigh.cardboneviz.tracking.LatestImageSlot;
+import com.informatics.lehigh.cardboneviz.tracking.MemoryGauges;
+import com.informatics.lehigh.cardboneviz.tracking.MultiObjectTracker;
+import com.informatics.lehigh.cardboneviz.tracking.PoseChannel;
+import com.informatics.lehigh.cardboneviz.tracking.PoseFilter;
+import com.informatics.lehigh.cardboneviz.tracking.PoseRecorder;
+import com.informatics.lehigh.cardboneviz.tracking.ResolutionGovernor;
+import com.informatics.lehigh.cardboneviz.tracking.PoseSnapshot;
+import com.informatics.lehigh.cardboneviz.tracking.RoiTracker;
+import com.informatics.lehigh.cardboneviz.tracking.TrackingFrame;
+import com.informatics.lehigh.cardboneviz.tracking.TrackingStats;
 
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
@@ -22,23 +45,176 @@ import org.opencv.core.MatOfDouble;
 import org.opencv.core.Size;
 import org.opencv.imgproc.Imgproc;
 
+import java.io.File;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import es.ava.aruco.CameraParameters;
+import es.ava.aruco.Marker;
+import es.ava.aruco.MarkerDetector;
 import es.ava.aruco.exceptions.CPException;
 
 /**
  * Class for constantly processing incoming image data in order to track a
  * marker cube on ultrasound wand. It should be run as a thread. It assumes that OpenCV has already been loaded.
+ *
+ * Tracking is split in three stages: acquiring and converting the camera image,
+ * extracting the marker candidates, and identifying the markers and solving the cube
+ * pose. When pipelined each stage runs on its own thread, linked by bounded queues that
+ * drop their oldest frame when the next stage falls behind.
+ *
+ * With EVENT_DRIVEN_ACQUISITION camera images are delivered by the image reader callback
+ * on a dedicated thread, so the tracker sleeps while waiting for a frame. The tracker
+ * should be paused and resumed along with the activity using it.
  */
 public class UltrasoundTracker implements Runnable {
 
     private static final String TAG = "UltrasoundTracker";
     public static final boolean BENCHMARK_TESTING = false;
+    /**
+     * Track on the grey Y plane of the camera image. If false, the full YUV image is
+     * copied and converted to RGBA before detection like it used to be.
+     */
+    public static final boolean GRAY_TRACKING = false;
+    /** Run the tracking stages on their own threads instead of one after another */
+    public static final boolean PIPELINED_TRACKING = false;
+    /** Default capacity of the queues between the pipeline stages */
+    public static final int DEFAULT_PIPELINE_DEPTH = 1;
+    /** Longest time a stage waits for a frame before checking if it should stop */
+    private static final long STAGE_POLL_TIMEOUT_MS = 100;
+    /**
+     * Wait for the image reader to signal a new image instead of polling it. If false
+     * the reader is polled in a loop like it used to be.
+     */
+    public static final boolean EVENT_DRIVEN_ACQUISITION = false;
+    /** Object id of the ultrasound wand cube, the pose read by {@link #readPose(PoseSnapshot)} */
+    public static final int WAND_OBJECT_ID = 0;
+    /** Object id of the patient reference cube */
+    public static final int REFERENCE_OBJECT_ID = 1;
+    /** Marker ids on the faces of the wand cube */
+    private static final int[] WAND_CUBE_IDS = {1, 2, 3, 4, 5, 6};
+    /** Marker ids on the faces of the reference cube */
+    private static final int[] REFERENCE_CUBE_IDS = {7, 8, 9, 10, 11, 12};
+    /**
+     * Also track the reference cube, from the same detection pass as the wand. The whole
+     * frame is then always searched, as the search region only follows the wand.
+     */
+    public static final boolean TRACK_REFERENCE_CUBE = false;
+    /** Only search the region around the last cube pose once the cube has been found */
+    public static final boolean ROI_TRACKING = false;
+    /** Fraction of the projected cube size added on each side of the search region */
+    private static final double ROI_MOTION_MARGIN = 0.5;
+    /** Misses in a row inside the search region before searching the whole frame */
+    private static final int ROI_MAX_MISSES = 3;
+    /** Frames between two forced searches of the whole frame */
+    private static final int ROI_FULL_FRAME_INTERVAL = 30;
+    /**
+     * Pyramid levels the marker candidates are looked for in, 1 searches a half resolution
+     * frame and refines the corners at full resolution. 0 searches the full frame.
+     */
+    public static final int PYRAMID_LEVELS = 0;
+    /**
+     * Threshold the frames against the plain mean of a block around each pixel, taken from
+     * the integral image, instead of the gaussian weighted mean of a 7 pixel block
+     */
+    public static final boolean MEAN_THRESHOLD = false;
+    /** Side of the block of the mean threshold, in pixels of the searched frame */
+    private static final int MEAN_THRESHOLD_BLOCK_SIZE = 21;
+    /** Factor the frame is reduced by to take the block means, 1 to take them on the frame */
+    private static final int MEAN_THRESHOLD_SCALE = 2;
+    /** Constant subtracted from the block mean */
+    private static final double MEAN_THRESHOLD_CONSTANT = 7;
+    /**
+     * Read the marker codes by sampling the frame through each candidate homography
+     * instead of warping every candidate into its own image
+     */
+    public static final boolean CODE_SAMPLING = false;
+    /**
+     * Threads added to the pose stage to read the marker codes and solve the marker poses
+     * of busy frames, 0 to do it all on the pose stage thread
+     */
+    public static final int DECODE_WORKERS = 0;
+    /** Refine the corners of the markers found to subpixel accuracy before solving the pose */
+    public static final boolean CORNER_REFINEMENT = false;
+    /** Fewest candidates in a frame for their codes to be read by the decode workers */
+    private static final int DECODE_MIN_CANDIDATES = 16;
+    /** Fewest markers in a frame for their poses to be solved by the decode workers */
+    private static final int DECODE_MIN_MARKERS = 3;
+    /**
+     * Start the pose of the markers and cubes seen in the last frames from their last
+     * pose instead of solving it from scratch
+     */
+    public static final boolean POSE_TRACKING = false;
+    /**
+     * Between full detections follow the markers found with optical flow and solve the
+     * poses from the corners followed, detecting again as soon as a marker is lost
+     */
+    public static final boolean FLOW_TRACKING = false;
+    /** Frames from one full detection to the next when FLOW_TRACKING, counting the detection */
+    private static final int FLOW_DETECTION_INTERVAL = 5;
+    /** Side of the window each corner is followed in, in pixels */
+    private static final int FLOW_WINDOW_SIZE = 15;
+    /** Pyramid levels the corners are followed through, for fast motion */
+    private static final int FLOW_PYRAMID_LEVELS = 2;
+    /** Farthest a corner followed forward and back can land from where it started, in pixels */
+    private static final double FLOW_MAX_FB_ERROR = 1.0;
+    /**
+     * Solve the cube poses with CubeModel from the markers of the Aruco2 detector instead
+     * of with the CubeDetector of cardboardarlibrary. The face layout of CubeModel has not
+     * been checked against CubeDetector yet, so it is only used by the features that need
+     * the markers themselves.
+     */
+    public static final boolean CUBE_MODEL_POSE = GRAY_TRACKING || PIPELINED_TRACKING || TRACK_REFERENCE_CUBE
+            || ROI_TRACKING || PYRAMID_LEVELS > 0 || MEAN_THRESHOLD || CODE_SAMPLING || DECODE_WORKERS > 0
+            || CORNER_REFINEMENT || POSE_TRACKING || FLOW_TRACKING;
+    /** Write every raw cube pose found to POSE_RECORDING_FILEPATH to tune the pose filters */
+    public static final boolean RECORD_POSES = false;
+    public static final String POSE_RECORDING_FILEPATH = "/CardBoneViz/poses.csv";
+    /**
+     * Write the grey camera frames to FRAME_RECORDING_FILEPATH, to replay the detection
+     * off the phone with FrameRecording. Only when GRAY_TRACKING.
+     */
+    public static final boolean RECORD_FRAMES = false;
+    public static final String FRAME_RECORDING_FILEPATH = "/CardBoneViz/frames.cbvf";
+    /** Deflate the recorded frames, smaller files for some CPU on the writer thread */
+    private static final boolean COMPRESS_RECORDING = true;
+    /**
+     * Choose the processing resolution by timing the detection at each of
+     * PROCESSING_RESOLUTIONS that fits the camera images, at startup and again whenever
+     * the tracking rate drops.
+     */
+    public static final boolean RESOLUTION_GOVERNOR = false;
+    /** Candidate processing resolutions, from the highest to the lowest */
+    public static final Size[] PROCESSING_RESOLUTIONS = {
+            new Size(1920, 1080), new Size(1280, 720), new Size(960, 540), new Size(640, 360)};
+    /** Tracking rate the chosen processing resolution must reach */
+    public static final double TARGET_TRACKING_FPS = 30;
+    /** Detections timed at each candidate resolution */
+    private static final int GOVERNOR_RUNS = 5;
+    /** Time the tracking rate is averaged over to tell if it dropped */
+    private static final long GOVERNOR_RATE_WINDOW_MS = 2000;
+    /** Fraction of TARGET_TRACKING_FPS the tracking rate must fall below to evaluate again */
+    private static final double GOVERNOR_DROP_FRACTION = 0.8;
+    /** Resolution of the calibration when the calibration file does not say, as older ones */
+    private static final Size LEGACY_CALIBRATION_SIZE = new Size(1920, 1080);
+    /**
+     * Trace every frame from capture to draw, the summary is logged and the trace written
+     * to LATENCY_TRACE_FILEPATH by {@link #reportLatency()}
+     */
+    public static final boolean LATENCY_TRACE = false;
+    /** Number of most recent frames the latency trace keeps */
+    private static final int LATENCY_TRACE_FRAMES = 4096;
+    public static final String LATENCY_TRACE_FILEPATH = "/CardBoneViz/latency.csv";
 
     /** Image reader used to access current camera image */
     private ImageReader mImgReader;
@@ -46,18 +222,121 @@ public class UltrasoundTracker implements Runnable {
     private float mMarkerSize;
     /** The size of the padding around the markers in meters */
     private float mPaddingSize;
-    /** The translation vector from the most recently processed frame */
-    private volatile Mat tvec;
-    /** The rotation vector from the most recently processed frame */
-    private volatile Mat rvec;
+    /** Ids of the tracked objects, by object index */
+    private final int[] mObjectIds;
+    /** Latest pose of each object by object index, published by the pose stage and read by the renderer */
+    private final PoseChannel[] mPoseChannels;
     /** True if the run function should be running, false otherwise */
     private volatile boolean running = true;
-    /** True if there is new marker information available */
-    private volatile boolean newMarker = false;
-    /** True if there the last frame processed detected a marker */
-    private volatile boolean markerDetected = false;
+    /** True while the tracker is paused, guarded by mPauseLock */
+    private boolean paused = false;
+    private final Object mPauseLock = new Object();
     /** FPS data for the life of the tracker */
     private ArrayList<Double> frameRateData = new ArrayList<>();
+    /** Image to Mat conversion time in ms for each frame over the life of the tracker */
+    private ArrayList<Double> conversionTimeData = new ArrayList<>();
+    /** Bytes copied by the image to Mat conversion of the last frame */
+    private long bytesCopied = 0;
+    /** Total bytes copied by the image to Mat conversion over the life of the tracker */
+    private long totalBytesCopied = 0;
+
+    /** Number of frames between two samples of the memory gauges when benchmarking */
+    private static final int GAUGE_INTERVAL = 300;
+
+    /** Buffers and Mats used to convert the camera images, reused from frame to frame */
+    private final FramePool mFramePool = new FramePool();
+    /**
+     * Views of the pooled strided Y plane Mats without the row padding, these are the
+     * grey images tracked. They are created once per pooled Mat.
+     */
+    private final Map<Mat, Mat> mGrayViews = new IdentityHashMap<>();
+    /** GC and native memory gauges for benchmarking */
+    private final MemoryGauges mGauges = new MemoryGauges();
+    /** Throughput and latency of each tracking stage for benchmarking */
+    private final TrackingStats mStats = new TrackingStats();
+    /** Time of each frame at every point from capture to draw, null if not LATENCY_TRACE */
+    private final LatencyTrace mLatencyTrace = LATENCY_TRACE ? new LatencyTrace(LATENCY_TRACE_FRAMES) : null;
+
+    /** Capacity of the queues between the pipeline stages */
+    private int mPipelineDepth = DEFAULT_PIPELINE_DEPTH;
+    /** Frames not in use by any stage */
+    private ArrayBlockingQueue<TrackingFrame> mFreeFrames;
+    /** Frames converted and waiting for candidate extraction */
+    private FrameQueue<TrackingFrame> mConvertedFrames;
+    /** Frames with candidates waiting for identification and pose */
+    private FrameQueue<TrackingFrame> mCandidateFrames;
+    /** Sequence number of the next frame acquired */
+    private long mFrameSequence = 0;
+    /** Intrinsic parameters of the camera at the calibration resolution */
+    private CameraParameters mCalibParams;
+    /** Parameters scaled to the size of the last frame converted, only used by the conversion stage */
+    private CameraParameters mFrameCamParams;
+    private int mFrameParamsWidth;
+    private int mFrameParamsHeight;
+    /** Resolution the camera images are scaled down to, null to process them as they come */
+    private volatile Size mProcessingSize;
+    /** Chooses the processing resolution when RESOLUTION_GOVERNOR */
+    private volatile ResolutionGovernor mGovernor;
+    /** Camera frame copied by the conversion stage when the governor asks for one */
+    private final Object mSampleLock = new Object();
+    private volatile boolean mSampleRequested = false;
+    private Mat mSample;
+    /** Set by the pose stage when the tracking rate dropped, under mSampleLock */
+    private boolean mRateDropped = false;
+    /** Set by the governor so the pose stage starts a new rate window after a change */
+    private volatile boolean mRateWindowReset = false;
+    /** Start, frames and summed processing time of the current rate window, pose stage only */
+    private long mRateWindowStartNs = 0;
+    private int mRateWindowFrames = 0;
+    private long mRateWindowBusyNs = 0;
+    /** Solves the pose of every tracked object from the markers detected, null unless CUBE_MODEL_POSE */
+    private MultiObjectTracker mObjects;
+    /** Finds the wand cube in whole frames when not CUBE_MODEL_POSE */
+    private CubeDetector mCubeDetector;
+    private CubeConfiguration mCubeConfig;
+    private final Vector<Cube> mDetectedCubes = new Vector<>();
+    /** Index of the wand cube in mObjects */
+    private int mWandObject;
+    /** Chooses the region of each frame to search when ROI tracking, null to search whole frames */
+    private volatile RoiTracker mRoiTracker;
+    /** Threads shared by the pose stage detectors, null when DECODE_WORKERS is 0 */
+    private ExecutorService mDecodePool;
+    /** Follows the markers between full detections, only used by the pose stage, null unless FLOW_TRACKING */
+    private FlowTracker mFlowTracker;
+    /** Set by the pose stage while the markers of the last frame are being followed */
+    private volatile boolean mFlowTracking = false;
+    /** Frames since the last full detection was asked for, only used by the candidate stage */
+    private int mFlowFrames = 0;
+    /**
+     * Last pose found of each object by object index, published again with the detected
+     * flag off when the object is lost
+     */
+    private double[][] mPoseRvecs;
+    private double[][] mPoseTvecs;
+    /** Whether each object was found in the frame being published */
+    private boolean[] mPoseFound;
+    /** Smooths the wand pose before it is published, null to publish it raw */
+    private PoseFilter mPoseFilter;
+    /** Writes the raw cube poses when RECORD_POSES */
+    private PoseRecorder mPoseRecorder;
+    /** Writes the camera frames when RECORD_FRAMES */
+    private FrameRecorder mFrameRecorder;
+    /** Number of frames that have gone through every stage */
+    private long mFramesDone = 0;
+    /** System.nanoTime when the last frame went through every stage */
+    private long mLastFrameDoneNs = 0;
+
+    /** Latest image from the reader, waiting to be tracked */
+    private final LatestImageSlot mImageSlot = new LatestImageSlot();
+    /** Thread the image reader callbacks run on */
+    private HandlerThread mCameraThread;
+    /** Whether the camera timestamps count deep sleep like elapsedRealtime, see {@link #setTimestampSource(int)} */
+    private volatile boolean mRealtimeTimestamps = false;
+    /** CPU time of the acquisition thread when the last frame was acquired */
+    private long mLastAcquireCpuNs = 0;
+    /** Process CPU time and uptime in ms when the tracker was paused, for benchmarking */
+    private long mPauseCpuMs;
+    private long mPauseUptimeMs;
 
     /**
      * Creates a new UltrasoundTracker
@@ -69,120 +348,877 @@ public class UltrasoundTracker implements Runnable {
         mImgReader = imgReader;
         mMarkerSize = markerSizeMeters;
         mPaddingSize = markerPaddingSizeMeters;
+        mObjectIds = TRACK_REFERENCE_CUBE
+                ? new int[] {WAND_OBJECT_ID, REFERENCE_OBJECT_ID} : new int[] {WAND_OBJECT_ID};
+        mPoseChannels = new PoseChannel[mObjectIds.length];
+        for (int i = 0; i < mObjectIds.length; i++) {
+            mPoseChannels[i] = new PoseChannel();
+        }
     }
 
-    /** Safely terminates the tracking process */
+    /**
+     * Safely terminates the tracking process. The tracking thread releases all of its
+     * frame buffers and Mats as it exits.
+     */
     public void terminate() {
         running = false;
+        synchronized (mPauseLock) {
+            mPauseLock.notifyAll();
+        }
+        synchronized (mSampleLock) {
+            mSampleLock.notifyAll();
+        }
+        stopListening();
+        mImageSlot.close();
     }
 
     /**
-     * @return The translation vector from the most recently processed frame or
-     * null if no frame has been processed yet.
+     * Stops tracking until {@link #resume()} is called. No camera image is taken and
+     * every tracking thread sleeps in the meantime.
      */
-    public Mat getTvec() {
-        return tvec;
+    public void pause() {
+        synchronized (mPauseLock) {
+            if (paused) {
+                return;
+            }
+            paused = true;
+        }
+        stopListening();
+        mImageSlot.clear();
+        if (mLatencyTrace != null) {
+            // the camera stops, the frames missing until it starts again were not dropped
+            mLatencyTrace.markDiscontinuity();
+        }
+        if (BENCHMARK_TESTING) {
+            mPauseCpuMs = Process.getElapsedCpuTime();
+            mPauseUptimeMs = SystemClock.uptimeMillis();
+        }
     }
 
     /**
-     * @return The rotation vector from the most recently processed frame or
-     * null if no frame has been processed yet.
+     * Starts tracking again after {@link #pause()}. It is safe to call it when the
+     * tracker is not paused.
      */
-    public Mat getRvec() {
-        return rvec;
+    public void resume() {
+        synchronized (mPauseLock) {
+            if (!running) {
+                return;
+            }
+            if (paused && BENCHMARK_TESTING) {
+                // process CPU use while nothing was tracked
+                long cpuMs = Process.getElapsedCpuTime() - mPauseCpuMs;
+                long elapsedMs = SystemClock.uptimeMillis() - mPauseUptimeMs;
+                Log.i(TAG, "IDLE CPU = " + (100.0 * cpuMs / Math.max(elapsedMs, 1)) + "% over " + elapsedMs + " ms");
+            }
+            paused = false;
+            mPauseLock.notifyAll();
+        }
+        startListening();
+    }
+
+    /** Delivers the reader images to the image slot on the camera thread */
+    private synchronized void startListening() {
+        if (!EVENT_DRIVEN_ACQUISITION || mCameraThread != null) {
+            return;
+        }
+        mCameraThread = new HandlerThread(TAG + "-camera");
+        mCameraThread.start();
+        mImgReader.setOnImageAvailableListener(mImageSlot, new Handler(mCameraThread.getLooper()));
+    }
+
+    /** Stops delivering the reader images and the camera thread */
+    private synchronized void stopListening() {
+        if (mCameraThread == null) {
+            return;
+        }
+        mImgReader.setOnImageAvailableListener(null, null);
+        mCameraThread.quitSafely();
+        mCameraThread = null;
     }
 
     /**
-     * @return true if in the last frame processed, there was a marker detected
+     * Sleeps while the tracker is paused.
+     * @return false if the tracker was terminated
      */
-    public boolean isMarkerDetected() {
-        return markerDetected;
+    private boolean waitWhilePaused() {
+        synchronized (mPauseLock) {
+            while (paused && running) {
+                try {
+                    mPauseLock.wait();
+                } catch (InterruptedException e) {
+                    return false;
+                }
+            }
+        }
+        return running;
     }
 
     /**
-     * @return true if there is new marker information available that has not already
-     * been requested through {@link #getMarkerParams getMarkerParams}.
+     * Copies the pose from the most recently processed frame into a caller owned
+     * snapshot. The rotation, translation, timestamp, detected flag and frame sequence
+     * always come from the same frame. Safe to call from any thread, does not allocate.
+     * @param dst the snapshot to fill
+     * @return true if a frame has been processed since dst was last filled
      */
-    public boolean isNewMarkerAvailable() { return newMarker; }
+    public boolean readPose(PoseSnapshot dst) {
+        return readPose(WAND_OBJECT_ID, dst);
+    }
+
+    /**
+     * Copies the pose of a tracked object from the most recently processed frame into a
+     * caller owned snapshot, like {@link #readPose(PoseSnapshot)}.
+     * @param objectId the id of the object, WAND_OBJECT_ID or REFERENCE_OBJECT_ID
+     * @param dst the snapshot to fill
+     * @return true if a frame has been processed since dst was last filled
+     * @throws IllegalArgumentException if the object is not tracked
+     */
+    public boolean readPose(int objectId, PoseSnapshot dst) {
+        for (int i = 0; i < mObjectIds.length; i++) {
+            if (mObjectIds[i] == objectId) {
+                return mPoseChannels[i].read(dst);
+            }
+        }
+        throw new IllegalArgumentException("object " + objectId + " is not tracked");
+    }
+
+    /**
+     * @return the fraction of the frames searched only around the last cube pose that
+     * found the cube, or 0 if ROI tracking is off or has not started
+     */
+    public double getRoiHitRate() {
+        RoiTracker roiTracker = mRoiTracker;
+        return roiTracker == null ? 0 : roiTracker.getHitRate();
+    }
 
     /**
-     * Returns an array of both the translation and rotation vectors
-     * {tvec, rvec}
-     * @return
+     * @return the average number of pixels searched for candidates per frame, or 0 if
+     * ROI tracking is off or has not started
      */
-    public Mat[] getMarkerParams() {
-        newMarker = false;
-        return new Mat [] {tvec, rvec};
+    public double getAverageSearchedPixels() {
+        RoiTracker roiTracker = mRoiTracker;
+        return roiTracker == null ? 0 : roiTracker.getAveragePixels();
     }
 
+    /**
+     * Sets how many frames each queue between two stages of the pipeline holds before
+     * the oldest is dropped. A deeper pipeline keeps every stage busy for a higher
+     * throughput but frames wait longer, adding latency. Must be called before the
+     * tracker is started.
+     * @param depth the capacity of each queue, at least 1
+     */
+    public void setPipelineDepth(int depth) {
+        mPipelineDepth = depth;
+    }
+
+    /**
+     * Sets the clock of the camera image timestamps, so the latency trace can bring them
+     * to the clock of System.nanoTime. Timestamps of an UNKNOWN source are monotonic and
+     * used as they are, the default.
+     * @param source the SENSOR_INFO_TIMESTAMP_SOURCE of the camera
+     */
+    public void setTimestampSource(int source) {
+        mRealtimeTimestamps = source == CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME;
+    }
+
+    /**
+     * @return the processing resolution chosen by the governor, which the processing image
+     * reader should be configured with, or null if none has been chosen yet
+     */
+    public Size getChosenResolution() {
+        ResolutionGovernor governor = mGovernor;
+        return governor == null ? null : governor.getChosen();
+    }
+
+    /**
+     * @return the trace of the frames from capture to draw, the renderer marks the
+     * points it reaches in it, or null if not LATENCY_TRACE
+     */
+    public LatencyTrace getLatencyTrace() {
+        return mLatencyTrace;
+    }
+
+    /**
+     * Logs the latency of every hop from capture to draw and the frames dropped before
+     * acquisition, and writes the trace of the latest frames to LATENCY_TRACE_FILEPATH.
+     * Does nothing if not LATENCY_TRACE.
+     */
+    public void reportLatency() {
+        if (mLatencyTrace == null) {
+            return;
+        }
+        for (String line : mLatencyTrace.summarize().split("\n")) {
+            Log.i(TAG, "LATENCY " + line.trim());
+        }
+        File file = new File(Environment.getExternalStorageDirectory() + LATENCY_TRACE_FILEPATH);
+        try {
+            mLatencyTrace.export(file);
+        } catch (IOException e) {
+            Log.e(TAG, "UNABLE TO WRITE LATENCY TRACE: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Sets the filter the cube pose goes through before it is published. Filtering
+     * trades some latency for less jitter. Must be called before the tracker is started.
+     * @param filter the pose filter, or null to publish the raw poses
+     */
+    public void setPoseFilter(PoseFilter filter) {
+        mPoseFilter = filter;
+    }
+
+    /**
+     * Runs the acquisition and conversion stage on the calling thread. When pipelined,
+     * the candidate extraction and the identification and pose stages are started on
+     * their own threads and joined when the tracker terminates.
+     */
     @Override
     public void run() {
         // get instrinsic camera parameters from saved calibration
         CameraParameters camParams = new CameraParameters();
         String externalDir = Environment.getExternalStorageDirectory().toString();
         camParams.readFromFile(externalDir + MainActivity.DATA_FILEPATH);
+        if (camParams.getCamSize() == null) {
+            Log.w(TAG, "CALIBRATION SIZE UNKNOWN, ASSUMING " + (int) LEGACY_CALIBRATION_SIZE.width + "x"
+                    + (int) LEGACY_CALIBRATION_SIZE.height);
+            camParams.setCamSize(LEGACY_CALIBRATION_SIZE);
+        }
+        // the camera matrix is scaled to the size of the frames as they come
+        mCalibParams = camParams;
 
-        // scale camera matrix based on processing resolution
-        // Assume the camera was calibrated at 1920 X 1080
-        camParams.setCamSize(new Size(1920, 1080));
-        try {
-            camParams.resize(new Size(mImgReader.getWidth(), mImgReader.getHeight()));
-        } catch (CPException e) {
-            Log.e(TAG, "CAMERA PARAMS NOT VALID");
+        // create the models of the tracked cubes, in the order of mObjectIds
+        CubeModel wandCube = null;
+        if (CUBE_MODEL_POSE) {
+            wandCube = new CubeModel(WAND_CUBE_IDS, mMarkerSize, mPaddingSize);
+            mObjects = new MultiObjectTracker();
+            mObjects.setPoseTracking(POSE_TRACKING);
+            mWandObject = mObjects.register(WAND_OBJECT_ID, wandCube);
+            if (TRACK_REFERENCE_CUBE) {
+                mObjects.register(REFERENCE_OBJECT_ID, new CubeModel(REFERENCE_CUBE_IDS, mMarkerSize, mPaddingSize));
+            }
+        } else {
+            mCubeDetector = new CubeDetector();
+            mCubeConfig = new CubeConfiguration(WAND_CUBE_IDS);
+            mWandObject = 0;
+        }
+        mPoseRvecs = new double[mObjectIds.length][3];
+        mPoseTvecs = new double[mObjectIds.length][3];
+        mPoseFound = new boolean[mObjectIds.length];
+        if (RECORD_POSES) {
+            try {
+                mPoseRecorder = new PoseRecorder(new File(externalDir + POSE_RECORDING_FILEPATH));
+            } catch (IOException e) {
+                Log.e(TAG, "UNABLE TO RECORD POSES");
+            }
+        }
+        if (RECORD_FRAMES && GRAY_TRACKING) {
+            startFrameRecording(new File(externalDir + FRAME_RECORDING_FILEPATH));
+        }
+        if (ROI_TRACKING && mObjectIds.length == 1) {
+            mRoiTracker = new RoiTracker(wandCube, ROI_MOTION_MARGIN,
+                    ROI_MAX_MISSES, ROI_FULL_FRAME_INTERVAL);
         }
 
+        if (FLOW_TRACKING) {
+            mFlowTracker = new FlowTracker(FLOW_WINDOW_SIZE, FLOW_PYRAMID_LEVELS, FLOW_MAX_FB_ERROR);
+        }
+        if (DECODE_WORKERS > 0) {
+            mDecodePool = Executors.newFixedThreadPool(DECODE_WORKERS, new ThreadFactory() {
+                private int mCount = 0;
 
-        // create a cube configuration for our detector cube
-        // we're just using the first 6 marker id's
-        int[] ids = new int[] {1, 2, 3, 4, 5, 6};
-        CubeConfiguration cubeConfig = new CubeConfiguration(ids);
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, TAG + "-decode-" + mCount++);
+                }
+            });
+        }
 
-        while (running) {
-            long start = 0;
+        // every frame that can be in flight at once: one in each queue and one per stage
+        int frameCount = PIPELINED_TRACKING ? 2 * mPipelineDepth + TrackingStats.STAGE_COUNT : 1;
+        mFreeFrames = new ArrayBlockingQueue<>(frameCount);
+        for (int i = 0; i < frameCount; i++) {
+            mFreeFrames.add(new TrackingFrame());
+        }
+
+        Thread candidateThread = null;
+        Thread poseThread = null;
+        if (PIPELINED_TRACKING) {
+            mConvertedFrames = new FrameQueue<>(mPipelineDepth);
+            mCandidateFrames = new FrameQueue<>(mPipelineDepth);
+            candidateThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runCandidateStage();
+                }
+            }, TAG + "-candidates");
+            poseThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runPoseStage();
+                }
+            }, TAG + "-pose");
+            candidateThread.start();
+            poseThread.start();
+        }
+        Thread governorThread = null;
+        if (RESOLUTION_GOVERNOR) {
+            governorThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runGovernor();
+                }
+            }, TAG + "-governor");
+            governorThread.start();
+        }
+
+        MarkerDetector candidateDetector = createCandidateDetector();
+        MarkerDetector poseDetector = createPoseDetector();
+        Vector<Marker> detectedMarkers = new Vector<>();
+
+        // images only start coming once listening
+        synchronized (mPauseLock) {
+            if (!paused) {
+                startListening();
+            }
+        }
+        mLastAcquireCpuNs = Debug.threadCpuTimeNanos();
+        while (waitWhilePaused()) {
+            TrackingFrame frame = acquireFrame();
+            if (frame == null) {
+                continue;
+            }
+
+            if (PIPELINED_TRACKING) {
+                TrackingFrame dropped = mConvertedFrames.offer(frame);
+                if (dropped != null) {
+                    recycleFrame(dropped, TrackingStats.STAGE_CANDIDATES);
+                }
+            } else if (CUBE_MODEL_POSE) {
+                // run every stage in turn on this thread
+                findCandidates(frame, candidateDetector);
+                identifyAndSolve(frame, candidateDetector, poseDetector, detectedMarkers);
+                recycleFrame(frame, -1);
+            } else {
+                detectCube(frame);
+                recycleFrame(frame, -1);
+            }
             if (BENCHMARK_TESTING) {
-                start = System.currentTimeMillis();
-            }
-
-            // get the currently captured image
-            Image curImg = mImgReader.acquireLatestImage();
-            if (curImg != null) {
-                //Log.d(TAG, "PROCESSING FRAME");
-                Mat rgba = getCvColorImage(curImg);
-                // release image immediately because we don't need it anymore
-                curImg.close();
-
-                CubeDetector cubeDetector = new CubeDetector();
-                Vector<Cube> detectedCubes = new Vector<Cube>();
-
-
-                // now process the image for cubes
-                cubeDetector.detect(rgba, cubeConfig, detectedCubes, camParams, mMarkerSize, mPaddingSize);
-                if (detectedCubes.size() != 0) {
-                    rvec = detectedCubes.get(0).getRvec();
-                    tvec = detectedCubes.get(0).getTvec();
-//                    float[] tvecCam = new float[3];
-//                    tvecCam[0] = (float) tvec.get(0, 0)[0];
-//                    tvecCam[1] = (float) tvec.get(1, 0)[0];
-//                    tvecCam[2] = (float) tvec.get(2, 0)[0];
-                    newMarker = true;
-                    markerDetected = true;
+                mLastAcquireCpuNs = Debug.threadCpuTimeNanos();
+            }
+        }
+
+        if (PIPELINED_TRACKING) {
+            try {
+                candidateThread.join();
+                poseThread.join();
+            } catch (InterruptedException e) {
+                Log.e(TAG, "UNABLE TO PROPERLY SHUTDOWN PIPELINE THREADS");
+            }
+            // give back the frames still waiting in the queues
+            TrackingFrame frame;
+            while ((frame = mConvertedFrames.poll()) != null) {
+                recycleFrame(frame, -1);
+            }
+            while ((frame = mCandidateFrames.poll()) != null) {
+                recycleFrame(frame, -1);
+            }
+        }
+
+        if (RESOLUTION_GOVERNOR) {
+            try {
+                governorThread.join();
+            } catch (InterruptedException e) {
+                Log.e(TAG, "UNABLE TO PROPERLY SHUTDOWN GOVERNOR THREAD");
+            }
+        }
+
+        // free all the native memory used for the frames
+        for (Mat view : mGrayViews.values()) {
+            view.release();
+        }
+        mGrayViews.clear();
+        mFramePool.release();
+        if (mObjects != null) {
+            mObjects.release();
+        }
+        if (mFlowTracker != null) {
+            mFlowTracker.release();
+            mFlowTracker = null;
+        }
+        if (mDecodePool != null) {
+            mDecodePool.shutdown();
+            mDecodePool = null;
+        }
+        if (mPoseRecorder != null) {
+            mPoseRecorder.close();
+        }
+        if (mFrameRecorder != null) {
+            try {
+                mFrameRecorder.close();
+            } catch (IOException e) {
+                Log.e(TAG, "UNABLE TO FINISH FRAME RECORDING: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Acquisition and conversion stage. Gets the latest camera image, waiting for one
+     * if needed, and converts it into a free frame.
+     * @return the converted frame or null if there was no new image
+     */
+    private TrackingFrame acquireFrame() {
+        // get the currently captured image
+        Image curImg;
+        if (EVENT_DRIVEN_ACQUISITION) {
+            try {
+                curImg = mImageSlot.take();
+            } catch (InterruptedException e) {
+                return null;
+            }
+        } else {
+            curImg = mImgReader.acquireLatestImage();
+        }
+        if (curImg == null) {
+            return null;
+        }
+        TrackingFrame frame = mFreeFrames.poll();
+        if (frame == null) {
+            // every frame is in flight, skip this image
+            curImg.close();
+            return null;
+        }
+        //Log.d(TAG, "PROCESSING FRAME");
+        long convStart = System.nanoTime();
+        frame.sequence = mFrameSequence++;
+        frame.acquiredNs = convStart;
+        frame.captureTimestampNs = curImg.getTimestamp();
+        if (GRAY_TRACKING) {
+            frame.buffer = getCvStridedYPlane(curImg, frame.sequence);
+            frame.image = mGrayViews.get(frame.buffer);
+        } else {
+            frame.buffer = getCvColorImage(curImg);
+            frame.image = frame.buffer;
+        }
+        // release image immediately because we don't need it anymore
+        curImg.close();
+        if (mSampleRequested) {
+            copySample(frame.image);
+        }
+        Size processingSize = mProcessingSize;
+        if (processingSize != null) {
+            scaleFrame(frame, processingSize);
+        }
+        frame.camParams = camParamsFor(frame.image.cols(), frame.image.rows());
+        frame.stageDoneNs[TrackingStats.STAGE_CONVERSION] = System.nanoTime();
+        if (mLatencyTrace != null) {
+            // realtime camera timestamps count from boot, including deep sleep unlike System.nanoTime
+            long captureNs = frame.captureTimestampNs;
+            if (mRealtimeTimestamps) {
+                captureNs -= SystemClock.elapsedRealtimeNanos() - System.nanoTime();
+            }
+            mLatencyTrace.begin(frame.sequence, captureNs, convStart);
+            mLatencyTrace.mark(frame.sequence, LatencyTrace.CONVERTED,
+                    frame.stageDoneNs[TrackingStats.STAGE_CONVERSION]);
+        }
+        if (BENCHMARK_TESTING) {
+            // the CPU used since the last frame includes any time spent polling for this one
+            long cpuNs = Debug.threadCpuTimeNanos();
+            mStats.record(TrackingStats.STAGE_CONVERSION, frame, convStart, cpuNs - mLastAcquireCpuNs);
+            double convMs = (frame.stageDoneNs[TrackingStats.STAGE_CONVERSION] - convStart) / 1000000.0;
+            conversionTimeData.add(convMs);
+            totalBytesCopied += bytesCopied;
+            Log.i(TAG, "CONVERSION = " + convMs + " ms, " + bytesCopied + " bytes copied");
+        }
+        return frame;
+    }
+
+    /** Loop of the candidate extraction stage thread */
+    private void runCandidateStage() {
+        MarkerDetector detector = createCandidateDetector();
+        while (running) {
+            TrackingFrame frame = mConvertedFrames.poll(STAGE_POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            if (frame == null) {
+                continue;
+            }
+            findCandidates(frame, detector);
+            TrackingFrame dropped = mCandidateFrames.offer(frame);
+            if (dropped != null) {
+                recycleFrame(dropped, TrackingStats.STAGE_POSE);
+            }
+        }
+    }
+
+    /** Detector for the candidate extraction stage */
+    private MarkerDetector createCandidateDetector() {
+        MarkerDetector detector = new MarkerDetector();
+        detector.setPyramidLevels(PYRAMID_LEVELS);
+        if (MEAN_THRESHOLD) {
+            detector.setThresholdMethod(MarkerDetector.thresSuppMethod.MEAN_THRES);
+            detector.setThresholdParams(MEAN_THRESHOLD_BLOCK_SIZE, MEAN_THRESHOLD_CONSTANT);
+            detector.setThresholdMeanScale(MEAN_THRESHOLD_SCALE);
+        }
+        return detector;
+    }
+
+    /** Detector for the identification and pose stage */
+    private MarkerDetector createPoseDetector() {
+        MarkerDetector detector = new MarkerDetector();
+        // the corners of the markers must be in the order of the object models
+        detector.setOrientedCorners(true);
+        detector.setCodeSampling(CODE_SAMPLING);
+        detector.setCornerRefinement(CORNER_REFINEMENT);
+        detector.setPoseTracking(POSE_TRACKING);
+        if (mDecodePool != null) {
+            detector.setWorkerPool(mDecodePool, DECODE_WORKERS);
+            detector.setParallelThresholds(DECODE_MIN_CANDIDATES, DECODE_MIN_MARKERS);
+        }
+        return detector;
+    }
+
+    /** Loop of the identification and pose stage thread */
+    private void runPoseStage() {
+        MarkerDetector detector = createPoseDetector();
+        // finds the candidates of the frames the markers could not be followed in
+        MarkerDetector candidateDetector = FLOW_TRACKING ? createCandidateDetector() : null;
+        Vector<Marker> detectedMarkers = new Vector<>();
+        while (running) {
+            TrackingFrame frame = mCandidateFrames.poll(STAGE_POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            if (frame == null) {
+                continue;
+            }
+            identifyAndSolve(frame, candidateDetector, detector, detectedMarkers);
+            recycleFrame(frame, -1);
+        }
+    }
+
+    /**
+     * Candidate extraction stage: threshold, contours and quad filtering, only in the
+     * region around the last cube pose when ROI tracking. Skipped for the frames the
+     * markers are to be followed in when FLOW_TRACKING.
+     */
+    private void findCandidates(TrackingFrame frame, MarkerDetector detector) {
+        long start = System.nanoTime();
+        long cpuStart = BENCHMARK_TESTING ? Debug.threadCpuTimeNanos() : 0;
+        if (mFlowTracking && mFlowFrames < FLOW_DETECTION_INTERVAL - 1) {
+            frame.flowOnly = true;
+            mFlowFrames++;
+        } else {
+            mFlowFrames = 0;
+            if (mRoiTracker != null) {
+                frame.roi = mRoiTracker.nextRegion(frame.camParams, frame.image.cols(), frame.image.rows());
+            }
+            detector.findCandidates(frame.image, frame.roi, frame.candidates);
+        }
+        frame.stageDoneNs[TrackingStats.STAGE_CANDIDATES] = System.nanoTime();
+        if (BENCHMARK_TESTING) {
+            mStats.record(TrackingStats.STAGE_CANDIDATES, frame, start, Debug.threadCpuTimeNanos() - cpuStart);
+        }
+    }
+
+    /**
+     * Identification and pose stage: reads the marker codes, solves the pose of every
+     * tracked object from them and publishes the poses. For the frames the candidates
+     * were not looked for in, the markers of the last frame are followed instead, and
+     * the candidates are looked for in the whole frame if that fails.
+     */
+    private void identifyAndSolve(TrackingFrame frame, MarkerDetector candidateDetector,
+                                  MarkerDetector detector, Vector<Marker> detectedMarkers) {
+        long start = System.nanoTime();
+        long cpuStart = BENCHMARK_TESTING ? Debug.threadCpuTimeNanos() : 0;
+        boolean followed = false;
+        if (frame.flowOnly) {
+            followed = mFlowTracker.track(frame.image);
+            if (!followed) {
+                // a marker was lost, detect them all again
+                candidateDetector.findCandidates(frame.image, frame.roi, frame.candidates);
+            }
+        }
+        if (followed) {
+            mObjects.solve(mFlowTracker.getIds(), mFlowTracker.getCorners(),
+                    mFlowTracker.getMarkerCount(), frame.camParams);
+        } else {
+            detector.identifyCandidates(frame.image, frame.candidates, detectedMarkers, frame.camParams, mMarkerSize);
+        }
+        if (mLatencyTrace != null) {
+            mLatencyTrace.mark(frame.sequence, LatencyTrace.DETECTED, System.nanoTime());
+        }
+
+        if (!followed) {
+            // now solve the pose of every object from its markers
+            mObjects.solve(detectedMarkers, frame.camParams);
+            if (mFlowTracker != null) {
+                mFlowTracker.start(frame.image, detectedMarkers);
+            }
+        }
+        if (mFlowTracker != null) {
+            mFlowTracking = mFlowTracker.isTracking();
+        }
+        // a followed frame says nothing of the search region, only of the pose
+        if (mRoiTracker != null && (!followed || mObjects.isFound(mWandObject))) {
+            mRoiTracker.update(frame.roi, mObjects.isFound(mWandObject),
+                    mObjects.getRvec(mWandObject), mObjects.getTvec(mWandObject));
+        }
+        for (int object = 0; object < mObjects.getObjectCount(); object++) {
+            mPoseFound[object] = mObjects.isFound(object);
+            if (mPoseFound[object]) {
+                mObjects.getRvec(object).get(0, 0, mPoseRvecs[object]);
+                mObjects.getTvec(object).get(0, 0, mPoseTvecs[object]);
+            }
+        }
+        publishPoses(frame, start, cpuStart);
+    }
+
+    /**
+     * Pose stage without CUBE_MODEL_POSE: finds the wand cube in the whole frame with the
+     * CubeDetector of cardboardarlibrary, as the tracker always did, and publishes its pose
+     */
+    private void detectCube(TrackingFrame frame) {
+        long start = System.nanoTime();
+        long cpuStart = BENCHMARK_TESTING ? Debug.threadCpuTimeNanos() : 0;
+        mDetectedCubes.clear();
+        mCubeDetector.detect(frame.image, mCubeConfig, mDetectedCubes, frame.camParams, mMarkerSize, mPaddingSize);
+        if (mLatencyTrace != null) {
+            mLatencyTrace.mark(frame.sequence, LatencyTrace.DETECTED, System.nanoTime());
+        }
+        mPoseFound[mWandObject] = !mDetectedCubes.isEmpty();
+        if (mPoseFound[mWandObject]) {
+            Mat rvec = mDetectedCubes.get(0).getRvec();
+            Mat tvec = mDetectedCubes.get(0).getTvec();
+            for (int i = 0; i < 3; i++) {
+                mPoseRvecs[mWandObject][i] = rvec.get(i, 0)[0];
+                mPoseTvecs[mWandObject][i] = tvec.get(i, 0)[0];
+            }
+        }
+        publishPoses(frame, start, cpuStart);
+    }
+
+    /**
+     * Publishes the poses left in mPoseFound, mPoseRvecs and mPoseTvecs for the frame, and
+     * ends the pose stage of the frame begun at start
+     */
+    private void publishPoses(TrackingFrame frame, long start, long cpuStart) {
+        for (int object = 0; object < mObjectIds.length; object++) {
+            boolean found = mPoseFound[object];
+            double[] rvec = mPoseRvecs[object];
+            double[] tvec = mPoseTvecs[object];
+            if (found) {
+                if (object == mWandObject) {
+                    if (mPoseRecorder != null) {
+                        mPoseRecorder.record(frame.captureTimestampNs, rvec, tvec);
+                    }
+                    if (mPoseFilter != null) {
+                        mPoseFilter.filter(frame.captureTimestampNs, rvec, tvec);
+                    }
                     Log.i(TAG, "MARKER DETECTED");
-                } else {
-                    markerDetected = false;
                 }
+            }
+            mPoseChannels[object].publish(frame.sequence, frame.captureTimestampNs, found, rvec, tvec);
+        }
+        frame.stageDoneNs[TrackingStats.STAGE_POSE] = System.nanoTime();
+        if (mLatencyTrace != null) {
+            mLatencyTrace.mark(frame.sequence, LatencyTrace.PUBLISHED, frame.stageDoneNs[TrackingStats.STAGE_POSE]);
+        }
+        if (mGovernor != null) {
+            checkTrackingRate(frame);
+        }
 
-                if (BENCHMARK_TESTING) {
-                    // record FPS
-                    long end = System.currentTimeMillis();
-                    long diff = end - start;
-                    double seconds = (double) diff / 1000.0;
-                    double fps = 1.0 / seconds;
-                    frameRateData.add(fps);
-                    Log.i(TAG, "FPS = " + fps);
+        if (BENCHMARK_TESTING) {
+            mStats.record(TrackingStats.STAGE_POSE, frame, start, Debug.threadCpuTimeNanos() - cpuStart);
+            // record FPS from the time between finished frames
+            long end = frame.stageDoneNs[TrackingStats.STAGE_POSE];
+            if (mLastFrameDoneNs != 0) {
+                double seconds = (end - mLastFrameDoneNs) / 1e9;
+                double fps = 1.0 / seconds;
+                frameRateData.add(fps);
+                Log.i(TAG, "FPS = " + fps);
+            }
+            mLastFrameDoneNs = end;
+            mFramesDone++;
+            if (mFramesDone % GAUGE_INTERVAL == 0) {
+                mGauges.log("FRAME " + mFramesDone, mFramePool);
+            }
+        }
+    }
+
+    /** Creates the frame recorder, with the calibration the frames can be replayed with */
+    private void startFrameRecording(File file) {
+        float[] cameraMatrix = new float[9];
+        mCalibParams.getCameraMatrix().get(0, 0, cameraMatrix);
+        double[] cameraMatrixValues = new double[9];
+        for (int i = 0; i < 9; i++) {
+            cameraMatrixValues[i] = cameraMatrix[i];
+        }
+        double[] distCoeffs = new double[5];
+        double[] calibDist = mCalibParams.getDistCoeff().toArray();
+        System.arraycopy(calibDist, 0, distCoeffs, 0, Math.min(calibDist.length, distCoeffs.length));
+        Size calibSize = mCalibParams.getCamSize();
+        try {
+            mFrameRecorder = new FrameRecorder(file, cameraMatrixValues, distCoeffs,
+                    (int) calibSize.width, (int) calibSize.height, mMarkerSize, mPaddingSize, COMPRESS_RECORDING);
+            Log.i(TAG, "RECORDING FRAMES TO " + file);
+        } catch (IOException e) {
+            Log.e(TAG, "UNABLE TO RECORD FRAMES: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Scales the frame image down to the processing resolution, keeping the aspect ratio
+     * of the camera images.
+     */
+    private void scaleFrame(TrackingFrame frame, Size processingSize) {
+        int width = (int) processingSize.width;
+        int height = (int) Math.round(processingSize.width * frame.image.rows() / frame.image.cols());
+        if (width >= frame.image.cols()) {
+            return;
+        }
+        Mat scaled = mFramePool.acquireMat(height, width, frame.image.type());
+        Imgproc.resize(frame.image, scaled, new Size(width, height), 0, 0, Imgproc.INTER_AREA);
+        mFramePool.releaseMat(frame.buffer);
+        frame.buffer = scaled;
+        frame.image = scaled;
+    }
+
+    /**
+     * @return the camera parameters scaled to frames of the given size, only scaled again
+     * when the size changes
+     */
+    private CameraParameters camParamsFor(int width, int height) {
+        if (mFrameCamParams == null || width != mFrameParamsWidth || height != mFrameParamsHeight) {
+            CameraParameters camParams = new CameraParameters();
+            mCalibParams.copyTo(camParams);
+            try {
+                camParams.resize(new Size(width, height));
+            } catch (CPException e) {
+                Log.e(TAG, "CAMERA PARAMS NOT VALID");
+            }
+            // frames in flight keep the parameters they were converted with
+            mFrameCamParams = camParams;
+            mFrameParamsWidth = width;
+            mFrameParamsHeight = height;
+            Log.i(TAG, "PROCESSING AT " + width + "x" + height);
+        }
+        return mFrameCamParams;
+    }
+
+    /**
+     * Loop of the resolution governor thread. Evaluates a camera frame at startup, then
+     * sleeps until the tracking rate drops while a lower resolution is left to fall back to.
+     */
+    private void runGovernor() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        ResolutionGovernor governor = new ResolutionGovernor(PROCESSING_RESOLUTIONS, TARGET_TRACKING_FPS,
+                GOVERNOR_RUNS, PYRAMID_LEVELS);
+        mGovernor = governor;
+        Mat sample = new Mat();
+        while (running) {
+            if (!takeSample(sample)) {
+                continue;
+            }
+            applyResolution(governor.evaluate(sample, mMarkerSize));
+            mRateWindowReset = true;
+            synchronized (mSampleLock) {
+                mRateDropped = false;
+                try {
+                    while (running && !(mRateDropped && !governor.isLowest())) {
+                        mSampleLock.wait();
+                    }
+                } catch (InterruptedException e) {
+                    break;
                 }
             }
         }
+        sample.release();
+        governor.release();
+    }
+
+    /**
+     * Averages the time the frames take from conversion to published pose, including any
+     * wait between the stages, and wakes the governor when the rate it allows drops below
+     * the target. Unlike the rate of finished frames it does not drop with the camera rate.
+     */
+    private void checkTrackingRate(TrackingFrame frame) {
+        long end = frame.stageDoneNs[TrackingStats.STAGE_POSE];
+        if (mRateWindowReset || mRateWindowStartNs == 0) {
+            // frames processed at the last resolution do not count
+            mRateWindowReset = false;
+            mRateWindowStartNs = end;
+            mRateWindowFrames = 0;
+            mRateWindowBusyNs = 0;
+            return;
+        }
+        mRateWindowFrames++;
+        mRateWindowBusyNs += end - frame.acquiredNs;
+        if (end - mRateWindowStartNs < GOVERNOR_RATE_WINDOW_MS * 1000000) {
+            return;
+        }
+        double fps = 1e9 * mRateWindowFrames / Math.max(mRateWindowBusyNs, 1);
+        mRateWindowStartNs = end;
+        mRateWindowFrames = 0;
+        mRateWindowBusyNs = 0;
+        if (fps < GOVERNOR_DROP_FRACTION * TARGET_TRACKING_FPS) {
+            Log.i(TAG, "TRACKING RATE DROPPED TO " + fps + " FPS");
+            synchronized (mSampleLock) {
+                mRateDropped = true;
+                mSampleLock.notifyAll();
+            }
+        }
+    }
 
+    /**
+     * Asks the conversion stage for a copy of the next camera frame and waits for it.
+     * @return false if the tracker stopped first
+     */
+    private boolean takeSample(Mat sample) {
+        synchronized (mSampleLock) {
+            mSample = sample;
+            mSampleRequested = true;
+            while (mSampleRequested && running) {
+                try {
+                    mSampleLock.wait(STAGE_POLL_TIMEOUT_MS);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+            mSample = null;
+            if (mSampleRequested) {
+                mSampleRequested = false;
+                return false;
+            }
+            return true;
+        }
+    }
+
+    /** Copies a camera frame for the governor if it is still waiting for one */
+    private void copySample(Mat image) {
+        synchronized (mSampleLock) {
+            if (mSampleRequested) {
+                image.copyTo(mSample);
+                mSampleRequested = false;
+                mSampleLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Processes the next frames at the given resolution, no larger than the camera images
+     * as the governor only chooses among the resolutions that fit them.
+     */
+    private void applyResolution(Size size) {
+        mProcessingSize = size.width >= mImgReader.getWidth() ? null : size;
+    }
+
+    /**
+     * Gives the buffers of a frame back to the pool and the frame to the free list.
+     * @param frame the frame
+     * @param droppedBefore the stage the frame was dropped in front of, or -1 if the
+     *                      frame was not dropped
+     */
+    private void recycleFrame(TrackingFrame frame, int droppedBefore) {
+        if (BENCHMARK_TESTING && droppedBefore >= 0) {
+            mStats.recordDrop(droppedBefore);
+        }
+        mFramePool.releaseMat(frame.buffer);
+        frame.reset();
+        mFreeFrames.offer(frame);
     }
 
     public void calcAvgFps() {
@@ -194,24 +1230,91 @@ public class UltrasoundTracker implements Runnable {
             }
             double avg = sum / frameRateData.size();
             Log.i(TAG, "AVERAGE FPS = " + avg);
+
+            // and average conversion cost
+            sum = 0.0;
+            for (double ms : conversionTimeData) {
+                sum += ms;
+            }
+            int frames = conversionTimeData.size();
+            Log.i(TAG, "AVERAGE CONVERSION = " + (sum / frames) + " ms, "
+                    + (totalBytesCopied / Math.max(frames, 1)) + " bytes copied per frame");
+
+            // throughput and latency of each stage
+            mStats.log();
+            if (ROI_TRACKING && mRoiTracker != null) {
+                mRoiTracker.log();
+            }
         }
     }
 
     /**
      * Converts the given image to a CV RGBA Mat.
      * @param img
-     * @return
+     * @return RGBA Mat from the frame pool
      */
     private Mat getCvColorImage(Image img) {
+        int width = img.getWidth();
+        int height = img.getHeight();
+        Image.Plane[] planes = img.getPlanes();
         // convert image to cv matrix
-        Mat yuv = imageToMat(img);
+        byte[] data = mFramePool.acquireBytes(width * height * ImageFormat.getBitsPerPixel(ImageFormat.YUV_420_888) / 8);
+        byte[] rowData = mFramePool.acquireBytes(planes[0].getRowStride());
+        Mat yuv = mFramePool.acquireMat(height + height / 2, width, CvType.CV_8UC1);
+        imageToMat(img, data, rowData, yuv);
+        mFramePool.releaseBytes(data);
+        mFramePool.releaseBytes(rowData);
         // convert yuv mat to rgba
-        Mat rgba = new Mat(img.getHeight(), img.getWidth(), CvType.CV_8UC4);
+        Mat rgba = mFramePool.acquireMat(height, width, CvType.CV_8UC4);
         Imgproc.cvtColor(yuv, rgba, Imgproc.COLOR_YUV2RGBA_I420);
+        mFramePool.releaseMat(yuv);
+
+        // the planes are copied to a java array, then to the native Mat, then expanded to RGBA
+        long yuvBytes = yuv.total();
+        bytesCopied = 2 * yuvBytes + rgba.total() * rgba.channels();
 
         return rgba;
     }
 
+    /**
+     * Gets the Y plane of the given YUV_420_888 image as a CV Mat. The chroma planes are
+     * never read. The plane is moved in a single bulk copy keeping its row stride, so no
+     * per row or per pixel work is done in java. The grey image of the frame is the view
+     * of the returned Mat held in {@link #mGrayViews}.
+     * @param img Image in the YUV_420_888 format.
+     * @return Mat from the frame pool whose width is the row stride of the image.
+     */
+    private Mat getCvStridedYPlane(Image img, long sequence) {
+        Image.Plane yPlane = img.getPlanes()[0];
+        ByteBuffer buffer = yPlane.getBuffer();
+        int rowStride = yPlane.getRowStride();
+        int width = img.getWidth();
+        int height = img.getHeight();
+
+        byte[] yData = mFramePool.acquireBytes(rowStride * height);
+        Mat yStrided = mFramePool.acquireMat(height, rowStride, CvType.CV_8UC1);
+        if (!mGrayViews.containsKey(yStrided)) {
+            mGrayViews.put(yStrided, yStrided.submat(0, height, 0, width));
+        }
+
+        // the buffer may not include the padding of the last row, only read what is there
+        int length = buffer.remaining();
+        buffer.get(yData, 0, length);
+        yStrided.put(0, 0, yData);
+        if (mFrameRecorder != null) {
+            try {
+                mFrameRecorder.record(sequence, img.getTimestamp(), yData, length, width, height, rowStride);
+            } catch (IOException e) {
+                Log.e(TAG, "FRAME RECORDING STOPPED: " + e.getMessage());
+                mFrameRecorder = null;
+            }
+        }
+        mFramePool.releaseBytes(yData);
+        bytesCopied = (long) length + yData.length;
+
+        return yStrided;
+    }
+
     /**
      * Takes an Android Image in the YUV_420_888 format and returns an OpenCV Mat.
      * From: https://gist.github.com/camdenfullmer/dfd83dfb0973663a7974
@@ -219,6 +1322,22 @@ public class UltrasoundTracker implements Runnable {
      * @return OpenCV Mat.
      */
     public static Mat imageToMat(Image image) {
+        byte[] data = new byte[image.getWidth() * image.getHeight() * ImageFormat.getBitsPerPixel(ImageFormat.YUV_420_888) / 8];
+        byte[] rowData = new byte[image.getPlanes()[0].getRowStride()];
+        Mat mat = new Mat(image.getHeight() + image.getHeight() / 2, image.getWidth(), CvType.CV_8UC1);
+        imageToMat(image, data, rowData, mat);
+        return mat;
+    }
+
+    /**
+     * Copies an Android Image in the YUV_420_888 format into an existing OpenCV Mat
+     * using the given buffers, so nothing is allocated.
+     * @param image Image in the YUV_420_888 format.
+     * @param data buffer of width * height * 1.5 bytes
+     * @param rowData buffer of at least the row stride of the Y plane
+     * @param mat CV_8UC1 Mat of height * 1.5 rows and width cols
+     */
+    public static void imageToMat(Image image, byte[] data, byte[] rowData, Mat mat) {
         ByteBuffer buffer;
         int rowStride;
         int pixelStride;
@@ -227,8 +1346,6 @@ public class UltrasoundTracker implements Runnable {
         int offset = 0;
 
         Image.Plane[] planes = image.getPlanes();
-        byte[] data = new byte[image.getWidth() * image.getHeight() * ImageFormat.getBitsPerPixel(ImageFormat.YUV_420_888) / 8];
-        byte[] rowData = new byte[planes[0].getRowStride()];
 
         for (int i = 0; i < planes.length; i++) {
             buffer = planes[i].getBuffer();
@@ -267,10 +1384,7 @@ public class UltrasoundTracker implements Runnable {
             }
         }
 
-        // Finally, create the Mat.
-        Mat mat = new Mat(height + height / 2, width, CvType.CV_8UC1);
+        // Finally, fill the Mat.
         mat.put(0, 0, data);
-
-        return mat;
     }
 }
@@ -12,12 +12,15 @@ import com.informatics.lehigh.cardboneviz.CameraCalibrationActivity;
 import com.informatics.lehigh.cardboneviz.MainActivity;
 
 import org.opencv.core.Mat;
+import org.opencv.core.Size;
 
 import java.io.File;
 import java.io.FileWriter;
 import java.io.PrintWriter;
 import java.util.Map;
 
+import es.ava.aruco.CameraParameters;
+
 public abstract class CalibrationResult {
     private static final String TAG = "CalibrationResult";
 
@@ -25,7 +28,7 @@ public abstract class CalibrationResult {
     private static final int CAMERA_MATRIX_COLS = 3;
     private static final int DISTORTION_COEFFICIENTS_SIZE = 5;
 
-    public static void save(Activity activity, Mat cameraMatrix, Mat distortionCoefficients) {
+    public static void save(Activity activity, Mat cameraMatrix, Mat distortionCoefficients, Size imageSize) {
         SharedPreferences sharedPref = activity.getPreferences(Context.MODE_PRIVATE);
         SharedPreferences.Editor editor = sharedPref.edit();
 
@@ -45,6 +48,10 @@ public abstract class CalibrationResult {
             editor.putFloat(i.toString(), (float)distortionCoefficientsArray[i-shift]);
         }
 
+        // the size of the calibration images, to scale the camera matrix to other sizes
+        editor.putFloat(Integer.toString(CameraParameters.CALIB_WIDTH_INDEX), (float) imageSize.width);
+        editor.putFloat(Integer.toString(CameraParameters.CALIB_HEIGHT_INDEX), (float) imageSize.height);
+
         editor.commit();
         Log.i(TAG, "Saved camera matrix: " + cameraMatrix.dump());
         Log.i(TAG, "Saved distortion coefficients: " + distortionCoefficients.dump());
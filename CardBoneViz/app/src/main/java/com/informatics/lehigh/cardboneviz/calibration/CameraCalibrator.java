@@ -148,6 +148,10 @@ public class CameraCalibrator {
         return mCameraMatrix;
     }
 
+    public Size getImageSize() {
+        return mImageSize;
+    }
+
     public Mat getDistortionCoefficients() {
         return mDistortionCoefficients;
     }
@@ -0,0 +1,55 @@
+package com.informatics.lehigh.cardboneviz.tracking;
+
+import org.opencv.core.Point3;
+
+/**
+ * Geometry of a planar board of markers laid out in a grid, used as a reference that
+ * stays still next to the patient. The board lies in the z = 0 plane with its center at
+ * the origin, x to the right and y up, and the markers face +z. Markers are given row by
+ * row from the top left.
+ */
+public class BoardModel implements MarkerModel {
+
+    /** Marker id at each place of the grid */
+    private final int[] mIds;
+    /** Corners of each marker in board coordinates */
+    private final Point3[][] mMarkerCorners;
+
+    /**
+     * @param ids the marker ids, row by row from the top left
+     * @param columns the number of markers in a row
+     * @param markerSizeMeters the size of the markers
+     * @param separationMeters the space between two markers
+     */
+    public BoardModel(int[] ids, int columns, float markerSizeMeters, float separationMeters) {
+        if (columns <= 0 || ids.length % columns != 0) {
+            throw new IllegalArgumentException("board of " + ids.length + " markers can't have "
+                    + columns + " columns");
+        }
+        mIds = ids.clone();
+        mMarkerCorners = new Point3[ids.length][];
+        int rows = ids.length / columns;
+        double pitch = markerSizeMeters + separationMeters;
+        double half = markerSizeMeters / 2.0;
+        for (int i = 0; i < ids.length; i++) {
+            double cx = (i % columns - (columns - 1) / 2.0) * pitch;
+            double cy = ((rows - 1) / 2.0 - i / columns) * pitch;
+            // same corner order as the markers of a cube face
+            mMarkerCorners[i] = new Point3[] {
+                    new Point3(cx - half, cy - half, 0),
+                    new Point3(cx - half, cy + half, 0),
+                    new Point3(cx + half, cy + half, 0),
+                    new Point3(cx + half, cy - half, 0)};
+        }
+    }
+
+    @Override
+    public int[] getIds() {
+        return mIds.clone();
+    }
+
+    @Override
+    public Point3[] getMarkerCorners(int index) {
+        return mMarkerCorners[index];
+    }
+}
@@ -0,0 +1,103 @@
+package com.informatics.lehigh.cardboneviz.tracking;
+
+import org.opencv.core.Point3;
+
+/**
+ * Geometry of a marker cube, used to solve the pose of the cube center from the
+ * markers detected on its faces. {@link MultiObjectTracker} uses all the visible corners
+ * in a single solvePnP, so the pose is as stable as the number of visible faces allows.
+ *
+ * The marker with ids[i] is on face i of the cube. Each face is given by the x and y
+ * axes of its marker and its outward normal, which is the z axis of the marker as
+ * aruco solves it. Faces 0 to 3 go around the cube (+Z, +X, -Z, -X) and faces 4 and 5
+ * are the top (+Y) and bottom (-Y).
+ */
+public class CubeModel implements MarkerModel {
+
+    /** {x axis, y axis, normal} of the marker on each face in cube coordinates */
+    private static final double[][][] FACES = {
+            {{ 1, 0, 0}, {0,  1,  0}, { 0,  0,  1}},
+            {{ 0, 0, -1}, {0,  1,  0}, { 1,  0,  0}},
+            {{-1, 0, 0}, {0,  1,  0}, { 0,  0, -1}},
+            {{ 0, 0, 1}, {0,  1,  0}, {-1,  0,  0}},
+            {{ 1, 0, 0}, {0,  0, -1}, { 0,  1,  0}},
+            {{ 1, 0, 0}, {0,  0,  1}, { 0, -1,  0}}
+    };
+    /** Corners of a marker in its own coordinates, in the order aruco returns them */
+    private static final double[][] MARKER_CORNERS = {{-1, -1}, {-1, 1}, {1, 1}, {1, -1}};
+
+    /** Marker id on each face */
+    private final int[] mIds;
+    /** Corners of the marker on each face in cube coordinates, ready for solvePnP */
+    private final Point3[][] mFaceCorners;
+    /** Corners of the cube itself */
+    private final Point3[] mCubeCorners = new Point3[8];
+
+    /**
+     * @param ids the id of the marker on each of the six faces
+     * @param markerSizeMeters the size of the markers
+     * @param paddingSizeMeters the size of the padding around each marker
+     */
+    public CubeModel(int[] ids, float markerSizeMeters, float paddingSizeMeters) {
+        mIds = ids.clone();
+        mFaceCorners = new Point3[ids.length][4];
+        double halfMarker = markerSizeMeters / 2.0;
+        double halfCube = halfMarker + paddingSizeMeters;
+        for (int face = 0; face < ids.length; face++) {
+            double[] x = FACES[face][0];
+            double[] y = FACES[face][1];
+            double[] n = FACES[face][2];
+            for (int c = 0; c < 4; c++) {
+                double mx = MARKER_CORNERS[c][0] * halfMarker;
+                double my = MARKER_CORNERS[c][1] * halfMarker;
+                mFaceCorners[face][c] = new Point3(
+                        halfCube * n[0] + mx * x[0] + my * y[0],
+                        halfCube * n[1] + mx * x[1] + my * y[1],
+                        halfCube * n[2] + mx * x[2] + my * y[2]);
+            }
+        }
+        for (int i = 0; i < 8; i++) {
+            mCubeCorners[i] = new Point3(
+                    (i & 1) == 0 ? -halfCube : halfCube,
+                    (i & 2) == 0 ? -halfCube : halfCube,
+                    (i & 4) == 0 ? -halfCube : halfCube);
+        }
+    }
+
+    /**
+     * @return the eight corners of the cube in cube coordinates
+     */
+    public Point3[] getCubeCorners() {
+        return mCubeCorners.clone();
+    }
+
+    /**
+     * @param id a marker id
+     * @return the face the marker is on or -1 if it is not part of the cube
+     */
+    public int faceOf(int id) {
+        for (int face = 0; face < mIds.length; face++) {
+            if (mIds[face] == id) {
+                return face;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the ids of the markers on the cube, by face
+     */
+    @Override
+    public int[] getIds() {
+        return mIds.clone();
+    }
+
+    /**
+     * @param face a face of the cube
+     * @return the corners of the marker on the face in cube coordinates
+     */
+    @Override
+    public Point3[] getMarkerCorners(int face) {
+        return mFaceCorners[face];
+    }
+}
@@ -0,0 +1,172 @@
+package com.informatics.lehigh.cardboneviz.tracking;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.MatOfFloat;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Point;
+import org.opencv.core.Size;
+import org.opencv.video.Video;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Vector;
+
+import es.ava.aruco.Marker;
+
+/**
+ * Follows the corners of the markers found by a full detection through the frames
+ * after it with pyramidal Lucas-Kanade optical flow, so the pose can be solved again
+ * without thresholding, tracing contours and reading codes. Each corner is tracked
+ * forward to the new frame and back again, and a marker is only kept if all its
+ * corners come back to where they were. Tracking stops as soon as a marker is lost,
+ * the frame then needs a full detection, which starts tracking again.
+ */
+public class FlowTracker {
+
+    private final Size mWinSize;
+    private final int mMaxLevel;
+    private final double mMaxForwardBackwardError;
+
+    /** The frame the corners are in, a copy as the frames are recycled */
+    private final Mat mPrevImage = new Mat();
+    private final MatOfPoint2f mPrevPts = new MatOfPoint2f();
+    private final MatOfPoint2f mNextPts = new MatOfPoint2f();
+    private final MatOfPoint2f mBackPts = new MatOfPoint2f();
+    private final MatOfByte mStatus = new MatOfByte();
+    private final MatOfByte mBackStatus = new MatOfByte();
+    private final MatOfFloat mErr = new MatOfFloat();
+
+    /** Ids of the markers tracked and their corners, 4 per marker in the same order */
+    private int[] mIds = new int[0];
+    private Point[] mCorners = new Point[0];
+    private int mMarkerCount = 0;
+    private boolean mTracking = false;
+    private int mFramesTracked = 0;
+
+    /**
+     * @param winSize side of the window each corner is matched in, at each pyramid level
+     * @param maxLevel pyramid levels above the frame, 0 to match at full resolution only
+     * @param maxForwardBackwardError the farthest, in pixels, a corner tracked forward and
+     *                                back can land from where it started
+     */
+    public FlowTracker(int winSize, int maxLevel, double maxForwardBackwardError) {
+        mWinSize = new Size(winSize, winSize);
+        mMaxLevel = maxLevel;
+        mMaxForwardBackwardError = maxForwardBackwardError;
+    }
+
+    /**
+     * Starts tracking the markers found by a full detection.
+     * @param image the frame the markers were found in
+     * @param markers the markers found, tracking does not start if there are none
+     */
+    public void start(Mat image, Vector<Marker> markers) {
+        int count = markers.size();
+        if (mIds.length < count) {
+            mIds = new int[count];
+            mCorners = new Point[4 * count];
+        }
+        for (int i = 0; i < count; i++) {
+            Marker marker = markers.get(i);
+            mIds[i] = marker.getMarkerId();
+            List<Point> corners = marker.toList();
+            for (int c = 0; c < 4; c++) {
+                mCorners[4 * i + c] = corners.get(c);
+            }
+        }
+        mMarkerCount = count;
+        mFramesTracked = 0;
+        mTracking = count > 0;
+        if (mTracking) {
+            image.copyTo(mPrevImage);
+        }
+    }
+
+    /**
+     * Moves the corners of the markers to the next frame.
+     * @param image the next frame, the same size as the last one
+     * @return true if every marker was tracked, false if tracking stopped
+     */
+    public boolean track(Mat image) {
+        if (!mTracking) {
+            return false;
+        }
+        if (image.cols() != mPrevImage.cols() || image.rows() != mPrevImage.rows()) {
+            // the processing resolution changed, the corners are no longer valid
+            stop();
+            return false;
+        }
+        int points = 4 * mMarkerCount;
+        mPrevPts.fromArray(Arrays.copyOf(mCorners, points));
+        Video.calcOpticalFlowPyrLK(mPrevImage, image, mPrevPts, mNextPts, mStatus, mErr, mWinSize, mMaxLevel);
+        Video.calcOpticalFlowPyrLK(image, mPrevImage, mNextPts, mBackPts, mBackStatus, mErr, mWinSize, mMaxLevel);
+        Point[] next = mNextPts.toArray();
+        Point[] back = mBackPts.toArray();
+        byte[] status = mStatus.toArray();
+        byte[] backStatus = mBackStatus.toArray();
+        for (int p = 0; p < points; p++) {
+            double error = Math.hypot(back[p].x - mCorners[p].x, back[p].y - mCorners[p].y);
+            if (status[p] == 0 || backStatus[p] == 0 || !(error <= mMaxForwardBackwardError)) {
+                stop();
+                return false;
+            }
+        }
+        System.arraycopy(next, 0, mCorners, 0, points);
+        image.copyTo(mPrevImage);
+        mFramesTracked++;
+        return true;
+    }
+
+    /** Stops tracking, the next frame needs a full detection */
+    public void stop() {
+        mTracking = false;
+        mMarkerCount = 0;
+    }
+
+    /**
+     * @return true if the markers are being tracked
+     */
+    public boolean isTracking() {
+        return mTracking;
+    }
+
+    /**
+     * @return the frames tracked since the last full detection
+     */
+    public int getFramesTracked() {
+        return mFramesTracked;
+    }
+
+    /**
+     * @return the number of markers tracked
+     */
+    public int getMarkerCount() {
+        return mMarkerCount;
+    }
+
+    /**
+     * @return the ids of the markers tracked, the first {@link #getMarkerCount()} are valid
+     */
+    public int[] getIds() {
+        return mIds;
+    }
+
+    /**
+     * @return the corners of the markers tracked, 4 per marker in the order of the ids
+     */
+    public Point[] getCorners() {
+        return mCorners;
+    }
+
+    /** Frees the native memory of the tracker */
+    public void release() {
+        mPrevImage.release();
+        mPrevPts.release();
+        mNextPts.release();
+        mBackPts.release();
+        mStatus.release();
+        mBackStatus.release();
+        mErr.release();
+    }
+}
@@ -0,0 +1,150 @@
+package com.informatics.lehigh.cardboneviz.tracking;
+
+import org.opencv.core.Mat;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * Pool of the per frame buffers used by the tracker. Byte arrays are keyed by their
+ * length and Mats by their rows, cols and type, so once every size in use has been
+ * allocated a steady stream of frames does not allocate anything, neither on the java
+ * heap nor natively. OpenCV Mats are otherwise only freed by their finalizers, which is
+ * why everything handed out by the pool is explicitly released by {@link #release()}.
+ *
+ * The pool is safe to use from several threads.
+ */
+public class FramePool {
+
+    /** Free buffers of a single size */
+    private static class Bucket<T> {
+        final int rows;
+        final int cols;
+        final int type;
+        final ArrayDeque<T> free = new ArrayDeque<>();
+
+        Bucket(int rows, int cols, int type) {
+            this.rows = rows;
+            this.cols = cols;
+            this.type = type;
+        }
+    }
+
+    /**
+     * Only a couple of sizes are ever in use at once, so the buckets are kept in lists
+     * and searched linearly. This avoids boxing a key on every lookup.
+     */
+    private final ArrayList<Bucket<byte[]>> mByteBuckets = new ArrayList<>();
+    private final ArrayList<Bucket<Mat>> mMatBuckets = new ArrayList<>();
+    /** Every Mat created by the pool, used to free the native memory on release */
+    private final ArrayList<Mat> mAllMats = new ArrayList<>();
+    /** Number of byte arrays created by the pool */
+    private int mAllocatedArrays = 0;
+    /** Bytes held by the arrays created by the pool */
+    private long mAllocatedArrayBytes = 0;
+    /** Bytes held natively by the Mats created by the pool */
+    private long mAllocatedMatBytes = 0;
+    /** True once the pool has been released */
+    private boolean mReleased = false;
+
+    /**
+     * Hands out a byte array of exactly the given length, allocating it only if no
+     * array of that length is free. Its contents are undefined.
+     * @param length the length of the array
+     * @return the array, which should be given back with {@link #releaseBytes}
+     */
+    public synchronized byte[] acquireBytes(int length) {
+        Bucket<byte[]> bucket = findBucket(mByteBuckets, 1, length, 0);
+        if (!bucket.free.isEmpty()) {
+            return bucket.free.pop();
+        }
+        mAllocatedArrays++;
+        mAllocatedArrayBytes += length;
+        return new byte[length];
+    }
+
+    /**
+     * Gives an array acquired from {@link #acquireBytes} back to the pool.
+     * @param bytes the array
+     */
+    public synchronized void releaseBytes(byte[] bytes) {
+        if (mReleased) {
+            return;
+        }
+        findBucket(mByteBuckets, 1, bytes.length, 0).free.push(bytes);
+    }
+
+    /**
+     * Hands out a continuous Mat of the given size and type, allocating it only if no
+     * Mat of that size is free. Its contents are undefined.
+     * @param rows number of rows
+     * @param cols number of columns
+     * @param type OpenCV type of the Mat, for instance CvType.CV_8UC1
+     * @return the Mat, which should be given back with {@link #releaseMat}
+     */
+    public synchronized Mat acquireMat(int rows, int cols, int type) {
+        Bucket<Mat> bucket = findBucket(mMatBuckets, rows, cols, type);
+        if (!bucket.free.isEmpty()) {
+            return bucket.free.pop();
+        }
+        Mat mat = new Mat(rows, cols, type);
+        mAllMats.add(mat);
+        mAllocatedMatBytes += mat.total() * mat.elemSize();
+        return mat;
+    }
+
+    /**
+     * Gives a Mat acquired from {@link #acquireMat} back to the pool. The Mat must not
+     * have been resized or reallocated in the meantime.
+     * @param mat the Mat
+     */
+    public synchronized void releaseMat(Mat mat) {
+        if (mReleased) {
+            return;
+        }
+        findBucket(mMatBuckets, mat.rows(), mat.cols(), mat.type()).free.push(mat);
+    }
+
+    /**
+     * Frees the native memory of every Mat created by the pool and drops every buffer.
+     * Nothing handed out by the pool may be used after this.
+     */
+    public synchronized void release() {
+        for (Mat mat : mAllMats) {
+            mat.release();
+        }
+        mAllMats.clear();
+        mMatBuckets.clear();
+        mByteBuckets.clear();
+        mAllocatedArrayBytes = 0;
+        mAllocatedMatBytes = 0;
+        mReleased = true;
+    }
+
+    /**
+     * @return the number of byte arrays and Mats created by the pool so far. This
+     * should stop growing once the tracker reaches its steady state.
+     */
+    public synchronized int getAllocationCount() {
+        return mAllocatedArrays + mAllMats.size();
+    }
+
+    /**
+     * @return the bytes currently held by the pool, both in java arrays and natively
+     */
+    public synchronized long getPooledBytes() {
+        return mAllocatedArrayBytes + mAllocatedMatBytes;
+    }
+
+    private static <T> Bucket<T> findBucket(ArrayList<Bucket<T>> buckets, int rows, int cols, int type) {
+        for (int i = 0; i < buckets.size(); i++) {
+            Bucket<T> bucket = buckets.get(i);
+            if (bucket.rows == rows && bucket.cols == cols && bucket.type == type) {
+                return bucket;
+            }
+        }
+        Bucket<T> bucket = new Bucket<>(rows, cols, type);
+        buckets.add(bucket);
+        return bucket;
+    }
+}
@@ -0,0 +1,121 @@
+package com.informatics.lehigh.cardboneviz.tracking;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded queue linking two stages of the tracking pipeline. It has a single producer
+ * and a single consumer thread and never blocks the producer: when the queue is full
+ * the oldest element is dropped to make room and handed back to the producer, so a
+ * stage that falls behind always works on the most recent frames. Offering and polling
+ * do not lock or allocate.
+ *
+ * @param <T> type of the elements
+ */
+public class FrameQueue<T> {
+
+    private final AtomicReferenceArray<T> mSlots;
+    private final int mCapacity;
+    /**
+     * Index of the oldest element. The consumer advances it when taking an element and
+     * the producer when dropping one, so it is only ever moved with a CAS.
+     */
+    private final AtomicLong mHead = new AtomicLong();
+    /** Index of the next element to be offered, only written by the producer */
+    private volatile long mTail = 0;
+    /** The consumer thread while it is parked waiting for an element */
+    private volatile Thread mWaiter;
+
+    /**
+     * @param capacity the maximum number of elements held before the oldest is dropped
+     */
+    public FrameQueue(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1");
+        }
+        mCapacity = capacity;
+        mSlots = new AtomicReferenceArray<>(capacity);
+    }
+
+    /**
+     * Adds an element, dropping the oldest one if the queue is full. Only called by the
+     * producer thread.
+     * @param element the element to add
+     * @return the element dropped to make room or null if none was
+     */
+    public T offer(T element) {
+        long tail = mTail;
+        T dropped = null;
+        while (tail - mHead.get() >= mCapacity) {
+            long head = mHead.get();
+            T oldest = mSlots.get((int) (head % mCapacity));
+            if (mHead.compareAndSet(head, head + 1)) {
+                dropped = oldest;
+                break;
+            }
+        }
+        mSlots.set((int) (tail % mCapacity), element);
+        mTail = tail + 1;
+
+        Thread waiter = mWaiter;
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+        return dropped;
+    }
+
+    /**
+     * Removes the oldest element. Only called by the consumer thread.
+     * @return the oldest element or null if the queue is empty
+     */
+    public T poll() {
+        while (true) {
+            long head = mHead.get();
+            if (head >= mTail) {
+                return null;
+            }
+            T element = mSlots.get((int) (head % mCapacity));
+            if (mHead.compareAndSet(head, head + 1)) {
+                return element;
+            }
+        }
+    }
+
+    /**
+     * Removes the oldest element, waiting for one to be offered if the queue is empty.
+     * Only called by the consumer thread.
+     * @param timeout the longest time to wait
+     * @param unit the unit of the timeout
+     * @return the oldest element or null if none was offered in time
+     */
+    public T poll(long timeout, TimeUnit unit) {
+        T element = poll();
+        if (element != null) {
+            return element;
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        mWaiter = Thread.currentThread();
+        try {
+            while ((element = poll()) == null) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0 || Thread.interrupted()) {
+                    return null;
+                }
+                LockSupport.parkNanos(this, remaining);
+            }
+            return element;
+        } finally {
+            mWaiter = null;
+        }
+    }
+
+    /**
+     * @return the number of elements in the queue, only an estimate while the
+     * producer or the consumer are running.
+     */
+    public int size() {
+        return (int) Math.max(0, mTail - mHead.get());
+    }
+}
@@ -0,0 +1,181 @@
+package com.informatics.lehigh.cardboneviz.tracking;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+/**
+ * Writes the grey camera frames the tracker processes to a file, so the detection can be
+ * replayed off the phone with {@link FrameRecording}. The file starts with a header
+ * holding the camera parameters and the cube dimensions, followed by chunks of frames.
+ * Each chunk is optionally deflated. Frames are copied into the current chunk on the
+ * calling thread, and full chunks are compressed and written on a thread of their own.
+ * The file layout is described in {@link FrameRecording}.
+ */
+public class FrameRecorder {
+    /** A chunk is written once it holds this many bytes of frames */
+    private static final int CHUNK_BYTES = 4 * 1024 * 1024;
+
+    private final DataOutputStream mOut;
+    private final boolean mCompress;
+    private final ExecutorService mWriter = Executors.newSingleThreadExecutor();
+    private byte[] mChunk = new byte[CHUNK_BYTES];
+    private int mChunkLength = 0;
+    private int mChunkFrames = 0;
+    /** First error met by the writer thread, reported by the next call */
+    private volatile IOException mError;
+
+    /**
+     * Creates the file and writes its header.
+     * @param file file to write, overwritten if it exists
+     * @param cameraMatrix the 9 values of the camera matrix, row by row
+     * @param distCoeffs the 5 distortion coefficients
+     * @param calibWidth width of the images the camera matrix is valid for
+     * @param calibHeight height of the images the camera matrix is valid for
+     * @param markerSize size of the cube markers in meters
+     * @param paddingSize size of the padding around the markers in meters
+     * @param compress deflate every chunk
+     * @throws IOException if the file can't be written
+     */
+    public FrameRecorder(File file, double[] cameraMatrix, double[] distCoeffs, int calibWidth, int calibHeight,
+                         float markerSize, float paddingSize, boolean compress) throws IOException {
+        if (file.getParentFile() != null) {
+            file.getParentFile().mkdirs();
+        }
+        mOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        mCompress = compress;
+        mOut.writeInt(FrameRecording.MAGIC);
+        mOut.writeInt(FrameRecording.VERSION);
+        mOut.writeInt(compress ? FrameRecording.FLAG_DEFLATE : 0);
+        for (int i = 0; i < 9; i++) {
+            mOut.writeDouble(cameraMatrix[i]);
+        }
+        for (int i = 0; i < 5; i++) {
+            mOut.writeDouble(distCoeffs[i]);
+        }
+        mOut.writeInt(calibWidth);
+        mOut.writeInt(calibHeight);
+        mOut.writeFloat(markerSize);
+        mOut.writeFloat(paddingSize);
+    }
+
+    /**
+     * Adds a frame. Only the Y plane is recorded, with its row padding.
+     * @param sequence sequence number of the frame
+     * @param timestampNs camera timestamp of the frame
+     * @param yData the Y plane
+     * @param length number of bytes of yData to record, the last row may lack its padding
+     * @param width width of the image
+     * @param height height of the image
+     * @param rowStride bytes between the starts of two rows
+     * @throws IOException if writing an earlier chunk failed
+     */
+    public void record(long sequence, long timestampNs, byte[] yData, int length,
+                       int width, int height, int rowStride) throws IOException {
+        checkError();
+        int frameBytes = FrameRecording.FRAME_HEADER_BYTES + length;
+        if (mChunkLength > 0 && mChunkLength + frameBytes > mChunk.length) {
+            flushChunk();
+        }
+        if (frameBytes > mChunk.length) {
+            mChunk = new byte[frameBytes];
+        }
+        int p = mChunkLength;
+        p = putLong(mChunk, p, sequence);
+        p = putLong(mChunk, p, timestampNs);
+        p = putInt(mChunk, p, width);
+        p = putInt(mChunk, p, height);
+        p = putInt(mChunk, p, rowStride);
+        p = putInt(mChunk, p, length);
+        System.arraycopy(yData, 0, mChunk, p, length);
+        mChunkLength = p + length;
+        mChunkFrames++;
+    }
+
+    /**
+     * Writes the last chunk and closes the file, waiting for every chunk to be written.
+     * @throws IOException if writing failed
+     */
+    public void close() throws IOException {
+        if (mChunkLength > 0) {
+            flushChunk();
+        }
+        mWriter.shutdown();
+        try {
+            mWriter.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            throw new IOException("interrupted while writing the recording");
+        }
+        mOut.close();
+        checkError();
+    }
+
+    /** Hands the current chunk to the writer thread and starts a new one */
+    private void flushChunk() {
+        final byte[] chunk = mChunk;
+        final int length = mChunkLength;
+        final int frames = mChunkFrames;
+        mChunk = new byte[Math.max(CHUNK_BYTES, chunk.length)];
+        mChunkLength = 0;
+        mChunkFrames = 0;
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writeChunk(chunk, length, frames);
+                } catch (IOException e) {
+                    mError = e;
+                }
+            }
+        });
+    }
+
+    private void writeChunk(byte[] chunk, int length, int frames) throws IOException {
+        byte[] stored = chunk;
+        int storedLength = length;
+        if (mCompress) {
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            deflater.setInput(chunk, 0, length);
+            deflater.finish();
+            // incompressible data grows a little, keep it raw in that case
+            stored = new byte[length];
+            storedLength = deflater.deflate(stored);
+            if (!deflater.finished()) {
+                stored = chunk;
+                storedLength = length;
+            }
+            deflater.end();
+        }
+        mOut.writeInt(frames);
+        mOut.writeInt(length);
+        mOut.writeBoolean(stored != chunk);
+        mOut.writeInt(storedLength);
+        mOut.write(stored, 0, storedLength);
+    }
+
+    private void checkError() throws IOException {
+        IOException error = mError;
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    private static int putLong(byte[] b, int p, long v) {
+        p = putInt(b, p, (int) (v >>> 32));
+        return putInt(b, p, (int) v);
+    }
+
+    private static int putInt(byte[] b, int p, int v) {
+        b[p] = (byte) (v >>> 24);
+        b[p + 1] = (byte) (v >>> 16);
+        b[p + 2] = (byte) (v >>> 8);
+        b[p + 3] = (byte) v;
+        return p + 4;
+    }
+}
@@ -0,0 +1,201 @@
+package com.informatics.lehigh.cardboneviz.tracking;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads back a file written by a {@link FrameRecorder}, one frame at a time. It uses no
+ * Android class so recordings can be replayed on a desktop JVM.
+ *
+ * Layout, big endian:
+ * header: magic, version, flags (int), camera matrix (9 double), distortion
+ * coefficients (5 double), calibration width and height (int), marker and padding
+ * size (float);
+ * then chunks: frame count, raw length (int), deflated (boolean), stored length (int),
+ * stored bytes;
+ * and in a raw chunk, for each frame: sequence, timestamp (long), width, height, row
+ * stride, Y plane length (int), Y plane bytes.
+ */
+public class FrameRecording {
+    static final int MAGIC = 0x43425646; // "CBVF"
+    static final int VERSION = 1;
+    static final int FLAG_DEFLATE = 1;
+    static final int FRAME_HEADER_BYTES = 8 + 8 + 4 * 4;
+
+    /** A frame read from a recording, reused from frame to frame */
+    public static class Frame {
+        public long sequence;
+        public long timestampNs;
+        public int width;
+        public int height;
+        public int rowStride;
+        /** The Y plane, with its row padding, only the first length bytes are valid */
+        public byte[] data = new byte[0];
+        public int length;
+    }
+
+    private final DataInputStream mIn;
+    private final double[] mCameraMatrix = new double[9];
+    private final double[] mDistCoeffs = new double[5];
+    private final int mCalibWidth;
+    private final int mCalibHeight;
+    private final float mMarkerSize;
+    private final float mPaddingSize;
+    private final boolean mCompressed;
+    private final Inflater mInflater = new Inflater();
+    private byte[] mStored = new byte[0];
+    private byte[] mChunk = new byte[0];
+    private int mChunkLength = 0;
+    private int mChunkPos = 0;
+
+    /**
+     * Opens a recording and reads its header.
+     * @param file the recording
+     * @throws IOException if the file can't be read or is not a recording
+     */
+    public FrameRecording(File file) throws IOException {
+        mIn = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        if (mIn.readInt() != MAGIC) {
+            mIn.close();
+            throw new IOException(file + " is not a frame recording");
+        }
+        int version = mIn.readInt();
+        if (version != VERSION) {
+            mIn.close();
+            throw new IOException("unsupported frame recording version " + version);
+        }
+        mCompressed = (mIn.readInt() & FLAG_DEFLATE) != 0;
+        for (int i = 0; i < 9; i++) {
+            mCameraMatrix[i] = mIn.readDouble();
+        }
+        for (int i = 0; i < 5; i++) {
+            mDistCoeffs[i] = mIn.readDouble();
+        }
+        mCalibWidth = mIn.readInt();
+        mCalibHeight = mIn.readInt();
+        mMarkerSize = mIn.readFloat();
+        mPaddingSize = mIn.readFloat();
+    }
+
+    /**
+     * Reads the next frame.
+     * @param dst the frame to fill, its buffer grows if needed
+     * @return false at the end of the recording
+     * @throws IOException if the file is truncated or corrupt
+     */
+    public boolean next(Frame dst) throws IOException {
+        if (mChunkPos >= mChunkLength && !readChunk()) {
+            return false;
+        }
+        dst.sequence = getLong(mChunk, mChunkPos);
+        dst.timestampNs = getLong(mChunk, mChunkPos + 8);
+        dst.width = getInt(mChunk, mChunkPos + 16);
+        dst.height = getInt(mChunk, mChunkPos + 20);
+        dst.rowStride = getInt(mChunk, mChunkPos + 24);
+        dst.length = getInt(mChunk, mChunkPos + 28);
+        mChunkPos += FRAME_HEADER_BYTES;
+        if (dst.length < 0 || mChunkPos + dst.length > mChunkLength) {
+            throw new IOException("corrupt frame recording");
+        }
+        if (dst.data.length < dst.length) {
+            dst.data = new byte[dst.length];
+        }
+        System.arraycopy(mChunk, mChunkPos, dst.data, 0, dst.length);
+        mChunkPos += dst.length;
+        return true;
+    }
+
+    public void close() throws IOException {
+        mInflater.end();
+        mIn.close();
+    }
+
+    public double[] getCameraMatrix() {
+        return mCameraMatrix.clone();
+    }
+
+    public double[] getDistCoeffs() {
+        return mDistCoeffs.clone();
+    }
+
+    public int getCalibWidth() {
+        return mCalibWidth;
+    }
+
+    public int getCalibHeight() {
+        return mCalibHeight;
+    }
+
+    public float getMarkerSize() {
+        return mMarkerSize;
+    }
+
+    public float getPaddingSize() {
+        return mPaddingSize;
+    }
+
+    public boolean isCompressed() {
+        return mCompressed;
+    }
+
+    /** @return false at the end of the file */
+    private boolean readChunk() throws IOException {
+        int frames;
+        try {
+            frames = mIn.readInt();
+        } catch (EOFException e) {
+            return false;
+        }
+        int rawLength = mIn.readInt();
+        boolean deflated = mIn.readBoolean();
+        int storedLength = mIn.readInt();
+        if (frames < 0 || rawLength < 0 || storedLength < 0) {
+            throw new IOException("corrupt frame recording");
+        }
+        if (mChunk.length < rawLength) {
+            mChunk = new byte[rawLength];
+        }
+        if (!deflated) {
+            mIn.readFully(mChunk, 0, rawLength);
+        } else {
+            if (mStored.length < storedLength) {
+                mStored = new byte[storedLength];
+            }
+            mIn.readFully(mStored, 0, storedLength);
+            mInflater.reset();
+            mInflater.setInput(mStored, 0, storedLength);
+            try {
+                int inflated = 0;
+                while (inflated < rawLength && !mInflater.finished()) {
+                    int n = mInflater.inflate(mChunk, inflated, rawLength - inflated);
+                    if (n == 0 && mInflater.needsInput()) {
+                        break;
+                    }
+                    inflated += n;
+                }
+                if (inflated != rawLength) {
+                    throw new IOException("corrupt frame recording");
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("corrupt frame recording: " + e.getMessage());
+            }
+        }
+        mChunkLength = rawLength;
+        mChunkPos = 0;
+        return true;
+    }
+
+    private static long getLong(byte[] b, int p) {
+        return ((long) getInt(b, p) << 32) | (getInt(b, p + 4) & 0xffffffffL);
+    }
+
+    private static int getInt(byte[] b, int p) {
+        return (b[p] << 24) | ((b[p + 1] & 0xff) << 16) | ((b[p + 2] & 0xff) << 8) | (b[p + 3] & 0xff);
+    }
+}
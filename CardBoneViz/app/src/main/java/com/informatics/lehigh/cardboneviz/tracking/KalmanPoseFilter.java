@@ -0,0 +1,82 @@
+package com.informatics.lehigh.cardboneviz.tracking;
+
+/**
+ * Constant velocity Kalman filter on every pose channel. Each channel has a state of
+ * value and speed, driven by white noise acceleration, and measures only the value.
+ * The channels are independent so every covariance is a 2x2 matrix kept in primitives.
+ */
+public class KalmanPoseFilter extends PoseFilter {
+    /** Variance of the speed when the filter starts, as a multiple of the measurement noise per s^2 */
+    private static final double INITIAL_SPEED_VARIANCE = 100;
+    /** Noise levels for the cube, a starting point to tune with PoseFilterEvaluator */
+    public static final double DEFAULT_TRANSLATION_PROCESS_NOISE = 0.25;
+    public static final double DEFAULT_TRANSLATION_MEASUREMENT_NOISE = 4e-6;
+    public static final double DEFAULT_ROTATION_PROCESS_NOISE = 1.0;
+    public static final double DEFAULT_ROTATION_MEASUREMENT_NOISE = 2.5e-5;
+
+    /** Spectral density of the acceleration of each channel */
+    private final double[] mProcessNoise = new double[CHANNELS];
+    /** Variance of the measurement of each channel */
+    private final double[] mMeasurementNoise = new double[CHANNELS];
+    private final double[] mValue = new double[CHANNELS];
+    private final double[] mSpeed = new double[CHANNELS];
+    /** Covariance of value and speed, {{p00, p01}, {p01, p11}} */
+    private final double[] mP00 = new double[CHANNELS];
+    private final double[] mP01 = new double[CHANNELS];
+    private final double[] mP11 = new double[CHANNELS];
+
+    /** Creates a filter with the default parameters */
+    public KalmanPoseFilter() {
+        this(DEFAULT_TRANSLATION_PROCESS_NOISE, DEFAULT_TRANSLATION_MEASUREMENT_NOISE,
+                DEFAULT_ROTATION_PROCESS_NOISE, DEFAULT_ROTATION_MEASUREMENT_NOISE);
+    }
+
+    /**
+     * @param translationProcessNoise acceleration spectral density of the translation, (m/s^2)^2 s
+     * @param translationMeasurementNoise variance of a measured translation, m^2
+     * @param rotationProcessNoise acceleration spectral density of the quaternion
+     * @param rotationMeasurementNoise variance of a measured quaternion component
+     */
+    public KalmanPoseFilter(double translationProcessNoise, double translationMeasurementNoise,
+                            double rotationProcessNoise, double rotationMeasurementNoise) {
+        for (int i = 0; i < CHANNELS; i++) {
+            mProcessNoise[i] = i < QUAT ? translationProcessNoise : rotationProcessNoise;
+            mMeasurementNoise[i] = i < QUAT ? translationMeasurementNoise : rotationMeasurementNoise;
+        }
+    }
+
+    @Override
+    protected void resetChannels(double[] values) {
+        for (int i = 0; i < CHANNELS; i++) {
+            mValue[i] = values[i];
+            mSpeed[i] = 0;
+            mP00[i] = mMeasurementNoise[i];
+            mP01[i] = 0;
+            mP11[i] = mMeasurementNoise[i] * INITIAL_SPEED_VARIANCE;
+        }
+    }
+
+    @Override
+    protected void filterChannels(double dt, double[] values) {
+        double dt2 = dt * dt;
+        for (int i = 0; i < CHANNELS; i++) {
+            double q = mProcessNoise[i];
+            // predict
+            double value = mValue[i] + mSpeed[i] * dt;
+            double p00 = mP00[i] + 2 * dt * mP01[i] + dt2 * mP11[i] + q * dt2 * dt / 3;
+            double p01 = mP01[i] + dt * mP11[i] + q * dt2 / 2;
+            double p11 = mP11[i] + q * dt;
+            // update with the measured value
+            double s = p00 + mMeasurementNoise[i];
+            double k0 = p00 / s;
+            double k1 = p01 / s;
+            double innovation = values[i] - value;
+            mValue[i] = value + k0 * innovation;
+            mSpeed[i] += k1 * innovation;
+            mP00[i] = (1 - k0) * p00;
+            mP01[i] = (1 - k0) * p01;
+            mP11[i] = p11 - k1 * p01;
+            values[i] = mValue[i];
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package com.informatics.lehigh.cardboneviz.tracking;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Traces every camera frame from its capture to the draw of the pose solved from it, to
+ * tell where the motion to photon latency comes from. Each point of the trace is marked
+ * by the thread that reaches it, with System.nanoTime, into a ring of records indexed by
+ * the frame sequence. Marking never locks or allocates; a record is simply overwritten
+ * once the ring wraps around, so only the latest frames are kept.
+ *
+ * Frames the camera produced but the tracker never acquired are counted from the gaps
+ * between the capture timestamps, the shortest gap seen being taken as the camera frame
+ * interval.
+ */
+public class LatencyTrace {
+    /** Camera capture, from the image timestamp */
+    public static final int CAPTURE = 0;
+    /** Image acquired from the reader */
+    public static final int ACQUIRED = 1;
+    /** Image converted to a Mat */
+    public static final int CONVERTED = 2;
+    /** Markers identified */
+    public static final int DETECTED = 3;
+    /** Cube pose published to the renderer */
+    public static final int PUBLISHED = 4;
+    /** Pose read by the renderer for a new frame */
+    public static final int CONSUMED = 5;
+    /** Both eyes drawn with the pose */
+    public static final int DRAWN = 6;
+    public static final int POINT_COUNT = 7;
+    private static final String[] POINT_NAMES =
+            {"CAPTURE", "ACQUIRED", "CONVERTED", "DETECTED", "PUBLISHED", "CONSUMED", "DRAWN"};
+
+    /** Tag, frame sequence plus one or 0 while the record is being started, then the points */
+    private static final int STRIDE = 1 + POINT_COUNT;
+
+    private final int mCapacity;
+    private final AtomicLongArray mRecords;
+
+    /** Capture timestamp of the last frame started, only used by the acquiring thread */
+    private long mLastCaptureNs = -1;
+    /** Shortest gap seen between two capture timestamps */
+    private long mFrameIntervalNs = Long.MAX_VALUE;
+    /** Set to forget the last capture timestamp, when the camera stopped in between */
+    private volatile boolean mDiscontinuity = false;
+    private volatile long mFrames = 0;
+    private volatile long mDropped = 0;
+
+    /**
+     * @param capacity number of frames kept
+     */
+    public LatencyTrace(int capacity) {
+        mCapacity = capacity;
+        mRecords = new AtomicLongArray(capacity * STRIDE);
+    }
+
+    /**
+     * Starts the record of a frame. Must only be called from the thread acquiring the
+     * frames, in the order they are acquired.
+     * @param sequence sequence number of the frame
+     * @param captureNs capture time of the frame, on the System.nanoTime clock
+     * @param acquiredNs time the frame was acquired
+     */
+    public void begin(long sequence, long captureNs, long acquiredNs) {
+        int base = slot(sequence);
+        mRecords.set(base, 0);
+        for (int point = 0; point < POINT_COUNT; point++) {
+            mRecords.set(base + 1 + point, 0);
+        }
+        mRecords.set(base + 1 + CAPTURE, captureNs);
+        mRecords.set(base + 1 + ACQUIRED, acquiredNs);
+        mRecords.set(base, sequence + 1);
+
+        if (mDiscontinuity) {
+            mDiscontinuity = false;
+            mLastCaptureNs = -1;
+        }
+        if (mLastCaptureNs >= 0) {
+            long gap = captureNs - mLastCaptureNs;
+            if (gap > 0 && gap < mFrameIntervalNs) {
+                mFrameIntervalNs = gap;
+            }
+            long missed = Math.round((double) gap / mFrameIntervalNs) - 1;
+            if (missed > 0) {
+                mDropped += missed;
+            }
+        }
+        mLastCaptureNs = captureNs;
+        mFrames++;
+    }
+
+    /**
+     * Marks a point of a frame. A frame whose record has already been overwritten by a
+     * newer one is ignored.
+     * @param sequence sequence number of the frame
+     * @param point one of the points above, after ACQUIRED
+     * @param ns the time the point was reached
+     */
+    public void mark(long sequence, int point, long ns) {
+        int base = slot(sequence);
+        if (mRecords.get(base) == sequence + 1) {
+            mRecords.set(base + 1 + point, ns);
+        }
+    }
+
+    /**
+     * Forgets the last capture timestamp, so the time the camera was stopped is not
+     * counted as dropped frames.
+     */
+    public void markDiscontinuity() {
+        mDiscontinuity = true;
+    }
+
+    /**
+     * @return number of frames started
+     */
+    public long getFrameCount() {
+        return mFrames;
+    }
+
+    /**
+     * @return number of frames the camera produced that were never acquired
+     */
+    public long getDroppedCount() {
+        return mDropped;
+    }
+
+    /**
+     * Latencies of a hop over the frames kept that reached both of its points, sorted.
+     * @param from the first point
+     * @param to the second point
+     * @return the latencies in nanoseconds
+     */
+    public long[] hopLatencies(int from, int to) {
+        long[] latencies = new long[mCapacity];
+        long[] points = new long[POINT_COUNT];
+        int count = 0;
+        for (int i = 0; i < mCapacity; i++) {
+            if (readRecord(i, points) < 0 || points[from] == 0 || points[to] == 0) {
+                continue;
+            }
+            long latency = points[to] - points[from];
+            // the camera may not timestamp on the System.nanoTime clock
+            if (latency >= 0) {
+                latencies[count++] = latency;
+            }
+        }
+        latencies = Arrays.copyOf(latencies, count);
+        Arrays.sort(latencies);
+        return latencies;
+    }
+
+    /**
+     * @return the p50, p95 and p99 latency of every hop and from capture to draw, and
+     * the frames dropped, one line each
+     */
+    public String summarize() {
+        StringBuilder summary = new StringBuilder();
+        summary.append(String.format(Locale.US, "%d frames traced, %d dropped before acquisition%n",
+                mFrames, mDropped));
+        for (int point = 0; point < POINT_COUNT - 1; point++) {
+            appendHop(summary, point, point + 1);
+        }
+        appendHop(summary, CAPTURE, DRAWN);
+        return summary.toString();
+    }
+
+    /**
+     * Writes every frame kept, one line per frame, with the time of each point
+     * reached, empty for the points it did not reach.
+     * @param file the file to write, overwritten
+     * @throws IOException if the file can't be written
+     */
+    public void export(File file) throws IOException {
+        if (file.getParentFile() != null) {
+            file.getParentFile().mkdirs();
+        }
+        PrintWriter out = new PrintWriter(new FileWriter(file));
+        out.print("sequence");
+        for (String name : POINT_NAMES) {
+            out.print(',');
+            out.print(name.toLowerCase(Locale.US));
+        }
+        out.println();
+        long[] points = new long[POINT_COUNT];
+        // oldest frame first
+        long[] sequences = new long[mCapacity];
+        int count = 0;
+        for (int i = 0; i < mCapacity; i++) {
+            long sequence = mRecords.get(i * STRIDE) - 1;
+            if (sequence >= 0) {
+                sequences[count++] = sequence;
+            }
+        }
+        Arrays.sort(sequences, 0, count);
+        for (int i = 0; i < count; i++) {
+            if (readRecord(slot(sequences[i]) / STRIDE, points) != sequences[i]) {
+                continue;
+            }
+            out.print(sequences[i]);
+            for (long ns : points) {
+                out.print(',');
+                if (ns != 0) {
+                    out.print(ns);
+                }
+            }
+            out.println();
+        }
+        out.close();
+        if (out.checkError()) {
+            throw new IOException("unable to write " + file);
+        }
+    }
+
+    private void appendHop(StringBuilder summary, int from, int to) {
+        long[] latencies = hopLatencies(from, to);
+        summary.append(POINT_NAMES[from]).append(" -> ").append(POINT_NAMES[to]);
+        if (latencies.length == 0) {
+            summary.append(": no frames").append(String.format(Locale.US, "%n"));
+            return;
+        }
+        summary.append(String.format(Locale.US, ": %d frames, p50 = %.2f ms, p95 = %.2f ms, p99 = %.2f ms%n",
+                latencies.length, percentile(latencies, 0.50) / 1e6, percentile(latencies, 0.95) / 1e6,
+                percentile(latencies, 0.99) / 1e6));
+    }
+
+    /**
+     * Copies the points of a record, retrying while it is being started.
+     * @return the frame sequence of the record, or -1 if it is empty
+     */
+    private long readRecord(int index, long[] points) {
+        int base = index * STRIDE;
+        while (true) {
+            long tag = mRecords.get(base);
+            if (tag == 0) {
+                return -1;
+            }
+            for (int point = 0; point < POINT_COUNT; point++) {
+                points[point] = mRecords.get(base + 1 + point);
+            }
+            if (mRecords.get(base) == tag) {
+                return tag - 1;
+            }
+        }
+    }
+
+    private int slot(long sequence) {
+        return (int) (sequence % mCapacity) * STRIDE;
+    }
+
+    /** Nearest rank percentile of sorted values */
+    static long percentile(long[] sorted, double fraction) {
+        int rank = (int) Math.ceil(fraction * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, rank))];
+    }
+}
@@ -0,0 +1,103 @@
+package com.informatics.lehigh.cardboneviz.tracking;
+
+import android.media.Image;
+import android.media.ImageReader;
+import android.util.Log;
+
+/**
+ * Holds the most recent camera image until the tracker takes it. It is fed by the
+ * image reader callback, so the tracker sleeps while there is no new image instead of
+ * polling the reader. An image the tracker did not get to in time is closed as soon
+ * as a newer one arrives, so the reader never runs out of images.
+ */
+public class LatestImageSlot implements ImageReader.OnImageAvailableListener {
+
+    private static final String TAG = "LatestImageSlot";
+
+    /** The image waiting for the tracker, or null */
+    private Image mImage;
+    /** True once the slot has been closed, no image is held after that */
+    private boolean mClosed = false;
+    /** Number of images replaced before the tracker took them */
+    private long mReplaced = 0;
+
+    @Override
+    public void onImageAvailable(ImageReader reader) {
+        // close the image we hold first, the reader may have no image left to give
+        clear(true);
+
+        Image image;
+        try {
+            image = reader.acquireLatestImage();
+        } catch (IllegalStateException e) {
+            // every image is in use by the tracker, the next callback will get it
+            Log.w(TAG, "NO IMAGE AVAILABLE FROM READER");
+            return;
+        }
+        if (image == null) {
+            return;
+        }
+        synchronized (this) {
+            if (!mClosed && mImage == null) {
+                mImage = image;
+                notifyAll();
+                return;
+            }
+        }
+        image.close();
+    }
+
+    /**
+     * Takes the latest image, waiting for one to arrive if there is none.
+     * @return the image, which the caller must close, or null once the slot is closed
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public synchronized Image take() throws InterruptedException {
+        while (mImage == null && !mClosed) {
+            wait();
+        }
+        Image image = mImage;
+        mImage = null;
+        return image;
+    }
+
+    /**
+     * Closes the image waiting in the slot, if there is one.
+     */
+    public void clear() {
+        clear(false);
+    }
+
+    private void clear(boolean replaced) {
+        Image image;
+        synchronized (this) {
+            image = mImage;
+            mImage = null;
+        }
+        if (image != null) {
+            if (replaced) {
+                mReplaced++;
+            }
+            image.close();
+        }
+    }
+
+    /**
+     * Closes the slot, waking up the thread waiting for an image. Images arriving
+     * after this are closed right away.
+     */
+    public void close() {
+        synchronized (this) {
+            mClosed = true;
+            notifyAll();
+        }
+        clear();
+    }
+
+    /**
+     * @return the number of images replaced by a newer one before being taken
+     */
+    public long getReplacedCount() {
+        return mReplaced;
+    }
+}
@@ -0,0 +1,22 @@
+package com.informatics.lehigh.cardboneviz.tracking;
+
+import org.opencv.core.Point3;
+
+/**
+ * A rigid object carrying markers at known places, such as a marker cube or a planar
+ * board. Its pose can be solved from any of its markers that are detected.
+ */
+public interface MarkerModel {
+
+    /**
+     * @return the id of each marker on the object
+     */
+    int[] getIds();
+
+    /**
+     * @param index index of a marker in {@link #getIds()}
+     * @return the corners of the marker in object coordinates, in the order aruco
+     * returns them
+     */
+    Point3[] getMarkerCorners(int index);
+}
@@ -0,0 +1,66 @@
+package com.informatics.lehigh.cardboneviz.tracking;
+
+import android.os.Build;
+import android.os.Debug;
+import android.util.Log;
+
+/**
+ * Samples the garbage collection count and the native heap usage of the process so
+ * the allocation behaviour of the tracker can be followed over a long session. In a
+ * steady state both the GC count and the native heap should stay flat.
+ */
+public class MemoryGauges {
+
+    private static final String TAG = "MemoryGauges";
+    /** Runtime stat holding the number of collections, only available from API 23 */
+    private static final String GC_COUNT_STAT = "art.gc.gc-count";
+
+    /** GC count at the first sample */
+    private long mBaseGcCount = -1;
+    /** Native heap size in bytes at the first sample */
+    private long mBaseNativeHeap = -1;
+
+    /**
+     * @return the number of garbage collections since the process started or -1 if
+     * the platform does not report it
+     */
+    public static long getGcCount() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            String count = Debug.getRuntimeStat(GC_COUNT_STAT);
+            if (count != null) {
+                return Long.parseLong(count);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the bytes currently allocated in the native heap. This includes the
+     * memory held by OpenCV Mats.
+     */
+    public static long getNativeHeapAllocated() {
+        return Debug.getNativeHeapAllocatedSize();
+    }
+
+    /**
+     * Logs the current gauges and how much they have grown since the first sample.
+     * @param label text identifying the sample in the log
+     * @param pool the frame pool in use, it may be null
+     */
+    public void log(String label, FramePool pool) {
+        long gcCount = getGcCount();
+        long nativeHeap = getNativeHeapAllocated();
+        if (mBaseNativeHeap < 0) {
+            mBaseGcCount = gcCount;
+            mBaseNativeHeap = nativeHeap;
+        }
+
+        String msg = label + ": GC COUNT = " + gcCount + " (+" + (gcCount - mBaseGcCount) + ")"
+                + ", NATIVE HEAP = " + nativeHeap + " (+" + (nativeHeap - mBaseNativeHeap) + ")";
+        if (pool != null) {
+            msg += ", POOL ALLOCATIONS = " + pool.getAllocationCount()
+                    + ", POOLED BYTES = " + pool.getPooledBytes();
+        }
+        Log.i(TAG, msg);
+    }
+}
@@ -0,0 +1,327 @@
+package com.informatics.lehigh.cardboneviz.tracking;
+
+import org.opencv.calib3d.Calib3d;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.MatOfPoint3f;
+import org.opencv.core.Point;
+import org.opencv.core.Point3;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Vector;
+
+import es.ava.aruco.CameraParameters;
+import es.ava.aruco.Marker;
+import es.ava.aruco.PnpTracker;
+
+/**
+ * Solves the pose of several marker objects from the markers of a single detection
+ * pass, so tracking another object costs a pose solve and not another threshold and
+ * contour tracing of the frame. Each detected marker is assigned to its object through
+ * an index from marker id to object and marker, built when the objects are registered.
+ * A marker id can only belong to one object.
+ *
+ * Objects are registered before tracking starts and are then referred to by their
+ * index, in the order they were registered. With pose tracking on, each solve is taken
+ * as a frame following the last one and the pose of an object seen recently is started
+ * from its last pose, see {@link PnpTracker}.
+ */
+public class MultiObjectTracker {
+
+    /** Index entry of a marker id that belongs to no object */
+    private static final int NO_MARKER = -1;
+
+    private final List<MarkerModel> mModels = new ArrayList<>();
+    private int[] mObjectIds = new int[0];
+    /** By marker id, the object index in the high 16 bits and the marker index in the low ones */
+    private int[] mMarkerIndex = new int[0];
+
+    /**
+     * Corners of the markers found for each object, in object and image coordinates,
+     * laid out as the point Mats hold them and sized for every marker of the object
+     */
+    private float[][] mObjPoints = new float[0][];
+    private float[][] mImgPoints = new float[0][];
+    private int[] mPointCounts = new int[0];
+    private final MatOfPoint3f mObjPointsMat = new MatOfPoint3f();
+    private final MatOfPoint2f mImgPointsMat = new MatOfPoint2f();
+
+    /** Outcome of the last solve for each object */
+    private boolean[] mFound = new boolean[0];
+    private final List<Mat> mRvecs = new ArrayList<>();
+    private final List<Mat> mTvecs = new ArrayList<>();
+    /** Last poses of the objects, one tracker per object, null when poses are not tracked */
+    private List<PnpTracker> mPoseTrackers = null;
+
+    /**
+     * Adds an object to track.
+     * @param objectId the id the object is known by
+     * @param model the markers of the object
+     * @return the index of the object
+     * @throws IllegalArgumentException if the object id is taken, or one of its markers
+     * is listed twice or already belongs to another object
+     */
+    public int register(int objectId, MarkerModel model) {
+        int object = mModels.size();
+        for (int id : mObjectIds) {
+            if (id == objectId) {
+                throw new IllegalArgumentException("object " + objectId + " is already registered");
+            }
+        }
+        int[] ids = model.getIds();
+        mMarkerIndex = indexMarkers(mMarkerIndex, mObjectIds, object, ids);
+
+        mModels.add(model);
+        mObjectIds = Arrays.copyOf(mObjectIds, object + 1);
+        mObjectIds[object] = objectId;
+        mObjPoints = Arrays.copyOf(mObjPoints, object + 1);
+        mObjPoints[object] = new float[3 * 4 * ids.length];
+        mImgPoints = Arrays.copyOf(mImgPoints, object + 1);
+        mImgPoints[object] = new float[2 * 4 * ids.length];
+        mPointCounts = new int[object + 1];
+        mFound = new boolean[object + 1];
+        mRvecs.add(new Mat(3, 1, CvType.CV_64FC1));
+        mTvecs.add(new Mat(3, 1, CvType.CV_64FC1));
+        if (mPoseTrackers != null) {
+            mPoseTrackers.add(new PnpTracker());
+        }
+        return object;
+    }
+
+    /**
+     * Adds the markers of a new object to the index from marker id to object and marker.
+     * @param markerIndex the index of the objects registered so far, left unchanged
+     * @param objectIds the ids of the objects registered so far
+     * @param object the index of the new object
+     * @param ids the marker ids of the new object, in any order
+     * @return the index with the markers of the new object
+     * @throws IllegalArgumentException if an id is out of range, listed twice or already
+     * belongs to another object
+     */
+    static int[] indexMarkers(int[] markerIndex, int[] objectIds, int object, int[] ids) {
+        int maxId = markerIndex.length - 1;
+        for (int id : ids) {
+            if (id < 0 || id > 0xffff) {
+                throw new IllegalArgumentException("marker id " + id + " out of range");
+            }
+            // checked against the index as it is, the ids need not be sorted
+            if (id < markerIndex.length && markerIndex[id] != NO_MARKER) {
+                throw new IllegalArgumentException("marker " + id + " already belongs to object "
+                        + objectIds[markerIndex[id] >>> 16]);
+            }
+            maxId = Math.max(maxId, id);
+        }
+        int[] index = Arrays.copyOf(markerIndex, maxId + 1);
+        Arrays.fill(index, markerIndex.length, index.length, NO_MARKER);
+        for (int marker = 0; marker < ids.length; marker++) {
+            if (index[ids[marker]] != NO_MARKER) {
+                throw new IllegalArgumentException("marker " + ids[marker] + " is listed twice");
+            }
+            index[ids[marker]] = (object << 16) | marker;
+        }
+        return index;
+    }
+
+    /**
+     * Sets if the pose of each object is started from its pose of the last solves.
+     * @param track true to start from the last poses, false by default
+     */
+    public void setPoseTracking(boolean track) {
+        if (track == (mPoseTrackers != null)) {
+            return;
+        }
+        if (track) {
+            mPoseTrackers = new ArrayList<>();
+            for (int object = 0; object < mModels.size(); object++) {
+                mPoseTrackers.add(new PnpTracker());
+            }
+        } else {
+            releasePoseTrackers();
+        }
+    }
+
+    /**
+     * @param object an object index
+     * @return the tracker of the pose of the object with its solve counts, null if
+     * poses are not tracked
+     */
+    public PnpTracker getPoseTracker(int object) {
+        return mPoseTrackers == null ? null : mPoseTrackers.get(object);
+    }
+
+    /**
+     * Solves the pose of every object with at least one marker detected.
+     * @param markers the markers detected in the frame
+     * @param cp valid camera parameters
+     * @return the number of objects found
+     */
+    public int solve(Vector<Marker> markers, CameraParameters cp) {
+        Arrays.fill(mPointCounts, 0);
+        for (int i = 0; i < markers.size(); i++) {
+            Marker marker = markers.get(i);
+            addMarker(marker.getMarkerId(), marker.toList(), 0);
+        }
+        return solveObjects(cp);
+    }
+
+    /**
+     * Solves the pose of every object with at least one marker tracked, from marker
+     * corners followed from an earlier detection instead of detected in the frame.
+     * @param ids the ids of the markers tracked
+     * @param corners the corners of the markers, 4 per marker in the order of the ids
+     *                and in the order {@link Marker#toList()} gives them
+     * @param markerCount the number of markers tracked
+     * @param cp valid camera parameters
+     * @return the number of objects found
+     */
+    public int solve(int[] ids, Point[] corners, int markerCount, CameraParameters cp) {
+        Arrays.fill(mPointCounts, 0);
+        List<Point> cornerList = Arrays.asList(corners);
+        for (int i = 0; i < markerCount; i++) {
+            addMarker(ids[i], cornerList, 4 * i);
+        }
+        return solveObjects(cp);
+    }
+
+    /** Adds the corners of a marker to the points of its object, if it has one */
+    private void addMarker(int id, List<Point> corners, int offset) {
+        if (id < 0 || id >= mMarkerIndex.length || mMarkerIndex[id] == NO_MARKER) {
+            return;
+        }
+        int object = mMarkerIndex[id] >>> 16;
+        int count = mPointCounts[object];
+        if (2 * (count + 4) > mImgPoints[object].length) {
+            // the same id detected more than once, the object can't hold them all
+            return;
+        }
+        Point3[] modelCorners = mModels.get(object).getMarkerCorners(mMarkerIndex[id] & 0xffff);
+        float[] objPoints = mObjPoints[object];
+        float[] imgPoints = mImgPoints[object];
+        for (int c = 0; c < 4; c++) {
+            Point3 objPoint = modelCorners[c];
+            objPoints[3 * (count + c)] = (float) objPoint.x;
+            objPoints[3 * (count + c) + 1] = (float) objPoint.y;
+            objPoints[3 * (count + c) + 2] = (float) objPoint.z;
+            Point imgPoint = corners.get(offset + c);
+            imgPoints[2 * (count + c)] = (float) imgPoint.x;
+            imgPoints[2 * (count + c) + 1] = (float) imgPoint.y;
+        }
+        mPointCounts[object] = count + 4;
+    }
+
+    private int solveObjects(CameraParameters cp) {
+        if (mPoseTrackers != null) {
+            for (PnpTracker tracker : mPoseTrackers) {
+                tracker.nextFrame();
+            }
+        }
+        int found = 0;
+        boolean valid = cp.isValid();
+        for (int object = 0; object < mModels.size(); object++) {
+            int count = mPointCounts[object];
+            mFound[object] = count > 0 && valid;
+            if (!mFound[object]) {
+                continue;
+            }
+            // only the first count points of the buffers are copied, the Mats keep their memory
+            mObjPointsMat.create(count, 1, CvType.CV_32FC3);
+            mObjPointsMat.put(0, 0, mObjPoints[object]);
+            mImgPointsMat.create(count, 1, CvType.CV_32FC2);
+            mImgPointsMat.put(0, 0, mImgPoints[object]);
+            if (mPoseTrackers != null) {
+                mPoseTrackers.get(object).solve(mObjPointsMat, mImgPointsMat, cp,
+                        mRvecs.get(object), mTvecs.get(object));
+            } else {
+                Calib3d.solvePnP(mObjPointsMat, mImgPointsMat, cp.getCameraMatrix(), cp.getDistCoeff(),
+                        mRvecs.get(object), mTvecs.get(object));
+            }
+            found++;
+        }
+        return found;
+    }
+
+    /**
+     * @return the number of objects registered
+     */
+    public int getObjectCount() {
+        return mModels.size();
+    }
+
+    /**
+     * @param object an object index
+     * @return the id the object was registered with
+     */
+    public int getObjectId(int object) {
+        return mObjectIds[object];
+    }
+
+    /**
+     * @param objectId an object id
+     * @return the index of the object or -1 if it is not registered
+     */
+    public int indexOf(int objectId) {
+        for (int object = 0; object < mObjectIds.length; object++) {
+            if (mObjectIds[object] == objectId) {
+                return object;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param object an object index
+     * @return the markers of the object
+     */
+    public MarkerModel getModel(int object) {
+        return mModels.get(object);
+    }
+
+    /**
+     * @param object an object index
+     * @return true if the object was found by the last solve
+     */
+    public boolean isFound(int object) {
+        return mFound[object];
+    }
+
+    /**
+     * @param object an object index
+     * @return the rotation vector of the object from the last solve that found it
+     */
+    public Mat getRvec(int object) {
+        return mRvecs.get(object);
+    }
+
+    /**
+     * @param object an object index
+     * @return the translation vector of the object from the last solve that found it
+     */
+    public Mat getTvec(int object) {
+        return mTvecs.get(object);
+    }
+
+    /** Frees the native memory of the solve */
+    public void release() {
+        mObjPointsMat.release();
+        mImgPointsMat.release();
+        for (Mat mat : mRvecs) {
+            mat.release();
+        }
+        for (Mat mat : mTvecs) {
+            mat.release();
+        }
+        if (mPoseTrackers != null) {
+            releasePoseTrackers();
+        }
+    }
+
+    private void releasePoseTrackers() {
+        for (PnpTracker tracker : mPoseTrackers) {
+            tracker.release();
+        }
+        mPoseTrackers = null;
+    }
+}
@@ -0,0 +1,69 @@
+package com.informatics.lehigh.cardboneviz.tracking;
+
+/**
+ * One Euro filter on every pose channel (Casiez et al. 2012). It is a low pass filter
+ * whose cutoff frequency grows with the speed of the signal, smoothing a still cube a
+ * lot and a moving one little so it lags behind less.
+ */
+public class OneEuroPoseFilter extends PoseFilter {
+    /** Cutoff frequency of the speed estimate in Hz */
+    private static final double SPEED_CUTOFF = 1.0;
+    /** Cutoffs for the cube, to be tuned with PoseFilterEvaluator */
+    public static final double DEFAULT_TRANSLATION_MIN_CUTOFF = 1.0;
+    public static final double DEFAULT_TRANSLATION_BETA = 20.0;
+    public static final double DEFAULT_ROTATION_MIN_CUTOFF = 1.0;
+    public static final double DEFAULT_ROTATION_BETA = 2.0;
+
+    private final double[] mMinCutoff = new double[CHANNELS];
+    private final double[] mBeta = new double[CHANNELS];
+    /** Last filtered value of each channel */
+    private final double[] mValue = new double[CHANNELS];
+    /** Last filtered speed of each channel */
+    private final double[] mSpeed = new double[CHANNELS];
+
+    /** Creates a filter with the default parameters */
+    public OneEuroPoseFilter() {
+        this(DEFAULT_TRANSLATION_MIN_CUTOFF, DEFAULT_TRANSLATION_BETA,
+                DEFAULT_ROTATION_MIN_CUTOFF, DEFAULT_ROTATION_BETA);
+    }
+
+    /**
+     * @param translationMinCutoff cutoff frequency in Hz of a still translation
+     * @param translationBeta cutoff increase in Hz per m/s of translation speed
+     * @param rotationMinCutoff cutoff frequency in Hz of a still rotation
+     * @param rotationBeta cutoff increase in Hz per unit/s of quaternion speed
+     */
+    public OneEuroPoseFilter(double translationMinCutoff, double translationBeta,
+                             double rotationMinCutoff, double rotationBeta) {
+        for (int i = 0; i < CHANNELS; i++) {
+            mMinCutoff[i] = i < QUAT ? translationMinCutoff : rotationMinCutoff;
+            mBeta[i] = i < QUAT ? translationBeta : rotationBeta;
+        }
+    }
+
+    @Override
+    protected void resetChannels(double[] values) {
+        for (int i = 0; i < CHANNELS; i++) {
+            mValue[i] = values[i];
+            mSpeed[i] = 0;
+        }
+    }
+
+    @Override
+    protected void filterChannels(double dt, double[] values) {
+        double speedAlpha = alpha(SPEED_CUTOFF, dt);
+        for (int i = 0; i < CHANNELS; i++) {
+            double speed = (values[i] - mValue[i]) / dt;
+            mSpeed[i] += speedAlpha * (speed - mSpeed[i]);
+            double cutoff = mMinCutoff[i] + mBeta[i] * Math.abs(mSpeed[i]);
+            mValue[i] += alpha(cutoff, dt) * (values[i] - mValue[i]);
+            values[i] = mValue[i];
+        }
+    }
+
+    /** Smoothing factor of a first order low pass filter */
+    private static double alpha(double cutoff, double dt) {
+        double tau = 1.0 / (2 * Math.PI * cutoff);
+        return 1.0 / (1.0 + tau / dt);
+    }
+}
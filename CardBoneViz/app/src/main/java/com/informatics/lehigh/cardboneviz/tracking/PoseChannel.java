@@ -0,0 +1,93 @@
+package com.informatics.lehigh.cardboneviz.tracking;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Hands the latest cube pose from the tracker to the renderer without tearing or
+ * allocating. This is a sequence lock: the single writer makes the sequence odd, writes
+ * every value and makes it even again, and a reader retries until it reads the same even
+ * sequence before and after copying the values. Values are kept as raw long bits in an
+ * atomic array so every access is ordered with the sequence.
+ */
+public class PoseChannel {
+    private static final int RVEC = 0;
+    private static final int TVEC = 3;
+    private static final int TIMESTAMP = 6;
+    private static final int DETECTED = 7;
+    private static final int FRAME_SEQUENCE = 8;
+    private static final int SLOT_COUNT = 9;
+
+    private final AtomicLong mSequence = new AtomicLong();
+    private final AtomicLongArray mSlots = new AtomicLongArray(SLOT_COUNT);
+    /** Number of reads that had to be retried because of a concurrent write */
+    private final AtomicLong mRetries = new AtomicLong();
+
+    /**
+     * Publishes a new pose. Must only be called from one thread at a time.
+     * @param frameSequence sequence number of the frame the pose was solved from
+     * @param captureTimestampNs camera timestamp of that frame
+     * @param detected true if the cube was found in that frame
+     * @param rvec rotation vector, 3 values
+     * @param tvec translation vector, 3 values
+     */
+    public void publish(long frameSequence, long captureTimestampNs, boolean detected,
+                        double[] rvec, double[] tvec) {
+        mSequence.incrementAndGet();
+        for (int i = 0; i < 3; i++) {
+            mSlots.set(RVEC + i, Double.doubleToRawLongBits(rvec[i]));
+            mSlots.set(TVEC + i, Double.doubleToRawLongBits(tvec[i]));
+        }
+        mSlots.set(TIMESTAMP, captureTimestampNs);
+        mSlots.set(DETECTED, detected ? 1 : 0);
+        mSlots.set(FRAME_SEQUENCE, frameSequence);
+        mSequence.incrementAndGet();
+    }
+
+    /**
+     * Copies the latest pose into dst. Never blocks the writer and never allocates.
+     * @param dst snapshot to fill
+     * @return true if the pose is newer than the one dst held before
+     */
+    public boolean read(PoseSnapshot dst) {
+        long before;
+        while (true) {
+            before = mSequence.get();
+            if ((before & 1) != 0) {
+                // a write is in progress
+                mRetries.incrementAndGet();
+                Thread.yield();
+                continue;
+            }
+            for (int i = 0; i < 3; i++) {
+                dst.rvec[i] = Double.longBitsToDouble(mSlots.get(RVEC + i));
+                dst.tvec[i] = Double.longBitsToDouble(mSlots.get(TVEC + i));
+            }
+            dst.captureTimestampNs = mSlots.get(TIMESTAMP);
+            dst.detected = mSlots.get(DETECTED) != 0;
+            dst.frameSequence = mSlots.get(FRAME_SEQUENCE);
+            if (mSequence.get() == before) {
+                break;
+            }
+            mRetries.incrementAndGet();
+        }
+        long version = before / 2;
+        boolean newer = version != dst.version;
+        dst.version = version;
+        return newer;
+    }
+
+    /**
+     * @return number of poses published so far
+     */
+    public long getVersion() {
+        return mSequence.get() / 2;
+    }
+
+    /**
+     * @return number of reads retried because a write was in progress
+     */
+    public long getRetryCount() {
+        return mRetries.get();
+    }
+}
@@ -0,0 +1,120 @@
+package com.informatics.lehigh.cardboneviz.tracking;
+
+/**
+ * Smooths the cube pose from frame to frame. The translation and the rotation, as a unit
+ * quaternion, are filtered as 7 independent channels by a subclass. The quaternion is
+ * kept in the same hemisphere as the last filtered one so the filter never averages q
+ * with -q, which are the same rotation, and is normalized again after filtering.
+ * Filtering never allocates. A filter is used by one thread at a time.
+ */
+public abstract class PoseFilter {
+    /** Number of filtered channels, translation x, y, z then quaternion w, x, y, z */
+    public static final int CHANNELS = 7;
+    /** Index of the first quaternion channel */
+    protected static final int QUAT = 3;
+    /** A gap between two poses longer than this restarts the filter */
+    private static final long MAX_GAP_NS = 500000000L;
+
+    private final double[] mValues = new double[CHANNELS];
+    private final double[] mLastQuat = new double[4];
+    private long mLastTimestampNs;
+    private boolean mInitialized = false;
+
+    /**
+     * Filters a new pose measurement in place.
+     * @param timestampNs capture time of the pose
+     * @param rvec rotation vector, replaced by the filtered one
+     * @param tvec translation vector, replaced by the filtered one
+     */
+    public void filter(long timestampNs, double[] rvec, double[] tvec) {
+        mValues[0] = tvec[0];
+        mValues[1] = tvec[1];
+        mValues[2] = tvec[2];
+        rvecToQuat(rvec, mValues);
+        long dtNs = timestampNs - mLastTimestampNs;
+        if (!mInitialized || dtNs > MAX_GAP_NS || dtNs < 0) {
+            resetChannels(mValues);
+            mInitialized = true;
+        } else {
+            double dot = 0;
+            for (int i = 0; i < 4; i++) {
+                dot += mValues[QUAT + i] * mLastQuat[i];
+            }
+            if (dot < 0) {
+                for (int i = QUAT; i < CHANNELS; i++) {
+                    mValues[i] = -mValues[i];
+                }
+            }
+            filterChannels(Math.max(dtNs, 1) / 1e9, mValues);
+        }
+        mLastTimestampNs = timestampNs;
+        for (int i = 0; i < 4; i++) {
+            mLastQuat[i] = mValues[QUAT + i];
+        }
+        tvec[0] = mValues[0];
+        tvec[1] = mValues[1];
+        tvec[2] = mValues[2];
+        quatToRvec(mValues, rvec);
+    }
+
+    /** Forgets the past poses, the next one is passed through unfiltered */
+    public void reset() {
+        mInitialized = false;
+    }
+
+    /**
+     * Starts filtering from the given values.
+     * @param values the first measurement of every channel
+     */
+    protected abstract void resetChannels(double[] values);
+
+    /**
+     * Filters a new measurement of every channel in place.
+     * @param dt seconds since the last measurement
+     * @param values the measurement, replaced by the filtered values
+     */
+    protected abstract void filterChannels(double dt, double[] values);
+
+    /** Converts a rotation vector into a unit quaternion stored from index QUAT */
+    static void rvecToQuat(double[] rvec, double[] dst) {
+        double angle = Math.sqrt(rvec[0] * rvec[0] + rvec[1] * rvec[1] + rvec[2] * rvec[2]);
+        double s;
+        if (angle < 1e-12) {
+            // sin(a/2)/a tends to 1/2
+            s = 0.5;
+        } else {
+            s = Math.sin(angle / 2) / angle;
+        }
+        dst[QUAT] = Math.cos(angle / 2);
+        dst[QUAT + 1] = rvec[0] * s;
+        dst[QUAT + 2] = rvec[1] * s;
+        dst[QUAT + 3] = rvec[2] * s;
+    }
+
+    /** Normalizes the quaternion stored from index QUAT and converts it into a rotation vector */
+    static void quatToRvec(double[] src, double[] rvec) {
+        double w = src[QUAT];
+        double x = src[QUAT + 1];
+        double y = src[QUAT + 2];
+        double z = src[QUAT + 3];
+        double norm = Math.sqrt(w * w + x * x + y * y + z * z);
+        if (w < 0) {
+            // the shortest rotation
+            norm = -norm;
+        }
+        w /= norm;
+        x /= norm;
+        y /= norm;
+        z /= norm;
+        double sinHalf = Math.sqrt(x * x + y * y + z * z);
+        double scale;
+        if (sinHalf < 1e-12) {
+            scale = 2;
+        } else {
+            scale = 2 * Math.atan2(sinHalf, w) / sinHalf;
+        }
+        rvec[0] = x * scale;
+        rvec[1] = y * scale;
+        rvec[2] = z * scale;
+    }
+}
@@ -0,0 +1,75 @@
+package com.informatics.lehigh.cardboneviz.tracking;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes the stream of raw cube poses to a csv file, one line per pose found:
+ * timestamp in ns, rvec x, y, z, tvec x, y, z. The streams are used to tune the
+ * pose filters offline.
+ */
+public class PoseRecorder {
+    private final PrintWriter mWriter;
+
+    /**
+     * @param file file to write, overwritten if it exists
+     * @throws IOException if the file can't be created
+     */
+    public PoseRecorder(File file) throws IOException {
+        file.getParentFile().mkdirs();
+        mWriter = new PrintWriter(new FileWriter(file));
+    }
+
+    /** Adds a pose at the end of the file */
+    public void record(long timestampNs, double[] rvec, double[] tvec) {
+        mWriter.print(timestampNs);
+        for (int i = 0; i < 3; i++) {
+            mWriter.print(',');
+            mWriter.print(rvec[i]);
+        }
+        for (int i = 0; i < 3; i++) {
+            mWriter.print(',');
+            mWriter.print(tvec[i]);
+        }
+        mWriter.println();
+    }
+
+    /** Flushes and closes the file */
+    public void close() {
+        mWriter.close();
+    }
+
+    /**
+     * Reads a file written by a recorder.
+     * @param file the recorded file
+     * @return one array per pose, {timestamp, rvec x, y, z, tvec x, y, z}
+     * @throws IOException if the file can't be read
+     */
+    public static List<double[]> read(File file) throws IOException {
+        List<double[]> poses = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(",");
+                if (fields.length != 7) {
+                    continue;
+                }
+                double[] pose = new double[7];
+                for (int i = 0; i < 7; i++) {
+                    pose[i] = Double.parseDouble(fields[i]);
+                }
+                poses.add(pose);
+            }
+        } finally {
+            reader.close();
+        }
+        return poses;
+    }
+}
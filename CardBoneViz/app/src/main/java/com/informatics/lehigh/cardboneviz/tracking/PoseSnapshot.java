@@ -0,0 +1,20 @@
+package com.informatics.lehigh.cardboneviz.tracking;
+
+/**
+ * Caller owned copy of a pose published through a {@link PoseChannel}. A consumer keeps
+ * one of these and reads into it every frame, so reading never allocates.
+ */
+public class PoseSnapshot {
+    /** Rotation vector of the cube in the camera frame */
+    public final double[] rvec = new double[3];
+    /** Translation vector of the cube in the camera frame */
+    public final double[] tvec = new double[3];
+    /** Camera timestamp of the image the pose was solved from, in nanoseconds */
+    public long captureTimestampNs;
+    /** True if the cube was found in that image, otherwise the pose is the last one found */
+    public boolean detected;
+    /** Sequence number of the frame the pose was solved from */
+    public long frameSequence;
+    /** Number of poses published before this one, 0 if nothing has been read yet */
+    public long version;
+}
@@ -0,0 +1,149 @@
+package com.informatics.lehigh.cardboneviz.tracking;
+
+import android.os.Debug;
+import android.util.Log;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.Vector;
+
+import es.ava.aruco.CameraParameters;
+import es.ava.aruco.CandidateList;
+import es.ava.aruco.Marker;
+import es.ava.aruco.MarkerDetector;
+
+/**
+ * Chooses the processing resolution. A sample camera frame is scaled to each candidate
+ * resolution no larger than the frame and of the same aspect ratio, the detection is
+ * timed on it, and the highest resolution whose rate meets the target is chosen, or the
+ * lowest one if none does. Candidates above the frame would have to be upscaled, so they
+ * are never timed. The rate is measured in thread CPU time, so the evaluation can run in
+ * the background next to the tracker without its results depending on how much CPU it
+ * is given.
+ */
+public class ResolutionGovernor {
+
+    private static final String TAG = "ResolutionGovernor";
+
+    /** Candidate resolutions, from the highest to the lowest */
+    private final Size[] mCandidates;
+    private final double mTargetFps;
+    /** Detections timed at each resolution, after a first untimed one */
+    private final int mRuns;
+    private final MarkerDetector mDetector = new MarkerDetector();
+    private final CandidateList mCandidateMarkers = new CandidateList();
+    private final Vector<Marker> mDetectedMarkers = new Vector<>();
+    /** Detection runs without camera parameters, the pose is not needed for timing */
+    private final CameraParameters mNoParams = new CameraParameters();
+    private final Mat mScaled = new Mat();
+    /** Rate measured at each candidate resolution by the last evaluation */
+    private final double[] mRates;
+
+    private volatile Size mChosen;
+    /** Whether the last evaluation chose the lowest resolution that fits the frame */
+    private volatile boolean mLowest;
+
+    /**
+     * @param candidates candidate resolutions, from the highest to the lowest
+     * @param targetFps tracking rate the chosen resolution must reach
+     * @param runs detections timed at each resolution
+     * @param pyramidLevels pyramid levels of the tracker detector
+     */
+    public ResolutionGovernor(Size[] candidates, double targetFps, int runs, int pyramidLevels) {
+        mCandidates = candidates;
+        mTargetFps = targetFps;
+        mRuns = runs;
+        mRates = new double[candidates.length];
+        mDetector.setPyramidLevels(pyramidLevels);
+    }
+
+    /**
+     * Times the detection at every candidate resolution that fits the frame and chooses
+     * one. If no candidate fits, the frame resolution itself is chosen.
+     * @param frame a camera frame, at the resolution of the image reader
+     * @param markerSize the size of the markers in meters
+     * @return the chosen resolution
+     */
+    public Size evaluate(Mat frame, float markerSize) {
+        int chosen = -1;
+        int lowest = -1;
+        for (int i = 0; i < mCandidates.length; i++) {
+            Size size = mCandidates[i];
+            if (!fits(size, frame.cols(), frame.rows())) {
+                mRates[i] = 0;
+                continue;
+            }
+            Imgproc.resize(frame, mScaled, size, 0, 0, Imgproc.INTER_AREA);
+            detect(markerSize);
+            long cpuStart = Debug.threadCpuTimeNanos();
+            for (int r = 0; r < mRuns; r++) {
+                detect(markerSize);
+            }
+            long cpuNs = Debug.threadCpuTimeNanos() - cpuStart;
+            mRates[i] = cpuNs <= 0 ? Double.MAX_VALUE : 1e9 * mRuns / cpuNs;
+            Log.i(TAG, "RESOLUTION " + (int) size.width + "x" + (int) size.height + " = " + mRates[i] + " FPS");
+            if (mRates[i] >= mTargetFps && chosen < 0) {
+                chosen = i;
+            }
+            lowest = i;
+        }
+        if (lowest < 0) {
+            mChosen = new Size(frame.cols(), frame.rows());
+            mLowest = true;
+            Log.i(TAG, "NO CANDIDATE RESOLUTION FITS " + frame.cols() + "x" + frame.rows());
+            return mChosen;
+        }
+        if (chosen < 0) {
+            chosen = lowest;
+        }
+        mChosen = mCandidates[chosen];
+        mLowest = chosen == lowest;
+        Log.i(TAG, "CHOSEN RESOLUTION " + (int) mChosen.width + "x" + (int) mChosen.height
+                + " FOR TARGET " + mTargetFps + " FPS");
+        return mChosen;
+    }
+
+    /**
+     * @return the resolution chosen by the last evaluation, or null before the first one
+     */
+    public Size getChosen() {
+        return mChosen;
+    }
+
+    /**
+     * @return whether the last evaluation chose the lowest resolution that fits the
+     * frame, so evaluating again can not lower it
+     */
+    public boolean isLowest() {
+        return mLowest;
+    }
+
+    /**
+     * @return the rate measured at each candidate resolution by the last evaluation, 0 for
+     * the resolutions that do not fit the frame
+     */
+    public double[] getRates() {
+        return mRates.clone();
+    }
+
+    /** Frees the native memory of the evaluation */
+    public void release() {
+        mScaled.release();
+    }
+
+    /**
+     * @return whether the size is no larger than the frame and has its aspect ratio,
+     * within a pixel of height
+     */
+    static boolean fits(Size size, int frameWidth, int frameHeight) {
+        return size.width <= frameWidth && size.height <= frameHeight
+                && Math.abs(size.width * frameHeight - size.height * frameWidth) < frameWidth;
+    }
+
+    private void detect(float markerSize) {
+        mDetector.findCandidates(mScaled, mCandidateMarkers);
+        mDetector.identifyCandidates(mScaled, mCandidateMarkers, mDetectedMarkers, mNoParams, markerSize);
+    }
+}
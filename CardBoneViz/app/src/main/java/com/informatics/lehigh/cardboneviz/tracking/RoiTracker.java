@@ -0,0 +1,170 @@
+package com.informatics.lehigh.cardboneviz.tracking;
+
+import android.util.Log;
+
+import org.opencv.calib3d.Calib3d;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.MatOfPoint3f;
+import org.opencv.core.Rect;
+
+import es.ava.aruco.CameraParameters;
+
+/**
+ * Chooses the region of the next frame to look for the cube in. Once the cube has been
+ * found, the bounding box of the cube at its last pose is projected into the image and
+ * padded by a motion margin, and only that window is searched. The whole frame is
+ * searched again after a number of misses in a row, and periodically so that the
+ * tracker never gets stuck on a wrong window.
+ *
+ * The candidate extraction and pose stages may call it from different threads.
+ */
+public class RoiTracker {
+
+    private static final String TAG = "RoiTracker";
+
+    /** Searching the whole frame */
+    public static final Rect FULL_FRAME = null;
+
+    /** Fraction of the projected box size added on each side for motion between frames */
+    private final double mMotionMargin;
+    /** Misses in a row inside the window before going back to the whole frame */
+    private final int mMaxMisses;
+    /** Frames between two forced searches of the whole frame */
+    private final int mFullFrameInterval;
+
+    /** The cube corners to project */
+    private final MatOfPoint3f mCubeCorners = new MatOfPoint3f();
+    /** The projection of the cube corners */
+    private final MatOfPoint2f mProjected = new MatOfPoint2f();
+    private final float[] mProjectedData = new float[16];
+    /** Last pose the cube was found at */
+    private final Mat mRvec = new Mat(3, 1, CvType.CV_64FC1);
+    private final Mat mTvec = new Mat(3, 1, CvType.CV_64FC1);
+
+    /** True if there is a pose to search around */
+    private boolean mHasPose = false;
+    /** Misses in a row inside the window */
+    private int mMisses = 0;
+    /** Frames since the whole frame was last searched */
+    private int mFramesSinceFull = 0;
+
+    /** Frames searched inside a window and how many of them found the cube */
+    private long mRoiFrames = 0;
+    private long mRoiHits = 0;
+    /** Frames searched and pixels searched over all of them */
+    private long mFrames = 0;
+    private long mPixels = 0;
+
+    /**
+     * @param cubeModel the tracked cube
+     * @param motionMargin fraction of the projected cube size added on each side
+     * @param maxMisses misses in a row inside the window before searching the whole frame
+     * @param fullFrameInterval frames between two forced searches of the whole frame
+     */
+    public RoiTracker(CubeModel cubeModel, double motionMargin, int maxMisses, int fullFrameInterval) {
+        mMotionMargin = motionMargin;
+        mMaxMisses = maxMisses;
+        mFullFrameInterval = fullFrameInterval;
+        mCubeCorners.fromArray(cubeModel.getCubeCorners());
+    }
+
+    /**
+     * Chooses the region to search in the next frame.
+     * @param camParams the camera parameters at the size of the frame
+     * @param width width of the frame
+     * @param height height of the frame
+     * @return the region to search or {@link #FULL_FRAME}
+     */
+    public synchronized Rect nextRegion(CameraParameters camParams, int width, int height) {
+        mFrames++;
+        Rect roi = FULL_FRAME;
+        if (mHasPose && mMisses < mMaxMisses && mFramesSinceFull < mFullFrameInterval && camParams.isValid()) {
+            roi = projectRegion(camParams, width, height);
+        }
+        if (roi == FULL_FRAME) {
+            mFramesSinceFull = 0;
+            mPixels += (long) width * height;
+        } else {
+            mFramesSinceFull++;
+            mPixels += (long) roi.width * roi.height;
+        }
+        return roi;
+    }
+
+    /**
+     * Records the outcome of searching a frame.
+     * @param roi the region that was searched
+     * @param found true if the cube was found
+     * @param rvec the rotation of the cube if it was found
+     * @param tvec the translation of the cube if it was found
+     */
+    public synchronized void update(Rect roi, boolean found, Mat rvec, Mat tvec) {
+        if (roi != FULL_FRAME) {
+            mRoiFrames++;
+            if (found) {
+                mRoiHits++;
+            }
+        }
+        if (found) {
+            rvec.copyTo(mRvec);
+            tvec.copyTo(mTvec);
+            mHasPose = true;
+            mMisses = 0;
+        } else if (roi != FULL_FRAME) {
+            mMisses++;
+        } else {
+            // not even in the whole frame, there is nothing to search around
+            mHasPose = false;
+        }
+    }
+
+    /**
+     * @return the fraction of the frames searched inside a window that found the cube
+     */
+    public synchronized double getHitRate() {
+        return mRoiFrames == 0 ? 0 : (double) mRoiHits / mRoiFrames;
+    }
+
+    /**
+     * @return the average number of pixels searched per frame
+     */
+    public synchronized double getAveragePixels() {
+        return mFrames == 0 ? 0 : (double) mPixels / mFrames;
+    }
+
+    /** Logs the hit rate and the pixels searched */
+    public synchronized void log() {
+        Log.i(TAG, "ROI FRAMES = " + mRoiFrames + " of " + mFrames + ", HIT RATE = " + getHitRate()
+                + ", AVG PIXELS = " + getAveragePixels());
+    }
+
+    /**
+     * Projects the cube at its last pose and pads its bounding box.
+     * @return the window clipped to the frame or FULL_FRAME if it is not in the frame
+     */
+    private Rect projectRegion(CameraParameters camParams, int width, int height) {
+        Calib3d.projectPoints(mCubeCorners, mRvec, mTvec, camParams.getCameraMatrix(),
+                camParams.getDistCoeff(), mProjected);
+        mProjected.get(0, 0, mProjectedData);
+        float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+        for (int i = 0; i < mProjectedData.length; i += 2) {
+            minX = Math.min(minX, mProjectedData[i]);
+            maxX = Math.max(maxX, mProjectedData[i]);
+            minY = Math.min(minY, mProjectedData[i + 1]);
+            maxY = Math.max(maxY, mProjectedData[i + 1]);
+        }
+        double padX = (maxX - minX) * mMotionMargin;
+        double padY = (maxY - minY) * mMotionMargin;
+        int x0 = (int) Math.max(0, Math.floor(minX - padX));
+        int y0 = (int) Math.max(0, Math.floor(minY - padY));
+        int x1 = (int) Math.min(width, Math.ceil(maxX + padX));
+        int y1 = (int) Math.min(height, Math.ceil(maxY + padY));
+        if (x1 <= x0 || y1 <= y0) {
+            return FULL_FRAME;
+        }
+        return new Rect(x0, y0, x1 - x0, y1 - y0);
+    }
+}
@@ -0,0 +1,44 @@
+package com.informatics.lehigh.cardboneviz.tracking;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+
+import es.ava.aruco.CameraParameters;
+import es.ava.aruco.CandidateList;
+
+/**
+ * A camera frame as it goes through the stages of the tracker. Frames are recycled,
+ * so every member is overwritten for each new camera image.
+ */
+public class TrackingFrame {
+    /** Sequence number of the frame, counting every image acquired from the camera */
+    public long sequence;
+    /** Pooled Mat holding the converted camera image */
+    public Mat buffer;
+    /** The image to detect markers in, either {@link #buffer} or a view of it */
+    public Mat image;
+    /** Camera parameters scaled to the size of the image */
+    public CameraParameters camParams;
+    /** Region of the image searched for candidates, null if the whole image was */
+    public Rect roi;
+    /** True if the markers are to be followed from the last frame instead of detected */
+    public boolean flowOnly;
+    /** Candidate markers found in the image, filled by the candidate extraction stage */
+    public final CandidateList candidates = new CandidateList();
+    /** Camera timestamp of the image, in nanoseconds */
+    public long captureTimestampNs;
+    /** System.nanoTime when the image was acquired from the camera */
+    public long acquiredNs;
+    /** System.nanoTime when each stage finished with the frame, by stage index */
+    public final long[] stageDoneNs = new long[TrackingStats.STAGE_COUNT];
+
+    /** Clears everything but the recyclable containers */
+    public void reset() {
+        buffer = null;
+        image = null;
+        camParams = null;
+        roi = null;
+        flowOnly = false;
+        candidates.clear();
+    }
+}
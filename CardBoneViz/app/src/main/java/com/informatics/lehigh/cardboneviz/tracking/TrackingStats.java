@@ -0,0 +1,80 @@
+package com.informatics.lehigh.cardboneviz.tracking;
+
+import android.util.Log;
+
+/**
+ * Throughput and latency of each stage of the tracker. Every stage only records its
+ * own numbers, so a stage running on its own thread never contends with the others.
+ */
+public class TrackingStats {
+
+    private static final String TAG = "TrackingStats";
+
+    /** Acquiring the camera image and converting it to a Mat */
+    public static final int STAGE_CONVERSION = 0;
+    /** Thresholding, contour tracing and quad filtering */
+    public static final int STAGE_CANDIDATES = 1;
+    /** Reading the marker codes and solving the cube pose */
+    public static final int STAGE_POSE = 2;
+    public static final int STAGE_COUNT = 3;
+    private static final String[] STAGE_NAMES = {"CONVERSION", "CANDIDATES", "POSE"};
+
+    /** Frames finished by each stage */
+    private final long[] mFrames = new long[STAGE_COUNT];
+    /** Frames dropped in front of each stage because it fell behind */
+    private final long[] mDropped = new long[STAGE_COUNT];
+    /** Time spent working by each stage */
+    private final long[] mBusyNs = new long[STAGE_COUNT];
+    /** CPU time used by the thread of each stage */
+    private final long[] mCpuNs = new long[STAGE_COUNT];
+    /** Time from acquisition to the end of each stage, summed over the frames */
+    private final long[] mLatencyNs = new long[STAGE_COUNT];
+    /** Time of the first and last frame finished by each stage */
+    private final long[] mFirstNs = new long[STAGE_COUNT];
+    private final long[] mLastNs = new long[STAGE_COUNT];
+
+    /**
+     * Records a frame finished by a stage.
+     * @param stage the stage index
+     * @param frame the frame, with the end time of the stage already set
+     * @param startNs System.nanoTime when the stage started working on the frame
+     * @param cpuNs CPU time used by the stage thread for this frame, including any time
+     *              it spent waiting for the frame without sleeping
+     */
+    public synchronized void record(int stage, TrackingFrame frame, long startNs, long cpuNs) {
+        long end = frame.stageDoneNs[stage];
+        if (mFrames[stage] == 0) {
+            mFirstNs[stage] = end;
+        }
+        mLastNs[stage] = end;
+        mFrames[stage]++;
+        mBusyNs[stage] += end - startNs;
+        mCpuNs[stage] += cpuNs;
+        mLatencyNs[stage] += end - frame.acquiredNs;
+    }
+
+    /**
+     * Records a frame dropped in front of a stage.
+     * @param stage the stage that did not get to process the frame
+     */
+    public synchronized void recordDrop(int stage) {
+        mDropped[stage]++;
+    }
+
+    /** Logs the throughput, work time, CPU time, latency and drops of every stage */
+    public synchronized void log() {
+        for (int stage = 0; stage < STAGE_COUNT; stage++) {
+            long frames = mFrames[stage];
+            if (frames == 0) {
+                continue;
+            }
+            double seconds = (mLastNs[stage] - mFirstNs[stage]) / 1e9;
+            double fps = seconds > 0 ? (frames - 1) / seconds : 0;
+            Log.i(TAG, STAGE_NAMES[stage] + ": " + frames + " frames, " + fps + " FPS"
+                    + ", AVG WORK = " + (mBusyNs[stage] / frames / 1e6) + " ms"
+                    + ", AVG CPU = " + (mCpuNs[stage] / frames / 1e6) + " ms"
+                    + ", AVG LATENCY = " + (mLatencyNs[stage] / frames / 1e6) + " ms"
+                    + ", DROPPED = " + mDropped[stage]);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.informatics.lehigh.cardboneviz.tracking;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Vector;
+
+import es.ava.aruco.CameraParameters;
+import es.ava.aruco.Marker;
+import es.ava.aruco.MarkerDetector;
+import es.ava.aruco.exceptions.CPException;
+
+/**
+ * Measures how much refining the marker corners steadies the wand cube pose, over a
+ * frame recording of a static scene. The cube pose is solved at the recorded resolution
+ * and at 720p, with and without corner refinement. For each it prints the standard
+ * deviation of the translation, in millimetres, and of the rotation, in degrees, over
+ * the frames the cube was found in, and the average detection and solve time.
+ * Needs the OpenCV desktop native library in java.library.path.
+ * Usage: CornerRefinementBenchmark recording.cbvf
+ */
+public class CornerRefinementBenchmark {
+    private static final int[] WAND_CUBE_IDS = {1, 2, 3, 4, 5, 6};
+    private static final Size REDUCED_SIZE = new Size(1280, 720);
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("usage: CornerRefinementBenchmark recording.cbvf");
+            return;
+        }
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+        for (int reduced = 0; reduced <= 1; reduced++) {
+            for (int refine = 0; refine <= 1; refine++) {
+                run(new File(args[0]), reduced == 1, refine == 1);
+            }
+        }
+    }
+
+    private static void run(File file, boolean reduced, boolean refine) throws IOException {
+        FrameRecording recording = new FrameRecording(file);
+        float markerSize = recording.getMarkerSize();
+        CameraParameters calibParams = new CameraParameters();
+        calibParams.getCameraMatrix().put(0, 0, recording.getCameraMatrix());
+        calibParams.getDistCoeff().fromArray(recording.getDistCoeffs());
+        calibParams.setCamSize(new Size(recording.getCalibWidth(), recording.getCalibHeight()));
+
+        MultiObjectTracker objects = new MultiObjectTracker();
+        objects.register(0, new CubeModel(WAND_CUBE_IDS, markerSize, recording.getPaddingSize()));
+        MarkerDetector detector = new MarkerDetector();
+        detector.setOrientedCorners(true);
+        detector.setCornerRefinement(refine);
+        Vector<Marker> detected = new Vector<>();
+        double[] value = new double[3];
+
+        FrameRecording.Frame frame = new FrameRecording.Frame();
+        Mat strided = new Mat();
+        Mat scaled = new Mat();
+        byte[] plane = new byte[0];
+        CameraParameters camParams = null;
+        // sums and sums of squares of each component, translation then rotation
+        double[] sums = new double[6];
+        double[] squares = new double[6];
+        long totalNs = 0;
+        int frames = 0;
+        int found = 0;
+        Size size = null;
+        while (recording.next(frame)) {
+            // the recorded plane may lack the padding of its last row
+            int planeSize = frame.rowStride * frame.height;
+            if (plane.length != planeSize) {
+                plane = new byte[planeSize];
+            }
+            System.arraycopy(frame.data, 0, plane, 0, Math.min(frame.length, planeSize));
+            strided.create(frame.height, frame.rowStride, CvType.CV_8UC1);
+            strided.put(0, 0, plane);
+            Mat image = strided.submat(0, frame.height, 0, frame.width);
+            if (reduced && frame.height > REDUCED_SIZE.height) {
+                Imgproc.resize(image, scaled, REDUCED_SIZE, 0, 0, Imgproc.INTER_AREA);
+                image.release();
+                image = scaled;
+            }
+            if (camParams == null || camParams.getCamSize().width != image.cols()
+                    || camParams.getCamSize().height != image.rows()) {
+                camParams = new CameraParameters();
+                calibParams.copyTo(camParams);
+                try {
+                    camParams.resize(new Size(image.cols(), image.rows()));
+                } catch (CPException e) {
+                    System.err.println("camera parameters not valid: " + e.getMessage());
+                }
+                size = new Size(image.cols(), image.rows());
+            }
+
+            long start = System.nanoTime();
+            detector.detect(image, detected, camParams, markerSize);
+            boolean cubeFound = objects.solve(detected, camParams) > 0;
+            totalNs += System.nanoTime() - start;
+            frames++;
+            if (image != scaled) {
+                image.release();
+            }
+            if (!cubeFound) {
+                continue;
+            }
+            found++;
+            objects.getTvec(0).get(0, 0, value);
+            for (int i = 0; i < 3; i++) {
+                sums[i] += value[i];
+                squares[i] += value[i] * value[i];
+            }
+            objects.getRvec(0).get(0, 0, value);
+            for (int i = 0; i < 3; i++) {
+                sums[3 + i] += value[i];
+                squares[3 + i] += value[i] * value[i];
+            }
+        }
+        recording.close();
+        strided.release();
+        scaled.release();
+        objects.release();
+
+        if (found < 2) {
+            System.err.println("the cube was found in " + found + " frames of " + file);
+            return;
+        }
+        double[] deviations = new double[6];
+        for (int i = 0; i < 6; i++) {
+            double mean = sums[i] / found;
+            deviations[i] = Math.sqrt(Math.max(0, squares[i] / found - mean * mean));
+        }
+        // the translation is in the units of the marker size, meters
+        System.out.printf(Locale.US, "%.0fx%.0f, %s: found in %d of %d frames, %.2f ms/frame,"
+                        + " tvec sd %.3f %.3f %.3f mm, rvec sd %.4f %.4f %.4f deg%n",
+                size.width, size.height, refine ? "refined" : "not refined", found, frames,
+                totalNs / 1e6 / frames, deviations[0] * 1000, deviations[1] * 1000, deviations[2] * 1000,
+                Math.toDegrees(deviations[3]), Math.toDegrees(deviations[4]), Math.toDegrees(deviations[5]));
+    }
+}
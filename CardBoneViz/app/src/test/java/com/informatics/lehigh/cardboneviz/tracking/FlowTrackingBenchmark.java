@@ -0,0 +1,175 @@
+package com.informatics.lehigh.cardboneviz.tracking;
+
+import org.opencv.calib3d.Calib3d;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+import java.util.Vector;
+
+import es.ava.aruco.CameraParameters;
+import es.ava.aruco.Marker;
+import es.ava.aruco.MarkerDetector;
+import es.ava.aruco.exceptions.CPException;
+
+/**
+ * Compares tracking the wand cube with a full detection in every frame to following its
+ * markers with optical flow between full detections, over a frame recording. Both run
+ * on every frame, each with its own detector. Prints the CPU time per frame of each,
+ * how many frames the flow tracker followed and how many it had to detect again, and
+ * how far its cube pose is from the one of the full detection in the frames both found
+ * the cube in: mean and worst translation difference, in millimetres, and rotation
+ * difference, in degrees.
+ * Needs the OpenCV desktop native library in java.library.path.
+ * Usage: FlowTrackingBenchmark recording.cbvf [detection interval]
+ */
+public class FlowTrackingBenchmark {
+    private static final int[] WAND_CUBE_IDS = {1, 2, 3, 4, 5, 6};
+    private static final int DEFAULT_INTERVAL = 5;
+    private static final int WINDOW_SIZE = 15;
+    private static final int PYRAMID_LEVELS = 2;
+    private static final double MAX_FB_ERROR = 1.0;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("usage: FlowTrackingBenchmark recording.cbvf [detection interval]");
+            return;
+        }
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+        int interval = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_INTERVAL;
+        run(new File(args[0]), interval);
+    }
+
+    private static void run(File file, int interval) throws IOException {
+        FrameRecording recording = new FrameRecording(file);
+        float markerSize = recording.getMarkerSize();
+        CameraParameters calibParams = new CameraParameters();
+        calibParams.getCameraMatrix().put(0, 0, recording.getCameraMatrix());
+        calibParams.getDistCoeff().fromArray(recording.getDistCoeffs());
+        calibParams.setCamSize(new Size(recording.getCalibWidth(), recording.getCalibHeight()));
+        CubeModel cube = new CubeModel(WAND_CUBE_IDS, markerSize, recording.getPaddingSize());
+
+        MarkerDetector fullDetector = new MarkerDetector();
+        fullDetector.setOrientedCorners(true);
+        MultiObjectTracker fullObjects = new MultiObjectTracker();
+        fullObjects.register(0, cube);
+        Vector<Marker> fullMarkers = new Vector<>();
+
+        MarkerDetector flowDetector = new MarkerDetector();
+        flowDetector.setOrientedCorners(true);
+        MultiObjectTracker flowObjects = new MultiObjectTracker();
+        flowObjects.register(0, cube);
+        Vector<Marker> flowMarkers = new Vector<>();
+        FlowTracker flow = new FlowTracker(WINDOW_SIZE, PYRAMID_LEVELS, MAX_FB_ERROR);
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Mat fullRotation = new Mat();
+        Mat flowRotation = new Mat();
+        Mat relative = new Mat();
+        Mat noDelta = new Mat();
+        double[] fullTvec = new double[3];
+        double[] flowTvec = new double[3];
+
+        FrameRecording.Frame frame = new FrameRecording.Frame();
+        Mat strided = new Mat();
+        byte[] plane = new byte[0];
+        CameraParameters camParams = null;
+        long fullCpuNs = 0, flowCpuNs = 0;
+        int frames = 0, followed = 0, redetected = 0, compared = 0;
+        double translationSum = 0, translationMax = 0, rotationSum = 0, rotationMax = 0;
+        while (recording.next(frame)) {
+            // the recorded plane may lack the padding of its last row
+            int planeSize = frame.rowStride * frame.height;
+            if (plane.length != planeSize) {
+                plane = new byte[planeSize];
+            }
+            System.arraycopy(frame.data, 0, plane, 0, Math.min(frame.length, planeSize));
+            strided.create(frame.height, frame.rowStride, CvType.CV_8UC1);
+            strided.put(0, 0, plane);
+            Mat image = strided.submat(0, frame.height, 0, frame.width);
+            if (camParams == null || camParams.getCamSize().width != image.cols()
+                    || camParams.getCamSize().height != image.rows()) {
+                camParams = new CameraParameters();
+                calibParams.copyTo(camParams);
+                try {
+                    camParams.resize(new Size(image.cols(), image.rows()));
+                } catch (CPException e) {
+                    System.err.println("camera parameters not valid: " + e.getMessage());
+                }
+            }
+
+            long start = threads.getCurrentThreadCpuTime();
+            fullDetector.detect(image, fullMarkers, camParams, markerSize);
+            fullObjects.solve(fullMarkers, camParams);
+            fullCpuNs += threads.getCurrentThreadCpuTime() - start;
+
+            // as the tracker does: follow the markers until the next detection is due
+            // or a marker is lost
+            start = threads.getCurrentThreadCpuTime();
+            boolean due = !flow.isTracking() || flow.getFramesTracked() >= interval - 1;
+            if (!due && flow.track(image)) {
+                flowObjects.solve(flow.getIds(), flow.getCorners(), flow.getMarkerCount(), camParams);
+                followed++;
+            } else {
+                if (!due) {
+                    redetected++;
+                }
+                flowDetector.detect(image, flowMarkers, camParams, markerSize);
+                flowObjects.solve(flowMarkers, camParams);
+                flow.start(image, flowMarkers);
+            }
+            flowCpuNs += threads.getCurrentThreadCpuTime() - start;
+            frames++;
+
+            if (fullObjects.isFound(0) && flowObjects.isFound(0)) {
+                fullObjects.getTvec(0).get(0, 0, fullTvec);
+                flowObjects.getTvec(0).get(0, 0, flowTvec);
+                double translation = Math.sqrt(square(fullTvec[0] - flowTvec[0])
+                        + square(fullTvec[1] - flowTvec[1]) + square(fullTvec[2] - flowTvec[2]));
+                // angle of the rotation from one pose to the other
+                Calib3d.Rodrigues(fullObjects.getRvec(0), fullRotation);
+                Calib3d.Rodrigues(flowObjects.getRvec(0), flowRotation);
+                Core.gemm(fullRotation, flowRotation, 1, noDelta, 0, relative, Core.GEMM_1_T);
+                double trace = relative.get(0, 0)[0] + relative.get(1, 1)[0] + relative.get(2, 2)[0];
+                double rotation = Math.toDegrees(Math.acos(Math.max(-1, Math.min(1, (trace - 1) / 2))));
+                translationSum += translation;
+                translationMax = Math.max(translationMax, translation);
+                rotationSum += rotation;
+                rotationMax = Math.max(rotationMax, rotation);
+                compared++;
+            }
+            image.release();
+        }
+        recording.close();
+        strided.release();
+        flow.release();
+        fullObjects.release();
+        flowObjects.release();
+
+        if (frames == 0) {
+            System.err.println("no frames in " + file);
+            return;
+        }
+        System.out.printf(Locale.US, "%d frames, full detection %.2f ms/frame, flow tracking every %d %.2f ms/frame%n",
+                frames, fullCpuNs / 1e6 / frames, interval, flowCpuNs / 1e6 / frames);
+        System.out.printf(Locale.US, "%d frames followed, %d detected again after losing a marker%n",
+                followed, redetected);
+        if (compared > 0) {
+            // the translation is in the units of the marker size, meters
+            System.out.printf(Locale.US, "cube found by both in %d frames: translation difference mean %.3f max %.3f mm,"
+                            + " rotation difference mean %.4f max %.4f deg%n",
+                    compared, translationSum / compared * 1000, translationMax * 1000,
+                    rotationSum / compared, rotationMax);
+        }
+    }
+
+    private static double square(double value) {
+        return value * value;
+    }
+}
@@ -0,0 +1,106 @@
+package com.informatics.lehigh.cardboneviz.tracking;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class FrameRecordingTest {
+    private static final double[] CAMERA_MATRIX = {1000, 0, 960, 0, 1000, 540, 0, 0, 1};
+    private static final double[] DIST_COEFFS = {0.1, -0.2, 0, 0, 0.05};
+
+    /** A frame of the given size whose bytes depend on the seed, with row padding */
+    private static byte[] frameData(int width, int height, int rowStride, long seed) {
+        byte[] data = new byte[rowStride * (height - 1) + width];
+        Random random = new Random(seed);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                // smooth enough to compress, noisy enough to catch a misplaced byte
+                data[y * rowStride + x] = (byte) (x / 8 + y / 8 + random.nextInt(4));
+            }
+        }
+        return data;
+    }
+
+    private void roundTrip(boolean compress) throws IOException {
+        File file = File.createTempFile("frames", ".cbvf");
+        file.deleteOnExit();
+        // big enough frames to fill several chunks, and one bigger than a chunk
+        int[][] sizes = {{1280, 720, 1344}, {1280, 720, 1344}, {1280, 720, 1344}, {1920, 1080, 1920},
+                {3000, 2000, 3008}, {640, 360, 640}};
+        FrameRecorder recorder = new FrameRecorder(file, CAMERA_MATRIX, DIST_COEFFS, 1920, 1080,
+                0.035f, 0.005f, compress);
+        for (int i = 0; i < sizes.length; i++) {
+            byte[] data = frameData(sizes[i][0], sizes[i][1], sizes[i][2], i);
+            recorder.record(i, 1000L * i, data, data.length, sizes[i][0], sizes[i][1], sizes[i][2]);
+        }
+        recorder.close();
+
+        FrameRecording recording = new FrameRecording(file);
+        assertEquals(compress, recording.isCompressed());
+        assertEquals(1920, recording.getCalibWidth());
+        assertEquals(1080, recording.getCalibHeight());
+        assertEquals(0.035f, recording.getMarkerSize(), 0);
+        assertEquals(0.005f, recording.getPaddingSize(), 0);
+        for (int i = 0; i < 9; i++) {
+            assertEquals(CAMERA_MATRIX[i], recording.getCameraMatrix()[i], 0);
+        }
+        for (int i = 0; i < 5; i++) {
+            assertEquals(DIST_COEFFS[i], recording.getDistCoeffs()[i], 0);
+        }
+        FrameRecording.Frame frame = new FrameRecording.Frame();
+        for (int i = 0; i < sizes.length; i++) {
+            assertTrue(recording.next(frame));
+            byte[] expected = frameData(sizes[i][0], sizes[i][1], sizes[i][2], i);
+            assertEquals(i, frame.sequence);
+            assertEquals(1000L * i, frame.timestampNs);
+            assertEquals(sizes[i][0], frame.width);
+            assertEquals(sizes[i][1], frame.height);
+            assertEquals(sizes[i][2], frame.rowStride);
+            assertEquals(expected.length, frame.length);
+            for (int b = 0; b < expected.length; b++) {
+                if (expected[b] != frame.data[b]) {
+                    fail("frame " + i + " differs at byte " + b);
+                }
+            }
+        }
+        assertFalse(recording.next(frame));
+        recording.close();
+        if (compress) {
+            long raw = 0;
+            for (int[] size : sizes) {
+                raw += size[2] * (size[1] - 1) + size[0];
+            }
+            assertTrue(file.length() < raw);
+        }
+    }
+
+    @Test
+    public void framesSurviveRawRecording() throws IOException {
+        roundTrip(false);
+    }
+
+    @Test
+    public void framesSurviveCompressedRecording() throws IOException {
+        roundTrip(true);
+    }
+
+    @Test
+    public void otherFilesAreRejected() throws IOException {
+        File file = File.createTempFile("frames", ".csv");
+        file.deleteOnExit();
+        FileWriter writer = new FileWriter(file);
+        writer.write("not a recording at all");
+        writer.close();
+        try {
+            new FrameRecording(file);
+            fail("a text file was read as a recording");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
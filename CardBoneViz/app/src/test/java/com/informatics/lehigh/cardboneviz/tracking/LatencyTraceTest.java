@@ -0,0 +1,95 @@
+package com.informatics.lehigh.cardboneviz.tracking;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class LatencyTraceTest {
+    private static final long FRAME_NS = 33000000L;
+    private static final long MS = 1000000L;
+
+    /** Traces a frame through every point, each hop taking hop + point ms */
+    private static void trace(LatencyTrace trace, long sequence, long captureNs, long hopMs) {
+        long ns = captureNs + hopMs * MS;
+        trace.begin(sequence, captureNs, ns);
+        for (int point = LatencyTrace.CONVERTED; point < LatencyTrace.POINT_COUNT; point++) {
+            ns += (hopMs + point) * MS;
+            trace.mark(sequence, point, ns);
+        }
+    }
+
+    @Test
+    public void hopPercentilesComeFromEveryFrameKept() {
+        LatencyTrace trace = new LatencyTrace(100);
+        for (int f = 0; f < 100; f++) {
+            // hops of 1 to 100 ms
+            trace(trace, f, (f + 1) * FRAME_NS, f + 1);
+        }
+        long[] acquisition = trace.hopLatencies(LatencyTrace.CAPTURE, LatencyTrace.ACQUIRED);
+        assertEquals(100, acquisition.length);
+        assertEquals(50 * MS, LatencyTrace.percentile(acquisition, 0.50));
+        assertEquals(95 * MS, LatencyTrace.percentile(acquisition, 0.95));
+        assertEquals(99 * MS, LatencyTrace.percentile(acquisition, 0.99));
+        long[] draw = trace.hopLatencies(LatencyTrace.CONSUMED, LatencyTrace.DRAWN);
+        assertEquals((1 + LatencyTrace.DRAWN) * MS, draw[0]);
+        assertEquals(0, trace.getDroppedCount());
+    }
+
+    @Test
+    public void overwrittenFramesAreForgotten() {
+        LatencyTrace trace = new LatencyTrace(10);
+        for (int f = 0; f < 25; f++) {
+            trace(trace, f, f * FRAME_NS, 1);
+        }
+        // frame 25 takes the record of frame 15, a late mark of frame 5 must not touch it
+        trace.begin(25, 25 * FRAME_NS, 25 * FRAME_NS + MS);
+        trace.mark(5, LatencyTrace.DRAWN, 26 * FRAME_NS);
+        assertEquals(9, trace.hopLatencies(LatencyTrace.CAPTURE, LatencyTrace.DRAWN).length);
+        assertEquals(26, trace.getFrameCount());
+    }
+
+    @Test
+    public void framesMissingBetweenCapturesAreCountedAsDropped() {
+        LatencyTrace trace = new LatencyTrace(100);
+        long[] frames = {0, 1, 2, 4, 5, 8, 9};
+        for (int i = 0; i < frames.length; i++) {
+            // a little jitter on the capture times
+            trace.begin(i, frames[i] * FRAME_NS + (i % 2) * MS / 2, frames[i] * FRAME_NS + 5 * MS);
+        }
+        assertEquals(3, trace.getDroppedCount());
+
+        // a pause is not a drop
+        trace.markDiscontinuity();
+        trace.begin(frames.length, 100 * FRAME_NS, 100 * FRAME_NS + 5 * MS);
+        assertEquals(3, trace.getDroppedCount());
+    }
+
+    @Test
+    public void exportHasOneLinePerFrameOldestFirst() throws IOException {
+        LatencyTrace trace = new LatencyTrace(4);
+        for (int f = 0; f < 6; f++) {
+            trace(trace, f, f * FRAME_NS, 1);
+        }
+        // frame 5 is not drawn yet
+        trace.begin(6, 6 * FRAME_NS, 6 * FRAME_NS + MS);
+        File file = File.createTempFile("latency", ".csv");
+        file.deleteOnExit();
+        trace.export(file);
+        BufferedReader in = new BufferedReader(new FileReader(file));
+        assertEquals("sequence,capture,acquired,converted,detected,published,consumed,drawn", in.readLine());
+        assertTrue(in.readLine().startsWith("3,"));
+        assertTrue(in.readLine().startsWith("4,"));
+        assertTrue(in.readLine().startsWith("5,"));
+        String last = in.readLine();
+        assertTrue(last.startsWith("6,"));
+        assertTrue(last.endsWith(",,,,,"));
+        assertNull(in.readLine());
+        in.close();
+        assertTrue(trace.summarize().contains("CAPTURE -> DRAWN: 3 frames"));
+    }
+}
@@ -0,0 +1,144 @@
+package com.informatics.lehigh.cardboneviz.tracking;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Vector;
+
+import es.ava.aruco.CameraParameters;
+import es.ava.aruco.Marker;
+import es.ava.aruco.MarkerDetector;
+import es.ava.aruco.exceptions.CPException;
+
+/**
+ * Times the tracking of the wand and reference cubes over a frame recording, per frame:
+ * one single object tracker following the wand alone, two single object trackers each
+ * running its own detection, and the multi object tracker solving both cubes from a
+ * single detection.
+ * Needs the OpenCV desktop native library in java.library.path.
+ * Usage: MultiObjectBenchmark recording.cbvf
+ */
+public class MultiObjectBenchmark {
+    private static final int[] WAND_CUBE_IDS = {1, 2, 3, 4, 5, 6};
+    private static final int[] REFERENCE_CUBE_IDS = {7, 8, 9, 10, 11, 12};
+
+    private static final int ONE_SINGLE = 0;
+    private static final int TWO_SINGLE = 1;
+    private static final int MULTI = 2;
+    private static final String[] MODE_NAMES = {"1 single object tracker", "2 single object trackers",
+            "multi object tracker, 2 objects"};
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("usage: MultiObjectBenchmark recording.cbvf");
+            return;
+        }
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+        for (int mode = ONE_SINGLE; mode <= MULTI; mode++) {
+            run(new File(args[0]), mode);
+        }
+    }
+
+    private static void run(File file, int mode) throws IOException {
+        FrameRecording recording = new FrameRecording(file);
+        float markerSize = recording.getMarkerSize();
+        CameraParameters calibParams = new CameraParameters();
+        calibParams.getCameraMatrix().put(0, 0, recording.getCameraMatrix());
+        calibParams.getDistCoeff().fromArray(recording.getDistCoeffs());
+        calibParams.setCamSize(new Size(recording.getCalibWidth(), recording.getCalibHeight()));
+
+        CubeModel wandCube = new CubeModel(WAND_CUBE_IDS, markerSize, recording.getPaddingSize());
+        CubeModel referenceCube = new CubeModel(REFERENCE_CUBE_IDS, markerSize, recording.getPaddingSize());
+        // the single object trackers solve one cube each, the multi object tracker both
+        MultiObjectTracker wandObjects = new MultiObjectTracker();
+        wandObjects.register(0, wandCube);
+        MultiObjectTracker referenceObjects = new MultiObjectTracker();
+        referenceObjects.register(1, referenceCube);
+        MultiObjectTracker objects = new MultiObjectTracker();
+        objects.register(0, wandCube);
+        objects.register(1, referenceCube);
+        MarkerDetector wandDetector = new MarkerDetector();
+        MarkerDetector referenceDetector = new MarkerDetector();
+        // the corners of the markers must be in the order of the cube models
+        wandDetector.setOrientedCorners(true);
+        referenceDetector.setOrientedCorners(true);
+        Vector<Marker> detected = new Vector<>();
+
+        FrameRecording.Frame frame = new FrameRecording.Frame();
+        Mat strided = new Mat();
+        byte[] plane = new byte[0];
+        CameraParameters camParams = null;
+        long[] frameNs = new long[64];
+        int frames = 0;
+        int[] found = new int[2];
+        while (recording.next(frame)) {
+            // the recorded plane may lack the padding of its last row
+            int size = frame.rowStride * frame.height;
+            if (plane.length != size) {
+                plane = new byte[size];
+            }
+            System.arraycopy(frame.data, 0, plane, 0, Math.min(frame.length, size));
+            strided.create(frame.height, frame.rowStride, CvType.CV_8UC1);
+            strided.put(0, 0, plane);
+            Mat image = strided.submat(0, frame.height, 0, frame.width);
+            if (camParams == null || camParams.getCamSize().width != frame.width
+                    || camParams.getCamSize().height != frame.height) {
+                camParams = new CameraParameters();
+                calibParams.copyTo(camParams);
+                try {
+                    camParams.resize(new Size(frame.width, frame.height));
+                } catch (CPException e) {
+                    System.err.println("camera parameters not valid: " + e.getMessage());
+                }
+            }
+
+            long start = System.nanoTime();
+            if (mode == MULTI) {
+                wandDetector.detect(image, detected, camParams, markerSize);
+                objects.solve(detected, camParams);
+                found[0] += objects.isFound(0) ? 1 : 0;
+                found[1] += objects.isFound(1) ? 1 : 0;
+            } else {
+                wandDetector.detect(image, detected, camParams, markerSize);
+                found[0] += wandObjects.solve(detected, camParams);
+                if (mode == TWO_SINGLE) {
+                    referenceDetector.detect(image, detected, camParams, markerSize);
+                    found[1] += referenceObjects.solve(detected, camParams);
+                }
+            }
+            long ns = System.nanoTime() - start;
+            image.release();
+
+            if (frames == frameNs.length) {
+                frameNs = Arrays.copyOf(frameNs, frames * 2);
+            }
+            frameNs[frames++] = ns;
+        }
+        recording.close();
+        strided.release();
+        wandObjects.release();
+        referenceObjects.release();
+        objects.release();
+
+        if (frames == 0) {
+            System.err.println("no frames in " + file);
+            return;
+        }
+        long[] sorted = Arrays.copyOf(frameNs, frames);
+        Arrays.sort(sorted);
+        long total = 0;
+        for (long ns : sorted) {
+            total += ns;
+        }
+        System.out.printf(Locale.US, "%s: %d frames, wand found in %d, reference found in %d, avg %.2f ms,"
+                        + " p50 %.2f ms, p95 %.2f ms%n", MODE_NAMES[mode], frames, found[0], found[1],
+                total / 1e6 / frames, sorted[frames / 2] / 1e6,
+                sorted[(int) Math.min(frames - 1, Math.ceil(frames * 0.95) - 1)] / 1e6);
+    }
+}
@@ -0,0 +1,55 @@
+package com.informatics.lehigh.cardboneviz.tracking;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the index from marker id to object and marker built when objects are registered,
+ * whatever the order of their ids.
+ */
+public class MultiObjectTrackerTest {
+
+    @Test
+    public void unsortedBoardIdsAreIndexed() {
+        int[] cube = new CubeModel(new int[] {1, 2, 3, 4, 5, 6}, 0.04f, 0.005f).getIds();
+        int[] index = MultiObjectTracker.indexMarkers(new int[0], new int[0], 0, cube);
+        // a larger id before smaller new ones, past the end of the index so far
+        int[] board = new BoardModel(new int[] {20, 9, 14, 7}, 2, 0.04f, 0.01f).getIds();
+        index = MultiObjectTracker.indexMarkers(index, new int[] {0}, 1, board);
+        assertEquals(21, index.length);
+        for (int marker = 0; marker < board.length; marker++) {
+            assertEquals((1 << 16) | marker, index[board[marker]]);
+        }
+        for (int marker = 0; marker < cube.length; marker++) {
+            assertEquals(marker, index[cube[marker]]);
+        }
+        assertEquals(-1, index[8]);
+        assertEquals(-1, index[0]);
+
+        // the first object registered can be unsorted too
+        index = MultiObjectTracker.indexMarkers(new int[0], new int[0], 0, new int[] {5, 3});
+        assertEquals(1, index[3]);
+        assertEquals(0, index[5]);
+    }
+
+    @Test
+    public void duplicateIdIsRejected() {
+        int[] index = MultiObjectTracker.indexMarkers(new int[0], new int[0], 0, new int[] {1, 2});
+        int[] ids = new BoardModel(new int[] {8, 3, 8, 4}, 2, 0.04f, 0.01f).getIds();
+        try {
+            MultiObjectTracker.indexMarkers(index, new int[] {0}, 1, ids);
+            fail("marker 8 is listed twice");
+        } catch (IllegalArgumentException expected) {
+        }
+        // and so is a marker of another object
+        try {
+            MultiObjectTracker.indexMarkers(index, new int[] {0}, 1, new int[] {7, 2});
+            fail("marker 2 belongs to object 0");
+        } catch (IllegalArgumentException expected) {
+        }
+        // the index given is left as it was
+        assertEquals(3, index.length);
+        assertEquals(-1, index[0]);
+    }
+}
@@ -0,0 +1,109 @@
+package com.informatics.lehigh.cardboneviz.tracking;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that a pose read from a {@link PoseChannel} always comes from a single publish,
+ * with a writer publishing as fast as it can while several readers read.
+ */
+public class PoseChannelTest {
+    private static final int PUBLISHES = 2000000;
+    private static final int READERS = 3;
+
+    /** Fills the pose of frame k, every value can be checked against the frame sequence */
+    private static void poseOf(long k, double[] rvec, double[] tvec) {
+        for (int i = 0; i < 3; i++) {
+            rvec[i] = k * 10 + i;
+            tvec[i] = -k * 10 - i;
+        }
+    }
+
+    private static boolean isConsistent(PoseSnapshot pose) {
+        long k = pose.frameSequence;
+        if (k == 0) {
+            // nothing published yet, everything still at zero
+            return pose.captureTimestampNs == 0 && !pose.detected && pose.rvec[0] == 0 && pose.tvec[0] == 0;
+        }
+        for (int i = 0; i < 3; i++) {
+            if (pose.rvec[i] != k * 10 + i || pose.tvec[i] != -k * 10 - i) {
+                return false;
+            }
+        }
+        return pose.captureTimestampNs == k * 1000 && pose.detected == (k % 2 == 0) && pose.version == k;
+    }
+
+    @Test
+    public void concurrentReadsAreNeverTorn() throws Exception {
+        final PoseChannel channel = new PoseChannel();
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        final AtomicLong tornReads = new AtomicLong();
+        final AtomicLong backwardReads = new AtomicLong();
+        final AtomicLong reads = new AtomicLong();
+
+        Thread[] readers = new Thread[READERS];
+        for (int r = 0; r < READERS; r++) {
+            readers[r] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    PoseSnapshot pose = new PoseSnapshot();
+                    long lastSequence = 0;
+                    long count = 0;
+                    while (writing.get()) {
+                        channel.read(pose);
+                        count++;
+                        if (!isConsistent(pose)) {
+                            tornReads.incrementAndGet();
+                        }
+                        if (pose.frameSequence < lastSequence) {
+                            backwardReads.incrementAndGet();
+                        }
+                        lastSequence = pose.frameSequence;
+                    }
+                    reads.addAndGet(count);
+                }
+            });
+            readers[r].start();
+        }
+
+        double[] rvec = new double[3];
+        double[] tvec = new double[3];
+        for (long k = 1; k <= PUBLISHES; k++) {
+            poseOf(k, rvec, tvec);
+            channel.publish(k, k * 1000, k % 2 == 0, rvec, tvec);
+        }
+        writing.set(false);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+
+        assertTrue(reads.get() > 0);
+        assertEquals(0, tornReads.get());
+        assertEquals(0, backwardReads.get());
+        assertEquals(PUBLISHES, channel.getVersion());
+    }
+
+    @Test
+    public void readReportsOnlyNewPoses() {
+        PoseChannel channel = new PoseChannel();
+        PoseSnapshot pose = new PoseSnapshot();
+        assertFalse(channel.read(pose));
+
+        double[] rvec = new double[3];
+        double[] tvec = new double[3];
+        poseOf(1, rvec, tvec);
+        channel.publish(1, 1000, false, rvec, tvec);
+        assertTrue(channel.read(pose));
+        assertTrue(isConsistent(pose));
+        assertFalse(channel.read(pose));
+
+        poseOf(2, rvec, tvec);
+        channel.publish(2, 2000, true, rvec, tvec);
+        assertTrue(channel.read(pose));
+        assertTrue(isConsistent(pose));
+    }
+}
@@ -0,0 +1,142 @@
+package com.informatics.lehigh.cardboneviz.tracking;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Runs the pose filters offline on pose streams recorded with
+ * {@link com.informatics.lehigh.cardboneviz.UltrasoundTracker#RECORD_POSES} and reports,
+ * for each one, the jitter left compared to the raw poses, the latency added and the
+ * time a filter call takes.
+ * Jitter is the RMS distance of each pose to the midpoint of its two neighbours.
+ * Latency is the delay of the raw translation that best matches the filtered one.
+ * Usage: PoseFilterEvaluator poses1.csv [poses2.csv ...]
+ */
+public class PoseFilterEvaluator {
+    /** Longest delay tried when estimating the latency, in frames */
+    private static final int MAX_LAG_FRAMES = 30;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("usage: PoseFilterEvaluator poses1.csv [poses2.csv ...]");
+            return;
+        }
+        for (String path : args) {
+            List<double[]> poses = PoseRecorder.read(new File(path));
+            if (poses.size() < 3) {
+                System.err.println(path + ": not enough poses");
+                continue;
+            }
+            System.out.println(path + ": " + poses.size() + " poses");
+            evaluate("raw", null, poses);
+            evaluate("one euro", new OneEuroPoseFilter(), poses);
+            evaluate("kalman", new KalmanPoseFilter(), poses);
+        }
+    }
+
+    private static void evaluate(String name, PoseFilter filter, List<double[]> poses) {
+        int n = poses.size();
+        double[] timestamps = new double[n];
+        double[][] rvecs = new double[n][3];
+        double[][] tvecs = new double[n][3];
+        long filterNs = 0;
+        for (int i = 0; i < n; i++) {
+            double[] pose = poses.get(i);
+            timestamps[i] = pose[0];
+            System.arraycopy(pose, 1, rvecs[i], 0, 3);
+            System.arraycopy(pose, 4, tvecs[i], 0, 3);
+            if (filter != null) {
+                long start = System.nanoTime();
+                filter.filter((long) pose[0], rvecs[i], tvecs[i]);
+                filterNs += System.nanoTime() - start;
+            }
+        }
+        double frameMs = (timestamps[n - 1] - timestamps[0]) / (n - 1) / 1e6;
+        System.out.printf("  %-8s translation jitter %.3f mm, rotation jitter %.3f deg",
+                name, translationJitter(tvecs) * 1000, Math.toDegrees(rotationJitter(rvecs)));
+        if (filter != null) {
+            double[][] raw = new double[n][3];
+            for (int i = 0; i < n; i++) {
+                System.arraycopy(poses.get(i), 4, raw[i], 0, 3);
+            }
+            System.out.printf(", latency %.1f ms, %.2f us per pose",
+                    lagFrames(raw, tvecs) * frameMs, filterNs / 1e3 / n);
+        }
+        System.out.println();
+    }
+
+    private static double translationJitter(double[][] tvecs) {
+        double sum = 0;
+        for (int i = 1; i < tvecs.length - 1; i++) {
+            for (int c = 0; c < 3; c++) {
+                double d = tvecs[i][c] - (tvecs[i - 1][c] + tvecs[i + 1][c]) / 2;
+                sum += d * d;
+            }
+        }
+        return Math.sqrt(sum / (tvecs.length - 2));
+    }
+
+    private static double rotationJitter(double[][] rvecs) {
+        double[] prev = new double[PoseFilter.CHANNELS];
+        double[] cur = new double[PoseFilter.CHANNELS];
+        double[] next = new double[PoseFilter.CHANNELS];
+        double sum = 0;
+        for (int i = 1; i < rvecs.length - 1; i++) {
+            PoseFilter.rvecToQuat(rvecs[i - 1], prev);
+            PoseFilter.rvecToQuat(rvecs[i], cur);
+            PoseFilter.rvecToQuat(rvecs[i + 1], next);
+            // midpoint of the neighbours, all in the hemisphere of the current one
+            double sPrev = Math.signum(dot(prev, cur));
+            double sNext = Math.signum(dot(next, cur));
+            double norm = 0;
+            double mid = 0;
+            for (int c = PoseFilter.QUAT; c < PoseFilter.CHANNELS; c++) {
+                double m = sPrev * prev[c] + sNext * next[c];
+                norm += m * m;
+                mid += m * cur[c];
+            }
+            double cosHalf = Math.min(1, Math.abs(mid) / Math.sqrt(norm));
+            double angle = 2 * Math.acos(cosHalf);
+            sum += angle * angle;
+        }
+        return Math.sqrt(sum / (rvecs.length - 2));
+    }
+
+    private static double dot(double[] a, double[] b) {
+        double d = 0;
+        for (int c = PoseFilter.QUAT; c < PoseFilter.CHANNELS; c++) {
+            d += a[c] * b[c];
+        }
+        return d;
+    }
+
+    /**
+     * @return the delay in frames, interpolated, that makes the raw translation best match
+     * the filtered one
+     */
+    private static double lagFrames(double[][] raw, double[][] filtered) {
+        int maxLag = Math.min(MAX_LAG_FRAMES, raw.length / 2);
+        double[] error = new double[maxLag + 1];
+        int best = 0;
+        for (int lag = 0; lag <= maxLag; lag++) {
+            double sum = 0;
+            for (int i = maxLag; i < raw.length; i++) {
+                for (int c = 0; c < 3; c++) {
+                    double d = filtered[i][c] - raw[i - lag][c];
+                    sum += d * d;
+                }
+            }
+            error[lag] = sum;
+            if (sum < error[best]) {
+                best = lag;
+            }
+        }
+        if (best == 0 || best == maxLag) {
+            return best;
+        }
+        // fit a parabola through the best lag and its neighbours
+        double denom = error[best - 1] - 2 * error[best] + error[best + 1];
+        return denom <= 0 ? best : best + 0.5 * (error[best - 1] - error[best + 1]) / denom;
+    }
+}
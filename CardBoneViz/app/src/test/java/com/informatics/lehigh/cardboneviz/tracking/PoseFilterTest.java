@@ -0,0 +1,75 @@
+package com.informatics.lehigh.cardboneviz.tracking;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PoseFilterTest {
+    private static final long FRAME_NS = 33000000L;
+
+    @Test
+    public void rotationVectorSurvivesQuaternionRoundTrip() {
+        double[][] rvecs = {{0, 0, 0}, {0.1, -0.2, 0.3}, {Math.PI - 0.01, 0, 0}, {1e-14, 0, 0}};
+        double[] quat = new double[PoseFilter.CHANNELS];
+        double[] back = new double[3];
+        for (double[] rvec : rvecs) {
+            PoseFilter.rvecToQuat(rvec, quat);
+            PoseFilter.quatToRvec(quat, back);
+            for (int i = 0; i < 3; i++) {
+                assertEquals(rvec[i], back[i], 1e-9);
+            }
+        }
+    }
+
+    @Test
+    public void stillPoseIsUnchanged() {
+        PoseFilter[] filters = {new OneEuroPoseFilter(), new KalmanPoseFilter()};
+        for (PoseFilter filter : filters) {
+            double[] rvec = new double[3];
+            double[] tvec = new double[3];
+            for (int f = 0; f < 100; f++) {
+                rvec[0] = 0.5;
+                rvec[1] = -0.25;
+                rvec[2] = 1.0;
+                tvec[0] = 0.01;
+                tvec[1] = 0.02;
+                tvec[2] = 0.3;
+                filter.filter(f * FRAME_NS, rvec, tvec);
+            }
+            assertEquals(0.5, rvec[0], 1e-9);
+            assertEquals(1.0, rvec[2], 1e-9);
+            assertEquals(0.3, tvec[2], 1e-9);
+        }
+    }
+
+    @Test
+    public void rotationsNearHalfTurnAreNotAveragedAcrossHemispheres() {
+        // a turn of almost pi about x and about -x are close rotations, but their
+        // quaternions are almost opposite
+        double angle = Math.PI - 0.02;
+        PoseFilter[] filters = {new OneEuroPoseFilter(), new KalmanPoseFilter()};
+        for (PoseFilter filter : filters) {
+            double[] rvec = new double[3];
+            double[] tvec = new double[3];
+            for (int f = 0; f < 20; f++) {
+                rvec[0] = f % 2 == 0 ? angle : -angle;
+                rvec[1] = 0;
+                rvec[2] = 0;
+                filter.filter(f * FRAME_NS, rvec, tvec);
+                double filteredAngle = Math.sqrt(rvec[0] * rvec[0] + rvec[1] * rvec[1] + rvec[2] * rvec[2]);
+                assertTrue(filteredAngle > angle - 1e-6);
+            }
+        }
+    }
+
+    @Test
+    public void longGapRestartsTheFilter() {
+        PoseFilter filter = new OneEuroPoseFilter();
+        double[] rvec = new double[3];
+        double[] tvec = new double[3];
+        filter.filter(0, rvec, tvec);
+        tvec[0] = 1;
+        filter.filter(2000000000L, rvec, tvec);
+        assertEquals(1, tvec[0], 1e-12);
+    }
+}
@@ -0,0 +1,168 @@
+package com.informatics.lehigh.cardboneviz.tracking;
+
+import com.informatics.lehigh.cardboneviz.UltrasoundTracker;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Vector;
+
+import es.ava.aruco.CameraParameters;
+import es.ava.aruco.CandidateList;
+import es.ava.aruco.Marker;
+import es.ava.aruco.MarkerDetector;
+import es.ava.aruco.exceptions.CPException;
+
+/**
+ * Replays a frame recording through the marker detection and the cube pose solve on a
+ * desktop JVM, the same stages the tracker runs on the phone with CUBE_MODEL_POSE: the
+ * candidates are found, identified and the cube pose is solved by a
+ * {@link MultiObjectTracker}, with the code sampling, corner refinement and pose
+ * tracking settings of {@link UltrasoundTracker}. It writes one line per frame
+ * with the markers and the cube pose found, which only depend on the recording and the
+ * detector, so two runs can be diffed to check a detector change. The time taken by each
+ * frame is summed up on stderr, and can be written per frame with --timing.
+ * Needs the OpenCV desktop native library in java.library.path.
+ * Usage: ReplayDriver recording.cbvf [--pyramid levels] [--out detections.csv] [--timing timing.csv]
+ */
+public class ReplayDriver {
+    /** The markers of the cube, as in the tracker */
+    private static final int[] CUBE_IDS = {1, 2, 3, 4, 5, 6};
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("usage: ReplayDriver recording.cbvf [--pyramid levels] [--out detections.csv]"
+                    + " [--timing timing.csv]");
+            return;
+        }
+        int pyramidLevels = 0;
+        PrintWriter out = new PrintWriter(System.out);
+        PrintWriter timing = null;
+        for (int i = 1; i < args.length; i += 2) {
+            if (args[i].equals("--pyramid")) {
+                pyramidLevels = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("--out")) {
+                out = new PrintWriter(new FileWriter(args[i + 1]));
+            } else if (args[i].equals("--timing")) {
+                timing = new PrintWriter(new FileWriter(args[i + 1]));
+            } else {
+                System.err.println("unknown option " + args[i]);
+                return;
+            }
+        }
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+
+        FrameRecording recording = new FrameRecording(new File(args[0]));
+        CameraParameters calibParams = new CameraParameters();
+        calibParams.getCameraMatrix().put(0, 0, recording.getCameraMatrix());
+        calibParams.getDistCoeff().fromArray(recording.getDistCoeffs());
+        calibParams.setCamSize(new Size(recording.getCalibWidth(), recording.getCalibHeight()));
+        MultiObjectTracker objects = new MultiObjectTracker();
+        objects.setPoseTracking(UltrasoundTracker.POSE_TRACKING);
+        objects.register(UltrasoundTracker.WAND_OBJECT_ID,
+                new CubeModel(CUBE_IDS, recording.getMarkerSize(), recording.getPaddingSize()));
+        MarkerDetector candidateDetector = new MarkerDetector();
+        candidateDetector.setPyramidLevels(pyramidLevels);
+        MarkerDetector detector = new MarkerDetector();
+        // the corners of the markers must be in the order of the cube model
+        detector.setOrientedCorners(true);
+        detector.setCodeSampling(UltrasoundTracker.CODE_SAMPLING);
+        detector.setCornerRefinement(UltrasoundTracker.CORNER_REFINEMENT);
+        detector.setPoseTracking(UltrasoundTracker.POSE_TRACKING);
+
+        FrameRecording.Frame frame = new FrameRecording.Frame();
+        CandidateList candidates = new CandidateList();
+        Vector<Marker> detected = new Vector<>();
+        double[] r = new double[3];
+        double[] t = new double[3];
+        Mat strided = new Mat();
+        byte[] plane = new byte[0];
+        CameraParameters camParams = null;
+        long[] frameNs = new long[64];
+        int frames = 0;
+        int found = 0;
+        out.println("sequence,timestamp,ids,found,rx,ry,rz,tx,ty,tz");
+        while (recording.next(frame)) {
+            // the recorded plane may lack the padding of its last row
+            int size = frame.rowStride * frame.height;
+            if (plane.length != size) {
+                plane = new byte[size];
+            }
+            System.arraycopy(frame.data, 0, plane, 0, Math.min(frame.length, size));
+            strided.create(frame.height, frame.rowStride, CvType.CV_8UC1);
+            strided.put(0, 0, plane);
+            Mat image = strided.submat(0, frame.height, 0, frame.width);
+            if (camParams == null || camParams.getCamSize().width != frame.width
+                    || camParams.getCamSize().height != frame.height) {
+                camParams = new CameraParameters();
+                calibParams.copyTo(camParams);
+                try {
+                    camParams.resize(new Size(frame.width, frame.height));
+                } catch (CPException e) {
+                    System.err.println("camera parameters not valid: " + e.getMessage());
+                }
+            }
+
+            long start = System.nanoTime();
+            candidateDetector.findCandidates(image, candidates);
+            detector.identifyCandidates(image, candidates, detected, camParams, recording.getMarkerSize());
+            boolean cubeFound = objects.solve(detected, camParams) > 0;
+            long ns = System.nanoTime() - start;
+            image.release();
+
+            if (frames == frameNs.length) {
+                frameNs = Arrays.copyOf(frameNs, frames * 2);
+            }
+            frameNs[frames++] = ns;
+            StringBuilder ids = new StringBuilder();
+            for (Marker marker : detected) {
+                if (ids.length() > 0) {
+                    ids.append(' ');
+                }
+                ids.append(marker.getMarkerId());
+            }
+            if (cubeFound) {
+                found++;
+                objects.getRvec(0).get(0, 0, r);
+                objects.getTvec(0).get(0, 0, t);
+                out.printf(Locale.US, "%d,%d,%s,1,%.6f,%.6f,%.6f,%.6f,%.6f,%.6f%n", frame.sequence,
+                        frame.timestampNs, ids, r[0], r[1], r[2], t[0], t[1], t[2]);
+            } else {
+                out.printf(Locale.US, "%d,%d,%s,0,,,,,,%n", frame.sequence, frame.timestampNs, ids);
+            }
+            if (timing != null) {
+                timing.printf(Locale.US, "%d,%.3f%n", frame.sequence, ns / 1e6);
+            }
+        }
+        recording.close();
+        strided.release();
+        objects.release();
+        out.close();
+        if (timing != null) {
+            timing.close();
+        }
+
+        if (frames == 0) {
+            System.err.println("no frames in " + args[0]);
+            return;
+        }
+        long[] sorted = Arrays.copyOf(frameNs, frames);
+        Arrays.sort(sorted);
+        long total = 0;
+        for (long ns : sorted) {
+            total += ns;
+        }
+        System.err.printf(Locale.US, "%d frames, cube found in %d, avg %.2f ms, p50 %.2f ms, p95 %.2f ms,"
+                        + " max %.2f ms, %.1f FPS%n", frames, found, total / 1e6 / frames,
+                sorted[frames / 2] / 1e6, sorted[(int) Math.min(frames - 1, Math.ceil(frames * 0.95) - 1)] / 1e6,
+                sorted[frames - 1] / 1e6, frames * 1e9 / total);
+    }
+}
@@ -0,0 +1,30 @@
+package com.informatics.lehigh.cardboneviz.tracking;
+
+import org.junit.Test;
+import org.opencv.core.Size;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks which candidate resolutions the governor times for the camera images it is given.
+ */
+public class ResolutionGovernorTest {
+
+    @Test
+    public void onlySmallerResolutionsOfTheSameAspectFit() {
+        assertTrue(ResolutionGovernor.fits(new Size(1280, 720), 1280, 720));
+        assertTrue(ResolutionGovernor.fits(new Size(640, 360), 1280, 720));
+        // would have to be upscaled
+        assertFalse(ResolutionGovernor.fits(new Size(1920, 1080), 1280, 720));
+        // 4:3 images would be stretched to 16:9
+        assertFalse(ResolutionGovernor.fits(new Size(960, 540), 1280, 960));
+        assertTrue(ResolutionGovernor.fits(new Size(640, 480), 1280, 960));
+    }
+
+    @Test
+    public void roundedHeightsStillFit() {
+        // 854x480 is 16:9 within a pixel of height
+        assertTrue(ResolutionGovernor.fits(new Size(854, 480), 1920, 1080));
+        assertFalse(ResolutionGovernor.fits(new Size(854, 482), 1920, 1080));
+    }
+}